@@ -0,0 +1,85 @@
+package com.example.android.storeinventory.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.util.Random;
+
+/**
+ * Checks that every kind of picture is encoded in a format that suits it and can be read back.
+ */
+public class PictureEncoderTest extends AndroidTestCase {
+
+    /** Size in pixels of the test pictures, the size the app stores */
+    private static final int SIZE = 72;
+
+    public void testPhotosAreEncodedLossy() {
+        Bitmap photo = createPhoto(0xff);
+        byte[] webp = new PictureEncoder(Bitmap.CompressFormat.WEBP, 80).encode(photo);
+        assertEquals(ProductsEntry.PICTURE_FORMAT_WEBP, PictureEncoder.detectFormat(webp));
+        byte[] jpeg = new PictureEncoder(Bitmap.CompressFormat.JPEG, 80).encode(photo);
+        assertEquals(ProductsEntry.PICTURE_FORMAT_JPEG, PictureEncoder.detectFormat(jpeg));
+        assertDecodes(webp);
+        assertDecodes(jpeg);
+    }
+
+    public void testGraphicsStayLossless() {
+        Bitmap graphic = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        graphic.eraseColor(0xff3366cc);
+        for(int x = 0; x < SIZE; x++){
+            graphic.setPixel(x, x, 0xffffffff);
+        }
+        byte[] png = PictureEncoder.getDefault().encode(graphic);
+        assertEquals(ProductsEntry.PICTURE_FORMAT_PNG, PictureEncoder.detectFormat(png));
+        assertDecodes(png);
+    }
+
+    public void testTransparentPhotosKeepTheirAlpha() {
+        byte[] encoded = new PictureEncoder(Bitmap.CompressFormat.JPEG, 80).encode(createPhoto(0x80));
+        int expectedFormat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                ? ProductsEntry.PICTURE_FORMAT_WEBP : ProductsEntry.PICTURE_FORMAT_PNG;
+        assertEquals(expectedFormat, PictureEncoder.detectFormat(encoded));
+        assertTrue(BitmapFactory.decodeByteArray(encoded, 0, encoded.length).hasAlpha());
+    }
+
+    public void testInvalidSettingsAreRejected() {
+        try {
+            new PictureEncoder(Bitmap.CompressFormat.PNG, 80);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new PictureEncoder(Bitmap.CompressFormat.WEBP, 101);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(ProductsEntry.PICTURE_FORMAT_UNKNOWN, PictureEncoder.detectFormat(new byte[] {1, 2, 3}));
+    }
+
+    /**
+     * Create a picture of random pixels with the given alpha, which has as many colors as a photo.
+     */
+    private static Bitmap createPhoto(int alpha) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        Random random = new Random(42);
+        for(int y = 0; y < SIZE; y++){
+            for(int x = 0; x < SIZE; x++){
+                bitmap.setPixel(x, y, (alpha << 24) | random.nextInt(0x1000000));
+            }
+        }
+        return bitmap;
+    }
+
+    private static void assertDecodes(byte[] encoded) {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+        assertNotNull(bitmap);
+        assertEquals(SIZE, bitmap.getWidth());
+        assertEquals(SIZE, bitmap.getHeight());
+    }
+}
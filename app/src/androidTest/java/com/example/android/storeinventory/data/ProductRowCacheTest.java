@@ -0,0 +1,75 @@
+package com.example.android.storeinventory.data;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the row cache serves the columns of a product and never keeps a row that a
+ * write may have changed.
+ */
+public class ProductRowCacheTest extends AndroidTestCase {
+
+    public void testServesTheAskedColumns() {
+        ProductRowCache cache = new ProductRowCache(64 * 1024);
+        cache.put(new ProductRowCache.Row(3, "Rye Bread", 350, 12, "hash", 1, "uuid", 1, "sku"), cache.getGeneration());
+
+        Cursor cursor = ProductRowCache.toCursor(cache.get(3), new String[] {"quantity", "name", "_id"});
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(12, cursor.getInt(cursor.getColumnIndexOrThrow("quantity")));
+            assertEquals("Rye Bread", cursor.getString(cursor.getColumnIndexOrThrow("name")));
+            assertEquals(3, cursor.getLong(cursor.getColumnIndexOrThrow("_id")));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, cache.getHitCount());
+
+        // Every column of the table when there is no projection, and no row for a missing product
+        cursor = ProductRowCache.toCursor(cache.get(4), null);
+        try {
+            assertEquals(0, cursor.getCount());
+            assertEquals(9, cursor.getColumnCount());
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, cache.getMissCount());
+
+        assertTrue(ProductRowCache.canServe(null));
+        assertTrue(ProductRowCache.canServe(new String[] {"price", "picture_hash"}));
+        assertFalse(ProductRowCache.canServe(new String[] {"name", "count(*)"}));
+    }
+
+    public void testDropsRowsReadBeforeAnInvalidation() {
+        ProductRowCache cache = new ProductRowCache(64 * 1024);
+        long generation = cache.getGeneration();
+        // A write commits and invalidates while the row is being read
+        cache.invalidate(3);
+        cache.put(new ProductRowCache.Row(3, "Rye Bread", 350, 12, "hash", 1, "uuid", 1, "sku"), generation);
+        assertNull(cache.get(3));
+
+        cache.put(new ProductRowCache.Row(3, "Rye Bread", 350, 11, "hash", 1, "uuid", 1, "sku"), cache.getGeneration());
+        assertEquals(11, cache.get(3).mQuantity);
+        cache.invalidate(3);
+        assertNull(cache.get(3));
+
+        cache.put(new ProductRowCache.Row(3, "Rye Bread", 350, 11, "hash", 1, "uuid", 1, "sku"), cache.getGeneration());
+        cache.invalidateAll();
+        assertNull(cache.get(3));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testKeepsTheRecentRowsWithinItsSize() {
+        ProductRowCache.Row row = new ProductRowCache.Row(1, "Rye Bread", 350, 12, "hash", 1, "uuid", 1, "sku");
+        // Room for three rows of that size
+        ProductRowCache cache = new ProductRowCache(3 * row.getSize());
+        for(long id = 1; id <= 4; id++){
+            cache.put(new ProductRowCache.Row(id, "Rye Bread", 350, 12, "hash", 1, "uuid", 1, "sku"), cache.getGeneration());
+        }
+        assertEquals(3, cache.getRowCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(4));
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+    }
+}
@@ -0,0 +1,721 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Upgrades synthetic databases from every past version to the current one and checks the data.
+ * When a new version is added, add its schema to {@link #SCHEMAS} and a test that starts from
+ * the version before it.
+ */
+public class ProductsMigrationTest extends AndroidTestCase {
+
+    /** File name of the database used by the tests */
+    private static final String TEST_DATABASE_NAME = "inventory-migration-test.db";
+
+    /** Number of products in each synthetic database, more than one chunk of every step */
+    private static final int PRODUCT_COUNT = 1200;
+
+    /** Statements that create the schema of each past version, by version */
+    private static final String[][] SCHEMAS = {
+            // Version 0 does not exist
+            {},
+            // Version 1: the picture is stored in the products table
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture BLOB NOT NULL);"
+            },
+            // Version 2: the picture is stored in a file
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);"
+            },
+            // Version 3: indexes for reading pages
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);"
+            },
+            // Version 4: full text search of the product names
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;"
+            },
+            // Version 5: prices in minor currency units
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;"
+            },
+            // Version 6: tokens of the applied sale batches
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;",
+                    "CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);"
+            },
+            // Version 7: stock movements ledger
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;",
+                    "CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);",
+                    "CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, delta INTEGER NOT NULL, kind INTEGER NOT NULL, " +
+                            "created_at INTEGER NOT NULL);",
+                    "CREATE INDEX stock_movements_product_idx ON stock_movements (product_id, created_at);",
+                    "CREATE INDEX stock_movements_created_at_idx ON stock_movements (created_at);"
+            },
+            // Version 8: summary of all the products
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;",
+                    "CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);",
+                    "CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, delta INTEGER NOT NULL, kind INTEGER NOT NULL, " +
+                            "created_at INTEGER NOT NULL);",
+                    "CREATE INDEX stock_movements_product_idx ON stock_movements (product_id, created_at);",
+                    "CREATE INDEX stock_movements_created_at_idx ON stock_movements (created_at);",
+                    "CREATE TABLE products_summary (_id INTEGER PRIMARY KEY, " +
+                            "product_count INTEGER NOT NULL, total_quantity INTEGER NOT NULL, " +
+                            "total_value INTEGER NOT NULL, low_stock_count INTEGER NOT NULL, " +
+                            "out_of_stock_count INTEGER NOT NULL);",
+                    // The products are inserted after the schema, so the triggers count them
+                    "INSERT INTO products_summary VALUES (1, 0, 0, 0, 0, 0);",
+                    "CREATE TRIGGER products_summary_insert AFTER INSERT ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_delete AFTER DELETE ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_update AFTER UPDATE OF quantity, price ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0);" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;"
+            },
+            // Version 9: format of the pictures
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL, " +
+                            "picture_format INTEGER NOT NULL DEFAULT 0);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;",
+                    "CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);",
+                    "CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, delta INTEGER NOT NULL, kind INTEGER NOT NULL, " +
+                            "created_at INTEGER NOT NULL);",
+                    "CREATE INDEX stock_movements_product_idx ON stock_movements (product_id, created_at);",
+                    "CREATE INDEX stock_movements_created_at_idx ON stock_movements (created_at);",
+                    "CREATE TABLE products_summary (_id INTEGER PRIMARY KEY, " +
+                            "product_count INTEGER NOT NULL, total_quantity INTEGER NOT NULL, " +
+                            "total_value INTEGER NOT NULL, low_stock_count INTEGER NOT NULL, " +
+                            "out_of_stock_count INTEGER NOT NULL);",
+                    // The products are inserted after the schema, so the triggers count them
+                    "INSERT INTO products_summary VALUES (1, 0, 0, 0, 0, 0);",
+                    "CREATE TRIGGER products_summary_insert AFTER INSERT ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_delete AFTER DELETE ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_update AFTER UPDATE OF quantity, price ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0);" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;"
+            },
+            // Version 10: sync with the inventory service
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL, " +
+                            "picture_format INTEGER NOT NULL DEFAULT 0, uuid TEXT, version INTEGER NOT NULL DEFAULT 0);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE UNIQUE INDEX products_uuid_idx ON products (uuid);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;",
+                    "CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);",
+                    "CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, delta INTEGER NOT NULL, kind INTEGER NOT NULL, " +
+                            "created_at INTEGER NOT NULL);",
+                    "CREATE INDEX stock_movements_product_idx ON stock_movements (product_id, created_at);",
+                    "CREATE INDEX stock_movements_created_at_idx ON stock_movements (created_at);",
+                    "CREATE TABLE products_summary (_id INTEGER PRIMARY KEY, " +
+                            "product_count INTEGER NOT NULL, total_quantity INTEGER NOT NULL, " +
+                            "total_value INTEGER NOT NULL, low_stock_count INTEGER NOT NULL, " +
+                            "out_of_stock_count INTEGER NOT NULL);",
+                    // The products are inserted after the schema, so the triggers count them
+                    "INSERT INTO products_summary VALUES (1, 0, 0, 0, 0, 0);",
+                    "CREATE TRIGGER products_summary_insert AFTER INSERT ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_delete AFTER DELETE ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_update AFTER UPDATE OF quantity, price ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0);" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;",
+                    "CREATE TABLE product_changes (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, product_uuid TEXT, version INTEGER NOT NULL, " +
+                            "deleted INTEGER NOT NULL DEFAULT 0, name TEXT, price INTEGER, picture_hash TEXT, " +
+                            "quantity_delta INTEGER NOT NULL DEFAULT 0, created_at INTEGER NOT NULL);",
+                    "CREATE INDEX product_changes_product_idx ON product_changes (product_id);",
+                    "CREATE TABLE sync_state (_id INTEGER PRIMARY KEY, device_id TEXT NOT NULL, " +
+                            "pull_watermark INTEGER NOT NULL);",
+                    "INSERT INTO sync_state VALUES (1, 'device', 0);"
+            },
+            // Version 11: the SKU of the products
+            {
+                    "CREATE TABLE products (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                            "price INTEGER NOT NULL, quantity INTEGER NOT NULL DEFAULT 0, picture_hash TEXT NOT NULL, " +
+                            "picture_format INTEGER NOT NULL DEFAULT 0, uuid TEXT, version INTEGER NOT NULL DEFAULT 0, sku TEXT);",
+                    "CREATE INDEX products_picture_hash_idx ON products (picture_hash);",
+                    "CREATE INDEX products_name_idx ON products (name, _id);",
+                    "CREATE INDEX products_price_idx ON products (price, _id);",
+                    "CREATE INDEX products_quantity_idx ON products (quantity, _id);",
+                    "CREATE UNIQUE INDEX products_uuid_idx ON products (uuid);",
+                    "CREATE UNIQUE INDEX products_sku_idx ON products (sku);",
+                    "CREATE VIRTUAL TABLE products_fts USING fts4(name);",
+                    "CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                            " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;",
+                    "CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                            " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;",
+                    "CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                            " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;",
+                    "CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);",
+                    "CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, delta INTEGER NOT NULL, kind INTEGER NOT NULL, " +
+                            "created_at INTEGER NOT NULL);",
+                    "CREATE INDEX stock_movements_product_idx ON stock_movements (product_id, created_at);",
+                    "CREATE INDEX stock_movements_created_at_idx ON stock_movements (created_at);",
+                    "CREATE TABLE products_summary (_id INTEGER PRIMARY KEY, " +
+                            "product_count INTEGER NOT NULL, total_quantity INTEGER NOT NULL, " +
+                            "total_value INTEGER NOT NULL, low_stock_count INTEGER NOT NULL, " +
+                            "out_of_stock_count INTEGER NOT NULL);",
+                    // The products are inserted after the schema, so the triggers count them
+                    "INSERT INTO products_summary VALUES (1, 0, 0, 0, 0, 0);",
+                    "CREATE TRIGGER products_summary_insert AFTER INSERT ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_delete AFTER DELETE ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0); END;",
+                    "CREATE TRIGGER products_summary_update AFTER UPDATE OF quantity, price ON products BEGIN" +
+                            " UPDATE products_summary SET product_count = product_count - 1," +
+                            " total_quantity = total_quantity - old.quantity," +
+                            " total_value = total_value - old.price * old.quantity," +
+                            " low_stock_count = low_stock_count - (old.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count - (old.quantity = 0);" +
+                            " UPDATE products_summary SET product_count = product_count + 1," +
+                            " total_quantity = total_quantity + new.quantity," +
+                            " total_value = total_value + new.price * new.quantity," +
+                            " low_stock_count = low_stock_count + (new.quantity < 5)," +
+                            " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;",
+                    "CREATE TABLE product_changes (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "product_id INTEGER NOT NULL, product_uuid TEXT, version INTEGER NOT NULL, " +
+                            "deleted INTEGER NOT NULL DEFAULT 0, name TEXT, price INTEGER, picture_hash TEXT, " +
+                            "quantity_delta INTEGER NOT NULL DEFAULT 0, created_at INTEGER NOT NULL);",
+                    "CREATE INDEX product_changes_product_idx ON product_changes (product_id);",
+                    "CREATE TABLE sync_state (_id INTEGER PRIMARY KEY, device_id TEXT NOT NULL, " +
+                            "pull_watermark INTEGER NOT NULL);",
+                    "INSERT INTO sync_state VALUES (1, 'device', 0);"
+            }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion1() {
+        createDatabase(1);
+        ProductsDbHelper helper = upgrade();
+        SQLiteDatabase db = helper.getReadableDatabase();
+
+        assertCurrentSchema(db);
+        assertFalse(tableExists(db, ProductsMigrations.PicturesToFiles.LEGACY_TABLE_NAME));
+        // Every picture has been moved to a file
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "products", "picture_hash=''", null));
+        PictureStore pictureStore = new PictureStore(getContext());
+        Cursor cursor = db.query(true, "products", new String[] {"picture_hash"}, null, null, null, null, null, null);
+        try {
+            while(cursor.moveToNext()){
+                assertTrue(pictureStore.getFile(cursor.getString(0)).exists());
+            }
+        } finally {
+            cursor.close();
+        }
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion2() {
+        createDatabase(2);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion3() {
+        createDatabase(3);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion4() {
+        createDatabase(4);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion5() {
+        createDatabase(5);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion6() {
+        createDatabase(6);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion7() {
+        createDatabase(7);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion8() {
+        createDatabase(8);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion9() {
+        createDatabase(9);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion10() {
+        createDatabase(10);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    public void testUpgradeFromVersion11() {
+        createDatabase(11);
+        ProductsDbHelper helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    /**
+     * The lossless photos are encoded again in a compact format, the graphics keep theirs.
+     */
+    public void testUpgradeEncodesPicturesAgain() throws Exception {
+        createDatabase(8);
+        PictureStore pictureStore = new PictureStore(getContext());
+        Bitmap photo = Bitmap.createBitmap(72, 72, Bitmap.Config.ARGB_8888);
+        Random random = new Random(42);
+        for(int y = 0; y < 72; y++){
+            for(int x = 0; x < 72; x++){
+                photo.setPixel(x, y, 0xff000000 | random.nextInt(0x1000000));
+            }
+        }
+        Bitmap graphic = Bitmap.createBitmap(72, 72, Bitmap.Config.ARGB_8888);
+        graphic.eraseColor(0xff3366cc);
+        String photoHash = pictureStore.put(compressPng(photo));
+        String graphicHash = pictureStore.put(compressPng(graphic));
+        SQLiteDatabase db = getContext().openOrCreateDatabase(TEST_DATABASE_NAME, 0, null);
+        db.execSQL("UPDATE products SET picture_hash=? WHERE _id=1", new Object[] {photoHash});
+        db.execSQL("UPDATE products SET picture_hash=? WHERE _id=2", new Object[] {graphicHash});
+        db.close();
+
+        ProductsDbHelper helper = upgrade();
+        db = helper.getReadableDatabase();
+        assertCurrentSchema(db);
+        String newPhotoHash = DatabaseUtils.stringForQuery(db, "SELECT picture_hash FROM products WHERE _id=1", null);
+        assertFalse(photoHash.equals(newPhotoHash));
+        assertTrue(pictureStore.getFile(newPhotoHash).length() < pictureStore.getFile(photoHash).length());
+        assertEquals(ProductsEntry.PICTURE_FORMAT_WEBP, DatabaseUtils.longForQuery(db,
+                "SELECT picture_format FROM products WHERE _id=1", null));
+        assertEquals(graphicHash, DatabaseUtils.stringForQuery(db, "SELECT picture_hash FROM products WHERE _id=2", null));
+        assertEquals(ProductsEntry.PICTURE_FORMAT_PNG, DatabaseUtils.longForQuery(db,
+                "SELECT picture_format FROM products WHERE _id=2", null));
+        helper.close();
+    }
+
+    /**
+     * The chunked work continues where it stopped when the process is killed in between.
+     */
+    public void testUpgradeResumesAfterRestart() {
+        createDatabase(1);
+        ProductsDbHelper helper = new ProductsDbHelper(getContext(), TEST_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        MigrationRunner runner = new MigrationRunner(ProductsMigrations.create(getContext()), 100);
+        assertTrue(runner.runNextChunk(db));
+        assertTrue(runner.runNextChunk(db));
+        helper.close();
+
+        // A new helper plays the part of the restarted process
+        helper = upgrade();
+        assertCurrentSchema(helper.getReadableDatabase());
+        helper.close();
+    }
+
+    /**
+     * Products written while the chunked work is still pending are kept intact.
+     */
+    public void testWritesDuringUpgrade() {
+        createDatabase(1);
+        ProductsDbHelper helper = new ProductsDbHelper(getContext(), TEST_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put("name", "Rye Bread");
+        values.put("price", 4);
+        values.put("quantity", 3);
+        values.put("picture_hash", "new-picture");
+        long id = db.insertOrThrow("products", null, values);
+        // The first chunk copies the first old products, the picture of the first one is
+        // changed before it is moved
+        assertTrue(helper.runNextMigrationChunk(db));
+        ContentValues changedPicture = new ContentValues();
+        changedPicture.put("picture_hash", "changed-picture");
+        db.update("products", changedPicture, "_id=1", null);
+
+        helper.runPendingMigrations();
+
+        assertEquals("new-picture", DatabaseUtils.stringForQuery(db,
+                "SELECT picture_hash FROM products WHERE _id=" + id, null));
+        assertEquals("changed-picture", DatabaseUtils.stringForQuery(db,
+                "SELECT picture_hash FROM products WHERE _id=1", null));
+        assertEquals(1, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM products_fts WHERE products_fts MATCH 'rye*'", null));
+        helper.close();
+    }
+
+    /**
+     * A chunk run in the same transaction as other writes, once there is no work left, does not
+     * roll them back, as the writer thread groups them.
+     */
+    public void testEmptyChunkKeepsTheWritesAroundIt() {
+        ProductsDbHelper helper = upgrade();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("name", "Rye Bread");
+        values.put("price", 4);
+        values.put("quantity", 3);
+        db.beginTransaction();
+        try {
+            db.insertOrThrow("products", null, values);
+            assertFalse(helper.runNextMigrationChunk(db));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, "products", "name='Rye Bread'"));
+        helper.close();
+    }
+
+    /**
+     * The schema step of every version only changes the schema and leaves the rest to the chunks.
+     */
+    public void testSchemaStepsDoNotFinishChunkedWork() {
+        List<Migration> migrations = ProductsMigrations.create(getContext());
+        for(Migration migration : migrations){
+            int version = migration.getVersion();
+            assertTrue(version > 1 && version <= ProductsDbHelper.DATABASE_VERSION);
+            if(!migration.hasChunks()){
+                continue;
+            }
+            createDatabase(version - 1);
+            SQLiteDatabase db = getContext().openOrCreateDatabase(TEST_DATABASE_NAME, 0, null);
+            MigrationRunner.createTable(db);
+            new MigrationRunner(migrations, 100).upgrade(db, version - 1, version);
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, MigrationRunner.TABLE_NAME));
+            db.close();
+            getContext().deleteDatabase(TEST_DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Create a database with the schema of the given version filled with synthetic products.
+     */
+    private void createDatabase(int version) {
+        SQLiteDatabase db = getContext().openOrCreateDatabase(TEST_DATABASE_NAME, 0, null);
+        db.beginTransaction();
+        try {
+            for(String statement : SCHEMAS[version]){
+                db.execSQL(statement);
+            }
+            for(int i = 1; i <= PRODUCT_COUNT; i++){
+                ContentValues values = new ContentValues();
+                values.put("name", "Product " + i);
+                // Versions before 5 saved prices with decimals, later ones in minor units
+                if(version < 5){
+                    values.put("price", i % 2 == 0 ? i : i + 0.5);
+                }
+                else {
+                    values.put("price", i % 2 == 0 ? i * 100L : i * 100L + 50);
+                }
+                values.put("quantity", i % 10);
+                if(version == 1){
+                    values.put("picture", new byte[] {(byte) (i % 7), 1, 2, 3});
+                }
+                else {
+                    values.put("picture_hash", "hash" + (i % 7));
+                }
+                // Versions from 10 on give every product an identifier
+                if(version >= 10){
+                    values.put("uuid", "uuid" + i);
+                }
+                long id = db.insertOrThrow("products", null, values);
+                // Versions from 7 on account for the quantity with stock movements
+                if(version >= 7){
+                    ContentValues movement = new ContentValues();
+                    movement.put("product_id", id);
+                    movement.put("delta", i % 10);
+                    movement.put("kind", 4);
+                    movement.put("created_at", 0);
+                    db.insertOrThrow("stock_movements", null, movement);
+                }
+                // Versions from 10 on log every product to be sent to the inventory service
+                if(version >= 10){
+                    ContentValues change = new ContentValues();
+                    change.put("product_id", id);
+                    change.put("product_uuid", "uuid" + i);
+                    change.put("version", 0);
+                    change.put("quantity_delta", i % 10);
+                    change.put("created_at", 0);
+                    db.insertOrThrow("product_changes", null, change);
+                }
+            }
+            db.setVersion(version);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+    }
+
+    private static byte[] compressPng(Bitmap bitmap) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 0, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Open the test database with the current helper and finish all the pending work.
+     */
+    private ProductsDbHelper upgrade() {
+        ProductsDbHelper helper = new ProductsDbHelper(getContext(), TEST_DATABASE_NAME);
+        helper.runPendingMigrations();
+        return helper;
+    }
+
+    /**
+     * Check that the database has the current schema, no pending work and all the products.
+     */
+    private void assertCurrentSchema(SQLiteDatabase db) {
+        assertEquals(ProductsDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, MigrationRunner.TABLE_NAME));
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.queryNumEntries(db, "products"));
+        assertTrue(indexExists(db, "products_picture_hash_idx"));
+        assertTrue(indexExists(db, "products_name_idx"));
+        assertTrue(indexExists(db, "products_price_idx"));
+        assertTrue(indexExists(db, "products_quantity_idx"));
+        // Every name can be found through the search table
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM products_fts WHERE products_fts MATCH 'product*'", null));
+        // Prices are whole numbers of minor currency units
+        assertEquals(150, DatabaseUtils.longForQuery(db, "SELECT price FROM products WHERE _id=1", null));
+        assertEquals(200, DatabaseUtils.longForQuery(db, "SELECT price FROM products WHERE _id=2", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "products", "typeof(price)<>'integer'", null));
+        assertTrue(tableExists(db, "sale_batches"));
+        // The quantity of every product is accounted for by its stock movements
+        assertTrue(indexExists(db, "stock_movements_product_idx"));
+        assertTrue(indexExists(db, "stock_movements_created_at_idx"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "products", "quantity <> ifnull((SELECT sum(delta)" +
+                " FROM stock_movements WHERE product_id = products._id), 0)", null));
+        // The summary matches the products
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.longForQuery(db,
+                "SELECT product_count FROM products_summary", null));
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT sum(quantity) FROM products", null),
+                DatabaseUtils.longForQuery(db, "SELECT total_quantity FROM products_summary", null));
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT sum(price * quantity) FROM products", null),
+                DatabaseUtils.longForQuery(db, "SELECT total_value FROM products_summary", null));
+        assertEquals(DatabaseUtils.queryNumEntries(db, "products", "quantity < 5", null),
+                DatabaseUtils.longForQuery(db, "SELECT low_stock_count FROM products_summary", null));
+        assertEquals(DatabaseUtils.queryNumEntries(db, "products", "quantity = 0", null),
+                DatabaseUtils.longForQuery(db, "SELECT out_of_stock_count FROM products_summary", null));
+        // Every product has a picture format, unknown for the pictures that could not be read
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.queryNumEntries(db, "products", "picture_format >= 0", null));
+        // Every product has an identifier and is logged whole, to be sent to the inventory service
+        assertTrue(indexExists(db, "products_uuid_idx"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "products", "uuid IS NULL", null));
+        assertEquals(PRODUCT_COUNT, DatabaseUtils.queryNumEntries(db, "product_changes",
+                "product_uuid IS NOT NULL", null));
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT sum(quantity) FROM products", null),
+                DatabaseUtils.longForQuery(db, "SELECT sum(quantity_delta) FROM product_changes", null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, "sync_state"));
+        // No batch of changes is waiting for the answer of the service
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT push_bound FROM sync_state", null));
+        // No product has a SKU yet, and none can share one
+        assertTrue(indexExists(db, "products_sku_idx"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "products", "sku IS NOT NULL", null));
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String name) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "type='table' AND name=?",
+                new String[] {name}) > 0;
+    }
+
+    private static boolean indexExists(SQLiteDatabase db, String name) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "type='index' AND name=?",
+                new String[] {name}) > 0;
+    }
+}
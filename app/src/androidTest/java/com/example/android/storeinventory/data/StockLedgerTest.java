@@ -0,0 +1,99 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.storeinventory.data.InventoryContract.StockMovementsEntry;
+
+/**
+ * Checks that compacting the stock movements keeps every quantity accounted for.
+ */
+public class StockLedgerTest extends AndroidTestCase {
+
+    /** File name of the database used by the tests */
+    private static final String TEST_DATABASE_NAME = "inventory-ledger-test.db";
+
+    /** One day in milliseconds */
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private ProductsDbHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        mHelper = new ProductsDbHelper(getContext(), TEST_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testCompactionRollsOldMonthsIntoSnapshots() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        long cutoff = StockLedger.getCompactionCutoff(now);
+        // Two old months with a few movements each, and recent movements
+        insertMovement(db, 1, 10, cutoff - 40 * DAY);
+        insertMovement(db, 1, -2, cutoff - 40 * DAY + 1);
+        insertMovement(db, 1, 5, cutoff - 5 * DAY);
+        insertMovement(db, 1, -1, cutoff - 5 * DAY + 1);
+        insertMovement(db, 1, -3, now);
+        insertMovement(db, 2, 7, cutoff - 5 * DAY);
+
+        while(StockLedger.compactNextChunk(db, cutoff)){
+            // Keep going
+        }
+
+        assertEquals(9, sumOfDeltas(db, 1));
+        assertEquals(7, sumOfDeltas(db, 2));
+        // One snapshot per old month and product, the recent movement is kept as it is
+        assertEquals(3, DatabaseUtils.queryNumEntries(db, "stock_movements", "product_id=1", null));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, "stock_movements", "product_id=1 AND kind=4", null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, "stock_movements", "product_id=2 AND kind=4", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "stock_movements",
+                "created_at < ? AND kind <> 4", new String[] {String.valueOf(cutoff)}));
+
+        // Compacting again changes nothing
+        assertFalse(StockLedger.compactNextChunk(db, cutoff));
+    }
+
+    public void testCorrectionsRecordTheDifference() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("name", "Rye Bread");
+        values.put("price", 400);
+        values.put("quantity", 3);
+        values.put("picture_hash", "hash");
+        long id = db.insertOrThrow("products", null, values);
+        StockLedger.record(db, id, 3, StockMovementsEntry.KIND_CORRECTION);
+
+        StockLedger.recordCorrections(db, 8, "_id=?", new String[] {String.valueOf(id)});
+        assertEquals(8, sumOfDeltas(db, id));
+        // A quantity that does not change records nothing
+        ContentValues quantity = new ContentValues();
+        quantity.put("quantity", 8);
+        db.update("products", quantity, "_id=?", new String[] {String.valueOf(id)});
+        StockLedger.recordCorrections(db, 8, "_id=?", new String[] {String.valueOf(id)});
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, "stock_movements"));
+    }
+
+    private static void insertMovement(SQLiteDatabase db, long productId, long delta, long createdAt) {
+        ContentValues values = new ContentValues();
+        values.put("product_id", productId);
+        values.put("delta", delta);
+        values.put("kind", 1);
+        values.put("created_at", createdAt);
+        db.insertOrThrow("stock_movements", null, values);
+    }
+
+    private static long sumOfDeltas(SQLiteDatabase db, long productId) {
+        return DatabaseUtils.longForQuery(db, "SELECT sum(delta) FROM stock_movements WHERE product_id=?",
+                new String[] {String.valueOf(productId)});
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The products a customer is buying, with the units of each, until they are paid for at once.
+ * A product is in at most one line, adding it again adds to the units of its line.
+ *
+ * {@link #checkout(ContentResolver)} sells the whole cart with a single provider call (see
+ * {@link ProductsEntry#METHOD_CHECKOUT}): either every line is sold in one transaction, or none
+ * is and the result tells which lines could not be. A cart is meant to be used on one thread.
+ */
+public class Cart {
+
+    /**
+     * The outcome of a checkout.
+     */
+    public static class Checkout {
+        /** True if every line has been sold, false if nothing has been sold */
+        public final boolean mCompleted;
+        /** The products of the lines, in the order they were added */
+        public final long[] mProductIds;
+        /** The outcome of each line, one of the SELL_ codes of {@link ProductsEntry} */
+        public final int[] mLineResults;
+        /** The quantity of each product after the checkout, or -1 if it does not exist */
+        public final int[] mQuantities;
+
+        Checkout(boolean completed, long[] productIds, int[] lineResults, int[] quantities) {
+            mCompleted = completed;
+            mProductIds = productIds;
+            mLineResults = lineResults;
+            mQuantities = quantities;
+        }
+    }
+
+    /** Units of each product in the cart, in the order the products were added */
+    private final Map<Long, Integer> mLines = new LinkedHashMap<Long, Integer>();
+
+    /**
+     * Add units of a product, to its line if it already has one.
+     */
+    public void add(long productId, int units) {
+        if(units <= 0){
+            throw new IllegalArgumentException("Product requires a valid number of units to sell");
+        }
+        Integer current = mLines.get(productId);
+        int total = current == null ? units : current + units;
+        if(current == null && mLines.size() == ProductsEntry.MAX_CHECKOUT_LINES){
+            throw new IllegalStateException("A cart can have at most " +
+                    ProductsEntry.MAX_CHECKOUT_LINES + " lines");
+        }
+        mLines.put(productId, total);
+    }
+
+    /**
+     * Set the units of a product, 0 takes its line out of the cart.
+     */
+    public void setUnits(long productId, int units) {
+        if(units < 0){
+            throw new IllegalArgumentException("Product requires a valid number of units to sell");
+        }
+        if(units == 0){
+            mLines.remove(productId);
+        }
+        else if(mLines.containsKey(productId)){
+            mLines.put(productId, units);
+        }
+        else {
+            add(productId, units);
+        }
+    }
+
+    /**
+     * @return the units of the given product in the cart, 0 if it has no line
+     */
+    public int getUnits(long productId) {
+        Integer units = mLines.get(productId);
+        return units == null ? 0 : units;
+    }
+
+    /**
+     * @return the number of lines, one per product
+     */
+    public int getLineCount() {
+        return mLines.size();
+    }
+
+    public boolean isEmpty() {
+        return mLines.isEmpty();
+    }
+
+    public void clear() {
+        mLines.clear();
+    }
+
+    /**
+     * Sell every line of the cart, or none of them. The cart is emptied if the checkout has
+     * completed and kept as it is otherwise, so the lines that failed can be changed and the
+     * checkout tried again. It writes to the database, so it must not be called on the main
+     * thread.
+     */
+    public Checkout checkout(ContentResolver contentResolver) {
+        if(mLines.isEmpty()){
+            throw new IllegalStateException("The cart is empty");
+        }
+        long[] productIds = new long[mLines.size()];
+        int[] units = new int[mLines.size()];
+        int line = 0;
+        for(Map.Entry<Long, Integer> entry : mLines.entrySet()){
+            productIds[line] = entry.getKey();
+            units[line] = entry.getValue();
+            line++;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductsEntry.EXTRA_PRODUCT_IDS, productIds);
+        extras.putIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT, units);
+        Bundle result = contentResolver.call(ProductsEntry.CONTENT_URI, ProductsEntry.METHOD_CHECKOUT, null, extras);
+
+        boolean completed = result.getInt(ProductsEntry.EXTRA_RESULT) == ProductsEntry.CHECKOUT_OK;
+        if(completed){
+            mLines.clear();
+        }
+        return new Checkout(completed, productIds, result.getIntArray(ProductsEntry.EXTRA_LINE_RESULTS),
+                result.getIntArray(ProductsEntry.EXTRA_QUANTITIES));
+    }
+}
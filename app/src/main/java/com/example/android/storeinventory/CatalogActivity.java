@@ -1,39 +1,224 @@
 package com.example.android.storeinventory;
 
+import android.app.ProgressDialog;
+import android.content.AsyncQueryHandler;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.support.v7.widget.SimpleItemAnimator;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.Button;
-import android.widget.ListView;
+import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.InventoryContract.SummaryEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 public class CatalogActivity extends AppCompatActivity
 implements LoaderManager.LoaderCallbacks<Cursor>{
 
-    /** Identifier for the product data loader */
+    /** Identifier for the loader of the first page of products, each next page uses the next ID */
     private final int LOADER_ID = 0;
 
+    /** Identifier for the loader of the search results */
+    private final int SEARCH_LOADER_ID = -1;
+
+    /** Identifier for the loader of the summary of all the products */
+    private final int SUMMARY_LOADER_ID = -2;
+
+    /** Number of products read from the provider at a time */
+    private static final int PAGE_SIZE = 50;
+
+    /** Maximum number of products shown as search results */
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Time in milliseconds to wait after the last key stroke before searching */
+    private static final long SEARCH_DELAY = 150;
+
+    /** Keys of the loader arguments with the last row of the previous page */
+    private static final String ARG_AFTER_NAME = "after_name";
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /** Columns read for each product of the list */
+    private static final String[] PROJECTION = {
+            ProductsEntry._ID,
+            ProductsEntry.COLUMN_PRODUCT_NAME,
+            ProductsEntry.COLUMN_PRODUCT_PRICE,
+            ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH
+    };
+
+    /** Token of the queries that read a single changed product */
+    private static final int CHANGED_PRODUCT_TOKEN = 1;
+
+    /** Request code of the picker for the CSV file to import */
+    private static final int RESULT_PICK_IMPORT_FILE = 1;
+
+    /** Most skipped rows listed when an import has ended */
+    private static final int MAX_SHOWN_IMPORT_ERRORS = 10;
+
     // This is the Adapter being used to display the list's data.
-    ProductCursorAdapter mCursorAdapter;
+    ProductAdapter mAdapter;
+
+    /** Header that shows the totals of all the products */
+    private TextView mSummaryTextView;
+
+    /** The pages of products that have been loaded so far, in order */
+    private final List<ProductPage> mPages = new ArrayList<ProductPage>();
+
+    /** True while the next page is being loaded */
+    private boolean mLoadingNextPage = false;
+
+    /**
+     * The pages that are being loaded again because the product before them has changed.
+     * The list keeps showing what it showed before until they have all been loaded.
+     */
+    private final Set<Integer> mRestartedPages = new HashSet<Integer>();
+
+    /** Text the products are searched for, or null if the list shows all products */
+    private String mSearchText;
+
+    /** The running import, or null */
+    private CsvImporter mImporter;
+
+    /** Shows the progress of the running import */
+    private ProgressDialog mImportDialog;
+
+    /** The first rows the running import has skipped, one line each */
+    private final List<String> mImportErrors = new ArrayList<String>();
+
+    /** Handler used to wait for the user to stop typing before searching */
+    private final Handler mSearchHandler = new Handler();
+
+    /**
+     * Listens for the changes to single products, so their rows can be patched in the list
+     * without reading the whole list again. Changes to many products at once reload the list
+     * through the loaders instead.
+     */
+    private final ContentObserver mProductsObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Before Jelly Bean the changed URI is not known, so read the list again
+            reloadProducts();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onProductChanged(uri);
+        }
+    };
+
+    /** Reads the changed products in the background */
+    private AsyncQueryHandler mQueryHandler;
+
+    /** Shows the quantities once the units sold with the sell buttons are in the database */
+    private final SellQueue.Listener mSellListener = new SellQueue.Listener() {
+        @Override
+        public void onUnitsSold(long[] productIds, int[] quantities, int[] unitsNotSold) {
+            boolean outOfStock = false;
+            for(int i = 0; i < productIds.length; i++){
+                if(quantities[i] >= 0){
+                    ContentValues values = new ContentValues();
+                    values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantities[i]);
+                    mAdapter.patchProduct(productIds[i], values, true);
+                }
+                outOfStock |= unitsNotSold[i] > 0;
+            }
+            if(outOfStock){
+                // Someone else sold the last units first
+                Toast.makeText(CatalogActivity.this, getString(R.string.catalog_sell_out_of_stock),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    /** True while all the products are being deleted */
+    private boolean mDeletingAllProducts = false;
+
+    /** Sells one unit of every product whose barcode is scanned while the list is shown */
+    private ScanSeller mScanSeller;
+
+    /** Reads the barcodes from a scanner that types them like a keyboard */
+    private final ScanReader mScanReader = new ScanReader(new ScanReader.Listener() {
+        @Override
+        public void onCodeScanned(String code) {
+            mScanSeller.sell(code);
+        }
+    });
+
+    /** Shows the quantity of a scanned product once it has been sold */
+    private final ScanSeller.Listener mScanListener = new ScanSeller.Listener() {
+        @Override
+        public void onScanSold(String sku, int result, long productId, int quantity) {
+            String message;
+            switch (result){
+                case ProductsEntry.SELL_OK:
+                    ContentValues values = new ContentValues();
+                    values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+                    mAdapter.patchProduct(productId, values, true);
+                    message = getString(R.string.catalog_scan_sold, sku, quantity);
+                    break;
+                case ProductsEntry.SELL_INSUFFICIENT_STOCK:
+                    message = getString(R.string.catalog_sell_out_of_stock);
+                    break;
+                case ProductsEntry.SELL_PRODUCT_NOT_FOUND:
+                    message = getString(R.string.catalog_scan_unknown, sku);
+                    break;
+                default:
+                    message = getString(R.string.catalog_scan_failed, sku);
+                    break;
+            }
+            Toast.makeText(CatalogActivity.this, message, Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    /** Starts the search for the current search text */
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mSearchText == null){
+                // Show all products again
+                getSupportLoaderManager().destroyLoader(SEARCH_LOADER_ID);
+                showPages();
+            }
+            else {
+                // Restarting the loader cancels the search for the previous text
+                getSupportLoaderManager().restartLoader(SEARCH_LOADER_ID, null, CatalogActivity.this);
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,28 +235,253 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
             }
         });
 
-        // Find the ListView which will be populated with the product data
-        ListView listView = (ListView) findViewById(R.id.list_view_products);
+        // Find the RecyclerView which will be populated with the product data
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.list_products);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setHasFixedSize(true);
+        // Rows that change are bound again in place instead of being faded into a new view
+        ((SimpleItemAnimator) recyclerView.getItemAnimator()).setSupportsChangeAnimations(false);
 
-        // Setup an adapter to create a list item for each row of product data in the Cursor.
-        // There is no product data yet, so pass in null for the Cursor.
-        mCursorAdapter = new ProductCursorAdapter(this, null);
-        listView.setAdapter(mCursorAdapter);
-
-        // Set a click listener on each item in the list so that it opens the Editor Activity with the
-        // information for this item which is sent with the Uri of the item
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an adapter to create a list item for each product. There is no product data yet.
+        // A click on a row opens the Editor Activity with the Uri of the product.
+        mAdapter = new ProductAdapter(this, new ProductAdapter.Listener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onProductClicked(long productId) {
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
-                intent.setData(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id));
+                intent.setData(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, productId));
                 startActivity(intent);
             }
         });
+        recyclerView.setAdapter(mAdapter);
 
-        // Prepare the loader.  Either re-connect with an existing one,
+        // Load the next page of products when the user scrolls close to the end of the list.
+        // This is also called after every layout, so a short first page loads the next one.
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if(layoutManager.findLastVisibleItemPosition() >= mAdapter.getItemCount() - PAGE_SIZE / 2){
+                    loadNextPage();
+                }
+            }
+        });
+
+        // Prepare the loader for the first page.  Either re-connect with an existing one,
         // or start a new one.
         getSupportLoaderManager().initLoader(LOADER_ID, null, this);
+
+        // The summary is read from a single row the provider keeps up to date, so it is loaded
+        // again after every change without counting the products
+        mSummaryTextView = (TextView) findViewById(R.id.catalog_summary);
+        getSupportLoaderManager().initLoader(SUMMARY_LOADER_ID, null, this);
+
+        // Patch the rows of single products when they change
+        mQueryHandler = new AsyncQueryHandler(getContentResolver()) {
+            @Override
+            protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                if(cursor == null){
+                    return;
+                }
+                try {
+                    if(cursor.moveToFirst()){
+                        patchProduct(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+        getContentResolver().registerContentObserver(ProductsEntry.CONTENT_URI, true, mProductsObserver);
+        SellQueue.getInstance(this).addListener(mSellListener);
+        mScanSeller = new ScanSeller(this, mScanListener);
+    }
+
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        // What is typed into the search box is a search, whoever types it
+        if(!(getCurrentFocus() instanceof EditText) && mScanReader.onKeyEvent(event)){
+            return true;
+        }
+        return super.dispatchKeyEvent(event);
+    }
+
+    /**
+     * Handle the notification that the data at the given URI has changed. A change to a single
+     * product only touches its row, anything else is left to the loaders of the list. The
+     * provider notifies them of new and renamed products as well, since those move in the list.
+     */
+    private void onProductChanged(Uri uri) {
+        long id = ProductsEntry.getChangedId(uri);
+        if(id == -1){
+            // Many products have changed, the loaders read the list again by themselves
+            return;
+        }
+        String change = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_CHANGE);
+        if(ProductsEntry.CHANGE_UPDATE.equals(change)){
+            // Read the new values of the product in the background
+            mQueryHandler.startQuery(CHANGED_PRODUCT_TOKEN, null,
+                    ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id), PROJECTION, null, null, null);
+        }
+        else if(ProductsEntry.CHANGE_DELETE.equals(change)){
+            mAdapter.removeProduct(id);
+        }
+        // A new product is put in its place in the sorted list by the loaders
+    }
+
+    /**
+     * Show the new values of the changed product in the current row of the given cursor.
+     */
+    private void patchProduct(Cursor cursor) {
+        long id = cursor.getLong(cursor.getColumnIndex(ProductsEntry._ID));
+        ContentValues oldValues = mAdapter.getProduct(id);
+        if(oldValues == null){
+            // The product is not in the list
+            return;
+        }
+        ContentValues newValues = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, newValues);
+        if(!TextUtils.equals(oldValues.getAsString(ProductsEntry.COLUMN_PRODUCT_NAME),
+                newValues.getAsString(ProductsEntry.COLUMN_PRODUCT_NAME))){
+            // The list is sorted by name, so the product may have to move. The loaders read
+            // the list again for a new name.
+            return;
+        }
+        // A change of the stock alone only binds the quantity of the row again
+        boolean quantityOnly = TextUtils.equals(oldValues.getAsString(ProductsEntry.COLUMN_PRODUCT_PRICE),
+                newValues.getAsString(ProductsEntry.COLUMN_PRODUCT_PRICE))
+                && TextUtils.equals(oldValues.getAsString(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH),
+                newValues.getAsString(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH));
+        mAdapter.patchProduct(id, newValues, quantityOnly);
+    }
+
+    /**
+     * Read the list of products again: the search results and every loaded page. A page whose
+     * last product changes makes the page after it start again from the new one.
+     */
+    private void reloadProducts() {
+        LoaderManager loaderManager = getSupportLoaderManager();
+        Loader<Cursor> loader = loaderManager.getLoader(SEARCH_LOADER_ID);
+        if(loader != null){
+            loader.onContentChanged();
+        }
+        for(int page = 0; page < mPages.size(); page++){
+            loader = loaderManager.getLoader(LOADER_ID + page);
+            if(loader != null){
+                loader.onContentChanged();
+            }
+        }
+    }
+
+    /**
+     * Start loading the page after the last loaded page, unless it is already loading
+     * or there are no more products.
+     */
+    private void loadNextPage() {
+        // The last page may still change while pages are loaded again
+        if(mLoadingNextPage || mPages.isEmpty() || mSearchText != null || !mRestartedPages.isEmpty()){
+            return;
+        }
+        Cursor lastPage = mPages.get(mPages.size() - 1);
+        // A page that is not full is the last one
+        if(lastPage == null || lastPage.getCount() < PAGE_SIZE){
+            return;
+        }
+        mLoadingNextPage = true;
+        getSupportLoaderManager().initLoader(LOADER_ID + mPages.size(), getNextPageArgs(lastPage), this);
+    }
+
+    /**
+     * Return the arguments of the loader of the page after the given one, which starts right
+     * after the last product of the given page, or null if the page is empty or missing.
+     */
+    private static Bundle getNextPageArgs(Cursor page) {
+        if(page == null || !page.moveToLast()){
+            return null;
+        }
+        Bundle args = new Bundle();
+        args.putString(ARG_AFTER_NAME, page.getString(page.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_NAME)));
+        args.putLong(ARG_AFTER_ID, page.getLong(page.getColumnIndex(ProductsEntry._ID)));
+        return args;
+    }
+
+    /**
+     * @return true if the given arguments of two page loaders start at the same product
+     */
+    private static boolean startAtSameProduct(Bundle args, Bundle otherArgs) {
+        if(args == null || otherArgs == null){
+            return args == otherArgs;
+        }
+        return args.getLong(ARG_AFTER_ID) == otherArgs.getLong(ARG_AFTER_ID)
+                && TextUtils.equals(args.getString(ARG_AFTER_NAME), otherArgs.getString(ARG_AFTER_NAME));
+    }
+
+    /**
+     * Show all the loaded pages in the list as one cursor.
+     */
+    private void showPages() {
+        if(mSearchText != null){
+            // The list shows the search results instead
+            return;
+        }
+        if(!mRestartedPages.isEmpty()){
+            // Some pages do not follow the ones before them yet, which would show products
+            // twice or leave them out
+            return;
+        }
+        if(mPages.isEmpty()){
+            mAdapter.swapCursor(null, null);
+            return;
+        }
+        // The list keeps the pages open until it shows other ones, even if their loaders
+        // have closed them by then
+        List<ProductSnapshot> snapshots = new ArrayList<ProductSnapshot>(mPages.size());
+        for(ProductPage page : mPages){
+            if(page != null){
+                page.acquire();
+                snapshots.add(page.getSnapshot());
+            }
+        }
+        mAdapter.swapCursor(new PatchedCursor(new ProductPage.Merged(mPages.toArray(new Cursor[mPages.size()]))),
+                ProductSnapshot.concat(snapshots));
+    }
+
+    /**
+     * Show the totals of the given summary cursor in the header, or hide the header if there
+     * is no summary or no products.
+     */
+    private void showSummary(Cursor summary) {
+        if(summary == null || !summary.moveToFirst()
+                || summary.getLong(summary.getColumnIndex(SummaryEntry.COLUMN_PRODUCT_COUNT)) == 0){
+            mSummaryTextView.setVisibility(View.GONE);
+            return;
+        }
+        mSummaryTextView.setText(getString(R.string.catalog_summary,
+                summary.getLong(summary.getColumnIndex(SummaryEntry.COLUMN_PRODUCT_COUNT)),
+                summary.getLong(summary.getColumnIndex(SummaryEntry.COLUMN_TOTAL_QUANTITY)),
+                ProductsEntry.formatPrice(summary.getLong(summary.getColumnIndex(SummaryEntry.COLUMN_TOTAL_VALUE))),
+                summary.getLong(summary.getColumnIndex(SummaryEntry.COLUMN_LOW_STOCK_COUNT)),
+                summary.getLong(summary.getColumnIndex(SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT))));
+        mSummaryTextView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Forget the pages from the given one to the end. They are removed from the list first,
+     * because their loaders close the cursors when they are destroyed.
+     */
+    private void dropPagesFrom(int firstPage) {
+        int pageCount = mPages.size();
+        if(firstPage >= pageCount){
+            return;
+        }
+        mPages.subList(firstPage, pageCount).clear();
+        for(int page = firstPage; page < pageCount; page++){
+            mRestartedPages.remove(page);
+        }
+        showPages();
+        for(int page = firstPage; page < pageCount; page++){
+            getSupportLoaderManager().destroyLoader(LOADER_ID + page);
+        }
+        mLoadingNextPage = false;
     }
 
     @Override
@@ -79,14 +489,65 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Search the products as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText, SEARCH_DELAY);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Search the products for the given text after the given delay. Any search that has not
+     * started yet is replaced, so fast typing only runs a search once the user pauses.
+     */
+    private void search(String text, long delay) {
+        String trimmedText = text == null ? "" : text.trim();
+        mSearchText = trimmedText.isEmpty() ? null : trimmedText;
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mSearchHandler.postDelayed(mSearchRunnable, delay);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        getContentResolver().unregisterContentObserver(mProductsObserver);
+        SellQueue.getInstance(this).removeListener(mSellListener);
+        mScanSeller.close();
+        mQueryHandler.cancelOperation(CHANGED_PRODUCT_TOKEN);
+        // Let go of the pages the list still holds
+        mAdapter.swapCursor(null, null);
+        if(mImporter != null){
+            // The import goes on in the background, without showing its progress
+            mImporter.removeListener();
+            mImportDialog.dismiss();
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()){
             // Respond to a click on the "Insert dummy product" menu option
+            case R.id.action_import:
+                pickImportFile();
+                return true;
+            case R.id.action_export:
+                exportProducts();
+                return true;
             case R.id.action_insert_dummy_product:
                 insertProduct();
                 return true;
@@ -99,6 +560,110 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Let the user pick the CSV file to import.
+     */
+    private void pickImportFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        // CSV files are not always labelled text/csv, so offer every text file
+        intent.setType("text/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.catalog_import_pick_file)),
+                RESULT_PICK_IMPORT_FILE);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
+        super.onActivityResult(requestCode, resultCode, intent);
+        if(requestCode == RESULT_PICK_IMPORT_FILE && resultCode == RESULT_OK
+                && intent != null && intent.getData() != null){
+            importProducts(intent.getData());
+        }
+    }
+
+    /**
+     * Import the products of the given CSV file in the background and show the progress.
+     */
+    private void importProducts(Uri fileUri) {
+        if(mImporter != null){
+            // One import at a time
+            return;
+        }
+        mImportErrors.clear();
+        mImporter = new CsvImporter(this, new CsvImporter.Listener() {
+            @Override
+            public void onProgress(int rowsRead, int rowsImported) {
+                mImportDialog.setMessage(getString(R.string.catalog_import_progress, rowsImported, rowsRead));
+            }
+
+            @Override
+            public void onRowError(int lineNumber, String message) {
+                if(mImportErrors.size() < MAX_SHOWN_IMPORT_ERRORS){
+                    mImportErrors.add(getString(R.string.catalog_import_row_error, lineNumber, message));
+                }
+            }
+
+            @Override
+            public void onFinished(int rowsImported, int rowsFailed, String error) {
+                mImporter = null;
+                mImportDialog.dismiss();
+                showImportResult(rowsImported, rowsFailed, error);
+            }
+        });
+
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setIndeterminate(true);
+        mImportDialog.setCancelable(false);
+        mImportDialog.setMessage(getString(R.string.catalog_import_progress, 0, 0));
+        mImportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        // The products imported so far are kept
+                        mImporter.cancel();
+                    }
+                });
+        mImportDialog.show();
+        mImporter.start(fileUri);
+    }
+
+    /**
+     * Tell the user how the import went, with the first rows that were skipped.
+     */
+    private void showImportResult(int rowsImported, int rowsFailed, String error) {
+        StringBuilder message = new StringBuilder(
+                getString(R.string.catalog_import_finished, rowsImported, rowsFailed));
+        if(error != null){
+            message.append("\n\n").append(error);
+        }
+        for(String rowError : mImportErrors){
+            message.append("\n").append(rowError);
+        }
+        new AlertDialog.Builder(this)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Write all the products into a CSV file in the background.
+     */
+    private void exportProducts() {
+        new CsvExporter(this).start(new CsvExporter.Listener() {
+            @Override
+            public void onExported(File file) {
+                if(file == null){
+                    Toast.makeText(CatalogActivity.this, getString(R.string.catalog_export_failed),
+                            Toast.LENGTH_SHORT).show();
+                }
+                else {
+                    Toast.makeText(CatalogActivity.this, getString(R.string.catalog_export_successful,
+                            file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
     private void showDeleteConfirmationDialog() {
         // Create an AlertDialog.Builder and set the message, and click listeners
         // for the positive and negative buttons on the dialog.
@@ -125,73 +690,189 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         alertDialog.show();
     }
 
+    /**
+     * Delete all the products in the background. A large catalog takes a while, the list keeps
+     * working meanwhile and is read again once they are gone.
+     */
     private void deleteAllProducts() {
-        // Call the ContentResolver to delete the products at the given content URI.
-        // Pass in null for the selection and selection args
-        int rowsDeleted = getContentResolver().delete(ProductsEntry.CONTENT_URI, null, null);
-
-        // Show a toast message depending on whether or not the delete was successful.
-        if(rowsDeleted == 0){
-            // If no rows were deleted, then there was an error with the delete.
-            Toast.makeText(this, getString(R.string.catalog_delete_products_failed), Toast.LENGTH_SHORT).show();
-        }
-        else {
-            // Otherwise, the delete was successful and we can display a toast.
-            Toast.makeText(this, getString(R.string.catalog_delete_products_successful), Toast.LENGTH_SHORT).show();
+        if(mDeletingAllProducts){
+            return;
         }
+        mDeletingAllProducts = true;
+        // Delete the products at the given content URI
+        ProductRepository.getInstance(this).delete(ProductsEntry.CONTENT_URI,
+                new ProductRepository.Callback<Integer>() {
+                    @Override
+                    public void onResult(Integer rowsDeleted) {
+                        mDeletingAllProducts = false;
+                        // If no rows were deleted, then there was an error with the delete.
+                        showToast(rowsDeleted == 0 ? R.string.catalog_delete_products_failed
+                                : R.string.catalog_delete_products_successful);
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        mDeletingAllProducts = false;
+                        showToast(R.string.catalog_delete_products_failed);
+                    }
+                });
+    }
+
+    /**
+     * Show a short message, which stays on screen if the catalog has been closed meanwhile.
+     */
+    private void showToast(int messageId) {
+        Toast.makeText(getApplicationContext(), getString(messageId), Toast.LENGTH_SHORT).show();
     }
 
     /**
      * Helper method to insert hardcoded product data into the database. For debugging purposes only.
      */
     private void insertProduct() {
-        // Create a ContentValues object where column names are the keys,
-        // and bread product attributes are the values.
-        ContentValues values = new ContentValues();
-        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, "Country Sourdough");
-        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 3.5);
-        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 7);
-
-        // Make the sample image smaller so it doesn't take too much space in the memory
-        Bitmap sourdoughBitmap = ProductsEntry.decodeSampledBitmapFromResource(getResources(), R.drawable.sourdough_picture, 72, 72);
+        // The picture is decoded and the product inserted in the background
+        final Resources resources = getResources();
+        ProductRepository.getInstance(this).submit(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                // Create a ContentValues object where column names are the keys,
+                // and bread product attributes are the values.
+                ContentValues values = new ContentValues();
+                values.put(ProductsEntry.COLUMN_PRODUCT_NAME, "Country Sourdough");
+                // The price is in minor currency units, 3.50
+                values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350L);
+                values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 7);
 
-        // Convert into byte array to be saved in the db
-        byte[] sourdoughBytes = ProductsEntry.getBitmapAsByteArray(sourdoughBitmap);
+                // Make the sample image smaller so it doesn't take too much space in the memory
+                Bitmap sourdoughBitmap = ProductsEntry.decodeSampledBitmapFromResource(resources,
+                        R.drawable.sourdough_picture, 72, 72);
 
-        // Save in the values object along with the other values
-        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, sourdoughBytes);
+                // Convert into byte array to be saved in the db
+                byte[] sourdoughBytes = ProductsEntry.getBitmapAsByteArray(sourdoughBitmap);
 
-        // Insert a new row for the Country Sourdough into the provider using the ContentResolver.
-        // Use the {@link ProductsEntry#CONTENT_URI} to indicate that we want to insert
-        // into the products database table.
-        // Receive the new content URI that will allow us to access the Country Sourdough data in the future.
+                // Save in the values object along with the other values
+                values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, sourdoughBytes);
 
-        Uri newUri = getContentResolver().insert(ProductsEntry.CONTENT_URI, values);
+                // Insert a new row for the Country Sourdough into the provider using the ContentResolver.
+                // Use the {@link ProductsEntry#CONTENT_URI} to indicate that we want to insert
+                // into the products database table.
+                // Receive the new content URI that will allow us to access the Country Sourdough data in the future.
+                return getContentResolver().insert(ProductsEntry.CONTENT_URI, values);
+            }
+        }, null);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define a projection that specifies which columns from the database
+        // The projection specifies which columns from the database
         // you will actually use after this query.
-        String[] projection = {
-                ProductsEntry._ID,
-                ProductsEntry.COLUMN_PRODUCT_NAME,
-                ProductsEntry.COLUMN_PRODUCT_PRICE,
-                ProductsEntry.COLUMN_PRODUCT_QUANTITY
-        };
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this, ProductsEntry.CONTENT_URI, projection, null, null, null);
+        String[] projection = PROJECTION;
+        if(id == SUMMARY_LOADER_ID){
+            return new CursorLoader(this, SummaryEntry.CONTENT_URI, null, null, null, null);
+        }
+        if(id == SEARCH_LOADER_ID){
+            // This loader searches the products by name
+            return new ProductPage.Loader(this, ProductsEntry.buildSearchUri(mSearchText, SEARCH_LIMIT),
+                    projection);
+        }
+        // Each loader reads one page of products sorted by name. The first page has no arguments,
+        // the next ones start after the last product of the page before them.
+        Uri pageUri;
+        if(args == null){
+            pageUri = ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME, null, 0, PAGE_SIZE);
+        }
+        else {
+            pageUri = ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                    args.getString(ARG_AFTER_NAME), args.getLong(ARG_AFTER_ID), PAGE_SIZE);
+        }
+        // This loader will execute the ContentProvider's query method on a background thread,
+        // and take the snapshot of the page there as well
+        return new ProductPage.Loader(this, pageUri, projection);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link CursorAdapter} with this new cursor containing updated product data
-        mCursorAdapter.swapCursor(data);
+        if(loader.getId() == SUMMARY_LOADER_ID){
+            showSummary(data);
+            return;
+        }
+        if(loader.getId() == SEARCH_LOADER_ID){
+            // Show the search results, unless the user has cleared the search meanwhile
+            if(mSearchText != null){
+                if(data == null){
+                    mAdapter.swapCursor(null, null);
+                }
+                else {
+                    ProductPage results = (ProductPage) data;
+                    results.acquire();
+                    mAdapter.swapCursor(new PatchedCursor(results), results.getSnapshot());
+                }
+            }
+            return;
+        }
+        ProductPage pageData = (ProductPage) data;
+        int page = loader.getId() - LOADER_ID;
+        if(page < mPages.size()){
+            // A page that was already shown has been reloaded because the data changed.
+            // It replaces the old one in place, and so do the pages after it: they reload
+            // themselves as well, and only have to start again from another product if the
+            // last product of this page has changed.
+            Bundle oldNextArgs = getNextPageArgs(mPages.get(page));
+            mPages.set(page, pageData);
+            mRestartedPages.remove(page);
+            if(page + 1 < mPages.size()){
+                if(pageData == null || pageData.getCount() < PAGE_SIZE){
+                    // A page that is not full is the last one now
+                    dropPagesFrom(page + 1);
+                }
+                else {
+                    Bundle nextArgs = getNextPageArgs(pageData);
+                    if(!startAtSameProduct(oldNextArgs, nextArgs)){
+                        mRestartedPages.add(page + 1);
+                        getSupportLoaderManager().restartLoader(LOADER_ID + page + 1, nextArgs, this);
+                    }
+                }
+            }
+        }
+        else if(page == mPages.size()){
+            mPages.add(pageData);
+            mLoadingNextPage = false;
+        }
+        else {
+            // The pages before this one are gone, so it cannot be shown
+            getSupportLoaderManager().destroyLoader(loader.getId());
+            return;
+        }
+        // Update {@link ProductAdapter} with the pages containing updated product data
+        showPages();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        if(loader.getId() == SUMMARY_LOADER_ID){
+            showSummary(null);
+            return;
+        }
+        if(loader.getId() == SEARCH_LOADER_ID){
+            // The search results can no longer be used
+            if(mSearchText != null){
+                mAdapter.swapCursor(null, null);
+            }
+            return;
+        }
+        if(getSupportLoaderManager().getLoader(loader.getId()) != loader){
+            // A loader that has been restarted is reset once the new one has loaded its page
+            return;
+        }
+        // Callback called when the data needs to be deleted. The pages from this one on
+        // can no longer be used.
+        int page = loader.getId() - LOADER_ID;
+        if(page < mPages.size()){
+            int pageCount = mPages.size();
+            mPages.subList(page, pageCount).clear();
+            for(int restartedPage = page; restartedPage < pageCount; restartedPage++){
+                mRestartedPages.remove(restartedPage);
+            }
+            showPages();
+        }
     }
 }
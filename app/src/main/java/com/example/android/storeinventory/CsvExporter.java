@@ -0,0 +1,120 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Exports all the products into a CSV file in the background. The provider writes the file into
+ * a pipe (see {@link ProductsEntry#EXPORT_URI}) while this class copies it into the file, so the
+ * products are never all in memory at once.
+ */
+public class CsvExporter {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = CsvExporter.class.getSimpleName();
+
+    /** Size of the buffer used to copy the file */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Listener for the end of an export. It is always called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param file - the file the products have been written to, or null if the export failed
+         */
+        void onExported(File file);
+    }
+
+    private final Context mContext;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public CsvExporter(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Start writing all the products into a new file in the app folder of the external storage,
+     * or of the internal storage if there is no external storage.
+     */
+    public void start(final Listener listener) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final File file = export();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onExported(file);
+                    }
+                });
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Copy the products into a new file. Runs on the export thread.
+     * @return the file, or null if the export failed
+     */
+    private File export() {
+        File directory = mContext.getExternalFilesDir(null);
+        if(directory == null){
+            directory = mContext.getFilesDir();
+        }
+        String name = "products-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".csv";
+        File file = new File(directory, name);
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = contentResolver.openInputStream(ProductsEntry.EXPORT_URI);
+            if(inputStream == null){
+                return null;
+            }
+            outputStream = new FileOutputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while((length = inputStream.read(buffer)) != -1){
+                outputStream.write(buffer, 0, length);
+            }
+            // A failure to write out the end of the file must fail the export
+            outputStream.close();
+            outputStream = null;
+            return file;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to export the products to " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+            closeQuietly(outputStream);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable != null){
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to close the export", e);
+            }
+        }
+    }
+}
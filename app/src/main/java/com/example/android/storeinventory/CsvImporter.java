@@ -0,0 +1,434 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.storeinventory.data.CsvReader;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Imports the products of a supplier CSV file in the background, see {@link ProductsEntry#CSV_COLUMNS}.
+ *
+ * The file is read one record at a time and the valid products are inserted in batches of
+ * {@link #BATCH_SIZE}, each batch with a single {@link ContentResolver#bulkInsert(Uri, ContentValues[])}
+ * and so a single transaction. Only the current batch is held in memory, so the heap stays flat
+ * no matter how long the file is. Every row is checked with the rules of the provider before it
+ * joins a batch: an invalid row is reported with its line number and skipped, it never fails
+ * the rows around it.
+ *
+ * The pictures are decoded and scaled down the same way as in the editor, except the ones of an
+ * exported file that are no larger than the app saves them, which are kept as they are. Supplier files
+ * tend to use the same few pictures for many products, so the scaled pictures of the last files
+ * read are kept in a small cache.
+ */
+public class CsvImporter {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = CsvImporter.class.getSimpleName();
+
+    /** Number of products inserted with one transaction */
+    private static final int BATCH_SIZE = 500;
+
+    /** Size in pixels the pictures are scaled down to, the same as in the editor */
+    private static final int PICTURE_SIZE = 72;
+
+    /** Most bytes of scaled pictures kept in the cache */
+    private static final int PICTURE_CACHE_SIZE = 1024 * 1024;
+
+    /** Most row errors reported to the listener, the others are only counted */
+    public static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * Listener for the progress of an import. It is always called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called after every batch.
+         * @param rowsRead - the number of rows read so far
+         * @param rowsImported - the number of products inserted so far
+         */
+        void onProgress(int rowsRead, int rowsImported);
+
+        /**
+         * Called for each of the first {@link #MAX_REPORTED_ERRORS} rows that cannot be imported.
+         * @param lineNumber - the line of the file the row starts on
+         * @param message - what is wrong with the row
+         */
+        void onRowError(int lineNumber, String message);
+
+        /**
+         * Called once at the end of the import.
+         * @param rowsImported - the number of products inserted
+         * @param rowsFailed - the number of rows that could not be imported
+         * @param error - what stopped the import before the end of the file, or null
+         */
+        void onFinished(int rowsImported, int rowsFailed, String error);
+    }
+
+    private final ContentResolver mContentResolver;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Scaled picture bytes by the location given in the file */
+    private final LruCache<String, byte[]> mPictures = new LruCache<String, byte[]>(PICTURE_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    /** Told about the progress, null once nobody is interested anymore. Only used on the main thread. */
+    private Listener mListener;
+
+    /** Set to stop the import after the current row */
+    private volatile boolean mCancelled;
+
+    /** The file being imported */
+    private Uri mFileUri;
+
+    /** Positions of the columns in the file, -1 for a column that is missing */
+    private int mNameColumn;
+    private int mPriceColumn;
+    private int mQuantityColumn;
+    private int mImageColumn;
+    private int mSkuColumn;
+
+    /** Counts of the rows, only used by the import thread */
+    private int mRowsRead;
+    private int mRowsImported;
+    private int mRowsFailed;
+
+    public CsvImporter(Context context, Listener listener) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+        mListener = listener;
+    }
+
+    /**
+     * Start importing the CSV file with the given URI on a background thread.
+     */
+    public void start(final Uri fileUri) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String error = importFile(fileUri);
+                final int rowsImported = mRowsImported;
+                final int rowsFailed = mRowsFailed;
+                final String finalError = error;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mListener != null){
+                            mListener.onFinished(rowsImported, rowsFailed, finalError);
+                        }
+                    }
+                });
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Stop the import after the current row. The batches that have been inserted stay.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Stop telling the listener about the progress, e.g. because its screen is gone.
+     * The import goes on. Must be called on the main thread.
+     */
+    public void removeListener() {
+        mListener = null;
+    }
+
+    /**
+     * Import the given file. Runs on the import thread.
+     * @return what stopped the import before the end of the file, or null
+     */
+    private String importFile(Uri fileUri) {
+        mFileUri = fileUri;
+        CsvReader reader;
+        try {
+            InputStream inputStream = mContentResolver.openInputStream(fileUri);
+            if(inputStream == null){
+                return "Cannot open " + fileUri;
+            }
+            reader = new CsvReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to open " + fileUri, e);
+            return e.getMessage();
+        }
+
+        try {
+            String[] header = reader.readRecord();
+            if(header == null || !findColumns(header)){
+                return "The first line must name the columns " + TextUtils.join(", ", ProductsEntry.CSV_COLUMNS)
+                        + ", only " + ProductsEntry.COLUMN_PRODUCT_SKU + " may be left out";
+            }
+
+            List<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+            List<Integer> batchLines = new ArrayList<Integer>(BATCH_SIZE);
+            Set<String> batchSkus = new HashSet<String>();
+            String[] record;
+            while(!mCancelled && (record = reader.readRecord()) != null){
+                if(record.length == 1 && record[0].trim().isEmpty()){
+                    // Skip blank lines
+                    continue;
+                }
+                mRowsRead++;
+                ContentValues values;
+                try {
+                    values = readProduct(record);
+                    ProductsEntry.validateNewProduct(values);
+                    checkSku(values.getAsString(ProductsEntry.COLUMN_PRODUCT_SKU), batchSkus);
+                } catch (IllegalArgumentException e) {
+                    reportRowError(reader.getLineNumber(), e.getMessage());
+                    continue;
+                }
+                batch.add(values);
+                batchLines.add(reader.getLineNumber());
+                if(batch.size() == BATCH_SIZE){
+                    insertBatch(batch, batchLines);
+                    batchSkus.clear();
+                }
+            }
+            insertBatch(batch, batchLines);
+            return mCancelled ? "Import cancelled" : null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read " + fileUri, e);
+            return e.getMessage();
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to close " + fileUri, e);
+            }
+        }
+    }
+
+    /**
+     * Find the positions of the columns in the given header record.
+     * @return false if a column other than the SKU is missing
+     */
+    private boolean findColumns(String[] header) {
+        mNameColumn = mPriceColumn = mQuantityColumn = mImageColumn = mSkuColumn = -1;
+        for(int i = 0; i < header.length; i++){
+            String column = header[i].trim().toLowerCase(Locale.US);
+            if(column.equals(ProductsEntry.COLUMN_PRODUCT_NAME)){
+                mNameColumn = i;
+            }
+            else if(column.equals(ProductsEntry.COLUMN_PRODUCT_PRICE)){
+                mPriceColumn = i;
+            }
+            else if(column.equals(ProductsEntry.COLUMN_PRODUCT_QUANTITY)){
+                mQuantityColumn = i;
+            }
+            else if(column.equals(ProductsEntry.CSV_COLUMN_IMAGE)){
+                mImageColumn = i;
+            }
+            else if(column.equals(ProductsEntry.COLUMN_PRODUCT_SKU)){
+                mSkuColumn = i;
+            }
+        }
+        return mNameColumn != -1 && mPriceColumn != -1 && mQuantityColumn != -1 && mImageColumn != -1;
+    }
+
+    /**
+     * Convert the given record into the values of a new product.
+     * @throws IllegalArgumentException - if a field cannot be read
+     */
+    private ContentValues readProduct(String[] record) {
+        String name = getField(record, mNameColumn);
+        String price = getField(record, mPriceColumn);
+        String quantity = getField(record, mQuantityColumn);
+        String image = getField(record, mImageColumn);
+        String sku = mSkuColumn == -1 ? "" : getField(record, mSkuColumn);
+
+        ContentValues values = new ContentValues();
+        if(!name.isEmpty()){
+            values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        }
+        try {
+            values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, ProductsEntry.parsePrice(price));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Product requires a valid price: " + price);
+        }
+        try {
+            values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, Integer.parseInt(quantity));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Product requires a valid quantity: " + quantity);
+        }
+        if(!image.isEmpty()){
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, readPicture(image));
+        }
+        if(!sku.isEmpty()){
+            values.put(ProductsEntry.COLUMN_PRODUCT_SKU, sku);
+        }
+        return values;
+    }
+
+    /**
+     * Check that no product and no other row of the current batch has the given SKU, which the
+     * provider would refuse for the whole batch. The rows of the batches before are products by now.
+     * @param batchSkus - the SKUs of the current batch, the SKU is added to them
+     * @throws IllegalArgumentException - if the SKU is already used
+     */
+    private void checkSku(String sku, Set<String> batchSkus) {
+        if(sku == null){
+            return;
+        }
+        if(!batchSkus.add(sku)){
+            throw new IllegalArgumentException("Product SKU is already used: " + sku);
+        }
+        Cursor cursor = mContentResolver.query(ProductsEntry.buildSkuUri(sku),
+                new String[] {ProductsEntry._ID}, null, null, null);
+        try {
+            if(cursor != null && cursor.moveToFirst()){
+                throw new IllegalArgumentException("Product SKU is already used: " + sku);
+            }
+        } finally {
+            if(cursor != null){
+                cursor.close();
+            }
+        }
+    }
+
+    private static String getField(String[] record, int column) {
+        return column < record.length ? record[column].trim() : "";
+    }
+
+    /**
+     * Return the picture at the given location, scaled down and encoded like in the editor.
+     * @throws IllegalArgumentException - if the picture cannot be read
+     */
+    private byte[] readPicture(String location) {
+        byte[] picture = mPictures.get(location);
+        if(picture != null){
+            return picture;
+        }
+        picture = readSmallDataPicture(location);
+        if(picture != null){
+            return picture;
+        }
+        Bitmap bitmap = PictureDecoder.decodeScaled(mContentResolver, resolvePicture(location),
+                PICTURE_SIZE, null, null);
+        if(bitmap == null){
+            throw new IllegalArgumentException("Cannot read the image " + location);
+        }
+        picture = ProductsEntry.getBitmapAsByteArray(bitmap);
+        bitmap.recycle();
+        mPictures.put(location, picture);
+        return picture;
+    }
+
+    /**
+     * Return the picture held by the given location if it is a data URI, as the export writes,
+     * with a picture no larger than the app saves them. Such a picture has been scaled down and
+     * encoded already, so it is kept as it is rather than encoded again. Earlier versions of the
+     * editor only sampled the pictures down by powers of two, which leaves them smaller than
+     * twice the size of the editor.
+     * @return the picture, or null if the location is not such a data URI
+     * @throws IllegalArgumentException - if the picture cannot be read
+     */
+    private static byte[] readSmallDataPicture(String location) {
+        if(!location.startsWith(ProductsEntry.SCHEME_DATA + ":")){
+            return null;
+        }
+        byte[] picture = ProductsEntry.readPictureDataUri(location);
+        if(picture == null){
+            throw new IllegalArgumentException("Cannot read the image " + location);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if(options.outWidth <= 0 || options.outHeight <= 0){
+            throw new IllegalArgumentException("Cannot read the image " + location);
+        }
+        return Math.max(options.outWidth, options.outHeight) < 2 * PICTURE_SIZE ? picture : null;
+    }
+
+    /**
+     * Return the URI of the picture at the given location: a URI, an absolute path or a path
+     * relative to the folder of the imported file.
+     */
+    private Uri resolvePicture(String location) {
+        Uri uri = Uri.parse(location);
+        if(uri.getScheme() != null){
+            return uri;
+        }
+        File file = new File(location);
+        if(!file.isAbsolute() && ContentResolver.SCHEME_FILE.equals(mFileUri.getScheme())){
+            file = new File(new File(mFileUri.getPath()).getParentFile(), location);
+        }
+        return Uri.fromFile(file);
+    }
+
+    /**
+     * Insert the given products in one transaction and clear the batch.
+     */
+    private void insertBatch(List<ContentValues> batch, List<Integer> batchLines) {
+        if(batch.isEmpty()){
+            return;
+        }
+        try {
+            mRowsImported += mContentResolver.bulkInsert(ProductsEntry.CONTENT_URI,
+                    batch.toArray(new ContentValues[batch.size()]));
+        } catch (RuntimeException e) {
+            // The rows have been checked already, so this is a problem of the storage, or a SKU
+            // that another write has taken since
+            Log.e(LOG_TAG, "Failed to insert a batch of products", e);
+            for(int lineNumber : batchLines){
+                reportRowError(lineNumber, e.getMessage());
+            }
+        }
+        batch.clear();
+        batchLines.clear();
+
+        final int rowsRead = mRowsRead;
+        final int rowsImported = mRowsImported;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mListener != null){
+                    mListener.onProgress(rowsRead, rowsImported);
+                }
+            }
+        });
+    }
+
+    private void reportRowError(final int lineNumber, final String message) {
+        mRowsFailed++;
+        if(mRowsFailed > MAX_REPORTED_ERRORS){
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mListener != null){
+                    mListener.onRowError(lineNumber, message);
+                }
+            }
+        });
+    }
+}
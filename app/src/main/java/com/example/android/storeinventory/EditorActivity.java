@@ -1,5 +1,6 @@
 package com.example.android.storeinventory;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.graphics.BitmapFactory;
 import android.support.v4.app.NavUtils;
@@ -30,7 +31,6 @@ import android.widget.Toast;
 import com.example.android.storeinventory.data.InventoryContract;
 import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
 /**
@@ -39,12 +39,18 @@ import java.io.IOException;
 public class EditorActivity extends AppCompatActivity
 implements LoaderManager.LoaderCallbacks<Cursor>{
 
+    /** Tag for the log messages */
+    public static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
     /** Identifier for the product data loader */
     private static final int EXISTING_PRODUCT_LOADER = 1;
 
     /** Request code for the product picture */
     private static final int RESULT_LOAD_PICTURE = 1;
 
+    /** Width and height in pixels the picked picture is scaled down to */
+    private static final int PICTURE_SIZE = 72;
+
     /** Content URI for the existing product (null if it's a new product) */
     private Uri mCurrentProductUri;
 
@@ -57,6 +63,9 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
     /** EditText field to enter the product's quantity */
     private EditText mQuantityEditText;
 
+    /** EditText field to enter the product's SKU, e.g. by scanning its barcode */
+    private EditText mSkuEditText;
+
     /** ImageView to show the selected product's picture */
     private ImageView mImageView;
 
@@ -80,6 +89,24 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
     /** Holds the scaled bitmap of the picture of the product */
     Bitmap scaledPictureBitmap;
 
+    /** The picked picture encoded for the provider, null until a picture has been picked */
+    private byte[] mPictureBytes;
+
+    /** The picked picture that is being decoded, or null */
+    private PictureDecoder.Request mPictureRequest;
+
+    /**
+     * The save or delete being written, or null. The editor stays open until it is done and
+     * closes only if it succeeded, so the user can try again after a failure.
+     */
+    private ProductRepository.Request<?> mPendingWrite;
+
+    /** Values of the existing product as they were loaded, so only what the user changed is saved */
+    private String mLoadedName;
+    private long mLoadedPrice;
+    private int mLoadedQuantity;
+    private String mLoadedSku;
+
     /**
      * OnTouchListener that listens for any user touches on a View, implying that they are modifying
      * the view, and we change the mProductHasChanged boolean to true.
@@ -131,6 +158,7 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         mNameEditText = (EditText) findViewById(R.id.edit_product_name);
         mPriceEditText = (EditText) findViewById(R.id.edit_product_price);
         mQuantityEditText = (EditText) findViewById(R.id.edit_product_quantity);
+        mSkuEditText = (EditText) findViewById(R.id.edit_product_sku);
         mImageView = (ImageView) findViewById(R.id.picture);
         /** Buttons to increase or decrease the amount to sell or order */
         Button orderMoreButton = (Button) findViewById(R.id.order_more_btn);
@@ -148,6 +176,7 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         mNameEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
+        mSkuEditText.setOnTouchListener(mTouchListener);
         orderMoreButton.setOnTouchListener(mTouchListener);
         orderLessButton.setOnTouchListener(mTouchListener);
         sellMoreButton.setOnTouchListener(mTouchListener);
@@ -273,33 +302,72 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         super.onActivityResult(requestCode, resultCode, intent);
         if (requestCode == RESULT_LOAD_PICTURE && resultCode == RESULT_OK && null != intent) {
             Uri selectedPictureUri = intent.getData();
-            // Show the selected picture in an ImageView in the editor
-            try {
-                // Scale the bitmap received from the uri so it fits in the small ImageView
-                scaledPictureBitmap = ProductsEntry.decodeSampledBitmapFromUri(this, selectedPictureUri, 72, 72);
-                // Hide the gray picture placeholder
-                mImageView.setBackgroundResource(0);
-                // Show the scaled bitmap in the ImageView
-                mImageView.setImageBitmap(scaledPictureBitmap);
-                // The user has chosen a picture and we can change
-                // the text of the button to say "Change picture"
-                mAddPictureButton.setText(R.string.edit_product_change_photo);
-
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            // A picture picked earlier that is still being decoded is not wanted anymore
+            if(mPictureRequest != null){
+                mPictureRequest.cancel();
             }
+            // Decode the picture in the background, scaled so it fits in the small ImageView
+            mPictureRequest = PictureDecoder.getInstance(this).decode(selectedPictureUri, PICTURE_SIZE,
+                    new PictureDecoder.Callback() {
+                        @Override
+                        public void onPictureDecoded(Bitmap bitmap, byte[] encoded) {
+                            mPictureRequest = null;
+                            showPickedPicture(bitmap, encoded);
+                        }
+                    });
         }
     }
 
+    /**
+     * Show the picture the user has picked, once it has been decoded.
+     */
+    private void showPickedPicture(Bitmap bitmap, byte[] encoded) {
+        if(bitmap == null || encoded == null){
+            Toast.makeText(this, getString(R.string.editor_picture_failed), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Bitmap oldBitmap = scaledPictureBitmap;
+        scaledPictureBitmap = bitmap;
+        mPictureBytes = encoded;
+        // Hide the gray picture placeholder
+        mImageView.setBackgroundResource(0);
+        // Show the scaled bitmap in the ImageView
+        mImageView.setImageBitmap(scaledPictureBitmap);
+        // The picture picked before is not shown anymore, the next one can be decoded into it
+        PictureDecoder.getInstance(this).recycle(oldBitmap);
+        // The user has chosen a picture and we can change
+        // the text of the button to say "Change picture"
+        mAddPictureButton.setText(R.string.edit_product_change_photo);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Nobody is left to show the picture that is being decoded
+        if(mPictureRequest != null){
+            mPictureRequest.cancel();
+        }
+        // A pending write is not cancelled: what the user saved or deleted is still written,
+        // and its outcome is still shown
+    }
+
     /**
      * Get user input from editor and save product into database.
      */
     private void saveProduct(){
+        // The last save or delete has not finished yet
+        if(mPendingWrite != null){
+            return;
+        }
+
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String quantityString = mQuantityEditText.getText().toString().trim();
+        // The SKU is optional, an empty field means the product has none
+        String skuString = mSkuEditText.getText().toString().trim();
+        String sku = skuString.isEmpty() ? null : skuString;
 
         // Check if this is supposed to be a new product
         // and check if all the fields in the editor are blank
@@ -321,58 +389,118 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         }
         // Create a ContentValues object where column names are the keys,
         // and product attributes from the editor are the values.
+        // An existing product only gets the values that are different from the loaded ones,
+        // so e.g. a new quantity does not write the name, the price or the picture again
+        boolean isNewProduct = mCurrentProductUri == null;
         ContentValues values = new ContentValues();
-        // First save the name
-        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, nameString);
-        // Convert the price from a String into double
-        double price = Double.parseDouble(priceString);
-        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, price);
-        // Convert the quantity from a String into integer
-        int quantity = Integer.parseInt(quantityString);
-        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
-        // If the bitmap is null that means the picture hasn't been changed so we can use the old one
-        // if it's not null we can use it to convert it to byte array and save it
-        if(scaledPictureBitmap != null) {
-            // Convert the bitmap into ByteArray so it can be saved into the database
-            byte[] picture = ProductsEntry.getBitmapAsByteArray(scaledPictureBitmap);
-            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, picture);
+        // Until the existing product is loaded the fields do not show it, so they are not saved
+        if(isNewProduct || mLoadedName != null) {
+            // Convert the price from a String into minor currency units
+            long price;
+            try {
+                price = ProductsEntry.parsePrice(priceString);
+            } catch (NumberFormatException e) {
+                Toast.makeText(this, getString(R.string.editor_invalid_price), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Convert the quantity from a String into integer
+            int quantity = Integer.parseInt(quantityString);
+
+            if(isNewProduct || !nameString.equals(mLoadedName)) {
+                values.put(ProductsEntry.COLUMN_PRODUCT_NAME, nameString);
+            }
+            if(isNewProduct || price != mLoadedPrice) {
+                values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, price);
+            }
+            if(isNewProduct || quantity != mLoadedQuantity) {
+                values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+            }
+            if(isNewProduct ? sku != null : !TextUtils.equals(sku, mLoadedSku)) {
+                values.put(ProductsEntry.COLUMN_PRODUCT_SKU, sku);
+            }
+        }
+        // The picture is only sent when the user has picked a new one, otherwise the stored
+        // one stays as it is. It has been encoded in the background when it was picked.
+        if(mPictureBytes != null) {
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, mPictureBytes);
         }
 
-        // Determine if this is a new or existing pet by checking if mCurrentPetUri is null or not
+        // Nothing has changed, so there is nothing to write
+        if(!isNewProduct && values.size() == 0) {
+            finish();
+            return;
+        }
+
+        // Determine if this is a new or existing pet by checking if mCurrentPetUri is null or not.
+        // The product is written in the background and the editor closes once it has been
+        // written; the save action is disabled until then.
+        ProductRepository repository = ProductRepository.getInstance(this);
         if(mCurrentProductUri == null) {
             // This is a NEW product, so insert a new product into the provider,
             // returning the content URI for the new product.
-            Uri newProductUri = getContentResolver().insert(ProductsEntry.CONTENT_URI, values);
+            setPendingWrite(repository.insert(ProductsEntry.CONTENT_URI, values, new ProductRepository.Callback<Uri>() {
+                @Override
+                public void onResult(Uri newProductUri) {
+                    // Show a toast message depending on whether or not the insertion was successful.
+                    finishWrite(newProductUri != null, R.string.editor_insert_product_successful,
+                            R.string.editor_insert_product_failed);
+                }
 
-            // Show a toast message depending on whether or not the insertion was successful.
-            if(newProductUri == null){
-                Toast.makeText(this, getString(R.string.editor_insert_product_failed),
-                        Toast.LENGTH_SHORT).show();
-            }
-            else {
-                Toast.makeText(this, getString(R.string.editor_insert_product_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+                @Override
+                public void onError(Exception error) {
+                    finishWrite(false, 0, R.string.editor_insert_product_failed);
+                }
+            }));
         }
         else {
             // Otherwise this is an EXISTING product, so update the product with content URI: mCurrentProductUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentProductUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentProductUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if(rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_product_failed), Toast.LENGTH_SHORT).show();
-            }
-            else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_product_successful), Toast.LENGTH_SHORT).show();
-            }
+            // and pass in the new ContentValues. mCurrentProductUri already identifies the correct
+            // row in the database that we want to modify.
+            setPendingWrite(repository.update(mCurrentProductUri, values, new ProductRepository.Callback<Integer>() {
+                @Override
+                public void onResult(Integer rowsAffected) {
+                    // If no rows were affected, then there was an error with the update.
+                    finishWrite(rowsAffected != 0, R.string.editor_update_product_successful,
+                            R.string.editor_update_product_failed);
+                }
+
+                @Override
+                public void onError(Exception error) {
+                    finishWrite(false, 0, R.string.editor_update_product_failed);
+                }
+            }));
         }
-        // Close the activity
-        finish();
+    }
+
+    /**
+     * Remember the save or delete that is being written and disable the actions until it is done.
+     */
+    private void setPendingWrite(ProductRepository.Request<?> request) {
+        mPendingWrite = request;
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Show the outcome of the pending write. Close the editor if it succeeded, otherwise let the
+     * user try again.
+     */
+    private void finishWrite(boolean succeeded, int successMessageId, int failureMessageId) {
+        mPendingWrite = null;
+        if(succeeded){
+            showToast(successMessageId);
+            finish();
+        }
+        else {
+            showToast(failureMessageId);
+            invalidateOptionsMenu();
+        }
+    }
+
+    /**
+     * Show a short message, which stays on screen once the editor has been closed.
+     */
+    private void showToast(int messageId) {
+        Toast.makeText(getApplicationContext(), getString(messageId), Toast.LENGTH_SHORT).show();
     }
 
     @Override
@@ -391,6 +519,9 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
         }
+        // Nothing more can be saved or deleted until the pending write is done
+        menu.findItem(R.id.action_save).setEnabled(mPendingWrite == null);
+        menu.findItem(R.id.action_delete).setEnabled(mPendingWrite == null);
         return true;
     }
 
@@ -455,24 +586,31 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
      */
     private void deleteProduct() {
         // Only perform the delete if this is an existing product.
-        if(mCurrentProductUri != null) {
-            // Call the ContentResolver to delete the product at the given content URI.
-            // Pass in null for the selection and selection args because the mCurrentProductUri
-            // content URI already identifies the product that we want.
-            int rowsDeleted = getContentResolver().delete(mCurrentProductUri, null, null);
-
-            // Show a toast message depending on whether or not the delete was successful.
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, getString(R.string.editor_delete_product_failed), Toast.LENGTH_SHORT).show();
-            }
-            else {
-                // Otherwise the delete was successful.
-                Toast.makeText(this, getString(R.string.editor_delete_product_successful), Toast.LENGTH_SHORT).show();
-            }
+        if(mCurrentProductUri == null) {
+            finish();
+            return;
+        }
+        // The last save or delete has not finished yet
+        if(mPendingWrite != null){
+            return;
         }
-        // Close the activity
-        finish();
+        // Delete the product at the given content URI in the background. The
+        // mCurrentProductUri content URI already identifies the product that we want.
+        // The editor closes once the product has been deleted.
+        setPendingWrite(ProductRepository.getInstance(this).delete(mCurrentProductUri,
+                new ProductRepository.Callback<Integer>() {
+                    @Override
+                    public void onResult(Integer rowsDeleted) {
+                        // If no rows were deleted, then there was an error with the delete.
+                        finishWrite(rowsDeleted != 0, R.string.editor_delete_product_successful,
+                                R.string.editor_delete_product_failed);
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        finishWrite(false, 0, R.string.editor_delete_product_failed);
+                    }
+                }));
     }
 
     /**
@@ -531,14 +669,16 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Since the editor shows all pet attributes, define a projection that contains
-        // all columns from the pet table
+        // The editor shows all product attributes, but the picture is not read with them:
+        // the text fields are shown as soon as this small row is loaded and the picture
+        // follows from the picture cache in the background
         String[] projection = {
                 ProductsEntry._ID,
                 ProductsEntry.COLUMN_PRODUCT_NAME,
                 ProductsEntry.COLUMN_PRODUCT_PRICE,
                 ProductsEntry.COLUMN_PRODUCT_QUANTITY,
-                ProductsEntry.COLUMN_PRODUCT_PICTURE};
+                ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH,
+                ProductsEntry.COLUMN_PRODUCT_SKU};
 
 
         // This loader will execute the ContentProvider's query method on a background thread
@@ -564,23 +704,42 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
             int nameColumnIndex = cursor.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_NAME);
             int priceColumnIndex = cursor.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_PRICE);
             int quantityColumnIndex = cursor.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_QUANTITY);
-            int pictureColumnIndex = cursor.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_PICTURE);
+            int pictureHashColumnIndex = cursor.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH);
+            int skuColumnIndex = cursor.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_SKU);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
-            double price = cursor.getDouble(priceColumnIndex);
+            long price = cursor.getLong(priceColumnIndex);
             int quantity = cursor.getInt(quantityColumnIndex);
-            byte[] pictureBytes = cursor.getBlob(pictureColumnIndex);
-            // Convert the byte array into a bitmap to show in the editor
-            Bitmap picture = ProductsEntry.getByteArrayAsBitmap(pictureBytes);
+            String pictureHash = cursor.getString(pictureHashColumnIndex);
+            String sku = cursor.getString(skuColumnIndex);
+
+            // Remember the values, saving the product only writes the ones that are changed
+            mLoadedName = name;
+            mLoadedPrice = price;
+            mLoadedQuantity = quantity;
+            mLoadedSku = sku;
 
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
-            mPriceEditText.setText(Double.toString(price));
+            mPriceEditText.setText(ProductsEntry.formatPrice(price));
             mQuantityEditText.setText(Integer.toString(quantity));
-            // Hide the gray picture placeholder before showing the picture
-            mImageView.setBackgroundResource(0);
-            mImageView.setImageBitmap(picture);
+            mSkuEditText.setText(sku);
+            // The picture is not part of the row, get it from the cache in the background
+            // unless the user has already picked a new one
+            if(scaledPictureBitmap == null){
+                PictureCache.getInstance(this).load(ContentUris.parseId(mCurrentProductUri), pictureHash,
+                        new PictureCache.Callback() {
+                            @Override
+                            public void onPictureLoaded(String key, Bitmap bitmap) {
+                                if(bitmap != null && scaledPictureBitmap == null && !isFinishing()){
+                                    // Hide the gray picture placeholder before showing the picture
+                                    mImageView.setBackgroundResource(0);
+                                    mImageView.setImageBitmap(bitmap);
+                                }
+                            }
+                        });
+            }
         }
     }
 
@@ -590,6 +749,7 @@ implements LoaderManager.LoaderCallbacks<Cursor>{
         mNameEditText.setText("");
         mPriceEditText.setText("");
         mQuantityEditText.setText("");
+        mSkuEditText.setText("");
         mImageView.setImageResource(R.drawable.ic_photo);
     }
 }
@@ -0,0 +1,30 @@
+package com.example.android.storeinventory;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+/**
+ * The application. In debug builds it has StrictMode log every read and write of the disk made
+ * on the main thread, and the database cursors and files that are never closed, so that a
+ * change that brings them back shows up in the log while it is being tried.
+ */
+public class InventoryApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if(BuildConfig.DEBUG){
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+    }
+}
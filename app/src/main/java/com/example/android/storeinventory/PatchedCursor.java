@@ -0,0 +1,288 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+/**
+ * A list of products that can be changed one row at a time without reading the list again.
+ * It wraps the cursor of the list: {@link #patchRow(long, ContentValues)} replaces some values
+ * of one product and {@link #removeRow(long)} hides one product, while all the other rows are
+ * read from the wrapped cursor as they are. The wrapped cursor must have the {@link ProductsEntry#_ID}
+ * column and is not changed.
+ */
+public class PatchedCursor extends CursorWrapper {
+
+    /** Returned by {@link #getPatchedValue(int)} for a value that has not been patched */
+    private static final Object NOT_PATCHED = new Object();
+
+    /** Index of the ID column */
+    private final int mIdColumn;
+
+    /** New values of the patched products, by ID */
+    private final LongSparseArray<ContentValues> mPatches = new LongSparseArray<ContentValues>();
+
+    /** Position of each product in the wrapped cursor, by ID. Built the first time it is needed. */
+    private LongSparseArray<Integer> mWrappedPositions;
+
+    /** Position in the wrapped cursor of each visible row, or null while no row has been removed */
+    private int[] mVisiblePositions;
+
+    /** Position of this cursor, counting only the visible rows */
+    private int mPosition = -1;
+
+    public PatchedCursor(Cursor cursor) {
+        super(cursor);
+        mIdColumn = cursor.getColumnIndexOrThrow(ProductsEntry._ID);
+    }
+
+    /**
+     * Return the current values of the product with the given ID, with its patches applied,
+     * or null if the product is not in this list.
+     */
+    public ContentValues getRow(long id) {
+        Integer wrappedPosition = getWrappedPositions().get(id);
+        if(wrappedPosition == null){
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        getWrappedCursor().moveToPosition(wrappedPosition);
+        DatabaseUtils.cursorRowToContentValues(getWrappedCursor(), values);
+        ContentValues patch = mPatches.get(id);
+        if(patch != null){
+            values.putAll(patch);
+        }
+        // Put the wrapped cursor back where this cursor is
+        moveToPosition(mPosition);
+        return values;
+    }
+
+    /**
+     * Replace the values of the product with the given ID by the given values. Columns that are
+     * not in the values keep their old value.
+     * @return true if the product is in this list
+     */
+    public boolean patchRow(long id, ContentValues values) {
+        if(getWrappedPositions().get(id) == null){
+            return false;
+        }
+        ContentValues patch = mPatches.get(id);
+        if(patch == null){
+            patch = new ContentValues();
+            mPatches.put(id, patch);
+        }
+        patch.putAll(values);
+        return true;
+    }
+
+    /**
+     * Hide the product with the given ID. The positions of the rows after it move up by one.
+     * @return true if the product was in this list
+     */
+    public boolean removeRow(long id) {
+        Integer wrappedPosition = getWrappedPositions().get(id);
+        if(wrappedPosition == null){
+            return false;
+        }
+        mWrappedPositions.remove(id);
+        mPatches.remove(id);
+
+        int count = getCount();
+        int[] visiblePositions = new int[count - 1];
+        int newCount = 0;
+        for(int position = 0; position < count; position++){
+            int wrapped = toWrappedPosition(position);
+            if(wrapped != wrappedPosition){
+                visiblePositions[newCount++] = wrapped;
+            }
+        }
+        mVisiblePositions = visiblePositions;
+        moveToPosition(-1);
+        return true;
+    }
+
+    /**
+     * Return the position of each product in the wrapped cursor, by ID.
+     */
+    private LongSparseArray<Integer> getWrappedPositions() {
+        if(mWrappedPositions == null){
+            Cursor cursor = getWrappedCursor();
+            mWrappedPositions = new LongSparseArray<Integer>(cursor.getCount());
+            for(int position = 0; cursor.moveToPosition(position); position++){
+                mWrappedPositions.put(cursor.getLong(mIdColumn), position);
+            }
+            moveToPosition(mPosition);
+        }
+        return mWrappedPositions;
+    }
+
+    private int toWrappedPosition(int position) {
+        return mVisiblePositions == null ? position : mVisiblePositions[position];
+    }
+
+    /**
+     * Return the patched value of the given column in the current row, or {@link #NOT_PATCHED}.
+     */
+    private Object getPatchedValue(int columnIndex) {
+        if(mPatches.size() == 0 || columnIndex == mIdColumn){
+            return NOT_PATCHED;
+        }
+        ContentValues patch = mPatches.get(super.getLong(mIdColumn));
+        if(patch == null){
+            return NOT_PATCHED;
+        }
+        String column = getColumnName(columnIndex);
+        return patch.containsKey(column) ? patch.get(column) : NOT_PATCHED;
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+    }
+
+    private static double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public int getCount() {
+        return mVisiblePositions == null ? super.getCount() : mVisiblePositions.length;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        int count = getCount();
+        if(position >= count){
+            mPosition = count;
+            super.moveToPosition(super.getCount());
+            return false;
+        }
+        if(position < 0){
+            mPosition = -1;
+            super.moveToPosition(-1);
+            return false;
+        }
+        mPosition = position;
+        return super.moveToPosition(toWrappedPosition(position));
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(getCount() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mPosition == 0 && getCount() != 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        int count = getCount();
+        return mPosition == count - 1 && count != 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return getCount() == 0 || mPosition == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return getCount() == 0 || mPosition == getCount();
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        Object value = getPatchedValue(columnIndex);
+        if(value == NOT_PATCHED){
+            return super.getString(columnIndex);
+        }
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        Object value = getPatchedValue(columnIndex);
+        if(value == NOT_PATCHED){
+            super.copyStringToBuffer(columnIndex, buffer);
+            return;
+        }
+        String text = value == null ? "" : value.toString();
+        if(buffer.data == null || buffer.data.length < text.length()){
+            buffer.data = text.toCharArray();
+        }
+        else {
+            text.getChars(0, text.length(), buffer.data, 0);
+        }
+        buffer.sizeCopied = text.length();
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        Object value = getPatchedValue(columnIndex);
+        if(value == NOT_PATCHED){
+            return super.getLong(columnIndex);
+        }
+        return value == null ? 0 : toLong(value);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        Object value = getPatchedValue(columnIndex);
+        if(value == NOT_PATCHED){
+            return super.getDouble(columnIndex);
+        }
+        return value == null ? 0 : toDouble(value);
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        Object value = getPatchedValue(columnIndex);
+        return value == NOT_PATCHED ? super.isNull(columnIndex) : value == null;
+    }
+}
@@ -0,0 +1,306 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.android.storeinventory.data.InventoryContract;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.PictureEncoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two level cache for the product pictures, shared by every screen of the app.
+ * Pictures are kept as small thumbnails in a memory cache that is limited by size in bytes,
+ * backed by a cache of thumbnail files on disk. Both are keyed by the product ID and the
+ * hash of the picture, so a changed picture never shows an old version. Several requests for
+ * the same picture while it is being loaded only load it once.
+ */
+public class PictureCache {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = PictureCache.class.getSimpleName();
+
+    /** Width and height in pixels of the cached thumbnails */
+    public static final int THUMBNAIL_SIZE = 72;
+
+    /** Name of the directory (inside the cache directory of the app) that holds the thumbnails */
+    private static final String DIRECTORY_NAME = "thumbnails";
+
+    /** Number of threads that load pictures in the background */
+    private static final int LOADER_THREADS = 2;
+
+    /**
+     * Callback for a picture that has been loaded. It is always called on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param key - the key of the picture, as returned by {@link #getKey(long, String)}
+         * @param bitmap - the picture, or null if it could not be loaded
+         */
+        void onPictureLoaded(String key, Bitmap bitmap);
+    }
+
+    /** The single instance of the cache */
+    private static PictureCache sInstance;
+
+    private final Context mContext;
+
+    private final ContentResolver mContentResolver;
+
+    /**
+     * Directory that holds the thumbnail files. Looked up the first time it is used, on a
+     * loader thread, as finding it may touch the disk. Guarded by this object.
+     */
+    private File mDirectory;
+
+    /** Memory cache of the thumbnails */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Callbacks waiting for a picture that is being loaded, by key of the picture */
+    private final Map<String, List<Callback>> mPendingRequests = new HashMap<String, List<Callback>>();
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(LOADER_THREADS);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Counters for the disk cache, the memory cache keeps its own */
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskMissCount = new AtomicInteger();
+
+    /**
+     * Return the single instance of the cache, creating it if needed.
+     */
+    public static synchronized PictureCache getInstance(Context context) {
+        if(sInstance == null){
+            sInstance = new PictureCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PictureCache(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+
+        // Use an eighth of the available memory for the thumbnails
+        int maxSizeInBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(maxSizeInBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        // Drop the cached thumbnails of a product as soon as the provider changes its picture
+        mContentResolver.registerContentObserver(ProductsEntry.CONTENT_URI, true,
+                new ContentObserver(mMainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        if(uri != null && isPictureUri(uri)){
+                            invalidate(Long.parseLong(uri.getPathSegments().get(1)));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Return the key of the picture with the given hash for the given product.
+     */
+    public static String getKey(long productId, String pictureHash) {
+        return productId + "_" + pictureHash;
+    }
+
+    /**
+     * Return the picture from the memory cache or null if it is not there.
+     */
+    public Bitmap get(long productId, String pictureHash) {
+        return mMemoryCache.get(getKey(productId, pictureHash));
+    }
+
+    /**
+     * Load the picture with the given hash for the given product. If the picture is in memory
+     * the callback is called right away, otherwise it is called on the main thread once the
+     * picture has been read from the disk cache or the provider.
+     */
+    public void load(final long productId, final String pictureHash, Callback callback) {
+        final String key = getKey(productId, pictureHash);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if(bitmap != null){
+            callback.onPictureLoaded(key, bitmap);
+            return;
+        }
+
+        synchronized (mPendingRequests) {
+            List<Callback> callbacks = mPendingRequests.get(key);
+            if(callbacks != null){
+                // The picture is already being loaded, just wait for it
+                callbacks.add(callback);
+                return;
+            }
+            callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            mPendingRequests.put(key, callbacks);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap loadedBitmap = loadThumbnail(productId, key);
+                if(loadedBitmap != null){
+                    mMemoryCache.put(key, loadedBitmap);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Callback> callbacks;
+                        synchronized (mPendingRequests) {
+                            callbacks = mPendingRequests.remove(key);
+                        }
+                        for(Callback waitingCallback : callbacks){
+                            waitingCallback.onPictureLoaded(key, loadedBitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Remove all cached thumbnails of the given product from memory and from disk.
+     */
+    public void invalidate(long productId) {
+        final String prefix = productId + "_";
+        for(String key : mMemoryCache.snapshot().keySet()){
+            if(key.startsWith(prefix)){
+                mMemoryCache.remove(key);
+            }
+        }
+        // Delete the thumbnail files in the background
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = getDirectory().listFiles();
+                if(files != null){
+                    for(File file : files){
+                        if(file.getName().startsWith(prefix)){
+                            file.delete();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Number of pictures that were found in memory */
+    public int getMemoryHitCount() {
+        return mMemoryCache.hitCount();
+    }
+
+    /** Number of pictures that were not found in memory */
+    public int getMemoryMissCount() {
+        return mMemoryCache.missCount();
+    }
+
+    /** Number of pictures that were removed from memory to make room for others */
+    public int getMemoryEvictionCount() {
+        return mMemoryCache.evictionCount();
+    }
+
+    /** Size in bytes of the pictures in memory */
+    public int getMemorySize() {
+        return mMemoryCache.size();
+    }
+
+    /** Number of pictures that were found in the disk cache */
+    public int getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    /** Number of pictures that had to be read from the provider */
+    public int getDiskMissCount() {
+        return mDiskMissCount.get();
+    }
+
+    /**
+     * Read the thumbnail from the disk cache, or create it from the picture in the provider and
+     * save it in the disk cache. Runs on a background thread.
+     */
+    private Bitmap loadThumbnail(long productId, String key) {
+        File file = new File(getDirectory(), key);
+        if(file.exists()){
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if(bitmap != null){
+                mDiskHitCount.incrementAndGet();
+                return bitmap;
+            }
+        }
+        mDiskMissCount.incrementAndGet();
+
+        // Read the picture from the provider, scaled down to the thumbnail size while it is decoded
+        Bitmap bitmap = PictureDecoder.decodeScaled(mContentResolver, ProductsEntry.buildPictureUri(productId),
+                THUMBNAIL_SIZE, null, null);
+        if(bitmap == null){
+            return null;
+        }
+        writeThumbnail(file, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Save the thumbnail in the disk cache. A failure only means the next load is slower.
+     */
+    private void writeThumbnail(File file, Bitmap bitmap) {
+        File directory = getDirectory();
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            return;
+        }
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            try {
+                PictureEncoder.getDefault().encode(bitmap, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to save the thumbnail " + file.getName(), e);
+            file.delete();
+        }
+    }
+
+    /**
+     * Return the directory of the thumbnail files. Must not be called on the main thread.
+     */
+    private synchronized File getDirectory() {
+        if(mDirectory == null){
+            mDirectory = new File(mContext.getCacheDir(), DIRECTORY_NAME);
+        }
+        return mDirectory;
+    }
+
+    /**
+     * Return true if the URI is the picture URI of a single product.
+     */
+    private static boolean isPictureUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() == 3
+                && InventoryContract.PATH_PRODUCTS.equals(segments.get(0))
+                && InventoryContract.PATH_PICTURE.equals(segments.get(2));
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes pictures picked by the user into small bitmaps in the background, shared by every
+ * screen of the app.
+ *
+ * A picture is read once: the stream is buffered and marked, the size of the picture is read
+ * from its header, then the stream is reset and the pixels are decoded from the same buffer.
+ * The decoder skips whole blocks of pixels with a power of two sample size and scales the rest
+ * of the way to the exact size while decoding, so a 12 megapixel photo never exists in memory
+ * at full size. On KitKat and later the pixels are decoded into a bitmap that is no longer
+ * needed, given back with {@link #recycle(Bitmap)}, instead of a new allocation.
+ */
+public class PictureDecoder {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = PictureDecoder.class.getSimpleName();
+
+    /**
+     * Most bytes kept in the buffer to go back to the start of the picture. The header of
+     * a photo, which holds its size, is at its start but can hold a large preview.
+     */
+    private static final int MARK_LIMIT = 1024 * 1024;
+
+    /**
+     * Callback for a picture that has been decoded. It is always called on the main thread,
+     * and never once the request has been cancelled.
+     */
+    public interface Callback {
+        /**
+         * @param bitmap - the picture scaled down to fit the requested size, or null if it could not be read
+         * @param encoded - the picture encoded the way the provider stores it, or null
+         */
+        void onPictureDecoded(Bitmap bitmap, byte[] encoded);
+    }
+
+    /**
+     * A picture waiting to be decoded or being decoded.
+     */
+    public static class Request {
+
+        private volatile boolean mCancelled;
+
+        /** Options of the decoding that is running, so it can be stopped early */
+        private volatile BitmapFactory.Options mOptions;
+
+        /**
+         * Stop the decoding. The callback is not called anymore.
+         * Must be called on the main thread.
+         */
+        @SuppressWarnings("deprecation")
+        public void cancel() {
+            mCancelled = true;
+            BitmapFactory.Options options = mOptions;
+            if(options != null){
+                // Only stops the decoding before Nougat, later it just runs to its end
+                options.requestCancelDecode();
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /** The single instance of the decoder */
+    private static PictureDecoder sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    /** One picture at a time, they take a lot of memory while they are decoded */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** A bitmap that is no longer shown, to decode the next picture into. Guarded by this object. */
+    private Bitmap mReusableBitmap;
+
+    /**
+     * Return the single instance of the decoder, creating it if needed.
+     */
+    public static synchronized PictureDecoder getInstance(Context context) {
+        if(sInstance == null){
+            sInstance = new PictureDecoder(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PictureDecoder(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Decode the picture at the given URI in the background, scaled down to fit in a square of
+     * the given size, and encode it for the provider.
+     * @return the request, to cancel it
+     */
+    public Request decode(final Uri uri, final int size, final Callback callback) {
+        final Request request = new Request();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(request.isCancelled()){
+                    return;
+                }
+                Bitmap bitmap = decodeScaled(mContentResolver, uri, size, takeReusableBitmap(), request);
+                final Bitmap decodedBitmap = bitmap;
+                final byte[] encoded = bitmap == null || request.isCancelled()
+                        ? null : ProductsEntry.getBitmapAsByteArray(bitmap);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(request.isCancelled()){
+                            recycle(decodedBitmap);
+                            return;
+                        }
+                        callback.onPictureDecoded(decodedBitmap, encoded);
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Give back a bitmap returned by this decoder that is no longer shown anywhere,
+     * so the next picture can be decoded into it.
+     */
+    public synchronized void recycle(Bitmap bitmap) {
+        if(bitmap != null && bitmap.isMutable() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            mReusableBitmap = bitmap;
+        }
+    }
+
+    private synchronized Bitmap takeReusableBitmap() {
+        Bitmap bitmap = mReusableBitmap;
+        mReusableBitmap = null;
+        return bitmap;
+    }
+
+    /**
+     * Decode the picture at the given URI scaled down to fit in a square of the given size,
+     * reading the picture only once.
+     * @param reusableBitmap - a mutable bitmap to decode into if it is large enough, or null
+     * @param request - the request to stop for once it is cancelled, or null
+     * @return the picture, or null if it cannot be read
+     */
+    public static Bitmap decodeScaled(ContentResolver contentResolver, Uri uri, int size,
+                                      Bitmap reusableBitmap, Request request) {
+        InputStream inputStream = null;
+        try {
+            inputStream = openPicture(contentResolver, uri);
+            if(inputStream == null){
+                return null;
+            }
+            inputStream = new BufferedInputStream(inputStream);
+            inputStream.mark(MARK_LIMIT);
+
+            // Read the size of the picture from its header
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(inputStream, null, options);
+            if(options.outWidth <= 0 || options.outHeight <= 0){
+                return null;
+            }
+            try {
+                inputStream.reset();
+            } catch (IOException e) {
+                // The header was larger than the mark limit, so read the picture again
+                inputStream.close();
+                inputStream = openPicture(contentResolver, uri);
+                if(inputStream == null){
+                    return null;
+                }
+            }
+
+            setScaling(options, size);
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            if(reusableBitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    && reusableBitmap.getAllocationByteCount() >= (size + 1) * (size + 1) * 4){
+                options.inBitmap = reusableBitmap;
+            }
+            if(request != null){
+                if(request.isCancelled()){
+                    return null;
+                }
+                request.mOptions = options;
+            }
+            try {
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            } catch (IllegalArgumentException e) {
+                if(options.inBitmap == null){
+                    throw e;
+                }
+                // The picture does not fit in the reused bitmap after all, decode it on its own
+                Log.w(LOG_TAG, "Cannot reuse the bitmap for " + uri, e);
+                inputStream.close();
+                inputStream = openPicture(contentResolver, uri);
+                options.inBitmap = null;
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to decode the picture " + uri, e);
+            return null;
+        } catch (RuntimeException e) {
+            // E.g. a provider that does not let us read the picture
+            Log.e(LOG_TAG, "Failed to decode the picture " + uri, e);
+            return null;
+        } finally {
+            if(request != null){
+                request.mOptions = null;
+            }
+            if(inputStream != null){
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close the picture " + uri, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the picture at the given URI, which may also be a data URI that holds the picture
+     * itself, see {@link ProductsEntry#buildPictureDataUri(byte[], int)}.
+     */
+    private static InputStream openPicture(ContentResolver contentResolver, Uri uri)
+            throws FileNotFoundException {
+        if(ProductsEntry.SCHEME_DATA.equals(uri.getScheme())){
+            byte[] picture = ProductsEntry.readPictureDataUri(uri.toString());
+            if(picture == null){
+                throw new FileNotFoundException("Not a base64 data URI");
+            }
+            return new ByteArrayInputStream(picture);
+        }
+        return contentResolver.openInputStream(uri);
+    }
+
+    /**
+     * Set the options that scale the picture, whose size is in the options, down to fit in
+     * a square of the given size: the largest power of two sample size that keeps the picture
+     * at least that large, and then the exact scale through the densities.
+     */
+    private static void setScaling(BitmapFactory.Options options, int size) {
+        int width = options.outWidth;
+        int height = options.outHeight;
+        int sampleSize = 1;
+        while(width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size){
+            sampleSize *= 2;
+        }
+        options.inSampleSize = sampleSize;
+
+        // The longest side of the sampled picture is scaled to the size exactly
+        int sampledLongestSide = Math.max(width, height) / sampleSize;
+        if(sampledLongestSide > size){
+            options.inScaled = true;
+            options.inDensity = sampledLongestSide;
+            options.inTargetDensity = size;
+        }
+        else {
+            options.inScaled = false;
+        }
+    }
+}
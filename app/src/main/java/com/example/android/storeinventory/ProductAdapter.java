@@ -0,0 +1,394 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link ProductAdapter} shows a {@link PatchedCursor} of products in a RecyclerView.
+ *
+ * A new list of products is not shown right away: the changes from the list on the screen are
+ * worked out in the background by comparing the {@link ProductSnapshot}s of the two lists, and
+ * then only the rows that changed are bound again. A change of the quantity alone only binds
+ * the quantity again, see {@link ProductSnapshot#PAYLOAD_QUANTITY}.
+ *
+ * Binding a row does not look up any view or column and does not create any listener: the views
+ * are kept by the {@link ViewHolder}, the column indices by the adapter, and one click listener
+ * is shared by all the rows. The name, price and quantity are copied into buffers of the holder,
+ * so a warm list only allocates the key of the picture for the rows that scroll into view.
+ */
+public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ViewHolder> {
+
+    /** Longest text of a number written by {@link #formatNumber(long, int, char[])} */
+    private static final int NUMBER_LENGTH = 24;
+
+    /** Works out the changes between two lists. One thread, so the lists are compared in order. */
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Listener for the clicks on the rows of the list.
+     */
+    public interface Listener {
+        /**
+         * @param productId - the ID of the product whose row has been clicked
+         */
+        void onProductClicked(long productId);
+    }
+
+    /**
+     * Keeps the views of a row and what they show.
+     */
+    public static class ViewHolder extends RecyclerView.ViewHolder implements PictureCache.Callback {
+
+        final TextView mNameTextView;
+        final TextView mPriceTextView;
+        final TextView mQuantityTextView;
+        final ImageView mThumbnailImageView;
+        final Button mSellButton;
+
+        /** Text of the views, reused from one bind to the next */
+        final CharArrayBuffer mName = new CharArrayBuffer(64);
+        final char[] mPrice = new char[NUMBER_LENGTH];
+        final char[] mQuantityText = new char[NUMBER_LENGTH];
+
+        /** ID of the product in the row */
+        long mProductId;
+
+        /** Quantity shown, with the units that are still being sold taken off */
+        int mQuantity;
+
+        /** Key of the picture shown, or being loaded, see {@link PictureCache#getKey(long, String)} */
+        String mPictureKey;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mPriceTextView = (TextView) itemView.findViewById(R.id.price);
+            mQuantityTextView = (TextView) itemView.findViewById(R.id.quantity);
+            mThumbnailImageView = (ImageView) itemView.findViewById(R.id.thumbnail);
+            mSellButton = (Button) itemView.findViewById(R.id.catalog_sell_button);
+        }
+
+        @Override
+        public void onPictureLoaded(String key, Bitmap bitmap) {
+            // The row may show another product by the time the picture is loaded
+            if(bitmap != null && key.equals(mPictureKey)){
+                mThumbnailImageView.setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    private final Context mContext;
+
+    private final LayoutInflater mInflater;
+
+    private final SellQueue mSellQueue;
+
+    private final PictureCache mPictureCache;
+
+    private final Listener mListener;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** The list on the screen and its snapshot */
+    private PatchedCursor mCursor;
+    private ProductSnapshot mSnapshot = ProductSnapshot.EMPTY;
+
+    /** Indices of the columns of the list on the screen */
+    private int mIdColumn;
+    private int mNameColumn;
+    private int mPriceColumn;
+    private int mQuantityColumn;
+    private int mPictureColumn;
+
+    /** The list that is shown once its changes have been worked out, or null */
+    private PatchedCursor mPendingCursor;
+    private ProductSnapshot mPendingSnapshot;
+
+    /** Incremented whenever a change that is being worked out can no longer be used */
+    private int mGeneration;
+
+    /** Opens the product of a row, or sells one unit of it */
+    private final View.OnClickListener mClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            ViewHolder holder = (ViewHolder) view.getTag();
+            if(holder.getAdapterPosition() == RecyclerView.NO_POSITION){
+                // The row is being removed
+                return;
+            }
+            if(view == holder.mSellButton){
+                sellProduct(holder);
+            }
+            else {
+                mListener.onProductClicked(holder.mProductId);
+            }
+        }
+    };
+
+    public ProductAdapter(Context context, Listener listener) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context);
+        mSellQueue = SellQueue.getInstance(context);
+        mPictureCache = PictureCache.getInstance(context);
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the given list of products. The adapter closes the list once it is replaced.
+     * @param snapshot - the snapshot of the list, or null if the list is null
+     */
+    public void swapCursor(PatchedCursor cursor, ProductSnapshot snapshot) {
+        // A list that is still waiting to be shown is out of date now
+        closePendingCursor();
+        if(cursor == null || mCursor == null){
+            // There is nothing to compare, so show the list right away
+            mGeneration++;
+            PatchedCursor oldCursor = mCursor;
+            show(cursor, cursor == null ? ProductSnapshot.EMPTY : snapshot);
+            notifyDataSetChanged();
+            if(oldCursor != null){
+                oldCursor.close();
+            }
+            return;
+        }
+        mPendingCursor = cursor;
+        mPendingSnapshot = snapshot;
+        showPendingCursor();
+    }
+
+    /**
+     * @return the values of the product with the given ID in the list on the screen, or null
+     */
+    public ContentValues getProduct(long id) {
+        return mCursor == null ? null : mCursor.getRow(id);
+    }
+
+    /**
+     * Replace some values of the product with the given ID and bind its row again.
+     * @param quantityOnly - true if the quantity is the only value that may be different
+     */
+    public void patchProduct(long id, ContentValues values, boolean quantityOnly) {
+        if(mPendingCursor != null){
+            mPendingCursor.patchRow(id, values);
+        }
+        if(mCursor != null && mCursor.patchRow(id, values)){
+            int position = mSnapshot.indexOf(id);
+            if(position != -1){
+                notifyItemChanged(position, quantityOnly ? ProductSnapshot.PAYLOAD_QUANTITY : null);
+            }
+        }
+    }
+
+    /**
+     * Remove the product with the given ID from the list.
+     */
+    public void removeProduct(long id) {
+        boolean removed = false;
+        if(mPendingCursor != null){
+            int position = mPendingSnapshot.indexOf(id);
+            if(position != -1 && mPendingCursor.removeRow(id)){
+                mPendingSnapshot = mPendingSnapshot.without(position);
+                removed = true;
+            }
+        }
+        if(mCursor != null){
+            int position = mSnapshot.indexOf(id);
+            if(position != -1 && mCursor.removeRow(id)){
+                mSnapshot = mSnapshot.without(position);
+                notifyItemRemoved(position);
+                removed = true;
+            }
+        }
+        if(removed && mPendingCursor != null){
+            // The changes that are being worked out start from a list that is gone
+            showPendingCursor();
+        }
+    }
+
+    /**
+     * Work out the changes from the list on the screen to the pending list in the background,
+     * then show the pending list and bind the rows that changed.
+     */
+    private void showPendingCursor() {
+        final int generation = ++mGeneration;
+        final ProductSnapshot oldSnapshot = mSnapshot;
+        final ProductSnapshot newSnapshot = mPendingSnapshot;
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = ProductSnapshot.diff(oldSnapshot, newSnapshot);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation != mGeneration){
+                            // Either list has changed meanwhile
+                            return;
+                        }
+                        PatchedCursor oldCursor = mCursor;
+                        show(mPendingCursor, mPendingSnapshot);
+                        mPendingCursor = null;
+                        mPendingSnapshot = null;
+                        diff.dispatchUpdatesTo(ProductAdapter.this);
+                        oldCursor.close();
+                    }
+                });
+            }
+        });
+    }
+
+    private void closePendingCursor() {
+        if(mPendingCursor != null){
+            mPendingCursor.close();
+            mPendingCursor = null;
+            mPendingSnapshot = null;
+        }
+    }
+
+    /**
+     * Make the given list the one on the screen. The caller tells the RecyclerView what changed.
+     */
+    private void show(PatchedCursor cursor, ProductSnapshot snapshot) {
+        mCursor = cursor;
+        mSnapshot = snapshot;
+        if(cursor != null){
+            mIdColumn = cursor.getColumnIndexOrThrow(ProductsEntry._ID);
+            mNameColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_NAME);
+            mPriceColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_PRICE);
+            mQuantityColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_QUANTITY);
+            mPictureColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSnapshot.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mSnapshot.getId(position);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        ViewHolder holder = new ViewHolder(mInflater.inflate(R.layout.list_item, parent, false));
+        holder.itemView.setTag(holder);
+        holder.itemView.setOnClickListener(mClickListener);
+        holder.mSellButton.setTag(holder);
+        holder.mSellButton.setOnClickListener(mClickListener);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        if(!mCursor.moveToPosition(position)){
+            return;
+        }
+        holder.mProductId = mCursor.getLong(mIdColumn);
+
+        mCursor.copyStringToBuffer(mNameColumn, holder.mName);
+        holder.mNameTextView.setText(holder.mName.data, 0, holder.mName.sizeCopied);
+        int priceStart = formatNumber(mCursor.getLong(mPriceColumn), ProductsEntry.PRICE_FRACTION_DIGITS, holder.mPrice);
+        holder.mPriceTextView.setText(holder.mPrice, priceStart, NUMBER_LENGTH - priceStart);
+        bindQuantity(holder);
+
+        // Only load the picture again if the row shows another picture now
+        String pictureHash = mCursor.getString(mPictureColumn);
+        String pictureKey = PictureCache.getKey(holder.mProductId, pictureHash);
+        if(!pictureKey.equals(holder.mPictureKey)){
+            holder.mPictureKey = pictureKey;
+            holder.mThumbnailImageView.setImageResource(R.drawable.ic_photo);
+            mPictureCache.load(holder.mProductId, pictureHash, holder);
+        }
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        for(int i = 0; i < payloads.size(); i++){
+            if(payloads.get(i) != ProductSnapshot.PAYLOAD_QUANTITY){
+                onBindViewHolder(holder, position);
+                return;
+            }
+        }
+        if(payloads.isEmpty()){
+            onBindViewHolder(holder, position);
+        }
+        else if(mCursor.moveToPosition(position)){
+            bindQuantity(holder);
+        }
+    }
+
+    /**
+     * Show the quantity of the current row of the cursor. Units that have been sold but are not
+     * in the database yet are already taken off.
+     */
+    private void bindQuantity(ViewHolder holder) {
+        holder.mQuantity = Math.max(0, mCursor.getInt(mQuantityColumn)
+                - mSellQueue.getPendingUnits(holder.mProductId));
+        showQuantity(holder);
+    }
+
+    private static void showQuantity(ViewHolder holder) {
+        int start = formatNumber(holder.mQuantity, 0, holder.mQuantityText);
+        holder.mQuantityTextView.setText(holder.mQuantityText, start, NUMBER_LENGTH - start);
+    }
+
+    /**
+     * Sell one unit of the product of the given row. The lower quantity is shown right away,
+     * the unit is written to the database in the background together with the other units sold
+     * in the same burst of taps.
+     */
+    private void sellProduct(ViewHolder holder) {
+        if(holder.mQuantity <= 0){
+            // Toast message to say that there is nothing left to sell
+            Toast.makeText(mContext, mContext.getString(R.string.catalog_sell_out_of_stock), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mSellQueue.sell(holder.mProductId);
+        holder.mQuantity--;
+        showQuantity(holder);
+    }
+
+    /**
+     * Write the given number, with the given number of digits after the decimal point, at the end
+     * of the buffer. It is written the same way as {@link ProductsEntry#formatPrice(long)} does.
+     * @return the index of the first character of the number
+     */
+    static int formatNumber(long value, int fractionDigits, char[] buffer) {
+        int start = buffer.length;
+        long rest = Math.abs(value);
+        int digits = 0;
+        do {
+            if(fractionDigits > 0 && digits == fractionDigits){
+                buffer[--start] = '.';
+            }
+            buffer[--start] = (char) ('0' + rest % 10);
+            rest /= 10;
+            digits++;
+        } while(rest > 0 || digits <= fractionDigits);
+        if(value < 0){
+            buffer[--start] = '-';
+        }
+        return start;
+    }
+}
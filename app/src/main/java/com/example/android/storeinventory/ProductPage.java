@@ -0,0 +1,137 @@
+package com.example.android.storeinventory;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * A page of products read by a {@link Loader}, with its {@link ProductSnapshot} taken on the
+ * loader thread, so the main thread never has to walk through the rows to compare two lists.
+ *
+ * The page is shared by the loader and the lists that show it, and each of them closes it once
+ * it is done with it. The loader closes its page as soon as the next one is delivered, while
+ * the list may still show the old page until the changes to the new one have been worked out,
+ * so the page is only really closed by the last close. Call {@link #acquire()} once for every
+ * extra close that is going to come.
+ */
+public class ProductPage extends CursorWrapper {
+
+    private final ProductSnapshot mSnapshot;
+
+    /** Number of closes left before the page is really closed. Guarded by this object. */
+    private int mReferences = 1;
+
+    public ProductPage(Cursor cursor) {
+        super(cursor);
+        mSnapshot = ProductSnapshot.read(cursor);
+        cursor.moveToPosition(-1);
+    }
+
+    /**
+     * @return the snapshot of the rows of this page
+     */
+    public ProductSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Keep the page open for one more {@link #close()}.
+     */
+    public synchronized void acquire() {
+        if(mReferences == 0){
+            throw new IllegalStateException("The page is already closed");
+        }
+        mReferences++;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if(mReferences == 0 || --mReferences > 0){
+                return;
+            }
+        }
+        super.close();
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return mReferences == 0;
+    }
+
+    /**
+     * Loads a {@link ProductPage}. Like a CursorLoader it reads the products again whenever
+     * they change.
+     */
+    public static class Loader extends CursorLoader {
+
+        public Loader(Context context, Uri uri, String[] projection) {
+            super(context, uri, projection, null, null, null);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = super.loadInBackground();
+            if(cursor == null){
+                return null;
+            }
+            try {
+                return new ProductPage(cursor);
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Shows several pages one after the other. Unlike a plain MergeCursor it copies the strings
+     * straight from the window of the page into the buffer, without creating a String.
+     */
+    public static class Merged extends MergeCursor {
+
+        private final Cursor[] mPages;
+
+        /** The page that holds the current row, or null */
+        private Cursor mCurrentPage;
+
+        public Merged(Cursor[] pages) {
+            super(pages);
+            mPages = pages;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            boolean moved = super.onMove(oldPosition, newPosition);
+            // Find the page the same way as MergeCursor does
+            mCurrentPage = null;
+            int start = 0;
+            for(Cursor page : mPages){
+                if(page == null){
+                    continue;
+                }
+                int count = page.getCount();
+                if(newPosition < start + count){
+                    mCurrentPage = page;
+                    break;
+                }
+                start += count;
+            }
+            return moved;
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if(mCurrentPage == null){
+                super.copyStringToBuffer(columnIndex, buffer);
+            }
+            else {
+                mCurrentPage.copyStringToBuffer(columnIndex, buffer);
+            }
+        }
+    }
+}
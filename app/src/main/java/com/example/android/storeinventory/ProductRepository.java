@@ -0,0 +1,248 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the products through the provider in the background, shared by every screen of the
+ * app, so that the main thread never waits for the database. The screens get the outcome of
+ * each write through a {@link Callback} on the main thread, or wait for it through the
+ * {@link Request} it returns, which is a {@link java.util.concurrent.Future}.
+ *
+ * The requests run one at a time on a single thread, in the order they were made, like the
+ * calls to the provider they replace; the provider runs all the writes on its own writer
+ * thread anyway. At most {@link #MAX_PENDING_REQUESTS} requests wait for their turn, a request
+ * made when that many are waiting fails with a {@link RejectedExecutionException}.
+ */
+public class ProductRepository {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = ProductRepository.class.getSimpleName();
+
+    /** Most requests that wait for their turn */
+    private static final int MAX_PENDING_REQUESTS = 128;
+
+    /** Time in seconds the thread is kept once there is no request left */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Callback for the outcome of a request. It is always called on the main thread, and never
+     * once the request has been cancelled.
+     */
+    public interface Callback<T> {
+        /**
+         * @param result - what the provider returned
+         */
+        void onResult(T result);
+
+        /**
+         * @param error - why the request failed, e.g. values the provider refused
+         */
+        void onError(Exception error);
+    }
+
+    /**
+     * A request waiting for its turn or running.
+     */
+    public static class Request<T> extends FutureTask<T> {
+
+        private final Callback<T> mCallback;
+
+        private final Handler mMainHandler;
+
+        private volatile boolean mCancelled;
+
+        Request(Callable<T> callable, Callback<T> callback, Handler mainHandler) {
+            super(callable);
+            mCallback = callback;
+            mMainHandler = mainHandler;
+        }
+
+        /**
+         * Stop the request: it is not run if it has not started yet, and its callback is not
+         * called anymore. A request that is running finishes anyway, a write to the provider
+         * is never stopped halfway, so the thread is not interrupted whatever is asked.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mCancelled = true;
+            return super.cancel(false);
+        }
+
+        @Override
+        protected void done() {
+            if(mCallback == null || mCancelled){
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        /**
+         * Fail the request without running it.
+         */
+        void reject(Exception error) {
+            setException(error);
+        }
+
+        /**
+         * Pass the outcome to the callback. Runs on the main thread once the request is done.
+         */
+        private void deliver() {
+            // Cancelled after it was done, but before its turn on the main thread
+            if(mCancelled){
+                return;
+            }
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof Error){
+                    throw (Error) cause;
+                }
+                Log.e(LOG_TAG, "Request failed", cause);
+                mCallback.onError(cause instanceof Exception ? (Exception) cause : e);
+                return;
+            } catch (InterruptedException e) {
+                // Cannot happen, the request is done
+                throw new IllegalStateException(e);
+            }
+            mCallback.onResult(result);
+        }
+    }
+
+    /** The single instance of the repository */
+    private static ProductRepository sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Runs the requests one at a time, with a bounded queue of the ones waiting */
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Return the single instance of the repository, creating it if needed.
+     */
+    public static synchronized ProductRepository getInstance(Context context) {
+        if(sInstance == null){
+            sInstance = new ProductRepository(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a repository of its own for the given content resolver. Used by the tests.
+     */
+    ProductRepository(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_REQUESTS), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+        // No thread is kept while the app does not write
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Insert a product with the given values, see {@link ContentResolver#insert(Uri, ContentValues)}.
+     * @param callback - gets the URI of the new product, or null if it was not inserted; may be null
+     */
+    public Request<Uri> insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                return mContentResolver.insert(uri, values);
+            }
+        }, callback);
+    }
+
+    /**
+     * Update the products at the given URI, see
+     * {@link ContentResolver#update(Uri, ContentValues, String, String[])}.
+     * @param callback - gets the number of products updated; may be null
+     */
+    public Request<Integer> update(final Uri uri, final ContentValues values, Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mContentResolver.update(uri, values, null, null);
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete the products at the given URI, see {@link ContentResolver#delete(Uri, String, String[])}.
+     * Deleting all the products of a large catalog takes a while, the callback is only
+     * called once they are all gone.
+     * @param callback - gets the number of products deleted; may be null
+     */
+    public Request<Integer> delete(final Uri uri, Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mContentResolver.delete(uri, null, null);
+            }
+        }, callback);
+    }
+
+    /**
+     * Call a method of the provider, e.g. to sell a scanned product, see
+     * {@link ContentResolver#call(Uri, String, String, Bundle)}.
+     * @param callback - gets the Bundle the method returned, which may be null; may be null
+     */
+    public Request<Bundle> call(final Uri uri, final String method, final String arg, final Bundle extras,
+                                Callback<Bundle> callback) {
+        return submit(new Callable<Bundle>() {
+            @Override
+            public Bundle call() {
+                return mContentResolver.call(uri, method, arg, extras);
+            }
+        }, callback);
+    }
+
+    /**
+     * Run any work with the provider in the background, in turn with the other requests.
+     * @param callback - gets what the work returns; may be null
+     */
+    public <T> Request<T> submit(Callable<T> work, Callback<T> callback) {
+        Request<T> request = new Request<T>(work, callback, mMainHandler);
+        try {
+            mExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Too many requests waiting, refused one");
+            request.reject(e);
+        }
+        return request;
+    }
+}
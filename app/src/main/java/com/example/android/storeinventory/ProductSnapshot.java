@@ -0,0 +1,171 @@
+package com.example.android.storeinventory;
+
+import android.database.Cursor;
+import android.support.v7.util.DiffUtil;
+import android.text.TextUtils;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.util.List;
+
+/**
+ * What a list of products looks like, in a few numbers per row: the ID, the quantity, and a hash
+ * of the other values the list shows. Two snapshots are enough to work out which rows of the
+ * list have been inserted, removed or changed (see {@link #diff(ProductSnapshot, ProductSnapshot)})
+ * without touching the cursors, so the work can be done on any thread. A snapshot never changes.
+ */
+public class ProductSnapshot {
+
+    /** Payload of a change where only the quantity of the product is different */
+    public static final Object PAYLOAD_QUANTITY = new Object();
+
+    /** The snapshot of a list without products */
+    public static final ProductSnapshot EMPTY = new ProductSnapshot(new long[0], new int[0], new int[0]);
+
+    /** Values of each row, by position */
+    private final long[] mIds;
+    private final int[] mQuantities;
+    private final int[] mContentHashes;
+
+    private ProductSnapshot(long[] ids, int[] quantities, int[] contentHashes) {
+        mIds = ids;
+        mQuantities = quantities;
+        mContentHashes = contentHashes;
+    }
+
+    /**
+     * Take the snapshot of all the rows of the given cursor, which must have the columns of the
+     * catalog list. The position of the cursor is changed.
+     */
+    public static ProductSnapshot read(Cursor cursor) {
+        int idColumn = cursor.getColumnIndexOrThrow(ProductsEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_NAME);
+        int priceColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_PRICE);
+        int quantityColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_QUANTITY);
+        int pictureColumn = cursor.getColumnIndexOrThrow(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH);
+
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        int[] quantities = new int[count];
+        int[] contentHashes = new int[count];
+        for(int position = 0; position < count && cursor.moveToPosition(position); position++){
+            ids[position] = cursor.getLong(idColumn);
+            quantities[position] = cursor.getInt(quantityColumn);
+            long price = cursor.getLong(priceColumn);
+            int hash = hashOf(cursor.getString(nameColumn));
+            hash = hash * 31 + (int) (price ^ (price >>> 32));
+            hash = hash * 31 + hashOf(cursor.getString(pictureColumn));
+            contentHashes[position] = hash;
+        }
+        return new ProductSnapshot(ids, quantities, contentHashes);
+    }
+
+    /**
+     * Return the snapshot of the given lists shown one after the other.
+     */
+    public static ProductSnapshot concat(List<ProductSnapshot> snapshots) {
+        if(snapshots.size() == 1){
+            return snapshots.get(0);
+        }
+        int count = 0;
+        for(ProductSnapshot snapshot : snapshots){
+            count += snapshot.size();
+        }
+        long[] ids = new long[count];
+        int[] quantities = new int[count];
+        int[] contentHashes = new int[count];
+        int position = 0;
+        for(ProductSnapshot snapshot : snapshots){
+            int size = snapshot.size();
+            System.arraycopy(snapshot.mIds, 0, ids, position, size);
+            System.arraycopy(snapshot.mQuantities, 0, quantities, position, size);
+            System.arraycopy(snapshot.mContentHashes, 0, contentHashes, position, size);
+            position += size;
+        }
+        return new ProductSnapshot(ids, quantities, contentHashes);
+    }
+
+    /**
+     * Return the snapshot of this list without the row at the given position.
+     */
+    public ProductSnapshot without(int position) {
+        int count = size() - 1;
+        long[] ids = new long[count];
+        int[] quantities = new int[count];
+        int[] contentHashes = new int[count];
+        System.arraycopy(mIds, 0, ids, 0, position);
+        System.arraycopy(mIds, position + 1, ids, position, count - position);
+        System.arraycopy(mQuantities, 0, quantities, 0, position);
+        System.arraycopy(mQuantities, position + 1, quantities, position, count - position);
+        System.arraycopy(mContentHashes, 0, contentHashes, 0, position);
+        System.arraycopy(mContentHashes, position + 1, contentHashes, position, count - position);
+        return new ProductSnapshot(ids, quantities, contentHashes);
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @return the ID of the product at the given position
+     */
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * @return the position of the product with the given ID, or -1 if it is not in the list
+     */
+    public int indexOf(long id) {
+        for(int position = 0; position < mIds.length; position++){
+            if(mIds[position] == id){
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Work out the changes that turn the old list into the new one. This can take a while for
+     * long lists, so it is meant to run in the background.
+     */
+    public static DiffUtil.DiffResult diff(final ProductSnapshot oldSnapshot, final ProductSnapshot newSnapshot) {
+        // The list is sorted, so a product never moves without a change of its name
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldSnapshot.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newSnapshot.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldSnapshot.mIds[oldPosition] == newSnapshot.mIds[newPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return oldSnapshot.mQuantities[oldPosition] == newSnapshot.mQuantities[newPosition]
+                        && oldSnapshot.mContentHashes[oldPosition] == newSnapshot.mContentHashes[newPosition];
+            }
+
+            @Override
+            public Object getChangePayload(int oldPosition, int newPosition) {
+                // Only the quantity has to be bound again if nothing else changed
+                return oldSnapshot.mContentHashes[oldPosition] == newSnapshot.mContentHashes[newPosition]
+                        ? PAYLOAD_QUANTITY : null;
+            }
+        }, false);
+    }
+
+    private static int hashOf(String value) {
+        return TextUtils.isEmpty(value) ? 0 : value.hashCode();
+    }
+}
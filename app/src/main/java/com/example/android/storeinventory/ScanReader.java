@@ -0,0 +1,96 @@
+package com.example.android.storeinventory;
+
+import android.view.KeyEvent;
+
+/**
+ * Reads the codes typed by a barcode scanner that works as a keyboard (a keyboard wedge), which
+ * is how hardware scanners and the scanners built into handhelds send their codes by default.
+ * A scanner types the characters of a code much faster than a person can and ends it with Enter,
+ * so only a run of at least {@link #MIN_CODE_LENGTH} characters that come quickly one after the
+ * other and end with Enter is taken for a code.
+ *
+ * The activity hands its key events to {@link #onKeyEvent(KeyEvent)} while no text field has
+ * the focus. The keys that may be part of a code are consumed, all the others are left to it.
+ */
+public class ScanReader {
+
+    /** Most milliseconds between two keys of a code. People type slower than this. */
+    private static final long MAX_KEY_INTERVAL = 50;
+
+    /** Shortest code, a little shorter than an EAN-8 barcode */
+    private static final int MIN_CODE_LENGTH = 4;
+
+    /** Longest code. A longer run of keys is not a product code. */
+    private static final int MAX_CODE_LENGTH = 64;
+
+    /**
+     * Listener for the scanned codes. It is called on the thread of the key events.
+     */
+    public interface Listener {
+        void onCodeScanned(String code);
+    }
+
+    private final Listener mListener;
+
+    /** The characters of the code typed so far */
+    private final StringBuilder mCode = new StringBuilder();
+
+    /** Time of the last character of the code, in the time base of the key events */
+    private long mLastKeyTime;
+
+    /** True if the Enter key that ended a code went down, so its release is consumed as well */
+    private boolean mEnterDown;
+
+    public ScanReader(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Feed a key event to the reader, from dispatchKeyEvent() of the activity.
+     * @return true if the event was consumed as part of a code
+     */
+    public boolean onKeyEvent(KeyEvent event) {
+        int keyCode = event.getKeyCode();
+        if(keyCode == KeyEvent.KEYCODE_ENTER || keyCode == KeyEvent.KEYCODE_NUMPAD_ENTER){
+            if(event.getAction() == KeyEvent.ACTION_UP){
+                boolean consumed = mEnterDown;
+                mEnterDown = false;
+                return consumed;
+            }
+            if(event.getAction() != KeyEvent.ACTION_DOWN || event.getRepeatCount() > 0){
+                return false;
+            }
+            // An Enter pressed by a person comes too late to end a code
+            String code = isFast(event) && mCode.length() >= MIN_CODE_LENGTH ? mCode.toString() : null;
+            mCode.setLength(0);
+            if(code == null){
+                return false;
+            }
+            mEnterDown = true;
+            mListener.onCodeScanned(code);
+            return true;
+        }
+
+        int character = event.getUnicodeChar();
+        if(character == 0 || Character.isISOControl(character) || Character.isWhitespace(character)){
+            // Shift and the other keys that do not type anything are left alone
+            return false;
+        }
+        if(event.getAction() == KeyEvent.ACTION_DOWN){
+            if(!isFast(event) || mCode.length() >= MAX_CODE_LENGTH){
+                // Too slow to belong to the code so far, a new code may start here
+                mCode.setLength(0);
+            }
+            mCode.appendCodePoint(character);
+            mLastKeyTime = event.getEventTime();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the event comes soon enough after the last character to be part of a code
+     */
+    private boolean isFast(KeyEvent event) {
+        return event.getEventTime() - mLastKeyTime <= MAX_KEY_INTERVAL;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.android.storeinventory;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+/**
+ * Sells one unit of the product of every barcode that is scanned at the till, off the main
+ * thread. Each scan is a single call to the provider that finds the product by its SKU and
+ * lowers its stock (see {@link ProductsEntry#METHOD_SELL_SKU}). The calls go through the
+ * {@link ProductRepository}, like every other write of the app, so the scans are sold one after
+ * the other in the order they were made, in turn with the other writes.
+ */
+public class ScanSeller {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = ScanSeller.class.getSimpleName();
+
+    /** Result passed to the listener when the provider call has failed */
+    public static final int RESULT_FAILED = -1;
+
+    /**
+     * Listener for the outcome of the scans. It is always called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param sku - the scanned code
+         * @param result - one of the SELL_ results of {@link ProductsEntry#METHOD_SELL_SKU},
+         *                 or {@link #RESULT_FAILED}
+         * @param productId - the ID of the product, or -1 if no product has the SKU
+         * @param quantity - the quantity of the product now, or -1 if it is not known
+         */
+        void onScanSold(String sku, int result, long productId, int quantity);
+    }
+
+    private final ProductRepository mRepository;
+
+    /** Told about every scan that has been sold or refused, null once closed */
+    private Listener mListener;
+
+    public ScanSeller(Context context, Listener listener) {
+        mRepository = ProductRepository.getInstance(context);
+        mListener = listener;
+    }
+
+    /**
+     * Sell one unit of the product with the given SKU in the background.
+     */
+    public void sell(final String sku) {
+        mRepository.call(ProductsEntry.CONTENT_URI, ProductsEntry.METHOD_SELL_SKU, sku, null,
+                new ProductRepository.Callback<Bundle>() {
+            @Override
+            public void onResult(Bundle bundle) {
+                if(bundle == null){
+                    Log.e(LOG_TAG, "No result for " + sku);
+                    notifyListener(sku, RESULT_FAILED, -1, -1);
+                    return;
+                }
+                notifyListener(sku, bundle.getInt(ProductsEntry.EXTRA_RESULT, RESULT_FAILED),
+                        bundle.getLong(ProductsEntry.EXTRA_PRODUCT_ID, -1),
+                        bundle.getInt(ProductsEntry.EXTRA_QUANTITY, -1));
+            }
+
+            @Override
+            public void onError(Exception error) {
+                // The repository has logged the error already
+                notifyListener(sku, RESULT_FAILED, -1, -1);
+            }
+        });
+    }
+
+    private void notifyListener(String sku, int result, long productId, int quantity) {
+        if(mListener != null){
+            mListener.onScanSold(sku, result, productId, quantity);
+        }
+    }
+
+    /**
+     * Stop telling the listener about the scans. The scans that have been made are still sold.
+     * Must be called on the main thread.
+     */
+    public void close() {
+        mListener = null;
+    }
+}
@@ -0,0 +1,384 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for the units sold with the sell button of the catalog, shared by every
+ * screen of the app.
+ *
+ * A tap only counts the unit as pending, so the list can show the lower quantity right away,
+ * and appends it to a small journal file in the background. A short while after the first
+ * pending unit, all the units that are pending by then are merged per product and sold with a
+ * single provider call, which runs as one transaction off the main thread. Units that are in
+ * the journal survive the death of the process and are sold the next time the queue is created.
+ *
+ * The journal is moved to a batch file named after a unique token before its units are sold.
+ * The provider remembers the tokens of the batches it has applied, so a batch file that is
+ * still there after a crash is sent again without selling its units twice.
+ */
+public class SellQueue {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = SellQueue.class.getSimpleName();
+
+    /** Time in milliseconds the units of a burst of taps are collected before they are sold */
+    private static final long FLUSH_DELAY = 300;
+
+    /** Time in milliseconds to wait before trying again after the provider call failed */
+    private static final long RETRY_DELAY = 5000;
+
+    /** Name of the journal file (inside the files directory of the app) */
+    private static final String JOURNAL_NAME = "sell_queue.journal";
+
+    /** Prefix of the names of the batch files, followed by the token of the batch */
+    private static final String BATCH_PREFIX = "sell_queue.batch.";
+
+    /**
+     * Listener for units that have been sold. It is always called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param productIds - the IDs of the products
+         * @param quantities - the quantity of each product now, or -1 if it does not exist
+         * @param unitsNotSold - the units of each product that could not be sold,
+         *                     because there was not enough stock
+         */
+        void onUnitsSold(long[] productIds, int[] quantities, int[] unitsNotSold);
+    }
+
+    /** The single instance of the queue */
+    private static SellQueue sInstance;
+
+    private final Context mContext;
+
+    private final ContentResolver mContentResolver;
+
+    /**
+     * Directory that holds the journal and the batch files. Only used on the executor, whose
+     * first task looks it up, as finding it may touch the disk.
+     */
+    private File mDirectory;
+
+    /**
+     * Units that have not been sold yet, by product ID. Guarded by this object.
+     * Read for every row the list binds, so the ID is not boxed to look it up.
+     */
+    private final LongSparseArray<Integer> mPendingUnits = new LongSparseArray<Integer>();
+
+    /** True while a flush is scheduled. Guarded by this object. */
+    private boolean mFlushScheduled;
+
+    /** Writes the journal and sells the units. A single thread, so they never overlap. */
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    /** Sells the units in the journal and any batch files left over */
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Return the single instance of the queue, creating it if needed. Units left over by
+     * an earlier process are sold right away.
+     */
+    public static synchronized SellQueue getInstance(Context context) {
+        if(sInstance == null){
+            sInstance = new SellQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a queue that keeps its files in the files directory of the given context and sells
+     * the units left there by an earlier process. The app shares the one of {@link #getInstance(Context)}.
+     */
+    SellQueue(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDirectory = mContext.getFilesDir();
+                recover();
+            }
+        });
+    }
+
+    /**
+     * Add a listener for units that have been sold. Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added with {@link #addListener(Listener)}. Must be called on the main thread.
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Return the number of units of the given product that have been sold with
+     * {@link #sell(long)} but are not in the database yet.
+     */
+    public synchronized int getPendingUnits(long productId) {
+        if(mPendingUnits.size() == 0){
+            return 0;
+        }
+        Integer units = mPendingUnits.get(productId);
+        return units == null ? 0 : units;
+    }
+
+    /**
+     * Sell one unit of the given product. Returns right away, the unit is sold in the background.
+     * The caller is expected to have checked that the product has stock left.
+     */
+    public void sell(final long productId) {
+        addPendingUnits(productId, 1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                appendToJournal(productId, 1);
+            }
+        });
+        scheduleFlush(FLUSH_DELAY);
+    }
+
+    private synchronized void addPendingUnits(long productId, int units) {
+        int pendingUnits = getPendingUnits(productId) + units;
+        if(pendingUnits > 0){
+            mPendingUnits.put(productId, pendingUnits);
+        }
+        else {
+            mPendingUnits.remove(productId);
+        }
+    }
+
+    private synchronized void scheduleFlush(long delay) {
+        if(!mFlushScheduled){
+            mFlushScheduled = true;
+            mExecutor.schedule(mFlushRunnable, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append the units sold of a product to the journal and sync it to the disk.
+     * Runs on the executor.
+     */
+    private void appendToJournal(long productId, int units) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(mDirectory, JOURNAL_NAME), true);
+            out.write((productId + " " + units + "\n").getBytes("US-ASCII"));
+            out.getFD().sync();
+        } catch (IOException e) {
+            // The units cannot wait in the journal, so sell them right away instead
+            Log.e(LOG_TAG, "Failed to write the journal", e);
+            Map<Long, Integer> unitsOfProduct = new HashMap<Long, Integer>();
+            unitsOfProduct.put(productId, units);
+            if(!sellUnits(UUID.randomUUID().toString(), unitsOfProduct)){
+                Log.e(LOG_TAG, "Lost " + units + " units sold of product " + productId);
+                addPendingUnits(productId, -units);
+            }
+        } finally {
+            if(out != null){
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close the journal", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the units in the journal and the batch files of an earlier process as pending and
+     * sell them. Runs on the executor.
+     */
+    private void recover() {
+        boolean hasUnits = false;
+        File[] files = mDirectory.listFiles();
+        if(files != null){
+            for(File file : files){
+                if(file.getName().equals(JOURNAL_NAME) || file.getName().startsWith(BATCH_PREFIX)){
+                    for(Map.Entry<Long, Integer> entry : readUnits(file).entrySet()){
+                        addPendingUnits(entry.getKey(), entry.getValue());
+                        hasUnits = true;
+                    }
+                }
+            }
+        }
+        if(hasUnits){
+            scheduleFlush(0);
+        }
+    }
+
+    /**
+     * Sell the units of every batch file, after moving the journal into a new batch file.
+     * Runs on the executor.
+     */
+    private void flush() {
+        synchronized (this) {
+            mFlushScheduled = false;
+        }
+        // Units that are sold from now on go into a new journal
+        File journal = new File(mDirectory, JOURNAL_NAME);
+        if(journal.exists()){
+            File batch = new File(mDirectory, BATCH_PREFIX + UUID.randomUUID().toString());
+            if(!journal.renameTo(batch)){
+                Log.e(LOG_TAG, "Failed to move the journal to " + batch);
+            }
+        }
+
+        File[] files = mDirectory.listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            if(file.getName().startsWith(BATCH_PREFIX) && !sellBatch(file)){
+                // Try again later, the units stay pending meanwhile
+                scheduleFlush(RETRY_DELAY);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sell the units of the given batch file with one provider call and delete the file.
+     * Runs on the executor.
+     * @return false if the provider call failed and the batch has to be sent again
+     */
+    private boolean sellBatch(File batch) {
+        if(!sellUnits(batch.getName().substring(BATCH_PREFIX.length()), readUnits(batch))){
+            return false;
+        }
+        if(!batch.delete()){
+            Log.e(LOG_TAG, "Failed to delete " + batch);
+        }
+        return true;
+    }
+
+    /**
+     * Sell the given units, by product ID, with one provider call and tell the listeners.
+     * Runs on the executor.
+     * @return false if the provider call failed and the units have to be sent again
+     */
+    private boolean sellUnits(String token, Map<Long, Integer> units) {
+        final long[] productIds = new long[units.size()];
+        final int[] unitsPerProduct = new int[units.size()];
+        int i = 0;
+        for(Map.Entry<Long, Integer> entry : units.entrySet()){
+            productIds[i] = entry.getKey();
+            unitsPerProduct[i] = entry.getValue();
+            i++;
+        }
+
+        if(productIds.length > 0){
+            Bundle extras = new Bundle();
+            extras.putString(ProductsEntry.EXTRA_BATCH_TOKEN, token);
+            extras.putLongArray(ProductsEntry.EXTRA_PRODUCT_IDS, productIds);
+            extras.putIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT, unitsPerProduct);
+            Bundle result;
+            try {
+                result = mContentResolver.call(ProductsEntry.CONTENT_URI,
+                        ProductsEntry.METHOD_SELL_BATCH, null, extras);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to sell the units of batch " + token, e);
+                return false;
+            }
+            if(result == null){
+                return false;
+            }
+
+            final int[] quantities = result.getIntArray(ProductsEntry.EXTRA_QUANTITIES);
+            int[] unitsSold = result.getIntArray(ProductsEntry.EXTRA_UNITS_SOLD);
+            final int[] unitsNotSold = new int[productIds.length];
+            for(i = 0; i < productIds.length; i++){
+                unitsNotSold[i] = unitsPerProduct[i] - unitsSold[i];
+            }
+            // The units are in the database now, so the list shows the new quantities
+            // instead of the pending units, both at once
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < productIds.length; i++){
+                        addPendingUnits(productIds[i], -unitsPerProduct[i]);
+                    }
+                    for(Listener listener : new ArrayList<Listener>(mListeners)){
+                        listener.onUnitsSold(productIds, quantities, unitsNotSold);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Read the units in the given journal or batch file, merged per product.
+     */
+    private static Map<Long, Integer> readUnits(File file) {
+        Map<Long, Integer> units = new LinkedHashMap<Long, Integer>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] fields = line.split(" ");
+                if(fields.length != 2){
+                    // The last line may be cut off if the process died while writing it
+                    continue;
+                }
+                try {
+                    long productId = Long.parseLong(fields[0]);
+                    int unitsOfProduct = Integer.parseInt(fields[1]);
+                    Integer oldUnits = units.get(productId);
+                    units.put(productId, (oldUnits == null ? 0 : oldUnits) + unitsOfProduct);
+                } catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Skipping broken line in " + file + ": " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read " + file, e);
+        } finally {
+            if(reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close " + file, e);
+                }
+            }
+        }
+        return units;
+    }
+}
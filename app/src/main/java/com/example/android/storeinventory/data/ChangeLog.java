@@ -0,0 +1,269 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+/**
+ * Writes the log of the local changes to the products that have not been sent to the inventory
+ * service yet, see {@link SyncEngine}. Every method must be called inside the transaction that
+ * changes the products, so a change is never lost and never logged without being made.
+ *
+ * A change names its product by the identifier all the devices share,
+ * {@link ProductsEntry#COLUMN_PRODUCT_UUID}, and carries the version the product has after it.
+ * Name, price and picture are only set if the change set them, and the quantity is a delta, so
+ * the quantity changes of all the devices can be added up. A deleted product leaves a tombstone.
+ * The changes are deleted once the service has them, so the log only grows with the changes
+ * that are still to be sent.
+ */
+public final class ChangeLog {
+
+    /** Table of the changes that are still to be sent */
+    static final String TABLE_NAME = "product_changes";
+    /** Sequence number of the change, in the order the changes were made */
+    static final String _ID = "_id";
+    /** Local ID of the product */
+    static final String COLUMN_PRODUCT_ID = "product_id";
+    /** Identifier of the product shared by all the devices */
+    static final String COLUMN_PRODUCT_UUID = "product_uuid";
+    /** Version of the product after the change */
+    static final String COLUMN_VERSION = "version";
+    /** 1 for the tombstone of a deleted product */
+    static final String COLUMN_DELETED = "deleted";
+    /** New name, price and picture of the product, null if the change left them as they were */
+    static final String COLUMN_NAME = "name";
+    static final String COLUMN_PRICE = "price";
+    static final String COLUMN_PICTURE_HASH = "picture_hash";
+    /** Change of the quantity */
+    static final String COLUMN_QUANTITY_DELTA = "quantity_delta";
+    /** Time of the change in milliseconds since the epoch */
+    static final String COLUMN_CREATED_AT = "created_at";
+
+    /** Table with the single row of the state of the sync of this device */
+    static final String STATE_TABLE_NAME = "sync_state";
+    /** Identifier of this device, made up when the database is created */
+    static final String COLUMN_DEVICE_ID = "device_id";
+    /** Sequence number of the service of the last change that has been pulled */
+    static final String COLUMN_PULL_WATERMARK = "pull_watermark";
+    /**
+     * Sequence number of the last change of the batch that has been sent without an answer from
+     * the service, 0 if there is none
+     */
+    static final String COLUMN_PUSH_BOUND = "push_bound";
+
+    /** Start of the statement that appends changes read from the products table */
+    private static final String SQL_INSERT_CHANGES_FROM_PRODUCTS =
+            "INSERT INTO " + TABLE_NAME + " (" +
+                    COLUMN_PRODUCT_ID + ", " +
+                    COLUMN_PRODUCT_UUID + ", " +
+                    COLUMN_VERSION + ", " +
+                    COLUMN_DELETED + ", " +
+                    COLUMN_NAME + ", " +
+                    COLUMN_PRICE + ", " +
+                    COLUMN_PICTURE_HASH + ", " +
+                    COLUMN_QUANTITY_DELTA + ", " +
+                    COLUMN_CREATED_AT + ")";
+
+    /**
+     * SQL statement that appends a change of the quantity of one product, which has already been
+     * made. Arguments: delta, time, product ID.
+     */
+    private static final String SQL_INSERT_DELTA =
+            SQL_INSERT_CHANGES_FROM_PRODUCTS +
+                    " SELECT " + ProductsEntry._ID + ", " + ProductsEntry.COLUMN_PRODUCT_UUID + ", " +
+                    ProductsEntry.COLUMN_PRODUCT_VERSION + ", 0, NULL, NULL, NULL, ?, ?" +
+                    " FROM " + ProductsEntry.TABLE_NAME + " WHERE " + ProductsEntry._ID + " = ?";
+
+    private ChangeLog() {
+    }
+
+    /**
+     * Create the log table and the sync state of a new device.
+     */
+    public static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " (" +
+                _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_PRODUCT_ID + " INTEGER NOT NULL, " +
+                COLUMN_PRODUCT_UUID + " TEXT, " +
+                COLUMN_VERSION + " INTEGER NOT NULL, " +
+                COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0, " +
+                COLUMN_NAME + " TEXT, " +
+                COLUMN_PRICE + " INTEGER, " +
+                COLUMN_PICTURE_HASH + " TEXT, " +
+                COLUMN_QUANTITY_DELTA + " INTEGER NOT NULL DEFAULT 0, " +
+                COLUMN_CREATED_AT + " INTEGER NOT NULL);");
+        // Changes of one product, e.g. to drop them when the product is deleted by another device
+        db.execSQL("CREATE INDEX product_changes_product_idx ON " + TABLE_NAME +
+                " (" + COLUMN_PRODUCT_ID + ");");
+        db.execSQL("CREATE TABLE " + STATE_TABLE_NAME + " (" +
+                _ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_DEVICE_ID + " TEXT NOT NULL, " +
+                COLUMN_PULL_WATERMARK + " INTEGER NOT NULL, " +
+                COLUMN_PUSH_BOUND + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + STATE_TABLE_NAME + " VALUES (1, lower(hex(randomblob(16))), 0, 0);");
+    }
+
+    /**
+     * Append the change that creates a product with all its values. Call it right after the
+     * product has been inserted.
+     */
+    public static void recordInsert(SQLiteDatabase db, long productId) {
+        db.execSQL(SQL_INSERT_CHANGES_FROM_PRODUCTS +
+                " SELECT " + ProductsEntry._ID + ", " + ProductsEntry.COLUMN_PRODUCT_UUID + ", " +
+                ProductsEntry.COLUMN_PRODUCT_VERSION + ", 0, " +
+                ProductsEntry.COLUMN_PRODUCT_NAME + ", " +
+                ProductsEntry.COLUMN_PRODUCT_PRICE + ", " +
+                ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH + ", " +
+                ProductsEntry.COLUMN_PRODUCT_QUANTITY + ", ?" +
+                " FROM " + ProductsEntry.TABLE_NAME + " WHERE " + ProductsEntry._ID + " = ?",
+                new Object[] {System.currentTimeMillis(), productId});
+    }
+
+    /**
+     * Raise the version of every product that matches the selection and append the change the
+     * given values are about to make to it. Must be called before the products are updated.
+     * @param values - the values as they are written to the products table, with the hash of
+     *               the picture instead of its bytes
+     */
+    public static void recordUpdate(SQLiteDatabase db, ContentValues values, String selection,
+                                    String[] selectionArgs) {
+        db.execSQL("UPDATE " + ProductsEntry.TABLE_NAME + " SET " + ProductsEntry.COLUMN_PRODUCT_VERSION +
+                " = " + ProductsEntry.COLUMN_PRODUCT_VERSION + " + 1" +
+                (selection != null ? " WHERE " + selection : ""), selectionArgs == null ? new Object[0] : selectionArgs);
+
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] args = new Object[argCount + 5];
+        args[0] = values.getAsString(ProductsEntry.COLUMN_PRODUCT_NAME);
+        args[1] = values.containsKey(ProductsEntry.COLUMN_PRODUCT_PRICE) ? ProductsEntry.getAsPrice(values) : null;
+        args[2] = values.getAsString(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH);
+        // The delta to the new quantity, or none if the quantity is left as it is
+        Integer quantity = values.getAsInteger(ProductsEntry.COLUMN_PRODUCT_QUANTITY);
+        args[3] = quantity;
+        args[4] = System.currentTimeMillis();
+        for(int i = 0; i < argCount; i++){
+            args[i + 5] = selectionArgs[i];
+        }
+        db.execSQL(SQL_INSERT_CHANGES_FROM_PRODUCTS +
+                " SELECT " + ProductsEntry._ID + ", " + ProductsEntry.COLUMN_PRODUCT_UUID + ", " +
+                ProductsEntry.COLUMN_PRODUCT_VERSION + ", 0, ?, ?, ?, ifnull(? - " +
+                ProductsEntry.COLUMN_PRODUCT_QUANTITY + ", 0), ?" +
+                " FROM " + ProductsEntry.TABLE_NAME + (selection != null ? " WHERE " + selection : ""), args);
+    }
+
+    /**
+     * Append a change of the quantity of a product. Call it right after the quantity and the
+     * version of the product have been changed.
+     */
+    public static void recordDelta(SQLiteDatabase db, long productId, long delta) {
+        if(delta == 0){
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT_DELTA);
+        try {
+            statement.bindLong(1, delta);
+            statement.bindLong(2, System.currentTimeMillis());
+            statement.bindLong(3, productId);
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Append a tombstone for every product that matches the selection. Must be called before
+     * the products are deleted.
+     */
+    public static void recordDeletes(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String products = "SELECT " + ProductsEntry._ID + " FROM " + ProductsEntry.TABLE_NAME +
+                (selection != null ? " WHERE " + selection : "");
+        // A product without an identifier has not been given one by the upgrade yet, so the
+        // service has never heard of it: drop its changes instead of sending a tombstone
+        db.delete(TABLE_NAME, COLUMN_PRODUCT_UUID + " IS NULL AND " + COLUMN_PRODUCT_ID + " IN (" +
+                products + ")", selectionArgs);
+
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] args = new Object[argCount + 1];
+        args[0] = System.currentTimeMillis();
+        for(int i = 0; i < argCount; i++){
+            args[i + 1] = selectionArgs[i];
+        }
+        String where = ProductsEntry.COLUMN_PRODUCT_UUID + " IS NOT NULL";
+        if(selection != null){
+            where = "(" + selection + ") AND " + where;
+        }
+        db.execSQL(SQL_INSERT_CHANGES_FROM_PRODUCTS +
+                " SELECT " + ProductsEntry._ID + ", " + ProductsEntry.COLUMN_PRODUCT_UUID + ", " +
+                ProductsEntry.COLUMN_PRODUCT_VERSION + " + 1, 1, NULL, NULL, NULL, 0, ?" +
+                " FROM " + ProductsEntry.TABLE_NAME + " WHERE " + where, args);
+    }
+
+    /**
+     * @param column - {@link #COLUMN_NAME}, {@link #COLUMN_PRICE} or {@link #COLUMN_PICTURE_HASH}
+     * @return true if the given product has changes of the given column that have not been sent yet
+     */
+    public static boolean hasPendingChange(SQLiteDatabase db, long productId, String column) {
+        return DatabaseUtils.queryNumEntries(db, TABLE_NAME, COLUMN_PRODUCT_ID + "=? AND " +
+                column + " IS NOT NULL", new String[] {String.valueOf(productId)}) > 0;
+    }
+
+    /**
+     * Drop the changes of the given product that have not been sent yet, e.g. because another
+     * device deleted it.
+     */
+    public static void deletePendingChanges(SQLiteDatabase db, long productId) {
+        db.delete(TABLE_NAME, COLUMN_PRODUCT_ID + "=?", new String[] {String.valueOf(productId)});
+    }
+
+    /**
+     * Drop the changes up to the given sequence number, once the service has them, and forget
+     * the batch that was waiting for its answer.
+     */
+    public static void deleteSentChanges(SQLiteDatabase db, long lastSequence) {
+        db.delete(TABLE_NAME, _ID + "<=?", new String[] {String.valueOf(lastSequence)});
+        setPushBound(db, 0);
+    }
+
+    /**
+     * @return the sequence number of the last change of the batch that has been sent without
+     * an answer, or 0 if there is none
+     */
+    public static long getPushBound(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + COLUMN_PUSH_BOUND + " FROM " + STATE_TABLE_NAME, null);
+    }
+
+    /**
+     * Remember that the changes up to the given sequence number are being sent, so they are
+     * sent again as the same batch until the service has answered. 0 forgets the batch.
+     */
+    public static void setPushBound(SQLiteDatabase db, long bound) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PUSH_BOUND, bound);
+        db.update(STATE_TABLE_NAME, values, null, null);
+    }
+
+    /**
+     * @return the identifier of this device
+     */
+    public static String getDeviceId(SQLiteDatabase db) {
+        return DatabaseUtils.stringForQuery(db, "SELECT " + COLUMN_DEVICE_ID + " FROM " + STATE_TABLE_NAME, null);
+    }
+
+    /**
+     * @return the sequence number of the service of the last change that has been pulled
+     */
+    public static long getPullWatermark(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + COLUMN_PULL_WATERMARK + " FROM " + STATE_TABLE_NAME, null);
+    }
+
+    /**
+     * Remember the last change that has been pulled. Call it in the transaction that applies it.
+     */
+    public static void setPullWatermark(SQLiteDatabase db, long watermark) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PULL_WATERMARK, watermark);
+        db.update(STATE_TABLE_NAME, values, null, null);
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.storeinventory.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a CSV file one record at a time, so the file never has to fit in memory. Fields are
+ * separated by commas and may be quoted with double quotes; a quoted field can hold commas,
+ * line breaks and quotes written twice. Records end with a line feed, a carriage return or both.
+ */
+public class CsvReader implements Closeable {
+
+    /** Size of the buffer the characters are read into */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader mReader;
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+
+    /** Number of characters in the buffer and position of the next one to read */
+    private int mLength;
+    private int mPosition;
+
+    /** Builds the field that is being read, reused for every field */
+    private final StringBuilder mField = new StringBuilder();
+
+    /** Number of the line the next record starts on, counting from 1 */
+    private int mLineNumber = 1;
+
+    /** Number of the line the last record returned by {@link #readRecord()} started on */
+    private int mRecordLineNumber;
+
+    public CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Read the next record.
+     * @return the fields of the record, or null at the end of the file
+     */
+    public String[] readRecord() throws IOException {
+        int c = read();
+        // A byte order mark at the start of the file is not part of the first field
+        if(c == '\uFEFF' && mLineNumber == 1 && mRecordLineNumber == 0){
+            c = read();
+        }
+        if(c == -1){
+            return null;
+        }
+        mRecordLineNumber = mLineNumber;
+
+        List<String> fields = new ArrayList<String>();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        mField.setLength(0);
+        while(true){
+            if(quoted){
+                if(c == -1){
+                    throw new IOException("Quoted field not closed, starting on line " + mRecordLineNumber);
+                }
+                if(c == '"'){
+                    c = read();
+                    if(c == '"'){
+                        // A quote written twice stands for one quote
+                        mField.append('"');
+                    }
+                    else {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                else {
+                    if(c == '\n'){
+                        mLineNumber++;
+                    }
+                    mField.append((char) c);
+                }
+            }
+            else if(c == '"' && mField.length() == 0 && !wasQuoted){
+                quoted = true;
+                wasQuoted = true;
+            }
+            else if(c == ','){
+                fields.add(mField.toString());
+                mField.setLength(0);
+                wasQuoted = false;
+            }
+            else if(c == '\r' || c == '\n' || c == -1){
+                if(c == '\r' && peek() == '\n'){
+                    read();
+                }
+                if(c != -1){
+                    mLineNumber++;
+                }
+                fields.add(mField.toString());
+                return fields.toArray(new String[fields.size()]);
+            }
+            else {
+                mField.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * Return the number of the line the last record returned by {@link #readRecord()} started on,
+     * counting from 1.
+     */
+    public int getLineNumber() {
+        return mRecordLineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private int read() throws IOException {
+        if(!fill()){
+            return -1;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    private int peek() throws IOException {
+        if(!fill()){
+            return -1;
+        }
+        return mBuffer[mPosition];
+    }
+
+    /**
+     * Read more characters into the buffer if it has been used up.
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException {
+        while(mPosition >= mLength){
+            mLength = mReader.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            if(mLength == -1){
+                mLength = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+}
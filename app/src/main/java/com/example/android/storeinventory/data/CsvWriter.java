@@ -0,0 +1,61 @@
+package com.example.android.storeinventory.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a CSV file one record at a time, in the format read by {@link CsvReader}. Fields that
+ * hold a comma, a quote or a line break are quoted.
+ */
+public class CsvWriter implements Closeable {
+
+    private final Writer mWriter;
+
+    public CsvWriter(Writer writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Write one record with the given fields. A null field is written as an empty one.
+     */
+    public void writeRecord(String... fields) throws IOException {
+        for(int i = 0; i < fields.length; i++){
+            if(i > 0){
+                mWriter.write(',');
+            }
+            writeField(fields[i]);
+        }
+        mWriter.write("\r\n");
+    }
+
+    private void writeField(String field) throws IOException {
+        if(field == null){
+            return;
+        }
+        boolean needsQuotes = false;
+        for(int i = 0; i < field.length() && !needsQuotes; i++){
+            char c = field.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if(!needsQuotes){
+            mWriter.write(field);
+            return;
+        }
+        mWriter.write('"');
+        mWriter.write(field.replace("\"", "\"\""));
+        mWriter.write('"');
+    }
+
+    /**
+     * Write out everything that is still buffered.
+     */
+    public void flush() throws IOException {
+        mWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.android.storeinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs all the writes to a database on one dedicated thread, one after the other.
+ *
+ * The database is opened in write-ahead-logging mode, so readers never wait for the writer and
+ * only writers have to take turns. Instead of letting the threads of the callers fight over the
+ * single write connection, every write is a {@link Task} handed to the writer thread. The tasks
+ * that are waiting when the writer becomes free are committed together in one transaction
+ * (group commit), so a burst of small writes pays for one commit instead of one per write.
+ * If any task of a group fails, the group is rolled back and its tasks are run again one
+ * transaction each, so a failing write never takes the others down with it. For the same
+ * reason a task may run more than once and must not have side effects outside of the database,
+ * other than through {@link #runAfterCommit(Runnable)}.
+ *
+ * After a burst of writes, when there is nothing left to do, the writer also checkpoints the
+ * write-ahead log if it has grown too large, so the log does not keep growing while readers
+ * keep the automatic checkpoints from completing.
+ */
+public class DatabaseWriter {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = DatabaseWriter.class.getSimpleName();
+
+    /** Most tasks committed in one transaction */
+    private static final int MAX_GROUP_SIZE = 64;
+
+    /** Size of the write-ahead log above which the writer checkpoints it once it is idle */
+    private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+    /**
+     * A piece of work that writes to the database.
+     */
+    public interface Task<T> {
+        /**
+         * Do the work. Runs on the writer thread, inside a transaction.
+         * @return the result handed back to the caller of {@link #execute(Task)}
+         */
+        T run(SQLiteDatabase db);
+    }
+
+    /** Opens the database */
+    private final SQLiteOpenHelper mHelper;
+
+    /** Tasks waiting for the writer thread */
+    private final BlockingQueue<PendingTask<?>> mQueue = new LinkedBlockingQueue<PendingTask<?>>();
+
+    /** The writer thread */
+    private final Thread mThread;
+
+    /** The task that is running on the writer thread, or null. Only used by the writer thread. */
+    private PendingTask<?> mCurrentTask;
+
+    public DatabaseWriter(SQLiteOpenHelper helper, String name) {
+        mHelper = helper;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Run the given task on the writer thread and wait until its transaction has been committed.
+     * A task that is started by another task runs right away, in the transaction of that task.
+     * @return the result of the task
+     * @throws RuntimeException - the exception thrown by the task, if it failed
+     */
+    public <T> T execute(Task<T> task) {
+        if(Thread.currentThread() == mThread){
+            return task.run(mHelper.getWritableDatabase());
+        }
+        PendingTask<T> pendingTask = new PendingTask<T>(task);
+        mQueue.add(pendingTask);
+        return pendingTask.getResult();
+    }
+
+    /**
+     * Run the given action once the transaction of the current task has been committed, on the
+     * writer thread. Use it for work that must not happen if the task is rolled back, such as
+     * change notifications or deleting files. The action is dropped if the task fails. Outside
+     * of a task the action runs right away.
+     */
+    public void runAfterCommit(Runnable action) {
+        if(Thread.currentThread() == mThread && mCurrentTask != null){
+            mCurrentTask.mAfterCommit.add(action);
+        }
+        else {
+            action.run();
+        }
+    }
+
+    /**
+     * Take the waiting tasks off the queue and commit them, for as long as the app runs.
+     */
+    private void runLoop() {
+        List<PendingTask<?>> group = new ArrayList<PendingTask<?>>();
+        while(true){
+            try {
+                group.add(mQueue.take());
+            } catch (InterruptedException e) {
+                // The writer has no owner that could stop it, so just keep waiting
+                continue;
+            }
+            mQueue.drainTo(group, MAX_GROUP_SIZE - 1);
+            runGroup(group);
+            group.clear();
+            if(mQueue.isEmpty()){
+                checkpointIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Commit the given tasks in one transaction, or one by one if any of them fails.
+     */
+    private void runGroup(List<PendingTask<?>> group) {
+        SQLiteDatabase db;
+        try {
+            db = mHelper.getWritableDatabase();
+        } catch (RuntimeException e) {
+            // The database cannot be opened, so every task fails the same way
+            for(PendingTask<?> task : group){
+                task.finish(e);
+            }
+            return;
+        }
+
+        if(group.size() > 1 && runInTransaction(db, group)){
+            for(PendingTask<?> task : group){
+                task.finish(null);
+            }
+            return;
+        }
+        for(PendingTask<?> task : group){
+            List<PendingTask<?>> single = new ArrayList<PendingTask<?>>(1);
+            single.add(task);
+            task.finish(runInTransaction(db, single) ? null : task.mError);
+        }
+    }
+
+    /**
+     * Run the given tasks in one transaction.
+     * @return true if the transaction has been committed
+     */
+    private boolean runInTransaction(SQLiteDatabase db, List<PendingTask<?>> tasks) {
+        boolean successful = false;
+        try {
+            db.beginTransaction();
+            try {
+                for(PendingTask<?> task : tasks){
+                    mCurrentTask = task;
+                    task.run(db);
+                }
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                mCurrentTask = null;
+                // Throws if the commit itself fails
+                db.endTransaction();
+            }
+            return true;
+        } catch (RuntimeException e) {
+            for(PendingTask<?> task : tasks){
+                // Blame the task that threw, or all of them if the commit failed
+                if(task.mError == null && (successful || task.mRunning)){
+                    task.mError = e;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Checkpoint the write-ahead log if it has grown above {@link #CHECKPOINT_SIZE}. The log is
+     * then started over from its beginning by the next write and cut down to the journal size
+     * limit of the database.
+     */
+    private void checkpointIfNeeded() {
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            File log = new File(db.getPath() + "-wal");
+            if(log.length() < CHECKPOINT_SIZE){
+                return;
+            }
+            // A passive checkpoint never waits for the readers, it copies what it can
+            Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to checkpoint the write-ahead log", e);
+        }
+    }
+
+    /**
+     * A task waiting for the writer thread, with its outcome once it has run.
+     */
+    private static class PendingTask<T> {
+
+        private final Task<T> mTask;
+
+        /** Signalled once the task has been committed or has failed */
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /** Actions to run once the task has been committed */
+        private final List<Runnable> mAfterCommit = new ArrayList<Runnable>();
+
+        /** True while the task runs, so an exception can be blamed on it */
+        private boolean mRunning;
+
+        private T mResult;
+
+        private RuntimeException mError;
+
+        PendingTask(Task<T> task) {
+            mTask = task;
+        }
+
+        /**
+         * Run the task, forgetting the outcome of any earlier run that was rolled back.
+         */
+        void run(SQLiteDatabase db) {
+            mAfterCommit.clear();
+            mError = null;
+            mRunning = true;
+            mResult = mTask.run(db);
+            mRunning = false;
+        }
+
+        /**
+         * Record the final outcome of the task and wake up its caller.
+         * @param error - null if the task has been committed
+         */
+        void finish(RuntimeException error) {
+            mError = error;
+            if(error == null){
+                for(Runnable action : mAfterCommit){
+                    try {
+                        action.run();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Action after commit failed", e);
+                    }
+                }
+            }
+            mAfterCommit.clear();
+            mDone.countDown();
+        }
+
+        /**
+         * Wait until the task has been committed and return its result.
+         */
+        T getResult() {
+            boolean interrupted = false;
+            while(true){
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // The write cannot be called off once it is queued, so wait until it is done
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+            if(mError != null){
+                throw mError;
+            }
+            return mResult;
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package com.example.android.storeinventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.util.Base64;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
 
 /**
  * Defines table and column names for the Inventory database.
@@ -35,9 +42,77 @@ public final class InventoryContract {
      */
     public static final String PATH_PRODUCTS = "products";
 
+    /**
+     * Possible path appended to the URI of a single product, for the picture of that product.
+     */
+    public static final String PATH_PICTURE = "picture";
+
+    /**
+     * Possible path appended to the products URI, for searching products by name.
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Possible path appended to the products URI, followed by a SKU, for reading the product
+     * with that SKU.
+     */
+    public static final String PATH_SKU = "sku";
+
+    /**
+     * Possible path appended to the products URI, for the notifications of the lists of products.
+     */
+    public static final String PATH_LIST = "list";
+
+    /**
+     * Possible path appended to the products URI, for the summary of all the products.
+     */
+    public static final String PATH_SUMMARY = "summary";
+
+    /**
+     * Possible path appended to the products URI, for exporting all the products as CSV.
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Possible path (appended to base content URI), for the stock movements of the products.
+     */
+    public static final String PATH_MOVEMENTS = "movements";
+
     public static abstract class ProductsEntry implements BaseColumns {
         /** The content URI to access the product data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCTS);
+        /**
+         * The content URI to search the products by name. The words to search for are given in
+         * {@link #QUERY_PARAMETER_SEARCH} and each word matches the start of a word in the name.
+         * The best matches come first. Use {@link #buildSearchUri(String, int)} to create the URI.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+        /**
+         * The notification URI of the pages and the search results. It hears about changes
+         * to many products at once, which are notified on {@link #CONTENT_URI}, and about new and
+         * renamed products, which may fall into any page. Any other change to a single product is
+         * only notified on the URI of that product with the kind of change in
+         * {@link #QUERY_PARAMETER_CHANGE}, see {@link #buildChangeUri(long, String)}, so a list
+         * can patch that one row instead of reading all of its rows again.
+         */
+        public static final Uri LIST_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LIST);
+        /**
+         * The URI to open with {@link ContentResolver#openInputStream(Uri)} to read all the
+         * products as a CSV file, see {@link #CSV_COLUMNS}. The file is written while it is read,
+         * so it never has to fit in memory.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+        /** The MIME type of the CSV files of products */
+        public static final String CSV_MIME_TYPE = "text/csv";
+        /**
+         * Column of the CSV files of products with the location of the picture: a content or
+         * file URI, a file path, or a data URI that holds the picture itself. The export writes
+         * data URIs, see {@link #buildPictureDataUri(byte[], int)}, so the file can be imported
+         * on any device.
+         */
+        public static final String CSV_COLUMN_IMAGE = "image";
+        /** Scheme of the URIs that hold the picture itself, see {@link #buildPictureDataUri(byte[], int)} */
+        public static final String SCHEME_DATA = "data";
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of products.
          */
@@ -50,20 +125,466 @@ public final class InventoryContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PRODUCTS;
         // Name of the table
         public static final String TABLE_NAME = "products";
+        // Name of the full text search table that mirrors the product names
+        public static final String SEARCH_TABLE_NAME = "products_fts";
         // Names of the columns
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PRODUCT_NAME = "name";
+        /**
+         * Price of the product as a whole number of minor currency units (stotinki for BGN),
+         * stored as an INTEGER. Use {@link #formatPrice(long)} and {@link #parsePrice(String)}
+         * to convert it to and from the text the user sees.
+         */
         public static final String COLUMN_PRODUCT_PRICE = "price";
+        /** Number of minor currency units in one unit of the currency is 10 to this power */
+        public static final int PRICE_FRACTION_DIGITS = 2;
         public static final String COLUMN_PRODUCT_QUANTITY = "quantity";
+        /**
+         * Hash of the product picture. The picture itself is stored in a file outside of the
+         * table and can be read through the URI returned by {@link #buildPictureUri(long)}.
+         */
+        public static final String COLUMN_PRODUCT_PICTURE_HASH = "picture_hash";
+        /**
+         * Format of the stored picture, one of the PICTURE_FORMAT constants. It is set by the
+         * provider from the picture bytes every time a picture is saved.
+         */
+        public static final String COLUMN_PRODUCT_PICTURE_FORMAT = "picture_format";
+        /**
+         * Identifier of the product shared by all the devices that sync with the inventory
+         * service, see {@link #METHOD_SYNC}. It is set by the provider when the product is
+         * inserted and never changes.
+         */
+        public static final String COLUMN_PRODUCT_UUID = "uuid";
+        /**
+         * Number of the local changes made to the product so far. It is raised by the provider
+         * with every change, the changes pulled from other devices leave it as it is.
+         */
+        public static final String COLUMN_PRODUCT_VERSION = "version";
+        /**
+         * Stock keeping unit of the product, the code in its barcode. A product may have none,
+         * but no two products can have the same one. Read a product by its SKU through
+         * {@link #buildSkuUri(String)} and sell it with {@link #METHOD_SELL_SKU}.
+         */
+        public static final String COLUMN_PRODUCT_SKU = "sku";
+
+        /** Possible values of {@link #COLUMN_PRODUCT_PICTURE_FORMAT} */
+        public static final int PICTURE_FORMAT_UNKNOWN = 0;
+        public static final int PICTURE_FORMAT_PNG = 1;
+        public static final int PICTURE_FORMAT_JPEG = 2;
+        public static final int PICTURE_FORMAT_WEBP = 3;
+
+        /**
+         * Key for the encoded picture bytes in the values passed to insert and update.
+         * It is not a column of the table: the provider saves the bytes to a file and stores
+         * its hash in {@link #COLUMN_PRODUCT_PICTURE_HASH}.
+         */
         public static final String COLUMN_PRODUCT_PICTURE = "picture";
 
         /**
-         * Converts the bitmap from the user gallery into a ByteArray which can be saved into the database
+         * Columns of the CSV files of products, in the order they are exported. The price is
+         * written the way the user sees it, see {@link #formatPrice(long)}. The SKU is left
+         * empty for a product without one, and a file without the SKU column can be imported.
+         */
+        public static final String[] CSV_COLUMNS = {
+                COLUMN_PRODUCT_NAME,
+                COLUMN_PRODUCT_PRICE,
+                COLUMN_PRODUCT_QUANTITY,
+                CSV_COLUMN_IMAGE,
+                COLUMN_PRODUCT_SKU
+        };
+
+        /**
+         * Query parameters of {@link #CONTENT_URI} for reading the products one page at a time.
+         * The rows are sorted by {@link #QUERY_PARAMETER_SORT_KEY} and then by {@link #_ID}. A page
+         * starts right after the row given by {@link #QUERY_PARAMETER_AFTER_KEY} and
+         * {@link #QUERY_PARAMETER_AFTER_ID} (the last row of the previous page) and holds at most
+         * {@link #QUERY_PARAMETER_LIMIT} rows. Because the start of the page is looked up in an
+         * index, every page costs the same no matter how deep into the list it is.
+         * Use {@link #buildPageUri(String, String, long, int)} to create the URI.
+         */
+        public static final String QUERY_PARAMETER_SORT_KEY = "sort_key";
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /** Query parameter of {@link #SEARCH_URI} with the text to search for */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter of the URI a change to a single product is notified on, with the kind
+         * of change: {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} or {@link #CHANGE_DELETE}.
+         * Notifications without it are about many products at once.
+         */
+        public static final String QUERY_PARAMETER_CHANGE = "change";
+        public static final String CHANGE_INSERT = "insert";
+        public static final String CHANGE_UPDATE = "update";
+        public static final String CHANGE_DELETE = "delete";
+
+        /**
+         * Name of the provider method that sells units of a single product. Call it through
+         * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} with
+         * {@link #CONTENT_URI}, the product ID as the argument and the number of units in
+         * {@link #EXTRA_UNITS}. The stock is checked and lowered in one statement, so the caller
+         * never needs to read the current quantity first.
+         */
+        public static final String METHOD_SELL = "sell";
+        /** Extra with the number of units to sell (int) */
+        public static final String EXTRA_UNITS = "units";
+        /** Extra with the outcome of the operation, one of the SELL_, CHECKOUT_ or SYNC_ codes below (int) */
+        public static final String EXTRA_RESULT = "result";
+        /** Extra with the quantity of the product after the operation (int) */
+        public static final String EXTRA_QUANTITY = "quantity";
+
+        /** The units were sold and {@link #EXTRA_QUANTITY} holds the new quantity */
+        public static final int SELL_OK = 0;
+        /** There was not enough stock, nothing was sold and {@link #EXTRA_QUANTITY} holds the current quantity */
+        public static final int SELL_INSUFFICIENT_STOCK = 1;
+        /** There is no product with the given ID */
+        public static final int SELL_PRODUCT_NOT_FOUND = 2;
+
+        /**
+         * Name of the provider method that sells units of the product with a SKU, for a barcode
+         * scanned at the till. Call it like {@link #METHOD_SELL} with the SKU as the argument
+         * instead of the ID; without extras one unit is sold. The product is found and its stock
+         * lowered in the same call, so a scan costs about as much as a sale by ID. The result
+         * holds the same as for {@link #METHOD_SELL}, and the ID of the product in
+         * {@link #EXTRA_PRODUCT_ID} unless the result is {@link #SELL_PRODUCT_NOT_FOUND}.
+         */
+        public static final String METHOD_SELL_SKU = "sell_sku";
+        /** Extra with the ID of the product (long) */
+        public static final String EXTRA_PRODUCT_ID = "product_id";
+
+        /**
+         * Name of the provider method that sells units of several products in one transaction.
+         * The extras hold the IDs of the products in {@link #EXTRA_PRODUCT_IDS}, the units of
+         * each in {@link #EXTRA_UNITS_PER_PRODUCT} and a unique token of the batch in
+         * {@link #EXTRA_BATCH_TOKEN}. As many units as are in stock are sold, up to the given
+         * number. A batch whose token has already been applied is not applied again, so a
+         * batch can safely be sent again after the caller has lost track of its outcome.
+         * The result holds {@link #EXTRA_UNITS_SOLD} and {@link #EXTRA_QUANTITIES}, in the
+         * order of the IDs.
+         */
+        public static final String METHOD_SELL_BATCH = "sell_batch";
+        /** Extra with the IDs of the products (long[]) */
+        public static final String EXTRA_PRODUCT_IDS = "product_ids";
+        /** Extra with the number of units to sell of each product (int[]) */
+        public static final String EXTRA_UNITS_PER_PRODUCT = "units_per_product";
+        /** Extra with the unique token of a batch (String) */
+        public static final String EXTRA_BATCH_TOKEN = "batch_token";
+        /** Extra with the number of units sold of each product (int[]) */
+        public static final String EXTRA_UNITS_SOLD = "units_sold";
+        /** Extra with the quantity of each product after the batch, or -1 if it does not exist (int[]) */
+        public static final String EXTRA_QUANTITIES = "quantities";
+
+        /**
+         * Name of the provider method that sells a cart: units of several products, all of them
+         * or none. The extras hold the IDs of the products in {@link #EXTRA_PRODUCT_IDS} and the
+         * units of each in {@link #EXTRA_UNITS_PER_PRODUCT}, one line per product and at most
+         * {@link #MAX_CHECKOUT_LINES} lines. The stock of every line is checked first, and only
+         * if every line can be sold are the quantities lowered, in one transaction with a single
+         * change notification for the whole cart. The result holds {@link #EXTRA_RESULT}, either
+         * {@link #CHECKOUT_OK} or {@link #CHECKOUT_REJECTED}, the outcome of each line in
+         * {@link #EXTRA_LINE_RESULTS} and the quantity of each product afterwards in
+         * {@link #EXTRA_QUANTITIES}, in the order of the IDs.
+         */
+        public static final String METHOD_CHECKOUT = "checkout";
+        /**
+         * Extra with the outcome of each line of a checkout, one of the SELL_ codes (int[]). When
+         * the checkout is rejected nothing is sold, and {@link #SELL_OK} marks the lines that
+         * could have been.
+         */
+        public static final String EXTRA_LINE_RESULTS = "line_results";
+        /** Most lines in one checkout */
+        public static final int MAX_CHECKOUT_LINES = 500;
+
+        /** Every line of the cart has been sold */
+        public static final int CHECKOUT_OK = 0;
+        /** At least one line could not be sold, so nothing has been sold */
+        public static final int CHECKOUT_REJECTED = 1;
+
+        /**
+         * Name of the provider method that adds units of a single product that have been
+         * received from an order. Call it like {@link #METHOD_SELL}; the result holds
+         * {@link #EXTRA_RESULT}, either {@link #SELL_OK} or {@link #SELL_PRODUCT_NOT_FOUND},
+         * and the new quantity in {@link #EXTRA_QUANTITY}.
+         */
+        public static final String METHOD_RECEIVE = "receive";
+
+        /**
+         * Name of the provider method that returns how well the cache of the products read by ID
+         * works, to tune its size. It takes no argument and no extras; the result holds
+         * {@link #EXTRA_CACHE_HITS}, {@link #EXTRA_CACHE_MISSES}, {@link #EXTRA_CACHE_HIT_RATE},
+         * {@link #EXTRA_CACHE_EVICTIONS}, {@link #EXTRA_CACHE_ROWS}, {@link #EXTRA_CACHE_BYTES}
+         * and {@link #EXTRA_CACHE_MAX_BYTES}.
+         */
+        public static final String METHOD_GET_ROW_CACHE_STATS = "get_row_cache_stats";
+        /** Extra with the number of reads by ID served from the cache (int) */
+        public static final String EXTRA_CACHE_HITS = "cache_hits";
+        /** Extra with the number of reads by ID that went to the database (int) */
+        public static final String EXTRA_CACHE_MISSES = "cache_misses";
+        /** Extra with the share of the reads by ID served from the cache, from 0 to 1 (double) */
+        public static final String EXTRA_CACHE_HIT_RATE = "cache_hit_rate";
+        /** Extra with the number of rows dropped to make room for others (int) */
+        public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+        /** Extra with the number of rows in the cache (int) */
+        public static final String EXTRA_CACHE_ROWS = "cache_rows";
+        /** Extra with the estimated heap bytes of the rows in the cache (int) */
+        public static final String EXTRA_CACHE_BYTES = "cache_bytes";
+        /** Extra with the most bytes the rows in the cache may take (int) */
+        public static final String EXTRA_CACHE_MAX_BYTES = "cache_max_bytes";
+
+        /**
+         * Name of the provider method that starts or stops timing the queries, inserts, updates,
+         * deletes and calls of the provider, to find out where the time goes on a device. The
+         * argument is "true" to start, which clears the numbers taken so far, or "false" to stop.
+         * The extras may hold {@link #EXTRA_SLOW_THRESHOLD_MS}. Timing is off until it is
+         * started, and costs next to nothing while it is off. The result is empty.
+         */
+        public static final String METHOD_SET_STATS_ENABLED = "set_stats_enabled";
+        /**
+         * Extra with the time in milliseconds from which an operation is slow, and kept as a
+         * sample with its SQL (long). 50 if it is not given.
+         */
+        public static final String EXTRA_SLOW_THRESHOLD_MS = "slow_threshold_ms";
+        /**
+         * Name of the provider method that returns the timings taken since they were started.
+         * It takes no argument and no extras; the result holds {@link #EXTRA_STATS_JSON}. The
+         * same JSON is printed by "adb shell dumpsys activity provider" followed by the name of
+         * the provider.
+         */
+        public static final String METHOD_GET_STATS = "get_stats";
+        /**
+         * Extra with the timings as a JSON object (String). For each operation and URI pattern,
+         * e.g. "query products/#", it has the number of calls and of failed calls, the total,
+         * mean and longest time, the bucket that holds the 50th, 95th and 99th percentile, the
+         * rows read or changed, the estimated bytes of the rows returned and a histogram of the
+         * times. It also has the last operations that were slow, with the SQL of their queries.
+         */
+        public static final String EXTRA_STATS_JSON = "stats_json";
+        /**
+         * Name of the provider method that clears the timings taken so far, without starting or
+         * stopping. It takes no argument and no extras. The result is empty.
+         */
+        public static final String METHOD_RESET_STATS = "reset_stats";
+
+        /**
+         * Name of the provider method that syncs the products with the central inventory service.
+         * The argument is the base URL of the service. The local changes are sent first, then
+         * the changes of the other devices are pulled and applied. Both cost as much as there are
+         * changes, not as much as there are products. The name, price and picture of a product
+         * changed on two devices end up as the change the service got last; the quantity ends
+         * up with the units sold and received on all the devices added up.
+         * It talks to the network, so it must not be called on the main thread. The result holds
+         * {@link #EXTRA_RESULT}, either {@link #SYNC_OK} or {@link #SYNC_FAILED}, and the number
+         * of changes in {@link #EXTRA_CHANGES_SENT} and {@link #EXTRA_CHANGES_RECEIVED}.
+         */
+        public static final String METHOD_SYNC = "sync";
+        /** Extra with the number of local changes the service got (int) */
+        public static final String EXTRA_CHANGES_SENT = "changes_sent";
+        /** Extra with the number of changes of other devices that were pulled and changed a product (int) */
+        public static final String EXTRA_CHANGES_RECEIVED = "changes_received";
+
+        /** All the changes have been sent and pulled */
+        public static final int SYNC_OK = 0;
+        /** The service could not be reached or failed, what was done before is kept */
+        public static final int SYNC_FAILED = 1;
+
+        /**
+         * Returns the URI of the picture of the product with the given ID. The picture can be read
+         * with {@link ContentResolver#openInputStream(Uri)}, so it never passes through a Cursor.
+         */
+        public static Uri buildPictureUri(long id){
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PICTURE).build();
+        }
+
+        /**
+         * Returns a data URI (RFC 2397) that holds the given picture in base64, e.g.
+         * "data:image/webp;base64,UklGR...". Read it back with {@link #readPictureDataUri(String)}.
+         * @param format - one of the PICTURE_FORMAT constants
+         */
+        public static String buildPictureDataUri(byte[] picture, int format){
+            String mimeType;
+            switch (format){
+                case PICTURE_FORMAT_PNG:
+                    mimeType = "image/png";
+                    break;
+                case PICTURE_FORMAT_JPEG:
+                    mimeType = "image/jpeg";
+                    break;
+                case PICTURE_FORMAT_WEBP:
+                    mimeType = "image/webp";
+                    break;
+                default:
+                    mimeType = "application/octet-stream";
+            }
+            return SCHEME_DATA + ":" + mimeType + ";base64," + Base64.encodeToString(picture, Base64.NO_WRAP);
+        }
+
+        /**
+         * Returns the picture held by the given data URI, see {@link #buildPictureDataUri(byte[], int)},
+         * or null if it is not a base64 data URI.
+         * @throws IllegalArgumentException - if the base64 cannot be decoded
+         */
+        public static byte[] readPictureDataUri(String uri){
+            int comma = uri.indexOf(',');
+            if(!uri.startsWith(SCHEME_DATA + ":") || comma == -1 || !uri.substring(0, comma).endsWith(";base64")){
+                return null;
+            }
+            return Base64.decode(uri.substring(comma + 1), Base64.DEFAULT);
+        }
+
+        /**
+         * Returns the URI of the product with the given SKU. A query on it returns one row, or
+         * none if no product has the SKU.
+         */
+        public static Uri buildSkuUri(String sku){
+            return CONTENT_URI.buildUpon().appendPath(PATH_SKU).appendPath(sku).build();
+        }
+
+        /**
+         * Returns the URI a change of the given kind to the product with the given ID is notified
+         * on. Listeners of the product and of {@link #CONTENT_URI} hear about it, but the lists
+         * of products registered on {@link #LIST_URI} do not, unless the product is new or has
+         * been renamed.
+         * @param change - {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} or {@link #CHANGE_DELETE}
+         */
+        public static Uri buildChangeUri(long id, String change){
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_CHANGE, change).build();
+        }
+
+        /**
+         * Returns the ID of the product a notification built by {@link #buildChangeUri(long, String)}
+         * is about, or -1 if the notification is about many products at once.
+         */
+        public static long getChangedId(Uri uri){
+            List<String> segments = uri.getPathSegments();
+            if(uri.getQueryParameter(QUERY_PARAMETER_CHANGE) == null || segments.size() < 2
+                    || !PATH_PRODUCTS.equals(segments.get(0))){
+                return -1;
+            }
+            try {
+                return Long.parseLong(segments.get(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Returns the URI of a page of products sorted by the given column.
+         * @param sortKey - the column to sort by, one of name, price or quantity,
+         *                or null to sort by ID only
+         * @param afterKey - the value of the sort column in the last row of the previous page,
+         *                 or null for the first page
+         * @param afterId - the ID of the last row of the previous page, or 0 for the first page
+         * @param limit - the maximum number of rows in the page
+         */
+        public static Uri buildPageUri(String sortKey, String afterKey, long afterId, int limit){
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if(sortKey != null){
+                builder.appendQueryParameter(QUERY_PARAMETER_SORT_KEY, sortKey);
+            }
+            if(afterKey != null){
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+            }
+            if(afterKey != null || afterId > 0){
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the URI that searches the products for the given text.
+         * @param text - the text typed by the user
+         * @param limit - the maximum number of products to return
+         */
+        public static Uri buildSearchUri(String text, int limit){
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, text)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Converts a price in minor currency units into text for the user, e.g. 350 -> "3.50"
+         */
+        public static String formatPrice(long price){
+            return BigDecimal.valueOf(price, PRICE_FRACTION_DIGITS).toPlainString();
+        }
+
+        /**
+         * Converts a price typed by the user into minor currency units, e.g. "3.5" -> 350.
+         * Digits after the smallest currency unit are rounded.
+         * @throws NumberFormatException if the text is not a number
+         */
+        public static long parsePrice(String text){
+            return new BigDecimal(text.trim()).setScale(PRICE_FRACTION_DIGITS, RoundingMode.HALF_UP)
+                    .unscaledValue().longValue();
+        }
+
+        /**
+         * Check that the given values describe a complete and valid new product. These are the
+         * rules the provider applies to every product it inserts, so a caller can check a product
+         * before it is sent.
+         * @throws IllegalArgumentException - if a value is missing or invalid
+         */
+        public static void validateNewProduct(ContentValues values){
+            // Check that the name is not null
+            String name = values.getAsString(COLUMN_PRODUCT_NAME);
+            if(name == null){
+                throw new IllegalArgumentException("Product requires a name");
+            }
+            // Check that the price is not null and is a whole number of minor currency units
+            Long price = getAsPrice(values);
+            if(price == null || price < 0){
+                throw new IllegalArgumentException("Product requires a valid price");
+            }
+            // Check that the quantity is not null
+            Integer quantity = values.getAsInteger(COLUMN_PRODUCT_QUANTITY);
+            if(quantity == null || quantity < 0){
+                throw new IllegalArgumentException("Product requires a valid quantity");
+            }
+            // Check that the image is not null
+            byte[] image = values.getAsByteArray(COLUMN_PRODUCT_PICTURE);
+            if(image == null) {
+                throw new IllegalArgumentException("Product requires an image");
+            }
+            // The SKU may be left out, but it cannot be blank
+            String sku = values.getAsString(COLUMN_PRODUCT_SKU);
+            if(sku != null && sku.trim().isEmpty()){
+                throw new IllegalArgumentException("Product requires a valid SKU");
+            }
+        }
+
+        /**
+         * Return the price from the given values, or null if it is missing or not a whole number.
+         * A price with decimals is refused instead of being cut off, because prices are stored
+         * in minor currency units.
+         */
+        public static Long getAsPrice(ContentValues values){
+            Object value = values.get(COLUMN_PRODUCT_PRICE);
+            if(value instanceof Long || value instanceof Integer
+                    || value instanceof Short || value instanceof Byte){
+                return ((Number) value).longValue();
+            }
+            if(value instanceof String){
+                try {
+                    return Long.valueOf((String) value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Converts the bitmap from the user gallery into a ByteArray which can be saved into the database,
+         * in the compact format chosen by {@link PictureEncoder#getDefault()}
          */
         public static byte[] getBitmapAsByteArray(Bitmap bitmap){
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 0, outputStream);
-            return outputStream.toByteArray();
+            return PictureEncoder.getDefault().encode(bitmap);
         }
 
         /**
@@ -109,14 +630,34 @@ public final class InventoryContract {
             // First decode with inJustDecodeBounds = true, only to check dimensions
             final BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(context.getContentResolver().openInputStream(uri), null, options);
+            decodeStream(context, uri, options);
 
             // Calculate inSampleSize
             options.inSampleSize = calculateInSampleSize(options, requiredWidth, requiredHeight);
 
             // Decode bitmap with inJustDecodeBounds = false
             options.inJustDecodeBounds = false;
-            return BitmapFactory.decodeStream(context.getContentResolver().openInputStream(uri), null, options);
+            return decodeStream(context, uri, options);
+        }
+
+        /**
+         * Decode the picture at the given URI with the given options and close its stream,
+         * so decoding many pictures in a row does not run out of file descriptors.
+         */
+        private static Bitmap decodeStream(Context context, Uri uri, BitmapFactory.Options options)
+        throws FileNotFoundException {
+            InputStream inputStream = context.getContentResolver().openInputStream(uri);
+            try {
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            } finally {
+                if(inputStream != null){
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        // Nothing left to read from it anyway
+                    }
+                }
+            }
         }
 
         /**
@@ -148,4 +689,90 @@ public final class InventoryContract {
             return inSampleSize;
         }
     }
+
+    /**
+     * The summary of all the products, a single row that the database keeps up to date on every
+     * insert, update and delete of a product. Reading it costs the same no matter how many
+     * products there are.
+     */
+    public static abstract class SummaryEntry implements BaseColumns {
+        /**
+         * The content URI to read the summary. It is notified of every change to the products.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(ProductsEntry.CONTENT_URI, PATH_SUMMARY);
+        // Name of the table
+        public static final String TABLE_NAME = "products_summary";
+        // Names of the columns
+        public static final String COLUMN_PRODUCT_COUNT = "product_count";
+        /** Sum of the quantities of all the products */
+        public static final String COLUMN_TOTAL_QUANTITY = "total_quantity";
+        /** Sum of price times quantity of all the products, in minor currency units */
+        public static final String COLUMN_TOTAL_VALUE = "total_value";
+        /** Number of products whose quantity is below {@link #LOW_STOCK_THRESHOLD} */
+        public static final String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+        /** Number of products whose quantity is zero */
+        public static final String COLUMN_OUT_OF_STOCK_COUNT = "out_of_stock_count";
+
+        /** A product with fewer units than this is low on stock */
+        public static final int LOW_STOCK_THRESHOLD = 5;
+    }
+
+    /**
+     * The stock movements of the products: every change of the quantity of a product is
+     * appended here by the provider, in the same transaction as the change of the quantity.
+     * The quantity of a product is always the sum of the deltas of its movements.
+     * Movements can only be read, through {@link #CONTENT_URI}.
+     */
+    public static abstract class StockMovementsEntry implements BaseColumns {
+        /**
+         * The content URI to read the movements, oldest first. It can be narrowed down to one
+         * product with {@link #QUERY_PARAMETER_PRODUCT_ID} and to a time range with
+         * {@link #QUERY_PARAMETER_FROM} and {@link #QUERY_PARAMETER_TO}.
+         * Use {@link #buildRangeUri(long, long, long)} to create the URI.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_MOVEMENTS);
+        // Name of the table
+        public static final String TABLE_NAME = "stock_movements";
+        // Names of the columns
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_PRODUCT_ID = "product_id";
+        /** Change of the quantity, negative for units that left the stock */
+        public static final String COLUMN_DELTA = "delta";
+        /** Kind of the movement, one of the KIND_ values below */
+        public static final String COLUMN_KIND = "kind";
+        /** Time of the movement in milliseconds since the epoch */
+        public static final String COLUMN_CREATED_AT = "created_at";
+
+        /** Units sold */
+        public static final int KIND_SALE = 1;
+        /** Units received from an order */
+        public static final int KIND_RECEIVED = 2;
+        /** Quantity set by hand, the delta is the difference to the old quantity */
+        public static final int KIND_CORRECTION = 3;
+        /** Sum of all the older movements of a period, which have been compacted */
+        public static final int KIND_SNAPSHOT = 4;
+        /** Units sold or received on another device, pulled from the inventory service */
+        public static final int KIND_SYNCED = 5;
+
+        /** Query parameters of {@link #CONTENT_URI}: product ID and time range [from, to) */
+        public static final String QUERY_PARAMETER_PRODUCT_ID = "product_id";
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /**
+         * Returns the URI of the movements in the given time range.
+         * @param productId - the product, or -1 for all the products
+         * @param from - the time of the first movement, inclusive, in milliseconds
+         * @param to - the end of the range, exclusive, in milliseconds
+         */
+        public static Uri buildRangeUri(long productId, long from, long to){
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(to));
+            if(productId != -1){
+                builder.appendQueryParameter(QUERY_PARAMETER_PRODUCT_ID, String.valueOf(productId));
+            }
+            return builder.build();
+        }
+    }
 }
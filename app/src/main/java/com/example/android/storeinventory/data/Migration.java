@@ -0,0 +1,65 @@
+package com.example.android.storeinventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the upgrade of the database from the version before {@link #getVersion()}.
+ *
+ * A step has two parts. {@link #migrateSchema(SQLiteDatabase)} runs while the database is being
+ * opened and must only do quick schema changes, because the whole app waits for it. Work that
+ * grows with the size of the inventory (copying rows, filling columns, building indexes) goes
+ * into {@link #migrateChunk(SQLiteDatabase, long, int)}, which is called in the background
+ * a bounded piece at a time. Every chunk runs in its own transaction and its progress is saved
+ * with it, so the work continues where it stopped if the process is killed.
+ *
+ * The SQL of a step describes the schema at its own version and must never change once the step
+ * has been released, even when the current schema in {@link ProductsDbHelper} changes later.
+ */
+public abstract class Migration {
+
+    /** Progress of a chunked step that has not started yet */
+    public static final long START = 0;
+
+    /** Progress returned by {@link #migrateChunk(SQLiteDatabase, long, int)} when the step is done */
+    public static final long DONE = -1;
+
+    /** The database version this step upgrades to */
+    private final int mVersion;
+
+    protected Migration(int version) {
+        mVersion = version;
+    }
+
+    /**
+     * @return the database version this step upgrades to
+     */
+    public final int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Change the schema from the previous version to this one. Runs inside the upgrade
+     * transaction, so it must not read or write data that grows with the inventory.
+     */
+    public abstract void migrateSchema(SQLiteDatabase db);
+
+    /**
+     * @return true if this step has work that runs in chunks after the schema change
+     */
+    public boolean hasChunks() {
+        return false;
+    }
+
+    /**
+     * Do the next piece of the work of this step. The app is fully usable while the chunks run,
+     * so each step must also cope with rows that are written between two chunks.
+     * @param db - the database, already inside the transaction of this chunk
+     * @param progress - {@link #START} for the first chunk, otherwise the value returned by
+     *                 the previous chunk
+     * @param chunkSize - the maximum number of rows to handle in this chunk
+     * @return the progress to pass to the next chunk, or {@link #DONE} if the step is complete
+     */
+    public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+        return DONE;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Applies the {@link Migration} steps to a database. The schema changes run while the database
+ * is upgraded; the chunked work of each step is recorded in the pending migrations table and
+ * runs later, one chunk per transaction, in order of version.
+ */
+public class MigrationRunner {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = MigrationRunner.class.getSimpleName();
+
+    /** Table with the steps whose chunked work has not finished yet */
+    public static final String TABLE_NAME = "pending_migrations";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_PROGRESS = "progress";
+
+    /** All the steps, in order of version */
+    private final List<Migration> mMigrations;
+
+    /** Maximum number of rows each chunk handles */
+    private final int mChunkSize;
+
+    public MigrationRunner(List<Migration> migrations, int chunkSize) {
+        mMigrations = migrations;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Create the table of pending steps, if it does not exist yet.
+     */
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                COLUMN_VERSION + " INTEGER PRIMARY KEY, " +
+                COLUMN_PROGRESS + " INTEGER NOT NULL);");
+    }
+
+    /**
+     * Change the schema from the old version to the new one and record the chunked work of
+     * every step that has some. Called by {@link ProductsDbHelper#onUpgrade}.
+     */
+    public void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        createTable(db);
+        for(Migration migration : mMigrations){
+            int version = migration.getVersion();
+            if(version <= oldVersion || version > newVersion){
+                continue;
+            }
+            Log.i(LOG_TAG, "Upgrading schema to version " + version);
+            migration.migrateSchema(db);
+            if(migration.hasChunks()){
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_VERSION, version);
+                values.put(COLUMN_PROGRESS, Migration.START);
+                db.insertOrThrow(TABLE_NAME, null, values);
+            }
+        }
+    }
+
+    /**
+     * Run the next chunk of the oldest pending step in its own transaction.
+     * @return true if a chunk was run, false if there is no more work
+     */
+    public boolean runNextChunk(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_NAME, new String[] {COLUMN_VERSION, COLUMN_PROGRESS},
+                    null, null, null, null, COLUMN_VERSION, "1");
+            int version;
+            long progress;
+            try {
+                if(!cursor.moveToFirst()){
+                    // Nothing was written, but a failed nested transaction would silently roll
+                    // back the writes the DatabaseWriter committed together with this one
+                    db.setTransactionSuccessful();
+                    return false;
+                }
+                version = cursor.getInt(0);
+                progress = cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+
+            Migration migration = findMigration(version);
+            long newProgress = migration.migrateChunk(db, progress, mChunkSize);
+            String[] versionArgs = new String[] {String.valueOf(version)};
+            if(newProgress == Migration.DONE){
+                Log.i(LOG_TAG, "Finished migration to version " + version);
+                db.delete(TABLE_NAME, COLUMN_VERSION + "=?", versionArgs);
+            }
+            else {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_PROGRESS, newProgress);
+                db.update(TABLE_NAME, values, COLUMN_VERSION + "=?", versionArgs);
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Run chunks until there is no more pending work.
+     */
+    public void runPendingChunks(SQLiteDatabase db) {
+        while(runNextChunk(db)){
+            // Keep going, every chunk has already been committed
+        }
+    }
+
+    /**
+     * Return the step that upgrades to the given version.
+     */
+    private Migration findMigration(int version) {
+        for(Migration migration : mMigrations){
+            if(migration.getVersion() == version){
+                return migration;
+            }
+        }
+        throw new IllegalStateException("No migration to version " + version);
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.storeinventory.data;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encodes the product pictures in the most compact format that suits what they show.
+ *
+ * Photos are encoded lossy with the photo format and the quality of the encoder, which makes
+ * them several times smaller than lossless PNG and quicker to write and to read back.
+ * Graphics with only a few colors (logos, icons, flat drawings) stay PNG, which keeps their
+ * sharp edges and is small for them anyway. Pictures with transparent pixels need a format
+ * that keeps the alpha channel: WebP where the platform can encode it with alpha, PNG otherwise.
+ */
+public class PictureEncoder {
+
+    /** Quality of the lossy formats used by the default encoder, from 0 to 100 */
+    public static final int DEFAULT_QUALITY = 80;
+
+    /** Pictures with at most this many colors are encoded as graphics, without loss */
+    private static final int MAX_GRAPHIC_COLORS = 256;
+
+    /** Most pixels looked at to tell what a picture shows, so large pictures are sampled */
+    private static final int MAX_SAMPLED_PIXELS = 64 * 1024;
+
+    /** The encoder used by {@link ProductsEntry#getBitmapAsByteArray(Bitmap)}. Guarded by the class. */
+    private static PictureEncoder sDefault = new PictureEncoder(Bitmap.CompressFormat.WEBP, DEFAULT_QUALITY);
+
+    /** Format of the opaque photos, JPEG or WEBP */
+    private final Bitmap.CompressFormat mPhotoFormat;
+
+    /** Quality of the lossy formats, from 0 to 100 */
+    private final int mQuality;
+
+    /**
+     * @param photoFormat - the lossy format of opaque photos, {@link Bitmap.CompressFormat#JPEG}
+     *                    or {@link Bitmap.CompressFormat#WEBP}
+     * @param quality - the quality of the lossy formats, from 0 (smallest) to 100 (best)
+     */
+    public PictureEncoder(Bitmap.CompressFormat photoFormat, int quality) {
+        if(photoFormat != Bitmap.CompressFormat.JPEG && photoFormat != Bitmap.CompressFormat.WEBP){
+            throw new IllegalArgumentException("Photos must be encoded as JPEG or WEBP: " + photoFormat);
+        }
+        if(quality < 0 || quality > 100){
+            throw new IllegalArgumentException("Quality must be from 0 to 100: " + quality);
+        }
+        mPhotoFormat = photoFormat;
+        mQuality = quality;
+    }
+
+    /**
+     * @return the encoder used for the pictures saved by the app
+     */
+    public static synchronized PictureEncoder getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Change the encoder used for the pictures saved by the app from now on. The pictures that
+     * are already stored keep their format.
+     */
+    public static synchronized void setDefault(PictureEncoder encoder) {
+        if(encoder == null){
+            throw new IllegalArgumentException("The default encoder cannot be null");
+        }
+        sDefault = encoder;
+    }
+
+    /**
+     * Encode the given picture in the format that suits it.
+     * @return the encoded bytes
+     */
+    public byte[] encode(Bitmap bitmap) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            encode(bitmap, outputStream);
+        } catch (IOException e) {
+            // A byte array stream never fails
+            throw new IllegalStateException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Encode the given picture in the format that suits it into the given stream.
+     * @return the format of the picture, one of the ProductsEntry.PICTURE_FORMAT constants
+     */
+    public int encode(Bitmap bitmap, OutputStream outputStream) throws IOException {
+        int format = chooseFormat(bitmap);
+        Bitmap.CompressFormat compressFormat;
+        switch (format){
+            case ProductsEntry.PICTURE_FORMAT_JPEG:
+                compressFormat = Bitmap.CompressFormat.JPEG;
+                break;
+            case ProductsEntry.PICTURE_FORMAT_WEBP:
+                compressFormat = Bitmap.CompressFormat.WEBP;
+                break;
+            default:
+                compressFormat = Bitmap.CompressFormat.PNG;
+                break;
+        }
+        if(!bitmap.compress(compressFormat, mQuality, outputStream)){
+            throw new IOException("Failed to encode the picture as " + compressFormat);
+        }
+        return format;
+    }
+
+    /**
+     * Tell the format the given picture should be encoded in from what it shows.
+     * @return one of the ProductsEntry.PICTURE_FORMAT constants
+     */
+    public int chooseFormat(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        // Look at every step-th row and column, so at most MAX_SAMPLED_PIXELS pixels
+        int step = 1;
+        while((long) (width / step) * (height / step) > MAX_SAMPLED_PIXELS){
+            step++;
+        }
+
+        boolean transparent = false;
+        Set<Integer> colors = new HashSet<Integer>();
+        int[] row = new int[width];
+        for(int y = 0; y < height; y += step){
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for(int x = 0; x < width; x += step){
+                int pixel = row[x];
+                if(pixel >>> 24 != 0xff){
+                    transparent = true;
+                }
+                if(colors.size() <= MAX_GRAPHIC_COLORS){
+                    colors.add(pixel);
+                }
+            }
+        }
+
+        if(colors.size() <= MAX_GRAPHIC_COLORS){
+            // A graphic, lossless is small and keeps it sharp
+            return ProductsEntry.PICTURE_FORMAT_PNG;
+        }
+        if(transparent){
+            // JPEG drops the alpha channel, and WebP only keeps it from Jelly Bean MR2 on
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    ? ProductsEntry.PICTURE_FORMAT_WEBP : ProductsEntry.PICTURE_FORMAT_PNG;
+        }
+        return mPhotoFormat == Bitmap.CompressFormat.JPEG
+                ? ProductsEntry.PICTURE_FORMAT_JPEG : ProductsEntry.PICTURE_FORMAT_WEBP;
+    }
+
+    /**
+     * Tell the format of encoded picture bytes from their signature.
+     * @return one of the ProductsEntry.PICTURE_FORMAT constants,
+     * {@link ProductsEntry#PICTURE_FORMAT_UNKNOWN} if the format is not recognized
+     */
+    public static int detectFormat(byte[] picture) {
+        if(picture == null){
+            return ProductsEntry.PICTURE_FORMAT_UNKNOWN;
+        }
+        if(picture.length >= 8 && (picture[0] & 0xff) == 0x89 && picture[1] == 'P'
+                && picture[2] == 'N' && picture[3] == 'G'){
+            return ProductsEntry.PICTURE_FORMAT_PNG;
+        }
+        if(picture.length >= 3 && (picture[0] & 0xff) == 0xff && (picture[1] & 0xff) == 0xd8
+                && (picture[2] & 0xff) == 0xff){
+            return ProductsEntry.PICTURE_FORMAT_JPEG;
+        }
+        if(picture.length >= 12 && picture[0] == 'R' && picture[1] == 'I' && picture[2] == 'F'
+                && picture[3] == 'F' && picture[8] == 'W' && picture[9] == 'E'
+                && picture[10] == 'B' && picture[11] == 'P'){
+            return ProductsEntry.PICTURE_FORMAT_WEBP;
+        }
+        return ProductsEntry.PICTURE_FORMAT_UNKNOWN;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.storeinventory.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Stores the product pictures as files in the private storage of the app. Each file is named
+ * after the SHA-1 hash of its content, so the products table only keeps the hash and identical
+ * pictures are stored once.
+ */
+public class PictureStore {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = PictureStore.class.getSimpleName();
+
+    /** Name of the directory (inside the files directory of the app) that holds the pictures */
+    private static final String DIRECTORY_NAME = "pictures";
+
+    /** Characters used to print the hash as hex */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Context mContext;
+
+    /** Name of the directory that holds the picture files */
+    private final String mDirectoryName;
+
+    /**
+     * Directory that holds the picture files. Looked up the first time it is used, on a
+     * background thread, as finding it may touch the disk; the store is created by the provider
+     * on the main thread. Guarded by this object.
+     */
+    private File mDirectory;
+
+    public PictureStore(Context context) {
+        this(context, DIRECTORY_NAME);
+    }
+
+    /**
+     * Create a store in the directory with the given name. Used by the tests.
+     */
+    PictureStore(Context context, String directoryName) {
+        mContext = context;
+        mDirectoryName = directoryName;
+    }
+
+    /**
+     * Save the given picture bytes, unless a picture with the same content is already stored.
+     * @param picture - the encoded picture
+     * @return the hash that identifies the picture
+     */
+    public String put(byte[] picture) throws IOException {
+        String hash = hash(picture);
+        File file = getFile(hash);
+        if(file.exists()){
+            return hash;
+        }
+
+        File directory = getDirectory();
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Cannot create picture directory " + directory);
+        }
+        // Write into a temporary file first, so a half written picture is never visible
+        File temporaryFile = new File(directory, hash + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(picture);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if(!temporaryFile.renameTo(file)){
+            temporaryFile.delete();
+            throw new IOException("Cannot store picture " + hash);
+        }
+        return hash;
+    }
+
+    /**
+     * @param hash - the hash returned by {@link #put(byte[])}
+     * @return the file that holds the picture with the given hash
+     */
+    public File getFile(String hash) {
+        return new File(getDirectory(), hash);
+    }
+
+    /**
+     * @param hash - the hash returned by {@link #put(byte[])}
+     * @return the bytes of the picture with the given hash, or null if there is none
+     */
+    public byte[] read(String hash) throws IOException {
+        // An empty hash means the picture has not been moved to a file yet, see ProductsMigrations
+        if(hash == null || hash.isEmpty()){
+            return null;
+        }
+        File file = getFile(hash);
+        if(!file.isFile()){
+            return null;
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int length;
+            while((length = inputStream.read(buffer)) != -1){
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Delete the picture with the given hash.
+     */
+    public void delete(String hash) {
+        // An empty hash means the picture has not been moved to a file yet, see ProductsMigrations
+        if(hash == null || hash.isEmpty()){
+            return;
+        }
+        File file = getFile(hash);
+        if(file.exists() && !file.delete()){
+            Log.e(LOG_TAG, "Failed to delete picture " + hash);
+        }
+    }
+
+    /**
+     * Delete every stored picture whose hash is not in the given set.
+     * @param referencedHashes - hashes of the pictures that are still used by products
+     */
+    public void deleteAllExcept(Set<String> referencedHashes) {
+        File[] files = getDirectory().listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            // Skip the pictures that are still being written
+            if(file.getName().endsWith(".tmp")){
+                continue;
+            }
+            if(!referencedHashes.contains(file.getName()) && !file.delete()){
+                Log.e(LOG_TAG, "Failed to delete picture " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Return the directory of the picture files. Must not be called on the main thread.
+     */
+    private synchronized File getDirectory() {
+        if(mDirectory == null){
+            mDirectory = new File(mContext.getFilesDir(), mDirectoryName);
+        }
+        return mDirectory;
+    }
+
+    /**
+     * Calculate the SHA-1 hash of the given bytes as a hex string.
+     */
+    private static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+        byte[] hashBytes = digest.digest(bytes);
+        char[] hex = new char[hashBytes.length * 2];
+        for(int i = 0; i < hashBytes.length; i++){
+            hex[i * 2] = HEX_DIGITS[(hashBytes[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX_DIGITS[hashBytes[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+}
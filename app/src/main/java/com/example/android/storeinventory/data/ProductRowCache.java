@@ -0,0 +1,274 @@
+package com.example.android.storeinventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+/**
+ * Keeps the rows of the products that have been read by ID most recently, so that reading them
+ * again does not have to go to SQLite. The editor and the catalog keep reading the same few
+ * products while the user works with them.
+ *
+ * A row is a {@link Row} of plain fields, and a cached product is read as a small
+ * {@link MatrixCursor}. The cache holds at most the given number of bytes, going by an estimate
+ * of what each row takes on the heap, and drops the rows that have not been read for the longest
+ * time first.
+ *
+ * The provider invalidates a row once a write that changes it has been committed. A row read
+ * from the database while such a write is going on may already be out of date, so it is only
+ * kept if nothing has been invalidated since the read started, see {@link #getGeneration()}.
+ */
+public class ProductRowCache {
+
+    /** Columns of a row, in the order of the products table */
+    private static final String[] ALL_COLUMNS = {
+            ProductsEntry._ID,
+            ProductsEntry.COLUMN_PRODUCT_NAME,
+            ProductsEntry.COLUMN_PRODUCT_PRICE,
+            ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT,
+            ProductsEntry.COLUMN_PRODUCT_UUID,
+            ProductsEntry.COLUMN_PRODUCT_VERSION,
+            ProductsEntry.COLUMN_PRODUCT_SKU
+    };
+
+    /** Estimated bytes of a row without its strings, and of its entry in the cache */
+    private static final int ROW_OVERHEAD = 64 + 64;
+
+    /** Estimated bytes of a string without its characters */
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * The values of a product. A row never changes.
+     */
+    public static class Row {
+
+        final long mId;
+        final String mName;
+        final long mPrice;
+        final int mQuantity;
+        final String mPictureHash;
+        final int mPictureFormat;
+        final String mUuid;
+        final long mVersion;
+        final String mSku;
+
+        Row(long id, String name, long price, int quantity, String pictureHash, int pictureFormat,
+            String uuid, long version, String sku) {
+            mId = id;
+            mName = name;
+            mPrice = price;
+            mQuantity = quantity;
+            mPictureHash = pictureHash;
+            mPictureFormat = pictureFormat;
+            mUuid = uuid;
+            mVersion = version;
+            mSku = sku;
+        }
+
+        /**
+         * Read the current row of a cursor that has the columns of {@link #getColumns()}.
+         */
+        static Row read(Cursor cursor) {
+            return new Row(cursor.getLong(0), cursor.getString(1), cursor.getLong(2),
+                    cursor.getInt(3), cursor.getString(4), cursor.getInt(5),
+                    cursor.getString(6), cursor.getLong(7), cursor.getString(8));
+        }
+
+        /**
+         * @return the estimated number of bytes the row takes in the cache
+         */
+        int getSize() {
+            return ROW_OVERHEAD + sizeOf(mName) + sizeOf(mPictureHash) + sizeOf(mUuid)
+                    + sizeOf(mSku);
+        }
+
+        private static int sizeOf(String value) {
+            return value == null ? 0 : STRING_OVERHEAD + 2 * value.length();
+        }
+    }
+
+    private final LruCache<Long, Row> mRows;
+
+    /** Incremented by every invalidation. Guarded by this object. */
+    private long mGeneration;
+
+    /**
+     * @param maxSizeInBytes - the most bytes the rows may take together
+     */
+    public ProductRowCache(int maxSizeInBytes) {
+        mRows = new LruCache<Long, Row>(maxSizeInBytes) {
+            @Override
+            protected int sizeOf(Long id, Row row) {
+                return row.getSize();
+            }
+        };
+    }
+
+    /**
+     * @return the columns to read from the products table for {@link #put(Row, long)}
+     */
+    public static String[] getColumns() {
+        return ALL_COLUMNS.clone();
+    }
+
+    /**
+     * @return true if every column of the projection can be read from a cached row,
+     * otherwise the query has to go to the database
+     */
+    public static boolean canServe(String[] projection) {
+        if(projection == null){
+            return true;
+        }
+        for(String column : projection){
+            if(indexOfColumn(column) == -1){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the cached row of the product with the given ID, or null
+     */
+    public Row get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Return the generation to hand to {@link #put(Row, long)}. Call it before the row
+     * is read from the database.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keep a row read from the database, unless a row has been invalidated since the given
+     * generation, which means the row may be out of date already.
+     */
+    public synchronized void put(Row row, long generation) {
+        if(generation == mGeneration){
+            mRows.put(row.mId, row);
+        }
+    }
+
+    /**
+     * Forget the row of the product with the given ID. Call it once a write that changes the
+     * product has been committed, and before the listeners are notified.
+     */
+    public synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Forget all the rows, e.g. after a write that changed an unknown set of products.
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * Return a cursor with the given columns of the given row, or without rows if the row is
+     * null. The projection must pass {@link #canServe(String[])}.
+     */
+    public static Cursor toCursor(Row row, String[] projection) {
+        String[] columns = projection == null ? getColumns() : projection;
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if(row == null){
+            return cursor;
+        }
+        Object[] values = new Object[columns.length];
+        for(int i = 0; i < columns.length; i++){
+            switch (indexOfColumn(columns[i])){
+                case 0:
+                    values[i] = row.mId;
+                    break;
+                case 1:
+                    values[i] = row.mName;
+                    break;
+                case 2:
+                    values[i] = row.mPrice;
+                    break;
+                case 3:
+                    values[i] = row.mQuantity;
+                    break;
+                case 4:
+                    values[i] = row.mPictureHash;
+                    break;
+                case 5:
+                    values[i] = row.mPictureFormat;
+                    break;
+                case 6:
+                    values[i] = row.mUuid;
+                    break;
+                case 7:
+                    values[i] = row.mVersion;
+                    break;
+                case 8:
+                    values[i] = row.mSku;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Column " + columns[i] + " is not cached");
+            }
+        }
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    private static int indexOfColumn(String column) {
+        for(int i = 0; i < ALL_COLUMNS.length; i++){
+            if(ALL_COLUMNS[i].equals(column)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of reads that found their row in the cache
+     */
+    public int getHitCount() {
+        return mRows.hitCount();
+    }
+
+    /**
+     * @return the number of reads that had to go to the database
+     */
+    public int getMissCount() {
+        return mRows.missCount();
+    }
+
+    /**
+     * @return the number of rows dropped to make room for others
+     */
+    public int getEvictionCount() {
+        return mRows.evictionCount();
+    }
+
+    /**
+     * @return the number of rows in the cache
+     */
+    public int getRowCount() {
+        return mRows.snapshot().size();
+    }
+
+    /**
+     * @return the estimated number of bytes of the rows in the cache
+     */
+    public int getSize() {
+        return mRows.size();
+    }
+
+    /**
+     * @return the most bytes the rows may take together
+     */
+    public int getMaxSize() {
+        return mRows.maxSize();
+    }
+}
@@ -1,12 +1,14 @@
 package com.example.android.storeinventory.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
-
-import java.io.File;
+import com.example.android.storeinventory.data.InventoryContract.SummaryEntry;
 
 /**
  * Create,open,upgrade or delete the products table in the database.
@@ -14,29 +16,246 @@ import java.io.File;
 public class ProductsDbHelper extends SQLiteOpenHelper {
     /** File name of the database */
     public static final String DATABASE_NAME = "inventory.db";
-    /** Database version number. If you change the database schema you must increment this number.*/
-    public static final int DATABASE_VERSION = 1;
+    /** Database version number. If you change the database schema you must increment this number
+     * and add an upgrade step to {@link ProductsMigrations}.*/
+    public static final int DATABASE_VERSION = 12;
+
+    /** Table with the tokens of the sale batches that have been applied */
+    static final String SALE_BATCHES_TABLE_NAME = "sale_batches";
+    static final String COLUMN_TOKEN = "token";
+    static final String COLUMN_APPLIED_AT = "applied_at";
+
+    /** Maximum number of rows each chunk of an upgrade step handles */
+    private static final int MIGRATION_CHUNK_SIZE = 500;
+
+    /** Size the write-ahead log is cut down to after it has been checkpointed */
+    private static final long JOURNAL_SIZE_LIMIT = 512 * 1024;
+
+    /** Applies the upgrade steps */
+    private final MigrationRunner mMigrationRunner;
 
     public ProductsDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Create a helper for the database with the given file name and the default cursors.
+     * Used by the tests of the database, which do not time their queries.
+     */
+    ProductsDbHelper(Context context, String name) {
+        this(context, name, null);
+    }
+
+    /**
+     * Create a helper for the database with the given file name, whose cursors are created by
+     * the given factory, or the default one if it is null. The provider passes the factory of
+     * its {@link ProviderStats}, which counts the rows and bytes of every query.
+     */
+    ProductsDbHelper(Context context, String name, SQLiteDatabase.CursorFactory factory) {
+        super(context, name, factory, DATABASE_VERSION);
+        mMigrationRunner = new MigrationRunner(ProductsMigrations.create(context), MIGRATION_CHUNK_SIZE);
+        // Write-ahead logging lets the catalog read while a large write is in progress, through
+        // a pool of read connections next to the single write connection
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if(db.isReadOnly()){
+            return;
+        }
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN){
+            db.enableWriteAheadLogging();
+        }
+        // Keep the log file small once it has been checkpointed, instead of at its largest size
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit=" + JOURNAL_SIZE_LIMIT, null);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createProductsTable(db);
+        createSearchTable(db);
+        createSaleBatchesTable(db);
+        StockLedger.createTable(db);
+        createSummaryTable(db);
+        ChangeLog.createTables(db);
+        MigrationRunner.createTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only the quick schema changes run here, the rest is done by runPendingMigrations()
+        mMigrationRunner.upgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Run the chunked work left by the upgrade steps until it is complete. Every chunk is
+     * committed on its own, so this can be stopped at any time and picked up again later.
+     * Must not be called on the main thread.
+     * @return true if there was any work to do
+     */
+    public boolean runPendingMigrations() {
+        SQLiteDatabase db = getWritableDatabase();
+        if(!mMigrationRunner.runNextChunk(db)){
+            return false;
+        }
+        mMigrationRunner.runPendingChunks(db);
+        return true;
+    }
+
+    /**
+     * Run the next chunk of the work left by the upgrade steps, see {@link #runPendingMigrations()}.
+     * @return true if a chunk was run, false if there is no more work
+     */
+    public boolean runNextMigrationChunk(SQLiteDatabase db) {
+        return mMigrationRunner.runNextChunk(db);
+    }
+
+    /**
+     * Create the products table and its indexes with the current schema.
+     */
+    private static void createProductsTable(SQLiteDatabase db) {
         /** SQL command to create the table */
         String SQL_CREATE_PRODUCTS_TABLE =
-                "CREATE TABLE products (" +
+                "CREATE TABLE " + ProductsEntry.TABLE_NAME + " (" +
                         ProductsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         ProductsEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL, " +
+                        // Price in minor currency units
                         ProductsEntry.COLUMN_PRODUCT_PRICE + " INTEGER NOT NULL, " +
                         ProductsEntry.COLUMN_PRODUCT_QUANTITY + " INTEGER NOT NULL DEFAULT 0, " +
-                        ProductsEntry.COLUMN_PRODUCT_PICTURE + " BLOB NOT NULL);";
+                        ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH + " TEXT NOT NULL, " +
+                        ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT + " INTEGER NOT NULL DEFAULT " +
+                        ProductsEntry.PICTURE_FORMAT_UNKNOWN + ", " +
+                        ProductsEntry.COLUMN_PRODUCT_UUID + " TEXT, " +
+                        ProductsEntry.COLUMN_PRODUCT_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                        ProductsEntry.COLUMN_PRODUCT_SKU + " TEXT);";
 
         db.execSQL(SQL_CREATE_PRODUCTS_TABLE);
+
+        // Index used to find out whether a picture file is still used by any product
+        db.execSQL("CREATE INDEX products_picture_hash_idx ON " + ProductsEntry.TABLE_NAME +
+                " (" + ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH + ");");
+
+        // Indexes for every column the products can be sorted by when they are read one page
+        // at a time. The ID is part of each index, so the start of a page is a single lookup.
+        db.execSQL("CREATE INDEX products_name_idx ON " + ProductsEntry.TABLE_NAME +
+                " (" + ProductsEntry.COLUMN_PRODUCT_NAME + ", " + ProductsEntry._ID + ");");
+        db.execSQL("CREATE INDEX products_price_idx ON " + ProductsEntry.TABLE_NAME +
+                " (" + ProductsEntry.COLUMN_PRODUCT_PRICE + ", " + ProductsEntry._ID + ");");
+        db.execSQL("CREATE INDEX products_quantity_idx ON " + ProductsEntry.TABLE_NAME +
+                " (" + ProductsEntry.COLUMN_PRODUCT_QUANTITY + ", " + ProductsEntry._ID + ");");
+
+        // The changes pulled from the inventory service name the products by their identifier
+        db.execSQL("CREATE UNIQUE INDEX products_uuid_idx ON " + ProductsEntry.TABLE_NAME +
+                " (" + ProductsEntry.COLUMN_PRODUCT_UUID + ");");
+
+        // A scanned barcode names the product by its SKU. Products without one are all NULL.
+        db.execSQL("CREATE UNIQUE INDEX products_sku_idx ON " + ProductsEntry.TABLE_NAME +
+                " (" + ProductsEntry.COLUMN_PRODUCT_SKU + ");");
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    /**
+     * Create the table with the tokens of the applied sale batches.
+     */
+    private static void createSaleBatchesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SALE_BATCHES_TABLE_NAME + " (" +
+                COLUMN_TOKEN + " TEXT PRIMARY KEY, " +
+                COLUMN_APPLIED_AT + " INTEGER NOT NULL);");
+    }
+
+    /**
+     * Create the summary table with its single row and the triggers that keep it up to date.
+     * Every trigger adds the contribution of the new row and takes off the one of the old row,
+     * so the summary never has to look at any other product.
+     */
+    private static void createSummaryTable(SQLiteDatabase db) {
+        String quantity = ProductsEntry.COLUMN_PRODUCT_QUANTITY;
+        String price = ProductsEntry.COLUMN_PRODUCT_PRICE;
+        db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + " (" +
+                SummaryEntry._ID + " INTEGER PRIMARY KEY, " +
+                SummaryEntry.COLUMN_PRODUCT_COUNT + " INTEGER NOT NULL, " +
+                SummaryEntry.COLUMN_TOTAL_QUANTITY + " INTEGER NOT NULL, " +
+                SummaryEntry.COLUMN_TOTAL_VALUE + " INTEGER NOT NULL, " +
+                SummaryEntry.COLUMN_LOW_STOCK_COUNT + " INTEGER NOT NULL, " +
+                SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " VALUES (1, 0, 0, 0, 0, 0);");
+        db.execSQL("CREATE TRIGGER products_summary_insert AFTER INSERT ON " + ProductsEntry.TABLE_NAME +
+                " BEGIN " + updateSummary("+", "new", quantity, price) + " END;");
+        db.execSQL("CREATE TRIGGER products_summary_delete AFTER DELETE ON " + ProductsEntry.TABLE_NAME +
+                " BEGIN " + updateSummary("-", "old", quantity, price) + " END;");
+        db.execSQL("CREATE TRIGGER products_summary_update AFTER UPDATE OF " + quantity + ", " + price +
+                " ON " + ProductsEntry.TABLE_NAME +
+                " BEGIN " + updateSummary("-", "old", quantity, price) +
+                " " + updateSummary("+", "new", quantity, price) + " END;");
+    }
+
+    /**
+     * Return the statement that adds (sign "+") or takes off (sign "-") the contribution of the
+     * new or old row in a trigger to the summary.
+     */
+    private static String updateSummary(String sign, String row, String quantity, String price) {
+        return "UPDATE " + SummaryEntry.TABLE_NAME + " SET " +
+                SummaryEntry.COLUMN_PRODUCT_COUNT + " = " + SummaryEntry.COLUMN_PRODUCT_COUNT + " " + sign + " 1, " +
+                SummaryEntry.COLUMN_TOTAL_QUANTITY + " = " + SummaryEntry.COLUMN_TOTAL_QUANTITY +
+                " " + sign + " " + row + "." + quantity + ", " +
+                SummaryEntry.COLUMN_TOTAL_VALUE + " = " + SummaryEntry.COLUMN_TOTAL_VALUE +
+                " " + sign + " " + row + "." + price + " * " + row + "." + quantity + ", " +
+                SummaryEntry.COLUMN_LOW_STOCK_COUNT + " = " + SummaryEntry.COLUMN_LOW_STOCK_COUNT +
+                " " + sign + " (" + row + "." + quantity + " < " + SummaryEntry.LOW_STOCK_THRESHOLD + "), " +
+                SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT + " = " + SummaryEntry.COLUMN_OUT_OF_STOCK_COUNT +
+                " " + sign + " (" + row + "." + quantity + " = 0);";
+    }
+
+    /**
+     * Create the full text search table for the product names and the triggers that keep it in
+     * sync with the products table. The docid of each search row is the ID of its product.
+     */
+    private static void createSearchTable(SQLiteDatabase db) {
+        String name = ProductsEntry.COLUMN_PRODUCT_NAME;
+        createFtsTable(db, ProductsEntry.SEARCH_TABLE_NAME, name);
+        db.execSQL("CREATE TRIGGER products_fts_insert AFTER INSERT ON " + ProductsEntry.TABLE_NAME +
+                " BEGIN INSERT INTO " + ProductsEntry.SEARCH_TABLE_NAME + " (docid, " + name + ")" +
+                " VALUES (new." + ProductsEntry._ID + ", new." + name + "); END;");
+        db.execSQL("CREATE TRIGGER products_fts_update AFTER UPDATE OF " + name +
+                " ON " + ProductsEntry.TABLE_NAME +
+                " BEGIN UPDATE " + ProductsEntry.SEARCH_TABLE_NAME + " SET " + name + " = new." + name +
+                " WHERE docid = old." + ProductsEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER products_fts_delete AFTER DELETE ON " + ProductsEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + ProductsEntry.SEARCH_TABLE_NAME +
+                " WHERE docid = old." + ProductsEntry._ID + "; END;");
+    }
+
+    /**
+     * Create a full text search table with one column. The unicode61 tokenizer also ignores the
+     * case of non latin letters, but it is only in the SQLite versions shipped since Lollipop,
+     * and not in every build of SQLite since, e.g. the one of the JVM tests; the simple
+     * tokenizer is used where it is missing.
+     */
+    static void createFtsTable(SQLiteDatabase db, String table, String column) {
+        String tokenizer = hasUnicode61Tokenizer() ? "unicode61" : "simple";
+        db.execSQL("CREATE VIRTUAL TABLE " + table + " USING fts4(" + column + ", tokenize=" + tokenizer + ");");
+    }
 
+    /**
+     * @return true if the SQLite of the device has the unicode61 tokenizer
+     */
+    private static boolean hasUnicode61Tokenizer() {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP){
+            return false;
+        }
+        // Tried in a database of its own, some versions of SQLite keep the broken table of a
+        // failed attempt, which cannot even be dropped
+        SQLiteDatabase probe = SQLiteDatabase.create(null);
+        try {
+            probe.execSQL("CREATE VIRTUAL TABLE probe USING fts4(tokenize=unicode61);");
+            return true;
+        } catch (SQLiteException e) {
+            return false;
+        } finally {
+            probe.close();
+        }
     }
 }
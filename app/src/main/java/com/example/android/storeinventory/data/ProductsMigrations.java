@@ -0,0 +1,584 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.InventoryContract.SummaryEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All the upgrade steps of the inventory database, in order of version.
+ * To change the schema, add a new step at the end of {@link #create(Context)}, update the
+ * current schema in {@link ProductsDbHelper#onCreate} and increment
+ * {@link ProductsDbHelper#DATABASE_VERSION}.
+ */
+public final class ProductsMigrations {
+
+    private ProductsMigrations() {
+    }
+
+    /**
+     * Return the list of all the upgrade steps, in order of version.
+     */
+    public static List<Migration> create(Context context) {
+        List<Migration> migrations = new ArrayList<Migration>();
+        migrations.add(new PicturesToFiles(new PictureStore(context)));
+        migrations.add(new SortIndexes());
+        migrations.add(new SearchTable());
+        migrations.add(new PricesInMinorUnits());
+        migrations.add(new SaleBatches());
+        migrations.add(new StockMovements());
+        migrations.add(new Summary());
+        migrations.add(new PictureFormats(new PictureStore(context)));
+        migrations.add(new DeltaSync());
+        migrations.add(new Skus());
+        migrations.add(new PushBound());
+        return Collections.unmodifiableList(migrations);
+    }
+
+    /**
+     * Version 2 moves the pictures out of the products table into the {@link PictureStore}.
+     * The schema step renames the old table, which keeps the pictures, and creates the new
+     * products table empty. The first chunks copy every column but the picture into the new table,
+     * with an empty picture hash, many rows at a time since the pictures are not read. The
+     * chunks after them save the old pictures to files a few at a time, delete their rows from
+     * the old table and drop it at the end.
+     */
+    static class PicturesToFiles extends Migration {
+
+        /** Table that keeps the products of version 1 until they are copied and their pictures moved */
+        static final String LEGACY_TABLE_NAME = "products_pictures_v1";
+
+        /** Most pictures moved in one chunk, so large pictures never overflow the cursor window */
+        private static final int MAX_PICTURES_PER_CHUNK = 20;
+
+        private final PictureStore mPictureStore;
+
+        PicturesToFiles(PictureStore pictureStore) {
+            super(2);
+            mPictureStore = pictureStore;
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE products RENAME TO " + LEGACY_TABLE_NAME + ";");
+            db.execSQL("CREATE TABLE products (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "name TEXT NOT NULL, " +
+                    "price INTEGER NOT NULL, " +
+                    "quantity INTEGER NOT NULL DEFAULT 0, " +
+                    "picture_hash TEXT NOT NULL);");
+            // Keep the AUTOINCREMENT counter, so products written before the old ones are copied
+            // never take their IDs, and IDs of deleted products are not handed out again
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'products';");
+            db.execSQL("UPDATE sqlite_sequence SET name = 'products'" +
+                    " WHERE name = '" + LEGACY_TABLE_NAME + "';");
+            db.execSQL("CREATE INDEX products_picture_hash_idx ON products (picture_hash);");
+        }
+
+        @Override
+        public boolean hasChunks() {
+            return true;
+        }
+
+        @Override
+        public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+            // The progress is the ID of the last product copied
+            long lastId = DatabaseUtils.longForQuery(db,
+                    "SELECT ifnull(max(_id), -1) FROM (SELECT _id FROM " + LEGACY_TABLE_NAME +
+                            " WHERE _id>? ORDER BY _id LIMIT ?)",
+                    new String[] {String.valueOf(progress), String.valueOf(chunkSize)});
+            if(lastId != -1){
+                copyProducts(db, progress, lastId);
+                return lastId;
+            }
+            return movePictures(db) ? progress : DONE;
+        }
+
+        /**
+         * Copy the products with IDs in the given range from the old table. The old table keeps
+         * the prices of version 1, so once the schema step of version 5 has converted the prices
+         * in the products table, the copies are converted the same way. The triggers of the later
+         * versions take care of the search table and the summary, like for any new product.
+         */
+        private static void copyProducts(SQLiteDatabase db, long fromId, long toId) {
+            String price = db.getVersion() >= 5 ? "CAST(round(price * 100) AS INTEGER)" : "price";
+            // The picture column is the last one, so its pages are not read while copying
+            db.execSQL("INSERT INTO products (_id, name, price, quantity, picture_hash)" +
+                    " SELECT _id, name, " + price + ", quantity, '' FROM " + LEGACY_TABLE_NAME +
+                    " WHERE _id>? AND _id<=?;", new Object[] {fromId, toId});
+        }
+
+        /**
+         * Move the first few pictures left in the old table to files and delete their rows, or
+         * drop the old table once it is empty.
+         * @return false if there were no pictures left
+         */
+        private boolean movePictures(SQLiteDatabase db) {
+            Cursor cursor = db.query(LEGACY_TABLE_NAME, new String[] {"_id", "picture"},
+                    null, null, null, null, "_id", String.valueOf(MAX_PICTURES_PER_CHUNK));
+            long id = -1;
+            try {
+                if(cursor.getCount() == 0){
+                    db.execSQL("DROP TABLE " + LEGACY_TABLE_NAME + ";");
+                    return false;
+                }
+                while(cursor.moveToNext()){
+                    id = cursor.getLong(0);
+                    String hash = mPictureStore.put(cursor.getBlob(1));
+                    // Only fill in the hash if the product still exists and its picture has not
+                    // been changed since it was copied
+                    ContentValues values = new ContentValues();
+                    values.put("picture_hash", hash);
+                    int rowsUpdated = db.update("products", values, "_id=? AND picture_hash=''",
+                            new String[] {String.valueOf(id)});
+                    if(rowsUpdated == 0 && DatabaseUtils.queryNumEntries(db, "products",
+                            "picture_hash=?", new String[] {hash}) == 0){
+                        mPictureStore.delete(hash);
+                    }
+                }
+            } catch (IOException e) {
+                // The chunk is rolled back and tried again the next time
+                throw new IllegalStateException("Failed to move the picture of product " + id, e);
+            } finally {
+                cursor.close();
+            }
+            db.delete(LEGACY_TABLE_NAME, "_id<=?", new String[] {String.valueOf(id)});
+            return true;
+        }
+    }
+
+    /**
+     * Version 3 adds the indexes used to read the products one page at a time. An index cannot be
+     * built in parts, so each chunk builds one whole index in the background.
+     */
+    static class SortIndexes extends Migration {
+
+        /** Statements that create the indexes, one per chunk */
+        private static final String[] CREATE_INDEXES = {
+                "CREATE INDEX IF NOT EXISTS products_name_idx ON products (name, _id);",
+                "CREATE INDEX IF NOT EXISTS products_price_idx ON products (price, _id);",
+                "CREATE INDEX IF NOT EXISTS products_quantity_idx ON products (quantity, _id);"
+        };
+
+        SortIndexes() {
+            super(3);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            // Nothing to do here, the indexes are built in the background
+        }
+
+        @Override
+        public boolean hasChunks() {
+            return true;
+        }
+
+        @Override
+        public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+            db.execSQL(CREATE_INDEXES[(int) progress]);
+            progress++;
+            return progress < CREATE_INDEXES.length ? progress : DONE;
+        }
+    }
+
+    /**
+     * Version 4 adds the full text search table for the product names and the triggers that
+     * keep it in sync. The triggers take care of every product written after the upgrade; the
+     * chunks copy the names of the products that already existed.
+     */
+    static class SearchTable extends Migration {
+
+        SearchTable() {
+            super(4);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            ProductsDbHelper.createFtsTable(db, "products_fts", "name");
+            db.execSQL("CREATE TRIGGER products_fts_insert AFTER INSERT ON products" +
+                    " BEGIN INSERT INTO products_fts (docid, name) VALUES (new._id, new.name); END;");
+            db.execSQL("CREATE TRIGGER products_fts_update AFTER UPDATE OF name ON products" +
+                    " BEGIN UPDATE products_fts SET name = new.name WHERE docid = old._id; END;");
+            db.execSQL("CREATE TRIGGER products_fts_delete AFTER DELETE ON products" +
+                    " BEGIN DELETE FROM products_fts WHERE docid = old._id; END;");
+        }
+
+        @Override
+        public boolean hasChunks() {
+            return true;
+        }
+
+        @Override
+        public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+            String[] args = new String[] {String.valueOf(progress), String.valueOf(chunkSize)};
+            long lastId = DatabaseUtils.longForQuery(db,
+                    "SELECT ifnull(max(_id), -1) FROM (SELECT _id FROM products" +
+                            " WHERE _id>? ORDER BY _id LIMIT ?)", args);
+            if(lastId == -1){
+                return DONE;
+            }
+            // Products that were written after the upgrade are already there
+            db.execSQL("INSERT INTO products_fts (docid, name)" +
+                    " SELECT _id, name FROM products WHERE _id>? AND _id<=?" +
+                    " AND NOT EXISTS (SELECT 1 FROM products_fts WHERE docid = products._id);",
+                    new Object[] {progress, lastId});
+            return lastId;
+        }
+    }
+
+    /**
+     * Version 5 stores the prices as whole numbers of minor currency units instead of currency
+     * units with decimals. All rows are converted in the schema step: a price column that is
+     * only partly converted would leave rows whose unit cannot be told apart, and converting an
+     * integer column is a single pass that reads no other data.
+     */
+    static class PricesInMinorUnits extends Migration {
+
+        PricesInMinorUnits() {
+            super(5);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("UPDATE products SET price = CAST(round(price * 100) AS INTEGER);");
+        }
+    }
+
+    /**
+     * Version 6 adds the table with the tokens of the sale batches that have been applied,
+     * so a batch that is sent again is not applied twice. The table starts empty.
+     */
+    static class SaleBatches extends Migration {
+
+        SaleBatches() {
+            super(6);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE sale_batches (token TEXT PRIMARY KEY, applied_at INTEGER NOT NULL);");
+        }
+    }
+
+    /**
+     * Version 7 adds the stock movements ledger. From the upgrade on, every change of a quantity
+     * appends a movement, so the chunks only have to give each existing product an opening
+     * balance: a snapshot for the part of its quantity that no movement accounts for yet.
+     */
+    static class StockMovements extends Migration {
+
+        StockMovements() {
+            super(7);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE stock_movements (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "product_id INTEGER NOT NULL, delta INTEGER NOT NULL, kind INTEGER NOT NULL, " +
+                    "created_at INTEGER NOT NULL);");
+            db.execSQL("CREATE INDEX stock_movements_product_idx ON stock_movements (product_id, created_at);");
+            db.execSQL("CREATE INDEX stock_movements_created_at_idx ON stock_movements (created_at);");
+        }
+
+        @Override
+        public boolean hasChunks() {
+            return true;
+        }
+
+        @Override
+        public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+            String[] args = new String[] {String.valueOf(progress), String.valueOf(chunkSize)};
+            long lastId = DatabaseUtils.longForQuery(db,
+                    "SELECT ifnull(max(_id), -1) FROM (SELECT _id FROM products" +
+                            " WHERE _id>? ORDER BY _id LIMIT ?)", args);
+            if(lastId == -1){
+                return DONE;
+            }
+            // Kind 4 is a snapshot. Products whose movements already add up to their
+            // quantity, e.g. the ones written after the upgrade, get none.
+            db.execSQL("INSERT INTO stock_movements (product_id, delta, kind, created_at)" +
+                    " SELECT _id, quantity - ifnull((SELECT sum(delta) FROM stock_movements" +
+                    " WHERE product_id = products._id), 0), 4, ?" +
+                    " FROM products WHERE _id>? AND _id<=? AND quantity <> ifnull((SELECT sum(delta)" +
+                    " FROM stock_movements WHERE product_id = products._id), 0);",
+                    new Object[] {System.currentTimeMillis(), progress, lastId});
+            return lastId;
+        }
+    }
+
+    /**
+     * Version 8 adds the summary of all the products and the triggers that keep it up to date.
+     * The summary is computed in the schema step: a summary that is only partly computed
+     * would be changed by the triggers for products it does not count yet, and one pass of
+     * sums over the products table is quick. Low stock is counted with the same
+     * {@link SummaryEntry#LOW_STOCK_THRESHOLD} as in a new database.
+     */
+    static class Summary extends Migration {
+
+        Summary() {
+            super(8);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE products_summary (_id INTEGER PRIMARY KEY, " +
+                    "product_count INTEGER NOT NULL, total_quantity INTEGER NOT NULL, " +
+                    "total_value INTEGER NOT NULL, low_stock_count INTEGER NOT NULL, " +
+                    "out_of_stock_count INTEGER NOT NULL);");
+            db.execSQL("INSERT INTO products_summary SELECT 1, count(*), ifnull(sum(quantity), 0)," +
+                    " ifnull(sum(price * quantity), 0), ifnull(sum(quantity < " + SummaryEntry.LOW_STOCK_THRESHOLD + "), 0)," +
+                    " ifnull(sum(quantity = 0), 0) FROM products;");
+            db.execSQL("CREATE TRIGGER products_summary_insert AFTER INSERT ON products BEGIN" +
+                    " UPDATE products_summary SET product_count = product_count + 1," +
+                    " total_quantity = total_quantity + new.quantity," +
+                    " total_value = total_value + new.price * new.quantity," +
+                    " low_stock_count = low_stock_count + (new.quantity < " + SummaryEntry.LOW_STOCK_THRESHOLD + ")," +
+                    " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;");
+            db.execSQL("CREATE TRIGGER products_summary_delete AFTER DELETE ON products BEGIN" +
+                    " UPDATE products_summary SET product_count = product_count - 1," +
+                    " total_quantity = total_quantity - old.quantity," +
+                    " total_value = total_value - old.price * old.quantity," +
+                    " low_stock_count = low_stock_count - (old.quantity < " + SummaryEntry.LOW_STOCK_THRESHOLD + ")," +
+                    " out_of_stock_count = out_of_stock_count - (old.quantity = 0); END;");
+            db.execSQL("CREATE TRIGGER products_summary_update AFTER UPDATE OF quantity, price ON products BEGIN" +
+                    " UPDATE products_summary SET product_count = product_count - 1," +
+                    " total_quantity = total_quantity - old.quantity," +
+                    " total_value = total_value - old.price * old.quantity," +
+                    " low_stock_count = low_stock_count - (old.quantity < " + SummaryEntry.LOW_STOCK_THRESHOLD + ")," +
+                    " out_of_stock_count = out_of_stock_count - (old.quantity = 0);" +
+                    " UPDATE products_summary SET product_count = product_count + 1," +
+                    " total_quantity = total_quantity + new.quantity," +
+                    " total_value = total_value + new.price * new.quantity," +
+                    " low_stock_count = low_stock_count + (new.quantity < " + SummaryEntry.LOW_STOCK_THRESHOLD + ")," +
+                    " out_of_stock_count = out_of_stock_count + (new.quantity = 0); END;");
+        }
+    }
+
+    /**
+     * Version 9 adds the format of the pictures and encodes the pictures saved as lossless PNG
+     * again with {@link PictureEncoder}, which makes the photos several times smaller. The chunks
+     * go through the products that have no format yet a few pictures at a time. The old files are
+     * not deleted here, because a chunk that is rolled back would still need them: the provider
+     * deletes the pictures that are no longer used once the whole step is done.
+     */
+    static class PictureFormats extends Migration {
+
+        /** Tag for the log messages */
+        private static final String LOG_TAG = PictureFormats.class.getSimpleName();
+
+        /** Most pictures encoded in one chunk, encoding takes much longer than reading a row */
+        private static final int MAX_PICTURES_PER_CHUNK = 20;
+
+        private final PictureStore mPictureStore;
+
+        PictureFormats(PictureStore pictureStore) {
+            super(9);
+            mPictureStore = pictureStore;
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE products ADD COLUMN picture_format INTEGER NOT NULL DEFAULT 0;");
+        }
+
+        @Override
+        public boolean hasChunks() {
+            return true;
+        }
+
+        @Override
+        public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+            Cursor cursor = db.query("products", new String[] {"_id", "picture_hash"},
+                    "_id>? AND picture_format=0", new String[] {String.valueOf(progress)}, null, null, "_id",
+                    String.valueOf(Math.min(chunkSize, MAX_PICTURES_PER_CHUNK)));
+            try {
+                if(cursor.getCount() == 0){
+                    return DONE;
+                }
+                while(cursor.moveToNext()){
+                    progress = cursor.getLong(0);
+                    String hash = cursor.getString(1);
+                    byte[] picture = readPicture(hash);
+                    if(picture == null){
+                        // Nothing to encode, the format stays unknown
+                        continue;
+                    }
+                    // Only the lossless pictures are encoded again, a lossy one would lose more detail
+                    byte[] encoded = PictureEncoder.detectFormat(picture) == ProductsEntry.PICTURE_FORMAT_PNG
+                            ? encode(picture) : null;
+                    ContentValues values = new ContentValues();
+                    if(encoded != null && encoded.length < picture.length){
+                        values.put("picture_hash", mPictureStore.put(encoded));
+                        values.put("picture_format", PictureEncoder.detectFormat(encoded));
+                    }
+                    else {
+                        // The picture is as small as it gets already, only tag its format
+                        values.put("picture_format", PictureEncoder.detectFormat(picture));
+                    }
+                    // Only change the product if its picture has not been changed since the chunk started
+                    db.update("products", values, "_id=? AND picture_hash=?",
+                            new String[] {String.valueOf(progress), hash});
+                }
+                return progress;
+            } catch (IOException e) {
+                // The chunk is rolled back and tried again the next time
+                throw new IllegalStateException("Failed to encode the picture of product " + progress, e);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * @return the bytes of the stored picture with the given hash, or null if there are none
+         */
+        private byte[] readPicture(String hash) throws IOException {
+            if(hash == null || hash.isEmpty()){
+                return null;
+            }
+            File file = mPictureStore.getFile(hash);
+            if(!file.isFile()){
+                Log.w(LOG_TAG, "Missing picture " + hash);
+                return null;
+            }
+            byte[] picture = new byte[(int) file.length()];
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                int offset = 0;
+                int length;
+                while(offset < picture.length
+                        && (length = inputStream.read(picture, offset, picture.length - offset)) != -1){
+                    offset += length;
+                }
+            } finally {
+                inputStream.close();
+            }
+            return picture;
+        }
+
+        /**
+         * @return the picture encoded with the default encoder, or null if it cannot be decoded
+         */
+        private static byte[] encode(byte[] picture) {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length);
+            if(bitmap == null){
+                return null;
+            }
+            try {
+                return PictureEncoder.getDefault().encode(bitmap);
+            } finally {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Version 10 adds what the devices need to sync with the inventory service: an identifier
+     * and a version for every product, the log of the changes that are still to be sent and the
+     * state of the sync. The chunks give the existing products their identifier and log each of
+     * them as a new product with all its units, which replaces whatever changes were logged for
+     * it before it had an identifier.
+     */
+    static class DeltaSync extends Migration {
+
+        DeltaSync() {
+            super(10);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE products ADD COLUMN uuid TEXT;");
+            db.execSQL("ALTER TABLE products ADD COLUMN version INTEGER NOT NULL DEFAULT 0;");
+            // Products without an identifier yet are all NULL, which a unique index allows
+            db.execSQL("CREATE UNIQUE INDEX products_uuid_idx ON products (uuid);");
+            db.execSQL("CREATE TABLE product_changes (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "product_id INTEGER NOT NULL, product_uuid TEXT, version INTEGER NOT NULL, " +
+                    "deleted INTEGER NOT NULL DEFAULT 0, name TEXT, price INTEGER, picture_hash TEXT, " +
+                    "quantity_delta INTEGER NOT NULL DEFAULT 0, created_at INTEGER NOT NULL);");
+            db.execSQL("CREATE INDEX product_changes_product_idx ON product_changes (product_id);");
+            db.execSQL("CREATE TABLE sync_state (_id INTEGER PRIMARY KEY, device_id TEXT NOT NULL, " +
+                    "pull_watermark INTEGER NOT NULL);");
+            db.execSQL("INSERT INTO sync_state VALUES (1, lower(hex(randomblob(16))), 0);");
+        }
+
+        @Override
+        public boolean hasChunks() {
+            return true;
+        }
+
+        @Override
+        public long migrateChunk(SQLiteDatabase db, long progress, int chunkSize) {
+            String[] args = new String[] {String.valueOf(progress), String.valueOf(chunkSize)};
+            long lastId = DatabaseUtils.longForQuery(db,
+                    "SELECT ifnull(max(_id), -1) FROM (SELECT _id FROM products" +
+                            " WHERE _id>? ORDER BY _id LIMIT ?)", args);
+            if(lastId == -1){
+                return DONE;
+            }
+            Object[] range = new Object[] {progress, lastId};
+            // Products inserted since the upgrade have an identifier and have been logged already
+            db.execSQL("DELETE FROM product_changes WHERE product_uuid IS NULL" +
+                    " AND product_id>? AND product_id<=?;", range);
+            db.execSQL("INSERT INTO product_changes (product_id, product_uuid, version, deleted, name," +
+                    " price, picture_hash, quantity_delta, created_at)" +
+                    " SELECT _id, NULL, version, 0, name, price, picture_hash, quantity, ?" +
+                    " FROM products WHERE _id>? AND _id<=? AND uuid IS NULL;",
+                    new Object[] {System.currentTimeMillis(), progress, lastId});
+            db.execSQL("UPDATE products SET uuid = lower(hex(randomblob(16)))" +
+                    " WHERE _id>? AND _id<=? AND uuid IS NULL;", range);
+            db.execSQL("UPDATE product_changes SET product_uuid = (SELECT uuid FROM products" +
+                    " WHERE products._id = product_changes.product_id)" +
+                    " WHERE product_uuid IS NULL AND product_id>? AND product_id<=?;", range);
+            return lastId;
+        }
+    }
+
+    /**
+     * Version 11 adds the SKU of the products, the code in their barcode, with a unique index to
+     * find a product by the code scanned at the till. No product has a SKU yet, which the index
+     * allows, so there is nothing to do in chunks.
+     */
+    static class Skus extends Migration {
+
+        Skus() {
+            super(11);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE products ADD COLUMN sku TEXT;");
+            db.execSQL("CREATE UNIQUE INDEX products_sku_idx ON products (sku);");
+        }
+    }
+
+    /**
+     * Version 12 remembers the batch of changes that has been sent to the inventory service
+     * without an answer, so it is sent again unchanged instead of being folded into later changes.
+     * No batch is waiting at the upgrade, so there is nothing to do in chunks.
+     */
+    static class PushBound extends Migration {
+
+        PushBound() {
+            super(12);
+        }
+
+        @Override
+        public void migrateSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE sync_state ADD COLUMN push_bound INTEGER NOT NULL DEFAULT 0;");
+        }
+    }
+}
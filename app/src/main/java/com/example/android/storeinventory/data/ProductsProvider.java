@@ -1,16 +1,46 @@
 package com.example.android.storeinventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.InventoryContract.StockMovementsEntry;
+import com.example.android.storeinventory.data.InventoryContract.SummaryEntry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * ContentProvider for the Store Inventory app.
@@ -26,6 +56,24 @@ public class ProductsProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single product in the products table */
     public static final int PRODUCT_ID = 101;
 
+    /** URI matcher code for the content URI for the picture of a single product */
+    public static final int PRODUCT_PICTURE = 102;
+
+    /** URI matcher code for the content URI that searches the products by name */
+    public static final int PRODUCT_SEARCH = 103;
+
+    /** URI matcher code for the content URI for the summary of all the products */
+    public static final int PRODUCT_SUMMARY = 104;
+
+    /** URI matcher code for the content URI that exports all the products as CSV */
+    public static final int PRODUCT_EXPORT = 105;
+
+    /** URI matcher code for the content URI for the product with a SKU */
+    public static final int PRODUCT_SKU = 106;
+
+    /** URI matcher code for the content URI for the stock movements */
+    public static final int MOVEMENTS = 200;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -51,21 +99,285 @@ public class ProductsProvider extends ContentProvider {
         // For example, "content://com.example.android.storeinventory/products/3" matches, but
         // "content://com.example.android.storeinventory/products" (without a number at the end) doesn't match.
         sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_PRODUCTS + "/#", PRODUCT_ID);
+        // The content URI of the form "content://com.example.android.storeinventory/products/#/picture"
+        // will map to the integer code {@link #PRODUCT_PICTURE}. This URI is only used to open
+        // the picture file of ONE single product through openFile().
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY,
+                InventoryContract.PATH_PRODUCTS + "/#/" + InventoryContract.PATH_PICTURE, PRODUCT_PICTURE);
+        // The content URI of the form "content://com.example.android.storeinventory/products/search"
+        // will map to the integer code {@link #PRODUCT_SEARCH}. This URI is used to search
+        // the products by name.
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY,
+                InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_SEARCH, PRODUCT_SEARCH);
+        // The content URI of the form "content://com.example.android.storeinventory/products/summary"
+        // will map to the integer code {@link #PRODUCT_SUMMARY}. This URI is used to read the
+        // totals of all the products, which the database keeps up to date.
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY,
+                InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_SUMMARY, PRODUCT_SUMMARY);
+        // The content URI of the form "content://com.example.android.storeinventory/products/export"
+        // will map to the integer code {@link #PRODUCT_EXPORT}. This URI is only used to read
+        // all the products as a CSV file through openFile().
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY,
+                InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_EXPORT, PRODUCT_EXPORT);
+        // The content URI of the form "content://com.example.android.storeinventory/products/sku/*"
+        // will map to the integer code {@link #PRODUCT_SKU}. This URI is used to read ONE single
+        // product by the SKU in its barcode, where "*" is the SKU.
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY,
+                InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_SKU + "/*", PRODUCT_SKU);
+        // The content URI of the form "content://com.example.android.storeinventory/movements"
+        // will map to the integer code {@link #MOVEMENTS}. This URI is used to read the
+        // stock movements of the products.
+        sUriMatcher.addURI(InventoryContract.CONTENT_AUTHORITY, InventoryContract.PATH_MOVEMENTS, MOVEMENTS);
     }
 
+    /** SQL assignment that raises the version of a product, see {@link ChangeLog} */
+    private static final String SQL_NEXT_VERSION =
+            ProductsEntry.COLUMN_PRODUCT_VERSION + " = " + ProductsEntry.COLUMN_PRODUCT_VERSION + " + 1";
+
+    /**
+     * SQL statement that lowers the quantity of one product, but only if there is enough stock.
+     * Arguments: units to sell, product ID, units to sell.
+     */
+    private static final String SQL_SELL_PRODUCT =
+            "UPDATE " + ProductsEntry.TABLE_NAME +
+                    " SET " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductsEntry.COLUMN_PRODUCT_QUANTITY + " - ?, " + SQL_NEXT_VERSION +
+                    " WHERE " + ProductsEntry._ID + " = ?" +
+                    " AND " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " >= ?";
+
+    /**
+     * SQL statement that lowers the quantity of one product, but only if it still has the SKU
+     * it is thought to have and there is enough stock.
+     * Arguments: units to sell, product ID, SKU, units to sell.
+     */
+    private static final String SQL_SELL_PRODUCT_WITH_SKU =
+            "UPDATE " + ProductsEntry.TABLE_NAME +
+                    " SET " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductsEntry.COLUMN_PRODUCT_QUANTITY + " - ?, " + SQL_NEXT_VERSION +
+                    " WHERE " + ProductsEntry._ID + " = ?" +
+                    " AND " + ProductsEntry.COLUMN_PRODUCT_SKU + " = ?" +
+                    " AND " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " >= ?";
+
+    /**
+     * SQL statement that lowers the quantity of one product by a number of units that is
+     * known to be in stock. Arguments: units to sell, product ID.
+     */
+    private static final String SQL_SELL_IN_STOCK =
+            "UPDATE " + ProductsEntry.TABLE_NAME +
+                    " SET " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductsEntry.COLUMN_PRODUCT_QUANTITY + " - ?, " + SQL_NEXT_VERSION +
+                    " WHERE " + ProductsEntry._ID + " = ?";
+
+    /** SQL query for the quantity of one product. Arguments: product ID. */
+    private static final String SQL_QUERY_QUANTITY =
+            "SELECT " + ProductsEntry.COLUMN_PRODUCT_QUANTITY +
+                    " FROM " + ProductsEntry.TABLE_NAME + " WHERE " + ProductsEntry._ID + "=?";
+
+    /**
+     * SQL statement that raises the quantity of one product. Arguments: units received, product ID.
+     */
+    private static final String SQL_RECEIVE_PRODUCT =
+            "UPDATE " + ProductsEntry.TABLE_NAME +
+                    " SET " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductsEntry.COLUMN_PRODUCT_QUANTITY + " + ?, " + SQL_NEXT_VERSION +
+                    " WHERE " + ProductsEntry._ID + " = ?";
+
+    /** Time in milliseconds the tokens of applied sale batches are kept */
+    private static final long SALE_BATCH_TOKEN_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    /** Number of products read from the database at a time while exporting */
+    private static final int EXPORT_PAGE_SIZE = 1000;
+
+    /** Most bytes the rows of the products read by ID may take in the cache */
+    private static final int ROW_CACHE_SIZE = 256 * 1024;
+
+    /** Times a chunk of background work is tried before it is left for the next start */
+    private static final int MAX_CHUNK_ATTEMPTS = 5;
+
+    /** Pause in milliseconds before a failed chunk is tried again the first time, doubled after each */
+    private static final long CHUNK_RETRY_DELAY = 1000;
+
+    /** File name of the database */
+    private final String mDatabaseName;
+
     /** Database helper object */
     private ProductsDbHelper mDbHelper;
 
+    /** Runs all the writes to the database, one group of writes per transaction */
+    private DatabaseWriter mWriter;
+
+    /**
+     * Store for the product pictures. Saving a picture together with the row that references it,
+     * and deleting a picture that is no longer referenced, both hold the lock of this object,
+     * so a picture can never be deleted while a new row starts using it.
+     */
+    private PictureStore mPictureStore;
+
+    /**
+     * The products read by ID most recently. Every write path invalidates the rows it changes
+     * once it has been committed, before the listeners are notified, so they read the new values.
+     */
+    private ProductRowCache mRowCache;
+
+    /**
+     * Which product has which SKU, so a scanned barcode is read or sold by the ID of its
+     * product. Every write that gives, moves or takes away a SKU updates it once it has been
+     * committed. Its entries are hints that are always checked against the product.
+     */
+    private SkuIndex mSkuIndex;
+
+    /**
+     * True while the calling thread is inside {@link #applyBatch(ArrayList)}. The single-row write
+     * paths then skip their own change notification and only mark the batch as dirty.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /** True if a write happened during the current batch on the calling thread */
+    private final ThreadLocal<Boolean> mBatchHasChanges = new ThreadLocal<Boolean>();
+
+    /** Sends the local changes to the inventory service and applies the ones of other devices */
+    private SyncEngine mSyncEngine;
+
+    /** Times the operations while enabled, see {@link ProductsEntry#METHOD_SET_STATS_ENABLED} */
+    private final ProviderStats mStats = new ProviderStats();
+
+    public ProductsProvider() {
+        this(ProductsDbHelper.DATABASE_NAME);
+    }
+
+    /**
+     * Create a provider for the database with the given file name, which keeps its pictures
+     * apart from the ones of the app. Used by the tests to play more than one device.
+     */
+    ProductsProvider(String databaseName) {
+        mDatabaseName = databaseName;
+    }
+
     @Override
     public boolean onCreate() {
-        mDbHelper = new ProductsDbHelper(getContext());
+        // The queries are timed through the cursors of the factory
+        mDbHelper = new ProductsDbHelper(getContext(), mDatabaseName, mStats.getCursorFactory());
+        if(ProductsDbHelper.DATABASE_NAME.equals(mDatabaseName)){
+            mPictureStore = new PictureStore(getContext());
+        }
+        else {
+            mPictureStore = new PictureStore(getContext(), mDatabaseName + "-pictures");
+        }
+        mRowCache = new ProductRowCache(ROW_CACHE_SIZE);
+        mSkuIndex = new SkuIndex();
+        mWriter = new DatabaseWriter(mDbHelper, "ProductsWriter");
+        mSyncEngine = new SyncEngine(mDbHelper, mWriter, mPictureStore, new SyncEngine.Listener() {
+            @Override
+            public void onRemoteChangesApplied(Set<String> replacedPictureHashes) {
+                releasePictures(replacedPictureHashes);
+                // Any product may have changed, or been added or deleted
+                invalidateCachedProducts();
+                notifyProductsChanged(ProductsEntry.CONTENT_URI);
+            }
+        });
+
+        // Finish the heavy part of a database upgrade in the background, so that opening
+        // the app never has to wait for it. Each chunk is a write of its own, so the writes
+        // of the user can take turns with the chunks.
+        Thread migrationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // Load the SKUs first, the till may start scanning right away. Scans that come
+                // before the end fall back to the index of the database.
+                try {
+                    mSkuIndex.warm(mDbHelper.getReadableDatabase());
+                } catch (RuntimeException e) {
+                    // Scans are looked up in the database then, which only takes longer
+                    Log.e(LOG_TAG, "Failed to load the SKUs", e);
+                }
+
+                DatabaseWriter.Task<Boolean> chunk = new DatabaseWriter.Task<Boolean>() {
+                    @Override
+                    public Boolean run(SQLiteDatabase db) {
+                        return mDbHelper.runNextMigrationChunk(db);
+                    }
+                };
+                boolean migrated = false;
+                while(Boolean.TRUE.equals(runChunk(chunk, "upgrade"))){
+                    migrated = true;
+                    // Any row may have been changed by the chunk, or copied into the table
+                    mRowCache.invalidateAll();
+                    getContext().getContentResolver().notifyChange(ProductsEntry.CONTENT_URI, null);
+                }
+                if(migrated){
+                    // The pictures that have been encoded again left their old files behind
+                    runChunk(new DatabaseWriter.Task<Boolean>() {
+                        @Override
+                        public Boolean run(SQLiteDatabase db) {
+                            deleteUnusedPictures(db);
+                            return false;
+                        }
+                    }, "cleanup of the pictures");
+                }
+
+                // Roll the old stock movements into snapshots, a few products at a time
+                final long cutoff = StockLedger.getCompactionCutoff(System.currentTimeMillis());
+                DatabaseWriter.Task<Boolean> compaction = new DatabaseWriter.Task<Boolean>() {
+                    @Override
+                    public Boolean run(SQLiteDatabase db) {
+                        return StockLedger.compactNextChunk(db, cutoff);
+                    }
+                };
+                while(Boolean.TRUE.equals(runChunk(compaction, "compaction of the stock movements"))){
+                    // Keep going, every chunk has already been committed
+                }
+            }
+        }, "ProductsMigrations");
+        migrationThread.start();
         return true;
     }
 
+    /**
+     * Run a chunk of background work on the writer. A chunk that fails has been rolled back, so
+     * it is tried again after a pause that doubles every time. After {@link #MAX_CHUNK_ATTEMPTS}
+     * failures in a row the work is left for the next start, because a chunk that keeps failing,
+     * e.g. on a full storage, would otherwise take the process down again on every start.
+     * @param work - what the chunk is part of, for the log
+     * @return the result of the chunk, or null if it kept failing
+     */
+    @Nullable
+    private Boolean runChunk(DatabaseWriter.Task<Boolean> chunk, String work) {
+        long delay = CHUNK_RETRY_DELAY;
+        for(int attempt = 1; ; attempt++){
+            try {
+                return mWriter.execute(chunk);
+            } catch (RuntimeException e) {
+                if(attempt == MAX_CHUNK_ATTEMPTS){
+                    Log.e(LOG_TAG, "Giving up on the " + work + " until the next start", e);
+                    return null;
+                }
+                Log.w(LOG_TAG, "Failed a chunk of the " + work + ", trying again in " + delay + " ms", e);
+                SystemClock.sleep(delay);
+                delay *= 2;
+            }
+        }
+    }
+
     @Nullable
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        ProviderStats.Timer timer = startTiming("query", uri, null);
+        Cursor cursor = null;
+        try {
+            cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder);
+            return cursor;
+        } finally {
+            mStats.finishQuery(timer, cursor);
+        }
+    }
+
+    /**
+     * Run the query of {@link #query(Uri, String[], String, String[], String)}.
+     */
+    private Cursor queryUri(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -76,6 +388,13 @@ public class ProductsProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match){
             case PRODUCTS:
+                if(uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_LIMIT) != null){
+                    // The URI asks for a single page of products
+                    cursor = queryProductsPage(database, uri, projection, selection, selectionArgs);
+                    // The list patches the rows that change one at a time by itself
+                    cursor.setNotificationUri(getContext().getContentResolver(), ProductsEntry.LIST_URI);
+                    return cursor;
+                }
                 // For the PRODUCTS code, query the products table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the products table.
@@ -83,6 +402,11 @@ public class ProductsProvider extends ContentProvider {
                         null, null, sortOrder);
                 break;
             case PRODUCT_ID:
+                // The same products are read by ID again and again, so try the cache first
+                if(ProductRowCache.canServe(projection)){
+                    cursor = queryCachedProduct(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
                 // For the PRODUCT_ID code, extract out the ID from the URI.
                 // For an example URI such as "content://com.example.android.storeinventory/products/3",
                 // the selection will be "_id=?" and the selection argument will be a
@@ -99,6 +423,28 @@ public class ProductsProvider extends ContentProvider {
                 cursor = database.query(ProductsEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case PRODUCT_SKU:
+                cursor = queryProductBySku(database, uri.getLastPathSegment(), projection, selection,
+                        selectionArgs, sortOrder);
+                // The SKU may be moved to another product, so any change can change the result
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductsEntry.CONTENT_URI);
+                return cursor;
+            case MOVEMENTS:
+                return queryMovements(database, uri, projection);
+            case PRODUCT_SUMMARY:
+                // A single row that the triggers of the products table keep up to date,
+                // so reading it does not depend on the number of products
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection, null, null, null, null, null);
+                // Every change to any product can change the summary, and reading the single
+                // row again is cheap
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductsEntry.CONTENT_URI);
+                return cursor;
+            case PRODUCT_SEARCH:
+                cursor = searchProducts(database, uri, projection, selection, selectionArgs);
+                // Any change to many products can change the search results, the rows that
+                // change one at a time are patched by the list itself
+                cursor.setNotificationUri(getContext().getContentResolver(), ProductsEntry.LIST_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -111,6 +457,343 @@ public class ProductsProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Read a single product through the row cache. A product that is not in the cache is read
+     * with all its columns and kept, so the next read finds it whatever columns it asks for.
+     * Return a cursor with the given columns, without rows if there is no such product.
+     */
+    private Cursor queryCachedProduct(SQLiteDatabase database, long id, String[] projection) {
+        return ProductRowCache.toCursor(getProductRow(database, id), projection);
+    }
+
+    /**
+     * Return the row of a single product from the row cache, reading it from the database and
+     * keeping it if it is not cached. Return null if there is no such product.
+     */
+    private ProductRowCache.Row getProductRow(SQLiteDatabase database, long id) {
+        ProductRowCache.Row row = mRowCache.get(id);
+        if(row == null){
+            // Taken before the read, so a row that a write changes meanwhile is not kept
+            long generation = mRowCache.getGeneration();
+            Cursor cursor = database.query(ProductsEntry.TABLE_NAME, ProductRowCache.getColumns(),
+                    ProductsEntry._ID + "=?", new String[] {String.valueOf(id)}, null, null, null);
+            try {
+                if(cursor.moveToFirst()){
+                    row = ProductRowCache.Row.read(cursor);
+                    mRowCache.put(row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Read the product with the given SKU. The SKU index tells which product it should be,
+     * which is read through the row cache and checked; only a SKU that is not in the index, or
+     * no longer belongs to the product it names, is looked up in the database. A query with a
+     * selection or a sort order goes straight to the database, the cache cannot apply them.
+     * Return a cursor with the given columns, without rows if no product has the SKU.
+     */
+    private Cursor queryProductBySku(SQLiteDatabase database, String sku, String[] projection,
+                                     String selection, String[] selectionArgs, String sortOrder) {
+        if(selection == null && selectionArgs == null && sortOrder == null
+                && ProductRowCache.canServe(projection)){
+            long id = mSkuIndex.get(sku);
+            if(id != -1){
+                ProductRowCache.Row row = getProductRow(database, id);
+                if(row != null && sku.equals(row.mSku)){
+                    return ProductRowCache.toCursor(row, projection);
+                }
+            }
+            id = findProductBySku(database, sku);
+            updateSkuIndex(sku, id);
+            return ProductRowCache.toCursor(id == -1 ? null : getProductRow(database, id), projection);
+        }
+        // Columns the cache does not have, such as expressions, straight from the database
+        return database.query(ProductsEntry.TABLE_NAME, projection,
+                DatabaseUtils.concatenateWhere(ProductsEntry.COLUMN_PRODUCT_SKU + "=?", selection),
+                DatabaseUtils.appendSelectionArgs(new String[] {sku}, selectionArgs), null, null, sortOrder);
+    }
+
+    /**
+     * Look up the product with the given SKU in the database.
+     * Return its ID, or -1 if no product has the SKU.
+     */
+    private static long findProductBySku(SQLiteDatabase database, String sku) {
+        Cursor cursor = database.query(ProductsEntry.TABLE_NAME, new String[] {ProductsEntry._ID},
+                ProductsEntry.COLUMN_PRODUCT_SKU + "=?", new String[] {sku}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the SKUs of all products that match the selection.
+     */
+    private static Set<String> querySkus(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Set<String> skus = new HashSet<String>();
+        Cursor cursor = database.query(ProductsEntry.TABLE_NAME, new String[] {ProductsEntry.COLUMN_PRODUCT_SKU},
+                DatabaseUtils.concatenateWhere(selection, ProductsEntry.COLUMN_PRODUCT_SKU + " IS NOT NULL"),
+                selectionArgs, null, null, null);
+        try {
+            while(cursor.moveToNext()){
+                skus.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return skus;
+    }
+
+    /**
+     * Remember that the product with the given ID has the given SKU, or forget the SKU if the
+     * ID is -1, once the current write has been committed. Outside of a write it happens at once.
+     */
+    private void updateSkuIndex(final String sku, final long id) {
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                if(id == -1){
+                    mSkuIndex.remove(sku);
+                }
+                else {
+                    mSkuIndex.put(sku, id);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the given SKUs once the current write has been committed, or all of them if the
+     * set is null.
+     */
+    private void forgetSkus(final Set<String> skus) {
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                if(skus == null){
+                    mSkuIndex.clear();
+                    return;
+                }
+                for(String sku : skus){
+                    mSkuIndex.remove(sku);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the cached row of the given product once the current write has been committed.
+     * Call it before the listeners are notified of the change.
+     */
+    private void invalidateCachedProduct(final long id) {
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                mRowCache.invalidate(id);
+            }
+        });
+    }
+
+    /**
+     * Forget all the cached rows once the current write has been committed, for a write that
+     * changes products that are not known one by one.
+     */
+    private void invalidateCachedProducts() {
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                mRowCache.invalidateAll();
+            }
+        });
+    }
+
+    /**
+     * Query one page of products, as described by the query parameters of the URI
+     * (see {@link ProductsEntry#QUERY_PARAMETER_SORT_KEY}). The page starts right after the last
+     * row of the previous page, which is found through the index on the sort column, instead of
+     * skipping all the rows before it with an OFFSET. The sort order is always given by the URI.
+     */
+    private Cursor queryProductsPage(SQLiteDatabase database, Uri uri, String[] projection,
+                                     String selection, String[] selectionArgs) {
+        String sortKey = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_SORT_KEY);
+        String afterKey = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_AFTER_KEY);
+        String afterId = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_AFTER_ID);
+        String limit = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_LIMIT);
+
+        // Check that the page size is a positive number
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Page requires a valid limit: " + uri);
+        }
+        if(pageSize <= 0){
+            throw new IllegalArgumentException("Page requires a valid limit: " + uri);
+        }
+
+        String pageSelection = null;
+        String[] pageSelectionArgs = null;
+        String pageSortOrder;
+        if(sortKey == null){
+            // Sort by ID only, the page starts after the given ID
+            pageSortOrder = ProductsEntry._ID;
+            if(afterId != null){
+                pageSelection = ProductsEntry._ID + ">?";
+                pageSelectionArgs = new String[] {afterId};
+            }
+        }
+        else {
+            // Only the columns that have an index can be used as sort key
+            if(!ProductsEntry.COLUMN_PRODUCT_NAME.equals(sortKey)
+                    && !ProductsEntry.COLUMN_PRODUCT_PRICE.equals(sortKey)
+                    && !ProductsEntry.COLUMN_PRODUCT_QUANTITY.equals(sortKey)){
+                throw new IllegalArgumentException("Cannot sort pages by " + sortKey);
+            }
+            pageSortOrder = sortKey + ", " + ProductsEntry._ID;
+            if(afterKey != null){
+                if(afterId == null){
+                    throw new IllegalArgumentException("Page requires the ID of the previous row: " + uri);
+                }
+                // Rows that come after (afterKey, afterId) in the sort order
+                pageSelection = "(" + sortKey + ">? OR (" + sortKey + "=? AND " + ProductsEntry._ID + ">?))";
+                pageSelectionArgs = new String[] {afterKey, afterKey, afterId};
+            }
+        }
+
+        // Combine the page with the selection of the caller
+        if(pageSelection != null){
+            if(selection != null){
+                pageSelection = "(" + selection + ") AND " + pageSelection;
+                String[] combinedArgs = new String[(selectionArgs == null ? 0 : selectionArgs.length)
+                        + pageSelectionArgs.length];
+                if(selectionArgs != null){
+                    System.arraycopy(selectionArgs, 0, combinedArgs, 0, selectionArgs.length);
+                }
+                System.arraycopy(pageSelectionArgs, 0, combinedArgs,
+                        combinedArgs.length - pageSelectionArgs.length, pageSelectionArgs.length);
+                pageSelectionArgs = combinedArgs;
+            }
+        }
+        else {
+            pageSelection = selection;
+            pageSelectionArgs = selectionArgs;
+        }
+
+        return database.query(ProductsEntry.TABLE_NAME, projection, pageSelection, pageSelectionArgs,
+                null, null, pageSortOrder, String.valueOf(pageSize));
+    }
+
+    /**
+     * Query the stock movements in the time range given by the query parameters of the URI
+     * (see {@link StockMovementsEntry#CONTENT_URI}), oldest first. The range is looked up in
+     * the index on the product and time, or on the time alone for all the products.
+     */
+    private Cursor queryMovements(SQLiteDatabase database, Uri uri, String[] projection) {
+        StringBuilder selection = new StringBuilder();
+        ArrayList<String> selectionArgs = new ArrayList<String>();
+        String productId = uri.getQueryParameter(StockMovementsEntry.QUERY_PARAMETER_PRODUCT_ID);
+        if(productId != null){
+            selection.append(StockMovementsEntry.COLUMN_PRODUCT_ID).append("=?");
+            selectionArgs.add(productId);
+        }
+        String from = uri.getQueryParameter(StockMovementsEntry.QUERY_PARAMETER_FROM);
+        if(from != null){
+            selection.append(selection.length() > 0 ? " AND " : "")
+                    .append(StockMovementsEntry.COLUMN_CREATED_AT).append(">=?");
+            selectionArgs.add(from);
+        }
+        String to = uri.getQueryParameter(StockMovementsEntry.QUERY_PARAMETER_TO);
+        if(to != null){
+            selection.append(selection.length() > 0 ? " AND " : "")
+                    .append(StockMovementsEntry.COLUMN_CREATED_AT).append("<?");
+            selectionArgs.add(to);
+        }
+        // The times are compared as numbers, so check that they are numbers
+        try {
+            for(String arg : selectionArgs){
+                Long.parseLong(arg);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Movements require numeric parameters: " + uri);
+        }
+        return database.query(StockMovementsEntry.TABLE_NAME, projection,
+                selection.length() > 0 ? selection.toString() : null,
+                selectionArgs.toArray(new String[selectionArgs.size()]), null, null,
+                StockMovementsEntry.COLUMN_CREATED_AT + ", " + StockMovementsEntry._ID);
+    }
+
+    /**
+     * Search the products whose name contains words that start with each of the words in the
+     * search text. The names are looked up in the full text search table, so no row of the
+     * products table is scanned. Products whose name starts with the search text come first,
+     * then shorter names before longer ones.
+     */
+    private Cursor searchProducts(SQLiteDatabase database, Uri uri, String[] projection,
+                                  String selection, String[] selectionArgs) {
+        String text = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_SEARCH);
+        String limit = uri.getQueryParameter(ProductsEntry.QUERY_PARAMETER_LIMIT);
+
+        // Turn every word of the text into a prefix query, e.g. "sour dou" -> "sour* dou*".
+        // Anything that is not a letter or a digit separates words, so the user cannot type
+        // full text search operators by accident.
+        StringBuilder match = new StringBuilder();
+        if(text != null){
+            for(String word : text.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")){
+                if(word.length() > 0){
+                    match.append(word).append("* ");
+                }
+            }
+        }
+        if(match.length() == 0){
+            // Nothing to search for, so nothing matches
+            return new MatrixCursor(projection != null ? projection : new String[] {ProductsEntry._ID});
+        }
+
+        String searchSelection = ProductsEntry._ID + " IN (SELECT docid FROM " +
+                ProductsEntry.SEARCH_TABLE_NAME + " WHERE " + ProductsEntry.SEARCH_TABLE_NAME + " MATCH ?)";
+        String[] searchSelectionArgs;
+        if(selection != null){
+            searchSelection = "(" + selection + ") AND " + searchSelection;
+            int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+            searchSelectionArgs = new String[argCount + 2];
+            if(selectionArgs != null){
+                System.arraycopy(selectionArgs, 0, searchSelectionArgs, 0, argCount);
+            }
+        }
+        else {
+            searchSelectionArgs = new String[2];
+        }
+        searchSelectionArgs[searchSelectionArgs.length - 2] = match.toString().trim();
+        // Argument for the sort order, names that start with the text come first
+        searchSelectionArgs[searchSelectionArgs.length - 1] = escapeLike(text.trim()) + "%";
+
+        String sortOrder = ProductsEntry.COLUMN_PRODUCT_NAME + " LIKE ? ESCAPE '\\' DESC, length(" +
+                ProductsEntry.COLUMN_PRODUCT_NAME + "), " + ProductsEntry.COLUMN_PRODUCT_NAME;
+        return database.query(ProductsEntry.TABLE_NAME, projection, searchSelection, searchSelectionArgs,
+                null, null, sortOrder, limit);
+    }
+
+    /**
+     * Escape the wildcards of LIKE in the given text with a backslash, so that it only matches
+     * itself in a pattern with {@code ESCAPE '\'}.
+     */
+    private static String escapeLike(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(c == '%' || c == '_' || c == '\\'){
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
     @Nullable
     @Override
     public String getType(Uri uri) {
@@ -123,7 +806,15 @@ public class ProductsProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match){
             case PRODUCTS:
-                return insertProduct(uri, contentValues);
+                ProviderStats.Timer timer = startTiming("insert", uri, null);
+                long rows = -1;
+                try {
+                    Uri newUri = insertProduct(uri, contentValues);
+                    rows = newUri == null ? 0 : 1;
+                    return newUri;
+                } finally {
+                    mStats.finish(timer, rows, 0);
+                }
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -133,70 +824,351 @@ public class ProductsProvider extends ContentProvider {
      * Insert a product into the database with the given content values. Return the new content URI
      * for that specific row in the database.
      */
-    private Uri insertProduct(Uri uri, ContentValues contentValues) {
-        // Check that the name is not null
-        String name = contentValues.getAsString(ProductsEntry.COLUMN_PRODUCT_NAME);
-        if(name == null){
-            throw new IllegalArgumentException("Product requires a name");
+    private Uri insertProduct(final Uri uri, final ContentValues contentValues) {
+        return mWriter.execute(new DatabaseWriter.Task<Uri>() {
+            @Override
+            public Uri run(SQLiteDatabase database) {
+                // Validate and insert the new product with the given values
+                long id = insertProductRow(database, contentValues);
+                // If the ID is -1, then the insertion failed. Log an error and return null.
+                if(id == -1){
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                    return  null;
+                }
+                // Notify all listeners that a single product has been added. The lists have to
+                // read the pages it falls into again, so they hear about it as well.
+                notifyProductsChanged(ProductsEntry.buildChangeUri(id, ProductsEntry.CHANGE_INSERT));
+                notifyProductsChanged(ProductsEntry.LIST_URI);
+                // Return the URI of the new product with the appended ID at the end
+                return ContentUris.withAppendedId(uri, id);
+            }
+        });
+    }
+
+    /**
+     * Check that the given content values describe a complete and valid product and insert it.
+     * Does not send any change notification, so it can be shared by the single-row and the
+     * bulk insert paths. Return the ID of the new row or -1 if the insertion failed, e.g.
+     * because another product has the same SKU.
+     */
+    private long insertProductRow(SQLiteDatabase database, ContentValues contentValues) {
+        // Check that the name, price, quantity and image are all there and valid
+        ProductsEntry.validateNewProduct(contentValues);
+        int quantity = contentValues.getAsInteger(ProductsEntry.COLUMN_PRODUCT_QUANTITY);
+        // Refuse a SKU that another product has before the picture is saved, which would
+        // otherwise be left behind without a product
+        String sku = contentValues.getAsString(ProductsEntry.COLUMN_PRODUCT_SKU);
+        if(sku != null){
+            long owner = findProductBySku(database, sku);
+            if(owner != -1){
+                Log.w(LOG_TAG, "SKU " + sku + " already belongs to product " + owner);
+                return -1;
+            }
         }
-        // Check that the price is not null
-        Integer price = contentValues.getAsInteger(ProductsEntry.COLUMN_PRODUCT_PRICE);
-        if(price == null || price < 0){
-            throw new IllegalArgumentException("Product requires a valid price");
+
+        long id;
+        synchronized (mPictureStore) {
+            // Save the picture in its own file and only keep the hash in the row
+            ContentValues values = storePicture(contentValues);
+            // A new identifier, which the other devices will know the product by
+            values.put(ProductsEntry.COLUMN_PRODUCT_UUID, UUID.randomUUID().toString());
+            values.put(ProductsEntry.COLUMN_PRODUCT_VERSION, 1);
+            id = database.insert(ProductsEntry.TABLE_NAME, null, values);
         }
-        // Check that the quantity is not null
-        Integer quantity = contentValues.getAsInteger(ProductsEntry.COLUMN_PRODUCT_QUANTITY);
-        if(quantity == null || quantity < 0){
-            throw new IllegalArgumentException("Product requires a valid quantity");
+        // The initial stock is the first movement of the product
+        if(id != -1){
+            StockLedger.record(database, id, quantity, StockMovementsEntry.KIND_CORRECTION);
+            ChangeLog.recordInsert(database, id);
+            if(sku != null){
+                updateSkuIndex(sku, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Save the picture bytes from the given values in the {@link PictureStore}. Return a copy of
+     * the values where the picture bytes are replaced with the hash and the format of the picture,
+     * ready to be written to the products table. The values of the caller are not modified.
+     */
+    private ContentValues storePicture(ContentValues contentValues) {
+        ContentValues values = new ContentValues(contentValues);
+        byte[] picture = values.getAsByteArray(ProductsEntry.COLUMN_PRODUCT_PICTURE);
+        values.remove(ProductsEntry.COLUMN_PRODUCT_PICTURE);
+        try {
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH, mPictureStore.put(picture));
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT, PictureEncoder.detectFormat(picture));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to save the product picture", e);
         }
-        // Check that the image is not null
-        byte[] image = contentValues.getAsByteArray(ProductsEntry.COLUMN_PRODUCT_PICTURE);
-        if(image == null) {
-            throw new IllegalArgumentException("Product requires an image");
+        return values;
+    }
+
+    /**
+     * Return the hashes of the pictures of all products that match the selection.
+     */
+    private Set<String> queryPictureHashes(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Set<String> hashes = new HashSet<String>();
+        Cursor cursor = database.query(true, ProductsEntry.TABLE_NAME,
+                new String[] {ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while(cursor.moveToNext()){
+                hashes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
         }
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        return hashes;
+    }
 
-        // Insert the new product with the given values
-        long id = database.insert(ProductsEntry.TABLE_NAME, null, contentValues);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if(id == -1){
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return  null;
+    /**
+     * Delete every picture file that is not used by any product. Must run on the writer thread,
+     * so no picture of a write that has not been committed yet can be taken for an unused one.
+     */
+    private void deleteUnusedPictures(SQLiteDatabase database) {
+        synchronized (mPictureStore) {
+            mPictureStore.deleteAllExcept(queryPictureHashes(database, null, null));
         }
-        // Notify all listeners that the data has changed for the product content Uri
-        getContext().getContentResolver().notifyChange(uri, null);
-        // Return the URI of the new product with the appended ID at the end
-        return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * Delete the picture files with the given hashes that are no longer used by any product.
+     * This is deferred until the write is committed, because a rolled back write still needs
+     * the pictures.
+     */
+    private void releasePictures(final Set<String> hashes) {
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase database = mDbHelper.getWritableDatabase();
+                synchronized (mPictureStore) {
+                    for(String hash : hashes){
+                        long references = DatabaseUtils.queryNumEntries(database, ProductsEntry.TABLE_NAME,
+                                ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH + "=?", new String[] {hash});
+                        if(references == 0){
+                            mPictureStore.delete(hash);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Insert all the given products in a single transaction and send one change notification
+     * at the end, instead of one transaction and one notification per product.
+     * Every row is validated the same way as in {@link #insert(Uri, ContentValues)}; if any row
+     * is invalid, or has a SKU that another product or another row has, nothing is inserted and
+     * an {@link IllegalArgumentException} is thrown. Return the number of rows that were inserted.
+     */
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    public int bulkInsert(final Uri uri, final ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if(match != PRODUCTS){
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        ProviderStats.Timer timer = startTiming("bulkInsert", uri, null);
+        long rows = -1;
+        try {
+            rows = bulkInsertProducts(uri, values);
+            return (int) rows;
+        } finally {
+            mStats.finish(timer, rows, 0);
+        }
+    }
+
+    /**
+     * Insert the rows of {@link #bulkInsert(Uri, ContentValues[])} in one write.
+     */
+    private int bulkInsertProducts(final Uri uri, final ContentValues[] values) {
+        return mWriter.execute(new DatabaseWriter.Task<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase database) {
+                // Check every row before the first picture is saved, so a row that cannot be
+                // inserted leaves no files behind
+                Set<String> skus = new HashSet<String>();
+                for(ContentValues contentValues : values){
+                    ProductsEntry.validateNewProduct(contentValues);
+                    String sku = contentValues.getAsString(ProductsEntry.COLUMN_PRODUCT_SKU);
+                    if(sku != null && (!skus.add(sku) || findProductBySku(database, sku) != -1)){
+                        throw new IllegalArgumentException("Product SKU is already used: " + sku);
+                    }
+                }
+
+                // Track the number of rows that were inserted
+                int rowsInserted = 0;
+                for(ContentValues contentValues : values){
+                    long id = insertProductRow(database, contentValues);
+                    if(id == -1){
+                        // Roll back the rows before it as well
+                        throw new IllegalStateException("Failed to insert row for " + uri);
+                    }
+                    rowsInserted++;
+                }
+
+                // If 1 or more rows were inserted, then notify all listeners once for the whole batch
+                if(rowsInserted > 0){
+                    notifyProductsChanged(uri);
+                }
+                return rowsInserted;
+            }
+        });
+    }
+
+    /**
+     * Apply all the given operations in a single transaction. The operations go through the
+     * regular insert, update and delete paths so they are validated the same way, but their
+     * change notifications are coalesced into one notification for {@link ProductsEntry#CONTENT_URI}
+     * that is sent after the transaction has been committed. If any operation fails, none of
+     * them are applied.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ProviderStats.Timer timer = mStats.isEnabled()
+                ? mStats.start("applyBatch", operations.size() + " operations") : null;
+        long rows = -1;
+        try {
+            ContentProviderResult[] results = applyBatchOperations(operations);
+            rows = results.length;
+            return results;
+        } finally {
+            mStats.finish(timer, rows, 0);
+        }
+    }
+
+    /**
+     * Apply the operations of {@link #applyBatch(ArrayList)} in one write.
+     */
+    private ContentProviderResult[] applyBatchOperations(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        try {
+            return mWriter.execute(new DatabaseWriter.Task<ContentProviderResult[]>() {
+                @Override
+                public ContentProviderResult[] run(SQLiteDatabase database) {
+                    ContentProviderResult[] results;
+                    boolean hasChanges;
+                    mApplyingBatch.set(true);
+                    mBatchHasChanges.set(false);
+                    // A nested transaction, so a failed operation rolls back the whole batch
+                    database.beginTransaction();
+                    try {
+                        results = ProductsProvider.super.applyBatch(operations);
+                        database.setTransactionSuccessful();
+                    } catch (OperationApplicationException e) {
+                        throw new BatchFailedException(e);
+                    } finally {
+                        database.endTransaction();
+                        hasChanges = Boolean.TRUE.equals(mBatchHasChanges.get());
+                        mApplyingBatch.remove();
+                        mBatchHasChanges.remove();
+                    }
+                    // Notify all listeners once, after the batch has been committed
+                    if(hasChanges){
+                        notifyProductsChanged(ProductsEntry.CONTENT_URI);
+                    }
+                    return results;
+                }
+            });
+        } catch (BatchFailedException e) {
+            throw (OperationApplicationException) e.getCause();
+        }
+    }
+
+    /**
+     * Carries the checked exception of a failed batch out of the writer thread.
+     */
+    private static class BatchFailedException extends RuntimeException {
+        BatchFailedException(OperationApplicationException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed, once the write has been
+     * committed. Inside of {@link #applyBatch(ArrayList)} the notification is deferred until
+     * the end of the batch.
+     */
+    private void notifyProductsChanged(final Uri uri) {
+        if(Boolean.TRUE.equals(mApplyingBatch.get())){
+            mBatchHasChanges.set(true);
+            return;
+        }
+        mWriter.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        });
+    }
+
+    @Override
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        ProviderStats.Timer timer = startTiming("delete", uri, selection);
+        long rows = -1;
+        try {
+            rows = mWriter.execute(new DatabaseWriter.Task<Integer>() {
+                @Override
+                public Integer run(SQLiteDatabase database) {
+                    return deleteProducts(database, uri, selection, selectionArgs);
+                }
+            });
+            return (int) rows;
+        } finally {
+            mStats.finish(timer, rows, 0);
+        }
+    }
+
+    /**
+     * Delete the products at the given URI that match the selection, on the writer thread.
+     * Return the number of rows that were deleted.
+     */
+    private int deleteProducts(SQLiteDatabase database, Uri uri, String selection, String[] selectionArgs) {
         // Track the number of rows that were deleted
         int rowsAffected = 0;
+        // Hashes of the pictures used by the deleted products
+        Set<String> pictureHashes;
+        // SKUs of the deleted products, null for all of them
+        Set<String> skus;
 
         int match = sUriMatcher.match(uri);
         switch (match){
             case PRODUCTS:
+                // Remember the pictures of the products, so they can be deleted with them
+                pictureHashes = queryPictureHashes(database, selection, selectionArgs);
+                skus = selection == null ? null : querySkus(database, selection, selectionArgs);
+                StockLedger.deleteMovements(database, selection, selectionArgs);
+                ChangeLog.recordDeletes(database, selection, selectionArgs);
                 // Delete all rows that match the selection and selection args
                 rowsAffected = database.delete(ProductsEntry.TABLE_NAME, selection, selectionArgs);
-                // If 1 or more rows were deleted, then notify all listeners that the data at the
-                // given URI has changed
+                // If 1 or more rows were deleted, then delete the unused pictures and
+                // notify all listeners that the data at the given URI has changed
                 if(rowsAffected > 0){
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    invalidateCachedProducts();
+                    forgetSkus(skus);
+                    releasePictures(pictureHashes);
+                    notifyProductsChanged(uri);
                 }
                 // Return the number of rows deleted
                 return rowsAffected;
             case PRODUCT_ID:
                 selection = ProductsEntry._ID + "=?";
                 selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
+                pictureHashes = queryPictureHashes(database, selection, selectionArgs);
+                skus = querySkus(database, selection, selectionArgs);
+                StockLedger.deleteMovements(database, selection, selectionArgs);
+                ChangeLog.recordDeletes(database, selection, selectionArgs);
                 rowsAffected = database.delete(ProductsEntry.TABLE_NAME, selection, selectionArgs);
-                // If 1 or more rows were deleted, then notify all listeners that the data at the
-                // given URI has changed
+                // If 1 or more rows were deleted, then delete the unused picture and
+                // notify all listeners that this product is gone
                 if(rowsAffected > 0){
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    invalidateCachedProduct(ContentUris.parseId(uri));
+                    forgetSkus(skus);
+                    releasePictures(pictureHashes);
+                    notifyProductsChanged(ProductsEntry.buildChangeUri(ContentUris.parseId(uri),
+                            ProductsEntry.CHANGE_DELETE));
                 }
                 // Return the number of rows deleted
                 return rowsAffected;
@@ -207,22 +1179,38 @@ public class ProductsProvider extends ContentProvider {
     }
 
     @Override
-    public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+    public int update(final Uri uri, final ContentValues contentValues, String selection, String[] selectionArgs) {
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
         switch (match){
             case PRODUCTS:
-                return updateProduct(uri, contentValues, selection, selectionArgs);
+                break;
             case PRODUCT_ID:
                 // For the PRODUCT_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
                 selection = ProductsEntry._ID + "=?";
                 selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                return updateProduct(uri, contentValues, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+
+        final String updateSelection = selection;
+        final String[] updateSelectionArgs = selectionArgs;
+        ProviderStats.Timer timer = startTiming("update", uri, selection);
+        long rows = -1;
+        try {
+            rows = mWriter.execute(new DatabaseWriter.Task<Integer>() {
+                @Override
+                public Integer run(SQLiteDatabase database) {
+                    return updateProduct(database, uri, contentValues, updateSelection, updateSelectionArgs);
+                }
+            });
+            return (int) rows;
+        } finally {
+            mStats.finish(timer, rows, 0);
+        }
     }
 
     /**
@@ -230,7 +1218,8 @@ public class ProductsProvider extends ContentProvider {
      * specified in the selection and selection arguments (which could be 0 or 1 or more products).
      * Return the number of rows that were successfully updated.
      */
-    private int updateProduct(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+    private int updateProduct(SQLiteDatabase database, Uri uri, ContentValues contentValues,
+                              String selection, String[] selectionArgs) {
         // If the {@link ProductsEntry#COLUMN_PRODUCT_NAME} key is present,
         // check that the name value is not null.
         if(contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_NAME)){
@@ -243,7 +1232,7 @@ public class ProductsProvider extends ContentProvider {
         // If the {@link ProductsEntry#COLUMN_PRODUCT_PRICE} key is present,
         // check that the price value is not null and is valid.
         if(contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_PRICE)){
-            Integer price = contentValues.getAsInteger(ProductsEntry.COLUMN_PRODUCT_PRICE);
+            Long price = ProductsEntry.getAsPrice(contentValues);
             if(price == null || price < 0){
                 throw new IllegalArgumentException("Product requires a valid price");
             }
@@ -266,24 +1255,755 @@ public class ProductsProvider extends ContentProvider {
                 throw new IllegalArgumentException("Product requires an image");
             }
         }
+        // The ID of the product for a single product, -1 for a selection
+        long singleProductId = sUriMatcher.match(uri) == PRODUCT_ID ? ContentUris.parseId(uri) : -1;
+
+        // If the {@link ProductsEntry#COLUMN_PRODUCT_SKU} key is present, check that the SKU is
+        // either removed or not blank, and only given to a single product
+        boolean updatesSku = contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_SKU);
+        String sku = contentValues.getAsString(ProductsEntry.COLUMN_PRODUCT_SKU);
+        if(sku != null){
+            if(sku.trim().isEmpty()){
+                throw new IllegalArgumentException("Product requires a valid SKU");
+            }
+            if(singleProductId == -1){
+                throw new IllegalArgumentException("A SKU can only be given to a single product");
+            }
+        }
+        // The identifier and the version are kept by the provider
+        if(contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_UUID)
+                || contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_VERSION)){
+            throw new IllegalArgumentException("Product identifier and version cannot be changed");
+        }
         // If there are no values to update, then don't try to update the database
         if(contentValues.size() == 0) {
             return 0;
         }
 
-        // Otherwise, get writable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // The SKUs of the products before the update, to take them out of the SKU index
+        Set<String> oldSkus = null;
+        if(updatesSku){
+            // Refuse a SKU that another product has, before anything is logged
+            if(sku != null){
+                long owner = findProductBySku(database, sku);
+                if(owner != -1 && owner != singleProductId){
+                    Log.w(LOG_TAG, "SKU " + sku + " already belongs to product " + owner);
+                    return 0;
+                }
+            }
+            oldSkus = querySkus(database, selection, selectionArgs);
+        }
+
+        // A quantity that is set by hand is a correction in the stock movements
+        if(contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_QUANTITY)){
+            StockLedger.recordCorrections(database, contentValues.getAsInteger(ProductsEntry.COLUMN_PRODUCT_QUANTITY),
+                    selection, selectionArgs);
+        }
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(ProductsEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+        int rowsUpdated;
+        if(contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_PICTURE)){
+            // The picture changes, so remember the old pictures to delete them if they are no
+            // longer used and save the new one in its own file
+            Set<String> oldPictureHashes = queryPictureHashes(database, selection, selectionArgs);
+            synchronized (mPictureStore) {
+                ContentValues values = storePicture(contentValues);
+                ChangeLog.recordUpdate(database, values, selection, selectionArgs);
+                rowsUpdated = database.update(ProductsEntry.TABLE_NAME, values, selection, selectionArgs);
+            }
+            releasePictures(oldPictureHashes);
+            // For a single product, tell the listeners that it is the picture that changed.
+            // Listeners of the product and of the whole table are notified as well.
+            if(rowsUpdated > 0 && sUriMatcher.match(uri) == PRODUCT_ID){
+                uri = ProductsEntry.buildPictureUri(ContentUris.parseId(uri)).buildUpon()
+                        .appendQueryParameter(ProductsEntry.QUERY_PARAMETER_CHANGE, ProductsEntry.CHANGE_UPDATE)
+                        .build();
+            }
+        }
+        else {
+            // Log the change for the other devices, then perform the update on the database and
+            // get the number of rows affected. The SKU is local to the device, so a change of
+            // only the SKU is not logged.
+            if(!updatesSku || contentValues.size() > 1){
+                ChangeLog.recordUpdate(database, contentValues, selection, selectionArgs);
+            }
+            rowsUpdated = database.update(ProductsEntry.TABLE_NAME, contentValues, selection, selectionArgs);
+            // For a single product, tell the listeners what changed, so the lists can patch its row
+            if(sUriMatcher.match(uri) == PRODUCT_ID){
+                uri = ProductsEntry.buildChangeUri(ContentUris.parseId(uri), ProductsEntry.CHANGE_UPDATE);
+            }
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
+        // given URI has changed, after the cached rows of the products are gone
         if(rowsUpdated > 0){
-            getContext().getContentResolver().notifyChange(uri, null);
+            if(singleProductId != -1){
+                invalidateCachedProduct(singleProductId);
+            }
+            else {
+                invalidateCachedProducts();
+            }
+            if(updatesSku){
+                forgetSkus(oldSkus);
+                if(sku != null){
+                    updateSkuIndex(sku, singleProductId);
+                }
+            }
+            notifyProductsChanged(uri);
+            if(singleProductId != -1 && contentValues.containsKey(ProductsEntry.COLUMN_PRODUCT_NAME)){
+                // The lists are sorted by name, so a renamed product may move to another page
+                notifyProductsChanged(ProductsEntry.LIST_URI);
+            }
         }
 
         // Return the number of rows updated
         return rowsUpdated;
     }
+
+    /**
+     * Open the picture file of a single product for reading. The picture bytes are streamed
+     * straight from the file and never pass through a Cursor.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if(sUriMatcher.match(uri) == PRODUCT_EXPORT && "r".equals(mode)){
+            // The products are written into a pipe by a background thread while the caller reads them
+            return openPipeHelper(uri, ProductsEntry.CSV_MIME_TYPE, null, null, new PipeDataWriter<Object>() {
+                @Override
+                public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                            Bundle opts, Object args) {
+                    exportProducts(new FileOutputStream(output.getFileDescriptor()));
+                }
+            });
+        }
+        if(sUriMatcher.match(uri) != PRODUCT_PICTURE){
+            throw new IllegalArgumentException("Cannot open file for unknown URI " + uri);
+        }
+        if(!"r".equals(mode)){
+            throw new IllegalArgumentException("Pictures can only be opened for reading: " + uri);
+        }
+
+        // The ID of the product is the second to last segment of the URI
+        String id = uri.getPathSegments().get(1);
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(ProductsEntry.TABLE_NAME,
+                new String[] {ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH},
+                ProductsEntry._ID + "=?", new String[] {id}, null, null, null);
+        File file;
+        try {
+            // An empty hash means the picture has not been moved out of the old table yet
+            if(!cursor.moveToFirst() || cursor.getString(0).isEmpty()){
+                throw new FileNotFoundException("No picture for " + uri);
+            }
+            file = mPictureStore.getFile(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Write all the products as CSV into the given stream, see {@link ProductsEntry#CSV_COLUMNS}.
+     * The products are read one page at a time through the ID index, so neither the cursor nor
+     * the file have to fit in memory and no read transaction stays open for the whole export.
+     * Each picture is written into the row of its product as a data URI. Called by the tests
+     * with a stream of their own.
+     */
+    void exportProducts(OutputStream output) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        String[] projection = {
+                ProductsEntry._ID,
+                ProductsEntry.COLUMN_PRODUCT_NAME,
+                ProductsEntry.COLUMN_PRODUCT_PRICE,
+                ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+                ProductsEntry.COLUMN_PRODUCT_SKU,
+                ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH,
+                ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT
+        };
+        CsvWriter writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(
+                output, Charset.forName("UTF-8"))));
+        try {
+            writer.writeRecord(ProductsEntry.CSV_COLUMNS);
+            long lastId = 0;
+            int rows;
+            do {
+                rows = 0;
+                Cursor cursor = database.query(ProductsEntry.TABLE_NAME, projection,
+                        ProductsEntry._ID + ">?", new String[] {String.valueOf(lastId)},
+                        null, null, ProductsEntry._ID, String.valueOf(EXPORT_PAGE_SIZE));
+                try {
+                    while(cursor.moveToNext()){
+                        lastId = cursor.getLong(0);
+                        // The picture itself goes into the file, so it can be imported anywhere
+                        byte[] picture = mPictureStore.read(cursor.getString(5));
+                        writer.writeRecord(cursor.getString(1),
+                                ProductsEntry.formatPrice(cursor.getLong(2)),
+                                String.valueOf(cursor.getInt(3)),
+                                picture == null ? "" : ProductsEntry.buildPictureDataUri(picture, cursor.getInt(6)),
+                                cursor.isNull(4) ? "" : cursor.getString(4));
+                        rows++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while(rows == EXPORT_PAGE_SIZE);
+            writer.flush();
+        } catch (IOException e) {
+            // The reader closed the pipe before the end, or a picture could not be read
+            Log.w(LOG_TAG, "Failed to export the products", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the export", e);
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // The methods of the timings are not timed themselves
+        if(ProductsEntry.METHOD_SET_STATS_ENABLED.equals(method)){
+            long threshold = extras == null ? ProviderStats.DEFAULT_SLOW_THRESHOLD_MS
+                    : extras.getLong(ProductsEntry.EXTRA_SLOW_THRESHOLD_MS, ProviderStats.DEFAULT_SLOW_THRESHOLD_MS);
+            mStats.setEnabled(Boolean.parseBoolean(arg), threshold);
+            return new Bundle();
+        }
+        if(ProductsEntry.METHOD_GET_STATS.equals(method)){
+            Bundle result = new Bundle();
+            result.putString(ProductsEntry.EXTRA_STATS_JSON, mStats.toJson());
+            return result;
+        }
+        if(ProductsEntry.METHOD_RESET_STATS.equals(method)){
+            mStats.reset();
+            return new Bundle();
+        }
+
+        ProviderStats.Timer timer = mStats.isEnabled() ? mStats.start("call " + method, arg) : null;
+        long rows = -1;
+        try {
+            Bundle result = callMethod(method, arg, extras);
+            rows = 0;
+            return result;
+        } finally {
+            mStats.finish(timer, rows, 0);
+        }
+    }
+
+    /**
+     * Run the method of {@link #call(String, String, Bundle)}.
+     */
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if(ProductsEntry.METHOD_SELL.equals(method)){
+            // The argument is the ID of the product and the extras hold the number of units
+            if(arg == null || extras == null){
+                throw new IllegalArgumentException("Selling requires a product ID and a number of units");
+            }
+            int units = extras.getInt(ProductsEntry.EXTRA_UNITS, 0);
+            return sellProduct(Long.parseLong(arg), units);
+        }
+        if(ProductsEntry.METHOD_SELL_SKU.equals(method)){
+            // The argument is the scanned SKU, the extras may hold the number of units
+            if(arg == null){
+                throw new IllegalArgumentException("Selling by SKU requires a SKU");
+            }
+            int units = extras == null ? 1 : extras.getInt(ProductsEntry.EXTRA_UNITS, 1);
+            return sellProductBySku(arg, units);
+        }
+        if(ProductsEntry.METHOD_SELL_BATCH.equals(method)){
+            if(extras == null){
+                throw new IllegalArgumentException("Selling a batch requires products and units");
+            }
+            return sellBatch(extras.getString(ProductsEntry.EXTRA_BATCH_TOKEN),
+                    extras.getLongArray(ProductsEntry.EXTRA_PRODUCT_IDS),
+                    extras.getIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT));
+        }
+        if(ProductsEntry.METHOD_CHECKOUT.equals(method)){
+            if(extras == null){
+                throw new IllegalArgumentException("A checkout requires products and units");
+            }
+            return checkout(extras.getLongArray(ProductsEntry.EXTRA_PRODUCT_IDS),
+                    extras.getIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT));
+        }
+        if(ProductsEntry.METHOD_RECEIVE.equals(method)){
+            // The argument is the ID of the product and the extras hold the number of units
+            if(arg == null || extras == null){
+                throw new IllegalArgumentException("Receiving requires a product ID and a number of units");
+            }
+            return receiveProduct(Long.parseLong(arg), extras.getInt(ProductsEntry.EXTRA_UNITS, 0));
+        }
+        if(ProductsEntry.METHOD_GET_ROW_CACHE_STATS.equals(method)){
+            return getRowCacheStats();
+        }
+        if(ProductsEntry.METHOD_SYNC.equals(method)){
+            // The argument is the base URL of the inventory service
+            if(arg == null){
+                throw new IllegalArgumentException("Syncing requires the URL of the inventory service");
+            }
+            return mSyncEngine.sync(arg);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Print the timings as JSON, see {@link ProductsEntry#METHOD_GET_STATS}. Called by
+     * "adb shell dumpsys activity provider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            mStats.writeJson(writer);
+            writer.println();
+        } catch (IOException e) {
+            writer.println("Failed to write the timings: " + e);
+        }
+    }
+
+    /**
+     * Start timing an operation on a URI if timing is enabled, see {@link ProviderStats}.
+     * The operation is counted under its URI pattern, e.g. "query products/#".
+     *
+     * @param selection - the selection of a write, kept by a slow sample as writes have no SQL
+     * @return the timer of the operation, null if timing is not enabled
+     */
+    private ProviderStats.Timer startTiming(String operation, Uri uri, String selection) {
+        if(!mStats.isEnabled()){
+            return null;
+        }
+        String detail = selection == null ? uri.toString() : uri + " where " + selection;
+        return mStats.start(operation + " " + getUriPattern(sUriMatcher.match(uri)), detail);
+    }
+
+    /**
+     * @return the path pattern of the given URI matcher code
+     */
+    private static String getUriPattern(int match) {
+        switch (match){
+            case PRODUCTS:
+                return InventoryContract.PATH_PRODUCTS;
+            case PRODUCT_ID:
+                return InventoryContract.PATH_PRODUCTS + "/#";
+            case PRODUCT_PICTURE:
+                return InventoryContract.PATH_PRODUCTS + "/#/" + InventoryContract.PATH_PICTURE;
+            case PRODUCT_SEARCH:
+                return InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_SEARCH;
+            case PRODUCT_SUMMARY:
+                return InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_SUMMARY;
+            case PRODUCT_EXPORT:
+                return InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_EXPORT;
+            case PRODUCT_SKU:
+                return InventoryContract.PATH_PRODUCTS + "/" + InventoryContract.PATH_SKU + "/*";
+            case MOVEMENTS:
+                return InventoryContract.PATH_MOVEMENTS;
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Return the numbers that tell how well the row cache works, see
+     * {@link ProductsEntry#METHOD_GET_ROW_CACHE_STATS}.
+     */
+    private Bundle getRowCacheStats() {
+        Bundle result = new Bundle();
+        int hits = mRowCache.getHitCount();
+        int misses = mRowCache.getMissCount();
+        result.putInt(ProductsEntry.EXTRA_CACHE_HITS, hits);
+        result.putInt(ProductsEntry.EXTRA_CACHE_MISSES, misses);
+        result.putDouble(ProductsEntry.EXTRA_CACHE_HIT_RATE,
+                hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        result.putInt(ProductsEntry.EXTRA_CACHE_EVICTIONS, mRowCache.getEvictionCount());
+        result.putInt(ProductsEntry.EXTRA_CACHE_ROWS, mRowCache.getRowCount());
+        result.putInt(ProductsEntry.EXTRA_CACHE_BYTES, mRowCache.getSize());
+        result.putInt(ProductsEntry.EXTRA_CACHE_MAX_BYTES, mRowCache.getMaxSize());
+        return result;
+    }
+
+    /**
+     * Add the given number of units received from an order to the stock of a product.
+     * Return a Bundle with the outcome and the resulting quantity.
+     */
+    private Bundle receiveProduct(final long id, final int units) {
+        // Check that the number of units is valid
+        if(units <= 0){
+            throw new IllegalArgumentException("Product requires a valid number of units to receive");
+        }
+
+        return mWriter.execute(new DatabaseWriter.Task<Bundle>() {
+            @Override
+            public Bundle run(SQLiteDatabase database) {
+                Bundle result = new Bundle();
+                SQLiteStatement statement = database.compileStatement(SQL_RECEIVE_PRODUCT);
+                database.beginTransaction();
+                try {
+                    statement.bindLong(1, units);
+                    statement.bindLong(2, id);
+                    if(statement.executeUpdateDelete() > 0){
+                        StockLedger.record(database, id, units, StockMovementsEntry.KIND_RECEIVED);
+                        ChangeLog.recordDelta(database, id, units);
+                        invalidateCachedProduct(id);
+                        result.putInt(ProductsEntry.EXTRA_RESULT, ProductsEntry.SELL_OK);
+                        result.putInt(ProductsEntry.EXTRA_QUANTITY, (int) DatabaseUtils.longForQuery(database,
+                                "SELECT " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " FROM " +
+                                        ProductsEntry.TABLE_NAME + " WHERE " + ProductsEntry._ID + "=?",
+                                new String[] {String.valueOf(id)}));
+                        notifyProductsChanged(ProductsEntry.buildChangeUri(id, ProductsEntry.CHANGE_UPDATE));
+                    }
+                    else {
+                        result.putInt(ProductsEntry.EXTRA_RESULT, ProductsEntry.SELL_PRODUCT_NOT_FOUND);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    statement.close();
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Sell units of several products in one transaction, as many as are in stock of each.
+     * The token of the batch is recorded in the same transaction, so a batch that is sent
+     * again is only applied once. Return a Bundle with the units sold and the resulting
+     * quantity of each product.
+     */
+    private Bundle sellBatch(final String token, final long[] ids, final int[] units) {
+        // Check that the batch is valid
+        if(token == null || ids == null || units == null || ids.length != units.length){
+            throw new IllegalArgumentException("Selling a batch requires a token, products and units");
+        }
+        for(int unitsOfProduct : units){
+            if(unitsOfProduct <= 0){
+                throw new IllegalArgumentException("Product requires a valid number of units to sell");
+            }
+        }
+
+        return mWriter.execute(new DatabaseWriter.Task<Bundle>() {
+            @Override
+            public Bundle run(SQLiteDatabase database) {
+                return sellBatch(database, token, ids, units);
+            }
+        });
+    }
+
+    /**
+     * Sell the batch on the writer thread, see {@link #sellBatch(String, long[], int[])}.
+     */
+    private Bundle sellBatch(SQLiteDatabase database, String token, long[] ids, int[] units) {
+        int[] unitsSold = new int[ids.length];
+        int[] quantities = new int[ids.length];
+        String quantityQuery = "SELECT " + ProductsEntry.COLUMN_PRODUCT_QUANTITY +
+                " FROM " + ProductsEntry.TABLE_NAME + " WHERE " + ProductsEntry._ID + "=?";
+        String[] tokenArgs = new String[] {token};
+        boolean alreadyApplied = DatabaseUtils.queryNumEntries(database,
+                ProductsDbHelper.SALE_BATCHES_TABLE_NAME, ProductsDbHelper.COLUMN_TOKEN + "=?", tokenArgs) > 0;
+
+        SQLiteStatement statement = database.compileStatement(SQL_SELL_IN_STOCK);
+        database.beginTransaction();
+        try {
+            for(int i = 0; i < ids.length; i++){
+                // All the writes go through this thread, so the quantity cannot change
+                // between reading it and lowering it
+                Cursor cursor = database.rawQuery(quantityQuery, new String[] {String.valueOf(ids[i])});
+                try {
+                    quantities[i] = cursor.moveToFirst() ? cursor.getInt(0) : -1;
+                } finally {
+                    cursor.close();
+                }
+                if(alreadyApplied){
+                    // The outcome of the first time is not kept, report the units as sold
+                    unitsSold[i] = quantities[i] == -1 ? 0 : units[i];
+                    continue;
+                }
+                unitsSold[i] = Math.max(0, Math.min(units[i], quantities[i]));
+                if(unitsSold[i] > 0){
+                    statement.bindLong(1, unitsSold[i]);
+                    statement.bindLong(2, ids[i]);
+                    statement.executeUpdateDelete();
+                    StockLedger.record(database, ids[i], -unitsSold[i], StockMovementsEntry.KIND_SALE);
+                    ChangeLog.recordDelta(database, ids[i], -unitsSold[i]);
+                    quantities[i] -= unitsSold[i];
+                    invalidateCachedProduct(ids[i]);
+                    notifyProductsChanged(ProductsEntry.buildChangeUri(ids[i], ProductsEntry.CHANGE_UPDATE));
+                }
+            }
+            if(!alreadyApplied){
+                // Remember the token and forget the ones that are too old to be sent again
+                long now = System.currentTimeMillis();
+                database.delete(ProductsDbHelper.SALE_BATCHES_TABLE_NAME, ProductsDbHelper.COLUMN_APPLIED_AT + "<?",
+                        new String[] {String.valueOf(now - SALE_BATCH_TOKEN_AGE)});
+                ContentValues values = new ContentValues();
+                values.put(ProductsDbHelper.COLUMN_TOKEN, token);
+                values.put(ProductsDbHelper.COLUMN_APPLIED_AT, now);
+                database.insertOrThrow(ProductsDbHelper.SALE_BATCHES_TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+
+        Bundle result = new Bundle();
+        result.putIntArray(ProductsEntry.EXTRA_UNITS_SOLD, unitsSold);
+        result.putIntArray(ProductsEntry.EXTRA_QUANTITIES, quantities);
+        return result;
+    }
+
+    /**
+     * Sell every line of a cart or none of them, see {@link ProductsEntry#METHOD_CHECKOUT}.
+     * Return a Bundle with the outcome of the checkout and of each line, and the quantities.
+     */
+    private Bundle checkout(final long[] ids, final int[] units) {
+        // Check that the cart is valid
+        if(ids == null || units == null || ids.length != units.length || ids.length == 0
+                || ids.length > ProductsEntry.MAX_CHECKOUT_LINES){
+            throw new IllegalArgumentException("A checkout requires between 1 and " +
+                    ProductsEntry.MAX_CHECKOUT_LINES + " lines of products and units");
+        }
+        Set<Long> products = new HashSet<Long>();
+        for(int i = 0; i < ids.length; i++){
+            if(units[i] <= 0){
+                throw new IllegalArgumentException("Product requires a valid number of units to sell");
+            }
+            if(!products.add(ids[i])){
+                throw new IllegalArgumentException("A product can only be in one line of a checkout");
+            }
+        }
+
+        return mWriter.execute(new DatabaseWriter.Task<Bundle>() {
+            @Override
+            public Bundle run(SQLiteDatabase database) {
+                return checkout(database, ids, units);
+            }
+        });
+    }
+
+    /**
+     * Check and sell the cart on the writer thread, see {@link #checkout(long[], int[])}.
+     * All the writes go through this thread, so the stock cannot change between checking it
+     * and lowering it.
+     */
+    private Bundle checkout(SQLiteDatabase database, long[] ids, int[] units) {
+        int[] lineResults = new int[ids.length];
+        int[] quantities = queryQuantities(database, ids);
+        boolean complete = true;
+        for(int i = 0; i < ids.length; i++){
+            if(quantities[i] == -1){
+                lineResults[i] = ProductsEntry.SELL_PRODUCT_NOT_FOUND;
+            }
+            else if(quantities[i] < units[i]){
+                lineResults[i] = ProductsEntry.SELL_INSUFFICIENT_STOCK;
+            }
+            else {
+                lineResults[i] = ProductsEntry.SELL_OK;
+            }
+            complete &= lineResults[i] == ProductsEntry.SELL_OK;
+        }
+
+        if(complete){
+            SQLiteStatement statement = database.compileStatement(SQL_SELL_IN_STOCK);
+            // A nested transaction, so a line that fails rolls back the whole cart
+            database.beginTransaction();
+            try {
+                for(int i = 0; i < ids.length; i++){
+                    statement.bindLong(1, units[i]);
+                    statement.bindLong(2, ids[i]);
+                    statement.executeUpdateDelete();
+                    StockLedger.record(database, ids[i], -units[i], StockMovementsEntry.KIND_SALE);
+                    ChangeLog.recordDelta(database, ids[i], -units[i]);
+                    quantities[i] -= units[i];
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                statement.close();
+            }
+            for(long id : ids){
+                invalidateCachedProduct(id);
+            }
+            // Notify all listeners once for the whole cart
+            notifyProductsChanged(ProductsEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(ProductsEntry.EXTRA_RESULT,
+                complete ? ProductsEntry.CHECKOUT_OK : ProductsEntry.CHECKOUT_REJECTED);
+        result.putIntArray(ProductsEntry.EXTRA_LINE_RESULTS, lineResults);
+        result.putIntArray(ProductsEntry.EXTRA_QUANTITIES, quantities);
+        return result;
+    }
+
+    /**
+     * Read the quantities of the given products with a single query.
+     * Return the quantity of each product, in the order of the IDs, or -1 for a missing product.
+     */
+    private static int[] queryQuantities(SQLiteDatabase database, long[] ids) {
+        StringBuilder placeholders = new StringBuilder();
+        String[] args = new String[ids.length];
+        for(int i = 0; i < ids.length; i++){
+            placeholders.append(i == 0 ? "?" : ",?");
+            args[i] = String.valueOf(ids[i]);
+        }
+        Map<Long, Integer> found = new HashMap<Long, Integer>();
+        Cursor cursor = database.query(ProductsEntry.TABLE_NAME,
+                new String[] {ProductsEntry._ID, ProductsEntry.COLUMN_PRODUCT_QUANTITY},
+                ProductsEntry._ID + " IN (" + placeholders + ")", args, null, null, null);
+        try {
+            while(cursor.moveToNext()){
+                found.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        int[] quantities = new int[ids.length];
+        for(int i = 0; i < ids.length; i++){
+            Integer quantity = found.get(ids[i]);
+            quantities[i] = quantity == null ? -1 : quantity;
+        }
+        return quantities;
+    }
+
+    /**
+     * Sell the given number of units of a product. The quantity is lowered in SQL with a guard
+     * on the current stock, so concurrent sellers can never sell the same units twice or drive
+     * the quantity below zero. Return a Bundle with the outcome and the resulting quantity.
+     */
+    private Bundle sellProduct(final long id, final int units) {
+        // Check that the number of units is valid
+        if(units <= 0){
+            throw new IllegalArgumentException("Product requires a valid number of units to sell");
+        }
+
+        return mWriter.execute(new DatabaseWriter.Task<Bundle>() {
+            @Override
+            public Bundle run(SQLiteDatabase database) {
+                return sellProduct(database, id, units);
+            }
+        });
+    }
+
+    /**
+     * Sell the given number of units of the product with the given SKU, see
+     * {@link ProductsEntry#METHOD_SELL_SKU}. The product named by the SKU index is sold with a
+     * guard on its SKU as well as on its stock, so a scan costs a single update by primary key
+     * however many products there are. Only when the guard fails, because the SKU is not in
+     * the index, has moved or the product is out of stock, is the product looked up in the
+     * database and sold by its ID. Return a Bundle with the outcome, the resulting quantity
+     * and the ID of the product.
+     */
+    private Bundle sellProductBySku(final String sku, final int units) {
+        // Check that the number of units is valid
+        if(units <= 0){
+            throw new IllegalArgumentException("Product requires a valid number of units to sell");
+        }
+
+        return mWriter.execute(new DatabaseWriter.Task<Bundle>() {
+            @Override
+            public Bundle run(SQLiteDatabase database) {
+                long id = mSkuIndex.get(sku);
+                if(id != -1){
+                    Bundle result = new Bundle();
+                    boolean sold;
+                    SQLiteStatement statement = database.compileStatement(SQL_SELL_PRODUCT_WITH_SKU);
+                    database.beginTransaction();
+                    try {
+                        statement.bindLong(1, units);
+                        statement.bindLong(2, id);
+                        statement.bindString(3, sku);
+                        statement.bindLong(4, units);
+                        sold = statement.executeUpdateDelete() > 0;
+                        if(sold){
+                            recordSale(database, id, units, result);
+                        }
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                        statement.close();
+                    }
+                    // An empty result would read as SELL_OK, so the outcome of the guard decides
+                    if(sold && result.getInt(ProductsEntry.EXTRA_RESULT) == ProductsEntry.SELL_OK){
+                        result.putLong(ProductsEntry.EXTRA_PRODUCT_ID, id);
+                        invalidateCachedProduct(id);
+                        notifyProductsChanged(ProductsEntry.buildChangeUri(id, ProductsEntry.CHANGE_UPDATE));
+                        return result;
+                    }
+                }
+
+                // Not sold through the index, find the product the slow way
+                long owner = findProductBySku(database, sku);
+                if(owner != id){
+                    updateSkuIndex(sku, owner);
+                }
+                if(owner == -1){
+                    Bundle result = new Bundle();
+                    result.putInt(ProductsEntry.EXTRA_RESULT, ProductsEntry.SELL_PRODUCT_NOT_FOUND);
+                    return result;
+                }
+                Bundle result = sellProduct(database, owner, units);
+                result.putLong(ProductsEntry.EXTRA_PRODUCT_ID, owner);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Sell the units on the writer thread, see {@link #sellProduct(long, int)}.
+     */
+    private Bundle sellProduct(SQLiteDatabase database, long id, int units) {
+        Bundle result = new Bundle();
+
+        SQLiteStatement statement = database.compileStatement(SQL_SELL_PRODUCT);
+        database.beginTransaction();
+        try {
+            statement.bindLong(1, units);
+            statement.bindLong(2, id);
+            statement.bindLong(3, units);
+            int rowsUpdated = statement.executeUpdateDelete();
+
+            if(rowsUpdated > 0){
+                recordSale(database, id, units, result);
+            }
+            else {
+                // Nothing was sold, find out if the product is missing or out of stock
+                Cursor cursor = database.rawQuery(SQL_QUERY_QUANTITY, new String[] {String.valueOf(id)});
+                try {
+                    if(cursor.moveToFirst()){
+                        result.putInt(ProductsEntry.EXTRA_RESULT, ProductsEntry.SELL_INSUFFICIENT_STOCK);
+                        result.putInt(ProductsEntry.EXTRA_QUANTITY, cursor.getInt(0));
+                    }
+                    else {
+                        result.putInt(ProductsEntry.EXTRA_RESULT, ProductsEntry.SELL_PRODUCT_NOT_FOUND);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+
+        // If the units were sold, notify all listeners that the product has changed
+        if(result.getInt(ProductsEntry.EXTRA_RESULT) == ProductsEntry.SELL_OK){
+            invalidateCachedProduct(id);
+            notifyProductsChanged(ProductsEntry.buildChangeUri(id, ProductsEntry.CHANGE_UPDATE));
+        }
+        return result;
+    }
+
+    /**
+     * Record the sale of the given units of a product whose quantity has just been lowered, in
+     * the same transaction, and put the outcome and the new quantity in the result.
+     */
+    private static void recordSale(SQLiteDatabase database, long id, int units, Bundle result) {
+        StockLedger.record(database, id, -units, StockMovementsEntry.KIND_SALE);
+        ChangeLog.recordDelta(database, id, -units);
+        // Read the new quantity back in the same transaction
+        result.putInt(ProductsEntry.EXTRA_RESULT, ProductsEntry.SELL_OK);
+        result.putInt(ProductsEntry.EXTRA_QUANTITY, (int) DatabaseUtils.longForQuery(database,
+                SQL_QUERY_QUANTITY, new String[] {String.valueOf(id)}));
+    }
 }
@@ -0,0 +1,433 @@
+package com.example.android.storeinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Times the operations of the provider on the device, to find out where the time goes and to
+ * spot a regression without attaching a profiler. For each operation and URI pattern, e.g.
+ * "query products/#", it counts the calls and the failed ones, adds up the time, the rows and the
+ * bytes of the rows returned, and keeps a histogram of the latencies. The operations slower than
+ * a threshold are also kept as samples, with the thread they ran on and the SQL of the queries
+ * they ran, the last {@link #MAX_SLOW_SAMPLES} of them.
+ *
+ * It is off until it is enabled, and then every operation only reads one volatile field, with
+ * no allocation and no clock. When it is on, an operation allocates a {@link Timer} and reads the
+ * clock twice, and a query reads the values of a few of its rows to estimate its bytes.
+ *
+ * The SQL of the queries is caught by the {@link #getCursorFactory() cursor factory} of the
+ * database, which sees every query that is run. The statements that change rows do not go
+ * through it, so the samples of the writes hold their selection instead.
+ */
+final class ProviderStats {
+
+    /** Upper bounds in milliseconds of the buckets of the histograms, the last bucket has none */
+    static final int[] BUCKET_BOUNDS_MS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    /** Number of slow operations kept, the oldest ones are dropped first */
+    static final int MAX_SLOW_SAMPLES = 32;
+
+    /** Threshold in milliseconds above which an operation is slow, unless another one is given */
+    static final long DEFAULT_SLOW_THRESHOLD_MS = 50;
+
+    /** Number of rows of a query that are read to estimate the bytes of all of its rows */
+    private static final int BYTES_SAMPLE_ROWS = 64;
+
+    /** Most characters of SQL kept for a slow sample */
+    private static final int MAX_SQL_LENGTH = 2000;
+
+    /**
+     * One operation in progress. It is only ever used by the thread that started it.
+     */
+    static final class Timer {
+        final String mOperation;
+        final String mDetail;
+        final long mStartNanos;
+        /** The operation this one runs inside of on the same thread, e.g. an insert of a batch */
+        final Timer mOuter;
+        /** The queries run so far, null if there has been none */
+        StringBuilder mSql;
+
+        Timer(String operation, String detail, Timer outer) {
+            mOperation = operation;
+            mDetail = detail;
+            mOuter = outer;
+            mStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The numbers of one operation on one URI pattern.
+     */
+    private static final class OperationStats {
+        int mCount;
+        int mFailures;
+        long mTotalNanos;
+        long mMaxNanos;
+        long mRows;
+        long mBytes;
+        final int[] mHistogram = new int[BUCKET_BOUNDS_MS.length + 1];
+    }
+
+    /**
+     * An operation that took longer than the threshold.
+     */
+    private static final class SlowSample {
+        String mOperation;
+        String mDetail;
+        String mThread;
+        long mNanos;
+        long mRows;
+        long mTimestamp;
+        String mSql;
+    }
+
+    /** Whether the operations are timed. Read by every operation, so it is the only cost when off. */
+    private volatile boolean mEnabled;
+
+    private volatile long mSlowThresholdNanos = DEFAULT_SLOW_THRESHOLD_MS * 1000000L;
+
+    /** Wall clock time at which the numbers started, 0 if they never have */
+    private long mStartedAt;
+
+    /** Numbers of each operation, sorted by the name of the operation. Guarded by this. */
+    private final Map<String, OperationStats> mOperations = new TreeMap<String, OperationStats>();
+
+    /** The most recent slow operations, the oldest first. Guarded by this. */
+    private final ArrayDeque<SlowSample> mSlowSamples = new ArrayDeque<SlowSample>();
+
+    /** The operation in progress on each thread, so its queries can be told apart */
+    private final ThreadLocal<Timer> mCurrent = new ThreadLocal<Timer>();
+
+    /** Creates the cursors of the database, noting down the SQL of each query while enabled */
+    private final SQLiteDatabase.CursorFactory mCursorFactory = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+                                SQLiteQuery query) {
+            if(mEnabled){
+                Timer timer = mCurrent.get();
+                if(timer != null){
+                    addSql(timer, query);
+                }
+            }
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    };
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Start or stop timing the operations. Starting clears the numbers, so they cover only what
+     * happened since.
+     *
+     * @param slowThresholdMs - operations that take at least this many milliseconds are kept
+     *                          as samples
+     */
+    void setEnabled(boolean enabled, long slowThresholdMs) {
+        if(slowThresholdMs < 0){
+            throw new IllegalArgumentException("The slow threshold cannot be negative");
+        }
+        synchronized (this) {
+            if(enabled && !mEnabled){
+                mOperations.clear();
+                mSlowSamples.clear();
+                mStartedAt = System.currentTimeMillis();
+            }
+            mSlowThresholdNanos = slowThresholdMs * 1000000L;
+            mEnabled = enabled;
+        }
+    }
+
+    /**
+     * Clear the numbers, without starting or stopping.
+     */
+    synchronized void reset() {
+        mOperations.clear();
+        mSlowSamples.clear();
+        mStartedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The factory to open the database with, so the slow samples know the SQL of their queries.
+     */
+    SQLiteDatabase.CursorFactory getCursorFactory() {
+        return mCursorFactory;
+    }
+
+    /**
+     * Start timing an operation on the calling thread.
+     *
+     * @param operation - the operation and the pattern of its URI, the key of its numbers
+     * @param detail - what a slow sample tells about the operation besides its SQL, e.g. its URI
+     * @return the timer to pass to {@link #finish(Timer, long, long)}, null when not enabled
+     */
+    Timer start(String operation, String detail) {
+        if(!mEnabled){
+            return null;
+        }
+        Timer timer = new Timer(operation, detail, mCurrent.get());
+        mCurrent.set(timer);
+        return timer;
+    }
+
+    /**
+     * Finish timing a query and count its rows and bytes. SQLite only runs a query once its
+     * rows are first read, so this reads them and the time includes filling the first window
+     * of rows, which the caller would otherwise pay for.
+     *
+     * @param cursor - the result of the query, null if it has failed
+     */
+    void finishQuery(Timer timer, Cursor cursor) {
+        if(timer == null){
+            return;
+        }
+        if(cursor == null){
+            finish(timer, -1, 0);
+            return;
+        }
+        int count = cursor.getCount();
+        // Reading the sample of values is not part of the time of the query
+        long endNanos = System.nanoTime();
+        finish(timer, endNanos, count, estimateBytes(cursor, count));
+    }
+
+    /**
+     * Finish timing an operation.
+     *
+     * @param timer - the timer returned by {@link #start(String, String)}, nothing is done if null
+     * @param rows - the rows read or changed, -1 if the operation has failed
+     * @param bytes - the bytes of the rows returned
+     */
+    void finish(Timer timer, long rows, long bytes) {
+        if(timer == null){
+            return;
+        }
+        finish(timer, System.nanoTime(), rows, bytes);
+    }
+
+    private void finish(Timer timer, long endNanos, long rows, long bytes) {
+        long nanos = endNanos - timer.mStartNanos;
+        if(timer.mOuter != null){
+            mCurrent.set(timer.mOuter);
+        }
+        else {
+            mCurrent.remove();
+        }
+
+        // Stopped while the operation was running
+        if(!mEnabled){
+            return;
+        }
+        SlowSample sample = null;
+        if(nanos >= mSlowThresholdNanos){
+            sample = new SlowSample();
+            sample.mOperation = timer.mOperation;
+            sample.mDetail = timer.mDetail;
+            sample.mThread = Thread.currentThread().getName();
+            sample.mNanos = nanos;
+            sample.mRows = rows;
+            sample.mTimestamp = System.currentTimeMillis();
+            sample.mSql = timer.mSql == null ? null : timer.mSql.toString();
+        }
+        synchronized (this) {
+            OperationStats stats = mOperations.get(timer.mOperation);
+            if(stats == null){
+                stats = new OperationStats();
+                mOperations.put(timer.mOperation, stats);
+            }
+            stats.mCount++;
+            stats.mTotalNanos += nanos;
+            stats.mMaxNanos = Math.max(stats.mMaxNanos, nanos);
+            stats.mHistogram[getBucket(nanos)]++;
+            if(rows < 0){
+                stats.mFailures++;
+            }
+            else {
+                stats.mRows += rows;
+                stats.mBytes += bytes;
+            }
+            if(sample != null){
+                if(mSlowSamples.size() == MAX_SLOW_SAMPLES){
+                    mSlowSamples.removeFirst();
+                }
+                mSlowSamples.addLast(sample);
+            }
+        }
+    }
+
+    /**
+     * @return the numbers as JSON, see {@link #writeJson(Writer)}
+     */
+    String toJson() {
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(out);
+        } catch (IOException e) {
+            // A StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the numbers as a JSON object: whether they are being taken and since when, the
+     * bucket bounds of the histograms, an object with the numbers of each operation, and the
+     * array of the slow samples, the most recent last. Times are in milliseconds.
+     */
+    synchronized void writeJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("enabled").value(mEnabled);
+        writer.name("startedAt").value(mStartedAt);
+        writer.name("slowThresholdMs").value(mSlowThresholdNanos / 1000000L);
+        writer.name("bucketBoundsMs").beginArray();
+        for(int bound : BUCKET_BOUNDS_MS){
+            writer.value(bound);
+        }
+        writer.endArray();
+
+        writer.name("operations").beginObject();
+        for(Map.Entry<String, OperationStats> entry : mOperations.entrySet()){
+            OperationStats stats = entry.getValue();
+            writer.name(entry.getKey()).beginObject();
+            writer.name("count").value(stats.mCount);
+            writer.name("failures").value(stats.mFailures);
+            writer.name("totalMs").value(toMillis(stats.mTotalNanos));
+            writer.name("meanMs").value(toMillis(stats.mTotalNanos / stats.mCount));
+            writer.name("maxMs").value(toMillis(stats.mMaxNanos));
+            writer.name("p50Ms").value(getPercentileBound(stats, 0.50));
+            writer.name("p95Ms").value(getPercentileBound(stats, 0.95));
+            writer.name("p99Ms").value(getPercentileBound(stats, 0.99));
+            writer.name("rows").value(stats.mRows);
+            writer.name("bytes").value(stats.mBytes);
+            writer.name("histogram").beginArray();
+            for(int count : stats.mHistogram){
+                writer.value(count);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endObject();
+
+        writer.name("slow").beginArray();
+        for(SlowSample sample : mSlowSamples){
+            writer.beginObject();
+            writer.name("operation").value(sample.mOperation);
+            writer.name("detail").value(sample.mDetail);
+            writer.name("thread").value(sample.mThread);
+            writer.name("durationMs").value(toMillis(sample.mNanos));
+            writer.name("rows").value(sample.mRows);
+            writer.name("at").value(sample.mTimestamp);
+            if(sample.mSql != null){
+                writer.name("sql").value(sample.mSql);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Note down the SQL of a query run by the operation of the timer, up to a limit.
+     */
+    private static void addSql(Timer timer, SQLiteQuery query) {
+        if(timer.mSql == null){
+            timer.mSql = new StringBuilder();
+        }
+        else if(timer.mSql.length() >= MAX_SQL_LENGTH){
+            return;
+        }
+        else {
+            timer.mSql.append("; ");
+        }
+        // The SQL itself is hidden, the description of the query is "SQLiteQuery: <sql>"
+        String sql = query.toString();
+        int start = sql.indexOf(": ") + 2;
+        if(start == 1){
+            start = 0;
+        }
+        int end = Math.min(sql.length(), start + MAX_SQL_LENGTH - timer.mSql.length());
+        timer.mSql.append(sql, start, Math.max(start, end));
+    }
+
+    /**
+     * Estimate the bytes of the rows of a cursor from the values of its first rows, 8 for a
+     * number, 2 per character of a string and the length of a blob. The cursor is left before
+     * its first row.
+     */
+    private static long estimateBytes(Cursor cursor, int count) {
+        int sampled = Math.min(count, BYTES_SAMPLE_ROWS);
+        if(sampled == 0){
+            return 0;
+        }
+        int columns = cursor.getColumnCount();
+        long bytes = 0;
+        for(int row = 0; row < sampled; row++){
+            cursor.moveToPosition(row);
+            for(int column = 0; column < columns; column++){
+                switch (cursor.getType(column)){
+                    case Cursor.FIELD_TYPE_INTEGER:
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        bytes += 8;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        bytes += 2 * cursor.getString(column).length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        bytes += cursor.getBlob(column).length;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        cursor.moveToPosition(-1);
+        return bytes * count / sampled;
+    }
+
+    /**
+     * @return the index of the histogram bucket of the given time
+     */
+    private static int getBucket(long nanos) {
+        int bucket = 0;
+        while(bucket < BUCKET_BOUNDS_MS.length && nanos > BUCKET_BOUNDS_MS[bucket] * 1000000L){
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the upper bound in milliseconds of the bucket that holds the given share of the
+     * calls, or the slowest time if that is the last bucket
+     */
+    private static double getPercentileBound(OperationStats stats, double share) {
+        long needed = (long) Math.ceil(share * stats.mCount);
+        long seen = 0;
+        for(int bucket = 0; bucket < BUCKET_BOUNDS_MS.length; bucket++){
+            seen += stats.mHistogram[bucket];
+            if(seen >= needed){
+                return BUCKET_BOUNDS_MS[bucket];
+            }
+        }
+        return toMillis(stats.mMaxNanos);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.storeinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which product has which SKU, so that a scanned barcode is turned into the ID of its
+ * product without a lookup in the SKU index of the database. The provider then reads or sells
+ * the product by its primary key, which is what the row cache and the sale statement are fast at.
+ *
+ * The table is open addressing over two plain arrays, holding the hash of the SKU and the ID of
+ * the product, instead of a map of strings: 12 bytes per slot rather than the 100 or so of a
+ * HashMap entry with its String and Long, so 100,000 SKUs fit in about 3MB. As only the hash
+ * is kept, two SKUs with the same hash share an entry and an entry is a hint, not an answer.
+ * The provider always checks the SKU of the product it points to, and falls back to the database
+ * and corrects the entry when it is wrong. A stale entry costs one lookup, never a wrong result.
+ *
+ * The provider keeps the entries up to date after every committed write that gives, moves or
+ * takes away a SKU, and {@link #warm(SQLiteDatabase)} loads the SKUs of the existing products in
+ * the background when the provider starts.
+ */
+final class SkuIndex {
+
+    /** Number of slots the table starts with. Always a power of two. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Number of products read from the database by each query of {@link #warm(SQLiteDatabase)} */
+    private static final int WARM_PAGE_SIZE = 1000;
+
+    /** Hash of the SKU in each slot */
+    private int[] mHashes;
+    /** ID of the product in each slot, 0 for an empty slot as IDs start at 1 */
+    private long[] mIds;
+    /** Number of slots in use */
+    private int mSize;
+
+    SkuIndex() {
+        mHashes = new int[INITIAL_CAPACITY];
+        mIds = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return the ID of the product that had the given SKU when it was last seen, or -1 if there
+     * is none. Check the SKU of that product before using it.
+     */
+    synchronized long get(String sku) {
+        int slot = find(hash(sku));
+        return mIds[slot] == 0 ? -1 : mIds[slot];
+    }
+
+    /**
+     * Remember that the product with the given ID has the given SKU.
+     */
+    synchronized void put(String sku, long id) {
+        put(hash(sku), id, true);
+    }
+
+    /**
+     * Forget the product of the given SKU.
+     */
+    synchronized void remove(String sku) {
+        int mask = mIds.length - 1;
+        int free = find(hash(sku));
+        if(mIds[free] == 0){
+            return;
+        }
+        mIds[free] = 0;
+        mSize--;
+        // Shift back the entries that follow in the same run and could not go in the free slot
+        // when it was taken, so that a lookup never stops early at the gap
+        for(int next = (free + 1) & mask; mIds[next] != 0; next = (next + 1) & mask){
+            int home = mHashes[next] & mask;
+            if(((next - home) & mask) >= ((next - free) & mask)){
+                mHashes[free] = mHashes[next];
+                mIds[free] = mIds[next];
+                mIds[next] = 0;
+                free = next;
+            }
+        }
+    }
+
+    /**
+     * Forget every SKU, e.g. after all the products have been deleted.
+     */
+    synchronized void clear() {
+        Arrays.fill(mIds, 0);
+        mSize = 0;
+    }
+
+    /**
+     * @return the number of SKUs remembered
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Load the SKUs of all the products, one page at a time so that no read keeps a connection
+     * for long. An entry put by a write meanwhile is newer than what the page read, so it is kept.
+     * Must not be called on the main thread.
+     */
+    void warm(SQLiteDatabase db) {
+        String[] columns = new String[] {ProductsEntry._ID, ProductsEntry.COLUMN_PRODUCT_SKU};
+        String selection = ProductsEntry._ID + ">? AND " + ProductsEntry.COLUMN_PRODUCT_SKU + " IS NOT NULL";
+        String limit = String.valueOf(WARM_PAGE_SIZE);
+        long lastId = 0;
+        int rows;
+        do {
+            rows = 0;
+            Cursor cursor = db.query(ProductsEntry.TABLE_NAME, columns, selection,
+                    new String[] {String.valueOf(lastId)}, null, null, ProductsEntry._ID, limit);
+            try {
+                while(cursor.moveToNext()){
+                    lastId = cursor.getLong(0);
+                    rows++;
+                    synchronized (this) {
+                        put(hash(cursor.getString(1)), lastId, false);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } while(rows == WARM_PAGE_SIZE);
+    }
+
+    /**
+     * Put an entry, growing the table once it is three quarters full.
+     * @param replace - false to keep the entry already there for the hash
+     */
+    private void put(int hash, long id, boolean replace) {
+        int slot = find(hash);
+        if(mIds[slot] != 0){
+            if(replace){
+                mIds[slot] = id;
+            }
+            return;
+        }
+        mHashes[slot] = hash;
+        mIds[slot] = id;
+        mSize++;
+        if(mSize * 4 >= mIds.length * 3){
+            grow();
+        }
+    }
+
+    /**
+     * @return the slot of the given hash, or the empty slot where it would go
+     */
+    private int find(int hash) {
+        int mask = mIds.length - 1;
+        int slot = hash & mask;
+        while(mIds[slot] != 0 && mHashes[slot] != hash){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] hashes = mHashes;
+        long[] ids = mIds;
+        mHashes = new int[hashes.length * 2];
+        mIds = new long[ids.length * 2];
+        for(int i = 0; i < ids.length; i++){
+            if(ids[i] != 0){
+                int slot = find(hashes[i]);
+                mHashes[slot] = hashes[i];
+                mIds[slot] = ids[i];
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of the hash of the SKU, as barcodes of the same kind differ mostly in
+     * their last digits.
+     */
+    private static int hash(String sku) {
+        int hash = sku.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.storeinventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.InventoryContract.StockMovementsEntry;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Writes the stock movements ledger. Every method must be called inside the transaction that
+ * changes the quantity of the products, so the quantity always equals the sum of the deltas of
+ * the movements of the product.
+ *
+ * Old movements are compacted: all the movements of a product in one calendar month, once the
+ * month is older than {@link #RETENTION_MONTHS}, are replaced with a single snapshot movement
+ * whose delta is their sum. The ledger then grows with the number of products and months
+ * instead of with the number of sales.
+ */
+public final class StockLedger {
+
+    /** Number of whole months whose movements are kept one by one */
+    public static final int RETENTION_MONTHS = 3;
+
+    /** Most products compacted in one chunk */
+    private static final int COMPACTION_CHUNK_SIZE = 100;
+
+    /** SQL statement that appends a movement. Arguments: product ID, delta, kind, time. */
+    private static final String SQL_INSERT_MOVEMENT =
+            "INSERT INTO " + StockMovementsEntry.TABLE_NAME + " (" +
+                    StockMovementsEntry.COLUMN_PRODUCT_ID + ", " +
+                    StockMovementsEntry.COLUMN_DELTA + ", " +
+                    StockMovementsEntry.COLUMN_KIND + ", " +
+                    StockMovementsEntry.COLUMN_CREATED_AT + ") VALUES (?, ?, ?, ?)";
+
+    /** Start of the month of a movement time, in milliseconds, as an SQL expression */
+    private static final String SQL_MONTH_START = "CAST(strftime('%s', " +
+            StockMovementsEntry.COLUMN_CREATED_AT + " / 1000, 'unixepoch', 'start of month') AS INTEGER) * 1000";
+
+    private StockLedger() {
+    }
+
+    /**
+     * Create the ledger table and its indexes.
+     */
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StockMovementsEntry.TABLE_NAME + " (" +
+                StockMovementsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                StockMovementsEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, " +
+                StockMovementsEntry.COLUMN_DELTA + " INTEGER NOT NULL, " +
+                StockMovementsEntry.COLUMN_KIND + " INTEGER NOT NULL, " +
+                StockMovementsEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL);");
+        // Movements of one product in a time range
+        db.execSQL("CREATE INDEX stock_movements_product_idx ON " + StockMovementsEntry.TABLE_NAME +
+                " (" + StockMovementsEntry.COLUMN_PRODUCT_ID + ", " + StockMovementsEntry.COLUMN_CREATED_AT + ");");
+        // Movements of all products in a time range, and the old movements to compact
+        db.execSQL("CREATE INDEX stock_movements_created_at_idx ON " + StockMovementsEntry.TABLE_NAME +
+                " (" + StockMovementsEntry.COLUMN_CREATED_AT + ");");
+    }
+
+    /**
+     * Append one movement of a product.
+     */
+    public static void record(SQLiteDatabase db, long productId, long delta, int kind) {
+        if(delta == 0){
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT_MOVEMENT);
+        try {
+            statement.bindLong(1, productId);
+            statement.bindLong(2, delta);
+            statement.bindLong(3, kind);
+            statement.bindLong(4, System.currentTimeMillis());
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Append a correction for every product that matches the selection and whose quantity is
+     * about to be set to the given quantity. Must be called before the products are updated.
+     */
+    public static void recordCorrections(SQLiteDatabase db, int quantity, String selection, String[] selectionArgs) {
+        String where = ProductsEntry.COLUMN_PRODUCT_QUANTITY + " <> ?";
+        if(selection != null){
+            where = "(" + selection + ") AND " + where;
+        }
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] args = new Object[argCount + 3];
+        args[0] = quantity;
+        args[1] = System.currentTimeMillis();
+        for(int i = 0; i < argCount; i++){
+            args[i + 2] = selectionArgs[i];
+        }
+        args[args.length - 1] = quantity;
+        db.execSQL("INSERT INTO " + StockMovementsEntry.TABLE_NAME + " (" +
+                StockMovementsEntry.COLUMN_PRODUCT_ID + ", " +
+                StockMovementsEntry.COLUMN_DELTA + ", " +
+                StockMovementsEntry.COLUMN_KIND + ", " +
+                StockMovementsEntry.COLUMN_CREATED_AT + ")" +
+                " SELECT " + ProductsEntry._ID + ", ? - " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + ", " +
+                StockMovementsEntry.KIND_CORRECTION + ", ?" +
+                " FROM " + ProductsEntry.TABLE_NAME + " WHERE " + where, args);
+    }
+
+    /**
+     * Delete the movements of the products that match the selection. Must be called before
+     * the products are deleted.
+     */
+    public static void deleteMovements(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.delete(StockMovementsEntry.TABLE_NAME, StockMovementsEntry.COLUMN_PRODUCT_ID + " IN (SELECT " +
+                ProductsEntry._ID + " FROM " + ProductsEntry.TABLE_NAME +
+                (selection != null ? " WHERE " + selection : "") + ")", selectionArgs);
+    }
+
+    /**
+     * Return the time before which movements are compacted: the start of the month
+     * {@link #RETENTION_MONTHS} whole months before the month of the given time, in UTC.
+     */
+    public static long getCompactionCutoff(long now) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MONTH, -RETENTION_MONTHS);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Compact the old movements of the next few products, see {@link StockLedger}.
+     * Run it in its own transaction until it returns false.
+     * @param cutoff - the time before which movements are compacted, see {@link #getCompactionCutoff(long)}
+     * @return true if some movements were compacted, false if there is nothing left to do
+     */
+    public static boolean compactNextChunk(SQLiteDatabase db, long cutoff) {
+        String[] cutoffArgs = new String[] {String.valueOf(cutoff)};
+        // Products that still have old movements which are not snapshots
+        StringBuilder productIds = new StringBuilder();
+        Cursor cursor = db.query(true, StockMovementsEntry.TABLE_NAME,
+                new String[] {StockMovementsEntry.COLUMN_PRODUCT_ID},
+                StockMovementsEntry.COLUMN_CREATED_AT + " < ? AND " +
+                        StockMovementsEntry.COLUMN_KIND + " <> " + StockMovementsEntry.KIND_SNAPSHOT,
+                cutoffArgs, null, null, null, String.valueOf(COMPACTION_CHUNK_SIZE));
+        try {
+            while(cursor.moveToNext()){
+                if(productIds.length() > 0){
+                    productIds.append(',');
+                }
+                productIds.append(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        if(productIds.length() == 0){
+            return false;
+        }
+
+        String oldMovements = StockMovementsEntry.COLUMN_PRODUCT_ID + " IN (" + productIds + ") AND " +
+                StockMovementsEntry.COLUMN_CREATED_AT + " < ?";
+        long lastId = DatabaseUtils.longForQuery(db, "SELECT ifnull(max(" + StockMovementsEntry._ID +
+                "), 0) FROM " + StockMovementsEntry.TABLE_NAME, null);
+        // One snapshot per product and month with the sum of the movements it replaces
+        db.execSQL("INSERT INTO " + StockMovementsEntry.TABLE_NAME + " (" +
+                StockMovementsEntry.COLUMN_PRODUCT_ID + ", " +
+                StockMovementsEntry.COLUMN_DELTA + ", " +
+                StockMovementsEntry.COLUMN_KIND + ", " +
+                StockMovementsEntry.COLUMN_CREATED_AT + ")" +
+                " SELECT " + StockMovementsEntry.COLUMN_PRODUCT_ID + ", sum(" + StockMovementsEntry.COLUMN_DELTA +
+                "), " + StockMovementsEntry.KIND_SNAPSHOT + ", " + SQL_MONTH_START +
+                " FROM " + StockMovementsEntry.TABLE_NAME + " WHERE " + oldMovements +
+                " GROUP BY " + StockMovementsEntry.COLUMN_PRODUCT_ID + ", " + SQL_MONTH_START, cutoffArgs);
+        // The new snapshots come after the last old movement, so they are kept
+        db.delete(StockMovementsEntry.TABLE_NAME, oldMovements + " AND " + StockMovementsEntry._ID + " <= ?",
+                new String[] {String.valueOf(cutoff), String.valueOf(lastId)});
+        return true;
+    }
+}
@@ -0,0 +1,746 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.InventoryContract.StockMovementsEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the products of this device with the central inventory service, see
+ * {@link ProductsEntry#METHOD_SYNC}. Only changes travel: the local changes come from the
+ * {@link ChangeLog} and the changes of the other devices are pulled from where the last sync
+ * stopped, so a sync costs as much as there are changes, not as much as there are products.
+ *
+ * The service keeps all the changes it got in the order it got them, each with its own sequence
+ * number. It speaks JSON over HTTP, gzip compressed both ways:
+ *
+ * POST {base}/changes sends a batch of local changes:
+ * {"device": id, "changes": [{"seq", "uuid", "version", "deleted", "name", "price", "pictureHash",
+ * "picture", "quantityDelta"}]}. The fields that did not change are left out and the picture is
+ * sent as Base64 with the change that set it. The sequence numbers of a device only grow, so the
+ * service must drop the changes of a batch that it got before, e.g. when its answer was lost.
+ * A batch without an answer is sent again with the same changes until the service answers; the
+ * changes made in the meantime go into later batches, so they are never folded into a change
+ * the service may already have.
+ *
+ * GET {base}/changes?since=watermark&amp;limit=n&amp;device=id pulls the next page of changes:
+ * {"changes": [...], "hasMore": true|false}, the changes in the same format with the sequence
+ * number of the service in "seq" and the device that made them in "device".
+ *
+ * GET {base}/pictures/{hash} fetches the bytes of a picture, for a pulled change that names a
+ * picture without carrying it. The service answers 404 if it never got the picture; the product
+ * then has no picture until a later change sets one.
+ *
+ * The pulled changes are applied in the order of the service. A change of the name, price or
+ * picture replaces the local value, so the change the service got last wins; this includes the
+ * changes of this device, which may have been overtaken by another device in the meantime.
+ * A change of the quantity made by another device is added to the local quantity, so the units
+ * sold and received on all the devices add up. A name, price or picture with a local change
+ * that has not been sent yet is kept: it is sent with the next sync and then it is the last
+ * change the service got. The other values of the product are replaced all the same.
+ */
+public class SyncEngine {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    /** Path of the changes below the base URL of the service */
+    static final String PATH_CHANGES = "changes";
+
+    /** Path of the pictures below the base URL of the service */
+    static final String PATH_PICTURES = "pictures";
+
+    /** Most changes of the log sent in one request */
+    private static final int PUSH_BATCH_SIZE = 200;
+
+    /** Most picture bytes sent in one request, a batch with larger pictures is cut short */
+    private static final int MAX_PICTURE_BYTES_PER_BATCH = 1024 * 1024;
+
+    /** Most changes pulled in one request, and applied in one transaction */
+    private static final int PULL_PAGE_SIZE = 200;
+
+    /** Time in milliseconds to wait for the service to connect and to answer */
+    private static final int TIMEOUT_MILLIS = 15 * 1000;
+
+    /** Columns of the log read for a batch */
+    private static final String[] LOG_COLUMNS = {
+            ChangeLog._ID,
+            ChangeLog.COLUMN_PRODUCT_UUID,
+            ChangeLog.COLUMN_VERSION,
+            ChangeLog.COLUMN_DELETED,
+            ChangeLog.COLUMN_NAME,
+            ChangeLog.COLUMN_PRICE,
+            ChangeLog.COLUMN_PICTURE_HASH,
+            ChangeLog.COLUMN_QUANTITY_DELTA
+    };
+
+    /**
+     * Is told about the changes of other devices that have been applied.
+     */
+    public interface Listener {
+        /**
+         * Called on the writer thread, inside the transaction that applied the changes, so the
+         * work that has to wait for the commit can be handed to
+         * {@link DatabaseWriter#runAfterCommit(Runnable)}.
+         * @param replacedPictureHashes - the pictures of the products before the changes, which
+         *                              may no longer be used
+         */
+        void onRemoteChangesApplied(Set<String> replacedPictureHashes);
+    }
+
+    /**
+     * A change of one product, as it is sent and pulled.
+     */
+    static class Change {
+        /** Sequence number in the log, or of the service for a pulled change */
+        long mSequence;
+        /** The device that made the change, only set for a pulled change */
+        String mDeviceId;
+        String mUuid;
+        long mVersion;
+        boolean mDeleted;
+        /** New values, null if the change left them as they were */
+        String mName;
+        Long mPrice;
+        String mPictureHash;
+        /** Bytes of the new picture of a pulled change, if the service sent them */
+        byte[] mPicture;
+        long mQuantityDelta;
+
+        /**
+         * Fold a later change of the same product into this one, so only one is sent.
+         */
+        void merge(Change later) {
+            mSequence = later.mSequence;
+            mVersion = later.mVersion;
+            mDeleted |= later.mDeleted;
+            if(later.mName != null){
+                mName = later.mName;
+            }
+            if(later.mPrice != null){
+                mPrice = later.mPrice;
+            }
+            if(later.mPictureHash != null){
+                mPictureHash = later.mPictureHash;
+            }
+            mQuantityDelta += later.mQuantityDelta;
+        }
+    }
+
+    /**
+     * A page of changes pulled from the service.
+     */
+    private static class Page {
+        final List<Change> mChanges = new ArrayList<Change>();
+        boolean mHasMore;
+    }
+
+    private final SQLiteOpenHelper mDbHelper;
+
+    private final DatabaseWriter mWriter;
+
+    /** Store of the pictures, whose lock is held while a picture and its row are written */
+    private final PictureStore mPictureStore;
+
+    private final Listener mListener;
+
+    SyncEngine(SQLiteOpenHelper dbHelper, DatabaseWriter writer, PictureStore pictureStore, Listener listener) {
+        mDbHelper = dbHelper;
+        mWriter = writer;
+        mPictureStore = pictureStore;
+        mListener = listener;
+    }
+
+    /**
+     * Send the local changes and pull the changes of the other devices from the service at the
+     * given base URL. Only one sync runs at a time. Must not be called on the main thread.
+     * @return the result described in {@link ProductsEntry#METHOD_SYNC}
+     */
+    public synchronized Bundle sync(String baseUrl) {
+        String base = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        String changesUrl = base + PATH_CHANGES;
+        int sent = 0;
+        int received = 0;
+        int result = ProductsEntry.SYNC_OK;
+        try {
+            int count;
+            while((count = pushNextBatch(changesUrl)) > 0){
+                sent += count;
+            }
+            Page page;
+            do {
+                page = pullNextPage(changesUrl);
+                fetchMissingPictures(base + PATH_PICTURES, page);
+                received += applyPage(page);
+            } while(page.mHasMore && !page.mChanges.isEmpty());
+        } catch (IOException e) {
+            // What has been sent and pulled so far is kept, the next sync picks up from there
+            Log.w(LOG_TAG, "Failed to sync with " + baseUrl, e);
+            result = ProductsEntry.SYNC_FAILED;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(ProductsEntry.EXTRA_RESULT, result);
+        bundle.putInt(ProductsEntry.EXTRA_CHANGES_SENT, sent);
+        bundle.putInt(ProductsEntry.EXTRA_CHANGES_RECEIVED, received);
+        return bundle;
+    }
+
+    /**
+     * Send the oldest changes of the log in one request and drop them from the log once the
+     * service has them. A batch that has been sent without an answer is sent again first, with
+     * the same changes.
+     * @return the number of changes sent, 0 if there are none left
+     */
+    private int pushNextBatch(String changesUrl) throws IOException {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        String deviceId = ChangeLog.getDeviceId(database);
+        long bound = ChangeLog.getPushBound(database);
+        String selection = null;
+        String[] selectionArgs = null;
+        if(bound > 0){
+            // The service may have the batch already, so it must not be folded into later changes
+            selection = ChangeLog._ID + "<=?";
+            selectionArgs = new String[] {String.valueOf(bound)};
+        }
+        // The changes of a product are folded into one
+        Map<String, Change> changes = new LinkedHashMap<String, Change>();
+        long lastSequence = -1;
+        long pictureBytes = 0;
+        Cursor cursor = database.query(ChangeLog.TABLE_NAME, LOG_COLUMNS, selection, selectionArgs,
+                null, null, ChangeLog._ID, String.valueOf(PUSH_BATCH_SIZE));
+        try {
+            while(cursor.moveToNext()){
+                if(cursor.isNull(1)){
+                    // The upgrade has not given the product its identifier yet, it will log the
+                    // whole product again once it has, so wait for it
+                    break;
+                }
+                Change change = readLoggedChange(cursor);
+                if(change.mPictureHash != null && bound == 0){
+                    pictureBytes += mPictureStore.getFile(change.mPictureHash).length();
+                    if(pictureBytes > MAX_PICTURE_BYTES_PER_BATCH && lastSequence != -1){
+                        // Leave the picture to the next batch
+                        break;
+                    }
+                }
+                Change earlier = changes.get(change.mUuid);
+                if(earlier != null){
+                    earlier.merge(change);
+                }
+                else {
+                    changes.put(change.mUuid, change);
+                }
+                lastSequence = change.mSequence;
+            }
+        } finally {
+            cursor.close();
+        }
+        if(changes.isEmpty()){
+            if(bound > 0){
+                // The changes of the batch have been dropped since, e.g. because another device
+                // deleted their products, so there is nothing left to send again
+                setPushBound(0);
+                return pushNextBatch(changesUrl);
+            }
+            return 0;
+        }
+        if(bound == 0){
+            // From now on these changes are sent as this batch, whatever is logged after them
+            bound = lastSequence;
+            setPushBound(bound);
+        }
+        // Sent in the order of their last change, so the sequence numbers only grow
+        List<Change> batch = new ArrayList<Change>(changes.values());
+        Collections.sort(batch, new Comparator<Change>() {
+            @Override
+            public int compare(Change change, Change otherChange) {
+                return change.mSequence < otherChange.mSequence ? -1
+                        : (change.mSequence == otherChange.mSequence ? 0 : 1);
+            }
+        });
+
+        HttpURLConnection connection = openConnection(new URL(changesUrl));
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(connection.getOutputStream()), "UTF-8"));
+            try {
+                writer.beginObject();
+                writer.name("device").value(deviceId);
+                writer.name("changes").beginArray();
+                for(Change change : batch){
+                    writeChange(writer, change);
+                }
+                writer.endArray();
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+            readResponse(connection).close();
+        } finally {
+            connection.disconnect();
+        }
+
+        // The service has the changes now
+        final long sentUpTo = bound;
+        mWriter.execute(new DatabaseWriter.Task<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                ChangeLog.deleteSentChanges(db, sentUpTo);
+                return null;
+            }
+        });
+        return batch.size();
+    }
+
+    /**
+     * Remember the last change of the batch that is being sent, or 0 to forget the batch.
+     */
+    private void setPushBound(final long bound) {
+        mWriter.execute(new DatabaseWriter.Task<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                ChangeLog.setPushBound(db, bound);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read the current row of a cursor over {@link #LOG_COLUMNS}.
+     */
+    private static Change readLoggedChange(Cursor cursor) {
+        Change change = new Change();
+        change.mSequence = cursor.getLong(0);
+        change.mUuid = cursor.getString(1);
+        change.mVersion = cursor.getLong(2);
+        change.mDeleted = cursor.getInt(3) != 0;
+        change.mName = cursor.isNull(4) ? null : cursor.getString(4);
+        change.mPrice = cursor.isNull(5) ? null : cursor.getLong(5);
+        change.mPictureHash = cursor.isNull(6) ? null : cursor.getString(6);
+        change.mQuantityDelta = cursor.getLong(7);
+        return change;
+    }
+
+    /**
+     * Write a local change with the bytes of its new picture.
+     */
+    private void writeChange(JsonWriter writer, Change change) throws IOException {
+        writer.beginObject();
+        writer.name("seq").value(change.mSequence);
+        writer.name("uuid").value(change.mUuid);
+        writer.name("version").value(change.mVersion);
+        if(change.mDeleted){
+            writer.name("deleted").value(true);
+        }
+        else {
+            if(change.mName != null){
+                writer.name("name").value(change.mName);
+            }
+            if(change.mPrice != null){
+                writer.name("price").value(change.mPrice);
+            }
+            if(change.mPictureHash != null){
+                writer.name("pictureHash").value(change.mPictureHash);
+                // A picture that has been replaced again since is gone, the later change sends its own
+                byte[] picture = mPictureStore.read(change.mPictureHash);
+                if(picture != null){
+                    writer.name("picture").value(Base64.encodeToString(picture, Base64.NO_WRAP));
+                }
+            }
+            writer.name("quantityDelta").value(change.mQuantityDelta);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Pull the changes the service got since the last change that has been applied.
+     */
+    private Page pullNextPage(String changesUrl) throws IOException {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        URL url = new URL(changesUrl + "?since=" + ChangeLog.getPullWatermark(database) +
+                "&limit=" + PULL_PAGE_SIZE +
+                "&device=" + URLEncoder.encode(ChangeLog.getDeviceId(database), "UTF-8"));
+        Page page = new Page();
+        HttpURLConnection connection = openConnection(url);
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(readResponse(connection), "UTF-8"));
+            try {
+                reader.beginObject();
+                while(reader.hasNext()){
+                    String name = reader.nextName();
+                    if("changes".equals(name)){
+                        reader.beginArray();
+                        while(reader.hasNext()){
+                            page.mChanges.add(readPulledChange(reader));
+                        }
+                        reader.endArray();
+                    }
+                    else if("hasMore".equals(name)){
+                        page.mHasMore = reader.nextBoolean();
+                    }
+                    else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return page;
+    }
+
+    /**
+     * Read one change pulled from the service.
+     */
+    private static Change readPulledChange(JsonReader reader) throws IOException {
+        Change change = new Change();
+        change.mSequence = -1;
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if(reader.peek() == JsonToken.NULL){
+                reader.nextNull();
+            }
+            else if("seq".equals(name)){
+                change.mSequence = reader.nextLong();
+            }
+            else if("device".equals(name)){
+                change.mDeviceId = reader.nextString();
+            }
+            else if("uuid".equals(name)){
+                change.mUuid = reader.nextString();
+            }
+            else if("version".equals(name)){
+                change.mVersion = reader.nextLong();
+            }
+            else if("deleted".equals(name)){
+                change.mDeleted = reader.nextBoolean();
+            }
+            else if("name".equals(name)){
+                change.mName = reader.nextString();
+            }
+            else if("price".equals(name)){
+                change.mPrice = reader.nextLong();
+            }
+            else if("pictureHash".equals(name)){
+                change.mPictureHash = reader.nextString();
+            }
+            else if("picture".equals(name)){
+                try {
+                    change.mPicture = Base64.decode(reader.nextString(), Base64.DEFAULT);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Broken picture in a change", e);
+                }
+            }
+            else if("quantityDelta".equals(name)){
+                change.mQuantityDelta = reader.nextLong();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if(change.mSequence == -1 || change.mUuid == null){
+            throw new IOException("Change without a sequence number or product");
+        }
+        return change;
+    }
+
+    /**
+     * Fetch the pictures that the changes of other devices in a page set without carrying their
+     * bytes and that are not stored here yet. Runs before the page is applied, so no transaction
+     * waits for the network.
+     */
+    private void fetchMissingPictures(String picturesUrl, Page page) throws IOException {
+        String deviceId = ChangeLog.getDeviceId(mDbHelper.getReadableDatabase());
+        Map<String, byte[]> fetched = new HashMap<String, byte[]>();
+        for(Change change : page.mChanges){
+            // A picture of this device that is gone has been replaced here since
+            if(change.mDeleted || change.mPictureHash == null || change.mPictureHash.isEmpty()
+                    || change.mPicture != null || deviceId.equals(change.mDeviceId)
+                    || mPictureStore.getFile(change.mPictureHash).exists()){
+                continue;
+            }
+            if(!fetched.containsKey(change.mPictureHash)){
+                fetched.put(change.mPictureHash, fetchPicture(picturesUrl, change.mPictureHash));
+            }
+            change.mPicture = fetched.get(change.mPictureHash);
+        }
+    }
+
+    /**
+     * @return the bytes of the picture with the given hash, or null if the service does not have it
+     */
+    private static byte[] fetchPicture(String picturesUrl, String hash) throws IOException {
+        HttpURLConnection connection = openConnection(new URL(picturesUrl + "/" + URLEncoder.encode(hash, "UTF-8")));
+        try {
+            if(connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND){
+                Log.w(LOG_TAG, "The inventory service has no picture " + hash);
+                return null;
+            }
+            InputStream inputStream = readResponse(connection);
+            try {
+                return readAll(inputStream, Math.max(connection.getContentLength(), 0));
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Apply the changes of the other devices in a page in one transaction, together with the new
+     * watermark, so a page is either applied whole or pulled again.
+     * @return the number of changes of other devices that changed a product
+     */
+    private int applyPage(final Page page) {
+        if(page.mChanges.isEmpty()){
+            return 0;
+        }
+        return mWriter.execute(new DatabaseWriter.Task<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                String deviceId = ChangeLog.getDeviceId(db);
+                Set<String> replacedPictureHashes = new HashSet<String>();
+                int applied = 0;
+                boolean changed = false;
+                for(Change change : page.mChanges){
+                    boolean ownChange = deviceId.equals(change.mDeviceId);
+                    // The units of this device are in the database already, only its names,
+                    // prices and pictures may have been overtaken by another device since
+                    if(ownChange && change.mName == null && change.mPrice == null
+                            && change.mPictureHash == null){
+                        continue;
+                    }
+                    synchronized (mPictureStore) {
+                        if(applyChange(db, change, ownChange, replacedPictureHashes)){
+                            changed = true;
+                            if(!ownChange){
+                                applied++;
+                            }
+                        }
+                    }
+                }
+                ChangeLog.setPullWatermark(db, page.mChanges.get(page.mChanges.size() - 1).mSequence);
+                // The changes of this device may have brought back values overtaken here too
+                if(changed){
+                    mListener.onRemoteChangesApplied(replacedPictureHashes);
+                }
+                return applied;
+            }
+        });
+    }
+
+    /**
+     * Apply one pulled change, without logging it. Must hold the lock of the picture store.
+     * @param ownChange - true if the change was made by this device, which only brings back the
+     *                  name, price and picture it set
+     * @return true if the change altered the products, false if it is about a product this
+     * device does not know or left it as it was
+     */
+    private boolean applyChange(SQLiteDatabase db, Change change, boolean ownChange,
+                                Set<String> replacedPictureHashes) {
+        long id = -1;
+        String pictureHash = null;
+        Cursor cursor = db.query(ProductsEntry.TABLE_NAME,
+                new String[] {ProductsEntry._ID, ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH},
+                ProductsEntry.COLUMN_PRODUCT_UUID + "=?", new String[] {change.mUuid}, null, null, null);
+        try {
+            if(cursor.moveToFirst()){
+                id = cursor.getLong(0);
+                pictureHash = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        String[] idArgs = new String[] {String.valueOf(id)};
+
+        if(ownChange && id == -1){
+            // Deleted on this device since
+            return false;
+        }
+        if(change.mDeleted){
+            if(id == -1){
+                return false;
+            }
+            StockLedger.deleteMovements(db, ProductsEntry._ID + "=?", idArgs);
+            // Local changes of a product that is gone everywhere have nothing left to change
+            ChangeLog.deletePendingChanges(db, id);
+            db.delete(ProductsEntry.TABLE_NAME, ProductsEntry._ID + "=?", idArgs);
+            replacedPictureHashes.add(pictureHash);
+            return true;
+        }
+
+        if(id == -1){
+            // A new product, which the first change the service got of it describes whole
+            if(change.mName == null || change.mPrice == null){
+                Log.w(LOG_TAG, "Skipping a change of unknown product " + change.mUuid);
+                return false;
+            }
+            ContentValues values = getChangedValues(db, change, -1);
+            values.put(ProductsEntry.COLUMN_PRODUCT_UUID, change.mUuid);
+            values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, change.mQuantityDelta);
+            if(!values.containsKey(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH)){
+                // The service does not have its picture, a later change brings one
+                values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH, "");
+            }
+            id = db.insertOrThrow(ProductsEntry.TABLE_NAME, null, values);
+            StockLedger.record(db, id, change.mQuantityDelta, StockMovementsEntry.KIND_SYNCED);
+            return true;
+        }
+
+        boolean changed = false;
+        ContentValues values = getChangedValues(db, change, id);
+        if(values.size() > 0 && updateChangedValues(db, id, values)){
+            changed = true;
+            if(values.containsKey(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH)){
+                replacedPictureHashes.add(pictureHash);
+            }
+        }
+        // The units sold and received on the other device are added to the ones of this device.
+        // Two devices that sold the last units each take the quantity below zero, which shows
+        // that more units were sold than there were.
+        if(!ownChange && change.mQuantityDelta != 0){
+            db.execSQL("UPDATE " + ProductsEntry.TABLE_NAME + " SET " + ProductsEntry.COLUMN_PRODUCT_QUANTITY +
+                    " = " + ProductsEntry.COLUMN_PRODUCT_QUANTITY + " + ? WHERE " + ProductsEntry._ID + "=?",
+                    new Object[] {change.mQuantityDelta, id});
+            StockLedger.record(db, id, change.mQuantityDelta, StockMovementsEntry.KIND_SYNCED);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Write the given values to a product, unless it has them all already.
+     * @return true if the product was changed
+     */
+    private static boolean updateChangedValues(SQLiteDatabase db, long id, ContentValues values) {
+        StringBuilder selection = new StringBuilder(ProductsEntry._ID + "=? AND NOT (");
+        String[] selectionArgs = new String[values.size() + 1];
+        selectionArgs[0] = String.valueOf(id);
+        int i = 1;
+        for(Map.Entry<String, Object> value : values.valueSet()){
+            selection.append(i > 1 ? " AND " : "").append(value.getKey()).append(" IS ?");
+            selectionArgs[i++] = String.valueOf(value.getValue());
+        }
+        selection.append(')');
+        return db.update(ProductsEntry.TABLE_NAME, values, selection.toString(), selectionArgs) > 0;
+    }
+
+    /**
+     * Return the name, price and picture that the change sets, as they are written to the
+     * products table. A value with a local change that is still to be sent is left out, that
+     * change reaches the service after this one and wins there. A new picture is saved in the
+     * store.
+     * @param productId - the local ID of the product, -1 for a new one
+     */
+    private ContentValues getChangedValues(SQLiteDatabase db, Change change, long productId) {
+        ContentValues values = new ContentValues();
+        if(change.mName != null && !ChangeLog.hasPendingChange(db, productId, ChangeLog.COLUMN_NAME)){
+            values.put(ProductsEntry.COLUMN_PRODUCT_NAME, change.mName);
+        }
+        if(change.mPrice != null && !ChangeLog.hasPendingChange(db, productId, ChangeLog.COLUMN_PRICE)){
+            values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, change.mPrice);
+        }
+        if(change.mPicture == null && change.mPictureHash == null
+                || ChangeLog.hasPendingChange(db, productId, ChangeLog.COLUMN_PICTURE_HASH)){
+            return values;
+        }
+        if(change.mPicture != null){
+            try {
+                values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH, mPictureStore.put(change.mPicture));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to save the product picture", e);
+            }
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT, PictureEncoder.detectFormat(change.mPicture));
+        }
+        else if(change.mPictureHash != null && mPictureStore.getFile(change.mPictureHash).exists()){
+            // The picture is used by another product already, which knows its format
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH, change.mPictureHash);
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT, DatabaseUtils.longForQuery(db,
+                    "SELECT ifnull(max(" + ProductsEntry.COLUMN_PRODUCT_PICTURE_FORMAT + "), " +
+                            ProductsEntry.PICTURE_FORMAT_UNKNOWN + ") FROM " + ProductsEntry.TABLE_NAME +
+                            " WHERE " + ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH + "=?",
+                    new String[] {change.mPictureHash}));
+        }
+        return values;
+    }
+
+    /**
+     * @param expectedLength - the number of bytes expected, 0 if not known
+     */
+    private static byte[] readAll(InputStream inputStream, int expectedLength) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(expectedLength, 32));
+        byte[] buffer = new byte[8192];
+        int length;
+        while((length = inputStream.read(buffer)) != -1){
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        // Asked for explicitly, so the answer is not unpacked on the way and has to be here
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * @return the body of a successful answer, unpacked
+     * @throws IOException - if the service did not answer with success
+     */
+    private static InputStream readResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if(code / 100 != 2){
+            throw new IOException("The inventory service answered " + code + " to " + connection.getURL());
+        }
+        InputStream inputStream = connection.getInputStream();
+        if("gzip".equalsIgnoreCase(connection.getContentEncoding())){
+            return new GZIPInputStream(inputStream);
+        }
+        return inputStream;
+    }
+}
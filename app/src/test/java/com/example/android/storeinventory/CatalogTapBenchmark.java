@@ -0,0 +1,172 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import com.example.android.storeinventory.benchmark.Benchmark;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.ProductsProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Times the work the main thread does from a tap on a sell button until the next frame can be
+ * drawn, with the {@link SellQueue} and with the provider call a tap made before it, and when the
+ * sold units come back from the database. Robolectric does not draw, so a frame is the measure
+ * and layout pass of the list; the real drawing comes on top on a device.
+ *
+ * Skipped unless the benchmarks are asked for, run them with ./gradlew :app:benchmark
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CatalogTapBenchmark {
+
+    /** Products in the catalog */
+    private static final int CATALOG_SIZE = 1000;
+
+    /** Products per page, the same as the catalog */
+    private static final int PAGE_SIZE = 50;
+
+    /** Size in pixels of the list, about a phone screen */
+    private static final int LIST_WIDTH = 480;
+    private static final int LIST_HEIGHT = 800;
+
+    /** Columns read for each product of the list, the same as the catalog */
+    private static final String[] PROJECTION = {
+            ProductsEntry._ID,
+            ProductsEntry.COLUMN_PRODUCT_NAME,
+            ProductsEntry.COLUMN_PRODUCT_PRICE,
+            ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH
+    };
+
+    private RecyclerView mList;
+
+    private ProductAdapter mAdapter;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Benchmark.isEnabled());
+        ProductsProvider provider = Robolectric.setupContentProvider(ProductsProvider.class);
+        ContentValues[] products = new ContentValues[CATALOG_SIZE];
+        byte[] picture = new byte[4 * 1024];
+        for(int i = 0; i < CATALOG_SIZE; i++){
+            products[i] = new ContentValues();
+            products[i].put(ProductsEntry.COLUMN_PRODUCT_NAME, String.format(Locale.US, "Product %08d", i));
+            products[i].put(ProductsEntry.COLUMN_PRODUCT_PRICE, 100 + i);
+            // Enough stock that the taps never run out of it
+            products[i].put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 1000000);
+            products[i].put(ProductsEntry.COLUMN_PRODUCT_PICTURE, picture);
+        }
+        provider.bulkInsert(ProductsEntry.CONTENT_URI, products);
+
+        // The list of the catalog with its first page, laid out like on the screen
+        Context context = new ContextThemeWrapper(RuntimeEnvironment.application, R.style.AppTheme);
+        mList = new RecyclerView(context);
+        mList.setLayoutManager(new LinearLayoutManager(context));
+        mList.setHasFixedSize(true);
+        mAdapter = new ProductAdapter(context, new ProductAdapter.Listener() {
+            @Override
+            public void onProductClicked(long productId) {
+            }
+        });
+        mList.setAdapter(mAdapter);
+        Cursor cursor = provider.query(ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                null, 0, PAGE_SIZE), PROJECTION, null, null, null);
+        ProductPage page = new ProductPage(cursor);
+        mAdapter.swapCursor(new PatchedCursor(page), page.getSnapshot());
+        layOut();
+    }
+
+    @After
+    public void tearDown() {
+        if(mAdapter != null){
+            mAdapter.swapCursor(null, null);
+        }
+    }
+
+    @Test
+    public void tapToFrame() throws Exception {
+        new Benchmark("tap_to_frame_sell", 100, 1000).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                ProductAdapter.ViewHolder holder = getVisibleRow(run);
+                holder.mSellButton.performClick();
+                layOut();
+            }
+        });
+    }
+
+    @Test
+    public void providerUpdateTapToFrame() throws Exception {
+        // What a tap did before the sell queue: sell the unit with a provider call on the main
+        // thread, which waits for the write, and show the quantity that comes back
+        final ContentResolver contentResolver = RuntimeEnvironment.application.getContentResolver();
+        new Benchmark("tap_to_frame_provider_update", 100, 1000).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                ProductAdapter.ViewHolder holder = getVisibleRow(run);
+                Bundle extras = new Bundle();
+                extras.putInt(ProductsEntry.EXTRA_UNITS, 1);
+                Bundle result = contentResolver.call(ProductsEntry.CONTENT_URI, ProductsEntry.METHOD_SELL,
+                        String.valueOf(holder.getItemId()), extras);
+                ContentValues values = new ContentValues();
+                values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, result.getInt(ProductsEntry.EXTRA_QUANTITY));
+                mAdapter.patchProduct(holder.getItemId(), values, true);
+                layOut();
+            }
+        });
+    }
+
+    @Test
+    public void soldUnitsToFrame() throws Exception {
+        // What the catalog does for each product once its units are in the database
+        new Benchmark("sold_units_to_frame", 100, 1000).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                ProductAdapter.ViewHolder holder = getVisibleRow(run);
+                ContentValues values = new ContentValues();
+                values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 1000000 - run);
+                mAdapter.patchProduct(holder.getItemId(), values, true);
+                layOut();
+            }
+        });
+    }
+
+    /**
+     * Return the holder of one of the rows on the screen, a different one for each run.
+     */
+    private ProductAdapter.ViewHolder getVisibleRow(int run) {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mList.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int count = layoutManager.findLastVisibleItemPosition() - first + 1;
+        return (ProductAdapter.ViewHolder) mList.findViewHolderForAdapterPosition(first + run % count);
+    }
+
+    /**
+     * Measure and lay out the list, the part of a frame that Robolectric runs.
+     */
+    private void layOut() {
+        mList.measure(View.MeasureSpec.makeMeasureSpec(LIST_WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(LIST_HEIGHT, View.MeasureSpec.EXACTLY));
+        mList.layout(0, 0, LIST_WIDTH, LIST_HEIGHT);
+    }
+}
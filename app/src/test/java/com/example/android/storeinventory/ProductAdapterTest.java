@@ -0,0 +1,142 @@
+package com.example.android.storeinventory;
+
+import android.database.MatrixCursor;
+import android.support.v7.util.ListUpdateCallback;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the list writes the numbers the same way as the rest of the app, and that it
+ * only binds again the rows that have changed, and only the part of them that has changed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProductAdapterTest {
+
+    private static final String[] COLUMNS = {
+            ProductsEntry._ID,
+            ProductsEntry.COLUMN_PRODUCT_NAME,
+            ProductsEntry.COLUMN_PRODUCT_PRICE,
+            ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH};
+
+    @Test
+    public void formatsPricesLikeBigDecimal() throws Exception {
+        long[] prices = {0, 5, 50, 350, 1000, 123456789, -250};
+        for(long price : prices){
+            assertEquals(BigDecimal.valueOf(price, 2).toPlainString(), format(price, 2));
+        }
+    }
+
+    @Test
+    public void formatsWholeNumbers() throws Exception {
+        assertEquals("0", format(0, 0));
+        assertEquals("7", format(7, 0));
+        assertEquals("1200", format(1200, 0));
+    }
+
+    @Test
+    public void leavesTheSameRowsAlone() throws Exception {
+        Object[][] rows = {
+                {1L, "Rye Bread", 350L, 10, "a1"},
+                {2L, "Sourdough", 425L, 0, null}};
+        assertEquals(new ArrayList<String>(), diff(rows, rows));
+    }
+
+    @Test
+    public void bindsOnlyTheQuantityWhenOnlyTheQuantityChanged() throws Exception {
+        Object[][] oldRows = {
+                {1L, "Rye Bread", 350L, 10, "a1"},
+                {2L, "Sourdough", 425L, 0, null}};
+        Object[][] newRows = {
+                {1L, "Rye Bread", 350L, 9, "a1"},
+                {2L, "Sourdough", 425L, 0, null}};
+        assertEquals(Arrays.asList("changed 0 1 quantity"), diff(oldRows, newRows));
+    }
+
+    @Test
+    public void bindsTheWholeRowWhenTheNameOrPictureChanged() throws Exception {
+        Object[][] oldRows = {
+                {1L, "Rye Bread", 350L, 10, "a1"},
+                {2L, "Sourdough", 425L, 0, null},
+                {3L, "Spelt Bread", 390L, 4, "c3"}};
+        Object[][] newRows = {
+                {1L, "Rye Bread (whole)", 350L, 9, "a1"},
+                {2L, "Sourdough", 425L, 2, null},
+                {3L, "Spelt Bread", 390L, 4, "d4"}};
+        // The quantity of a row whose name changed as well is bound with the rest
+        assertEquals(Arrays.asList("changed 0 1 all", "changed 1 1 quantity", "changed 2 1 all"),
+                diff(oldRows, newRows));
+    }
+
+    @Test
+    public void insertsAndRemovesRowsWithoutBindingTheOthers() throws Exception {
+        Object[][] oldRows = {
+                {1L, "Rye Bread", 350L, 10, "a1"},
+                {3L, "Spelt Bread", 390L, 4, "c3"}};
+        Object[][] newRows = {
+                {1L, "Rye Bread", 350L, 10, "a1"},
+                {2L, "Sourdough", 425L, 0, null}};
+        List<String> updates = diff(oldRows, newRows);
+        assertEquals(2, updates.size());
+        assertEquals(true, updates.contains("removed 1 1"));
+        assertEquals(true, updates.contains("inserted 1 1"));
+    }
+
+    private static String format(long value, int fractionDigits) {
+        char[] buffer = new char[24];
+        int start = ProductAdapter.formatNumber(value, fractionDigits, buffer);
+        return new String(buffer, start, buffer.length - start);
+    }
+
+    /**
+     * Work out the changes between two lists the way the adapter does.
+     * @return the updates the list would be told about, in order
+     */
+    private static List<String> diff(Object[][] oldRows, Object[][] newRows) {
+        final List<String> updates = new ArrayList<String>();
+        ProductSnapshot.diff(snapshot(oldRows), snapshot(newRows)).dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                updates.add("inserted " + position + " " + count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                updates.add("removed " + position + " " + count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                updates.add("moved " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                updates.add("changed " + position + " " + count
+                        + (payload == ProductSnapshot.PAYLOAD_QUANTITY ? " quantity" : " all"));
+            }
+        });
+        return updates;
+    }
+
+    private static ProductSnapshot snapshot(Object[][] rows) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for(Object[] row : rows){
+            cursor.addRow(row);
+        }
+        return ProductSnapshot.read(cursor);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.ProductsProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the repository writes in the background, tells the outcome on the main thread
+ * and does neither for a request that has been cancelled.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProductRepositoryTest {
+
+    /** Longest time in milliseconds a request is waited for */
+    private static final long TIMEOUT = 5000;
+
+    private ProductsProvider mProvider;
+
+    private ProductRepository mRepository;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(ProductsProvider.class);
+        mRepository = new ProductRepository(RuntimeEnvironment.application.getContentResolver());
+        // The callbacks only run when the test lets the main looper run them
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @Test
+    public void writesInTheBackgroundAndCallsBackOnTheMainThread() throws Exception {
+        Recorder<Uri> inserted = new Recorder<Uri>();
+        Uri uri = mRepository.insert(ProductsEntry.CONTENT_URI, createProduct("Rye Bread"), inserted)
+                .get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(uri);
+        inserted.await();
+        assertEquals(uri, inserted.mResult);
+
+        Recorder<Integer> deleted = new Recorder<Integer>();
+        assertEquals(1, (int) mRepository.delete(uri, deleted).get(TIMEOUT, TimeUnit.MILLISECONDS));
+        deleted.await();
+        assertEquals(1, (int) deleted.mResult);
+    }
+
+    @Test
+    public void callsTheMethodsOfTheProvider() throws Exception {
+        ContentValues values = createProduct("Rye Bread");
+        values.put(ProductsEntry.COLUMN_PRODUCT_SKU, "4006381333931");
+        Uri uri = mProvider.insert(ProductsEntry.CONTENT_URI, values);
+
+        Recorder<Bundle> sold = new Recorder<Bundle>();
+        mRepository.call(ProductsEntry.CONTENT_URI, ProductsEntry.METHOD_SELL_SKU, "4006381333931", null, sold);
+        sold.await();
+        assertEquals(ContentUris.parseId(uri), sold.mResult.getLong(ProductsEntry.EXTRA_PRODUCT_ID));
+        assertEquals(ProductsEntry.SELL_OK, sold.mResult.getInt(ProductsEntry.EXTRA_RESULT));
+        assertEquals(9, sold.mResult.getInt(ProductsEntry.EXTRA_QUANTITY));
+    }
+
+    @Test
+    public void passesTheErrorOfTheProvider() throws Exception {
+        Recorder<Uri> inserted = new Recorder<Uri>();
+        // A product without a name is refused
+        ContentValues values = createProduct("Rye Bread");
+        values.remove(ProductsEntry.COLUMN_PRODUCT_NAME);
+        mRepository.insert(ProductsEntry.CONTENT_URI, values, inserted);
+        inserted.await();
+        assertTrue(inserted.mError instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void doesNotRunACancelledRequest() throws Exception {
+        Uri uri = mProvider.insert(ProductsEntry.CONTENT_URI, createProduct("Rye Bread"));
+
+        // Keep the thread of the repository busy, so the delete waits for its turn
+        final CountDownLatch busy = new CountDownLatch(1);
+        mRepository.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                busy.await();
+                return null;
+            }
+        }, null);
+        Recorder<Integer> deleted = new Recorder<Integer>();
+        ProductRepository.Request<Integer> request = mRepository.delete(uri, deleted);
+        assertTrue(request.cancel(true));
+        busy.countDown();
+
+        // The requests run in order, so the delete has had its turn once the next one is done
+        mRepository.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        ShadowLooper.runUiThreadTasks();
+        assertFalse(deleted.mCalled);
+        Cursor cursor = mProvider.query(uri, new String[] {ProductsEntry._ID}, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues createProduct(String name) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 10);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        return values;
+    }
+
+    /**
+     * Remembers what a callback has been given.
+     */
+    private static class Recorder<T> implements ProductRepository.Callback<T> {
+        boolean mCalled;
+        T mResult;
+        Exception mError;
+
+        @Override
+        public void onResult(T result) {
+            mCalled = true;
+            mResult = result;
+        }
+
+        @Override
+        public void onError(Exception error) {
+            mCalled = true;
+            mError = error;
+        }
+
+        /**
+         * Run the tasks of the main looper until the callback has been called.
+         */
+        void await() throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while(!mCalled && System.currentTimeMillis() < end){
+                ShadowLooper.runUiThreadTasks();
+                Thread.sleep(1);
+            }
+            assertTrue("The callback has not been called", mCalled);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.android.storeinventory;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.data.InventoryContract;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.ProductsProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the units an earlier process left in the journal and in the batch files are sold
+ * when the queue starts, and that a batch the provider applied already is not sold twice.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SellQueueTest {
+
+    /** Longest time in milliseconds the units are waited for */
+    private static final long TIMEOUT = 5000;
+
+    private ProductsProvider mProvider;
+
+    private long mProductId;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(ProductsProvider.class);
+        // The queue sells through the content resolver
+        ShadowContentResolver.registerProviderInternal(InventoryContract.CONTENT_AUTHORITY, mProvider);
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, "Rye Bread");
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 10);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, new byte[] {1, 2, 3});
+        mProductId = ContentUris.parseId(mProvider.insert(ProductsEntry.CONTENT_URI, values));
+        // The units sold are told on the main thread, which only runs when the test lets it
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @Test
+    public void sellsTheUnitsLeftInTheJournal() throws Exception {
+        // The process died while writing the last line
+        writeFile("sell_queue.journal", mProductId + " 2\n" + mProductId + " 1\n" + mProductId + " ");
+
+        SellQueue queue = new SellQueue(RuntimeEnvironment.application);
+        Recorder recorder = new Recorder();
+        queue.addListener(recorder);
+        recorder.await(1);
+
+        assertEquals(7, getQuantity());
+        assertEquals(7, recorder.mQuantity);
+        assertEquals(0, queue.getPendingUnits(mProductId));
+        assertEquals(0, countQueueFiles());
+    }
+
+    @Test
+    public void sendsABatchAgainWithoutSellingItTwice() throws Exception {
+        // The provider applied the batch, but the process died before deleting its file
+        Bundle extras = new Bundle();
+        extras.putString(ProductsEntry.EXTRA_BATCH_TOKEN, "3f2c9a");
+        extras.putLongArray(ProductsEntry.EXTRA_PRODUCT_IDS, new long[] {mProductId});
+        extras.putIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT, new int[] {2});
+        mProvider.call(ProductsEntry.METHOD_SELL_BATCH, null, extras);
+        writeFile("sell_queue.batch.3f2c9a", mProductId + " 2\n");
+        // A unit sold after the batch was taken
+        writeFile("sell_queue.journal", mProductId + " 1\n");
+
+        SellQueue queue = new SellQueue(RuntimeEnvironment.application);
+        Recorder recorder = new Recorder();
+        queue.addListener(recorder);
+        recorder.await(2);
+
+        assertEquals(7, getQuantity());
+        assertEquals(0, queue.getPendingUnits(mProductId));
+        assertEquals(0, countQueueFiles());
+    }
+
+    private int getQuantity() {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, mProductId),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeFile(String name, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(RuntimeEnvironment.application.getFilesDir(), name));
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the number of journal and batch files in the files directory
+     */
+    private static int countQueueFiles() {
+        int count = 0;
+        File[] files = RuntimeEnvironment.application.getFilesDir().listFiles();
+        if(files != null){
+            for(File file : files){
+                if(file.getName().startsWith("sell_queue.")){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remembers the units sold the queue has told about.
+     */
+    private static class Recorder implements SellQueue.Listener {
+        int mCalls;
+        int mQuantity = -1;
+
+        @Override
+        public void onUnitsSold(long[] productIds, int[] quantities, int[] unitsNotSold) {
+            mCalls++;
+            mQuantity = quantities[0];
+            assertEquals(0, unitsNotSold[0]);
+        }
+
+        /**
+         * Run the tasks of the main looper until the queue has told about the given number of
+         * provider calls.
+         */
+        void await(int calls) throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while(mCalls < calls && System.currentTimeMillis() < end){
+                ShadowLooper.runUiThreadTasks();
+                Thread.sleep(1);
+            }
+            assertEquals(calls, mCalls);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.android.storeinventory.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Times an operation many times over and keeps the time of every run, so the report can show
+ * the percentiles and not only the average. The first runs only warm up the JIT and the caches
+ * of SQLite and are not kept.
+ */
+public class Benchmark {
+
+    /** Tells whether the benchmarks have been asked for, see the benchmark task of the app */
+    public static final String PROPERTY_ENABLED = "benchmark";
+
+    /**
+     * The work to time. Anything that must happen before a run but is not part of it, such as
+     * filling the table again before it is emptied, goes into {@link #setUp(int)}.
+     */
+    public static abstract class Operation {
+        /**
+         * Prepare the given run. Not timed.
+         */
+        public void setUp(int run) throws Exception {
+        }
+
+        /**
+         * Do the work of the given run. Timed.
+         */
+        public abstract void run(int run) throws Exception;
+    }
+
+    /**
+     * The times of all the runs of an operation.
+     */
+    public static class Result {
+
+        private final String mName;
+
+        /** Time of each run in nanoseconds, sorted */
+        private final long[] mTimes;
+
+        private final long mTotalTime;
+
+        Result(String name, long[] times) {
+            mName = name;
+            mTimes = times.clone();
+            Arrays.sort(mTimes);
+            long totalTime = 0;
+            for(long time : mTimes){
+                totalTime += time;
+            }
+            mTotalTime = totalTime;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the number of runs per second, going by the total time of the runs
+         */
+        public double getOperationsPerSecond() {
+            return mTotalTime == 0 ? 0 : mTimes.length * 1e9 / mTotalTime;
+        }
+
+        /**
+         * @param percent - from 0 to 100
+         * @return the time in microseconds that the given percentage of the runs took at most
+         */
+        public double getPercentile(double percent) {
+            if(mTimes.length == 0){
+                return 0;
+            }
+            int index = (int) Math.ceil(percent / 100 * mTimes.length) - 1;
+            return mTimes[Math.max(0, Math.min(index, mTimes.length - 1))] / 1000.0;
+        }
+    }
+
+    private final String mName;
+    private final int mWarmupRuns;
+    private final int mRuns;
+
+    /**
+     * @param name - the name of the operation in the report and in the baseline
+     * @param warmupRuns - the number of runs before the timed ones
+     * @param runs - the number of timed runs
+     */
+    public Benchmark(String name, int warmupRuns, int runs) {
+        if(runs <= 0){
+            throw new IllegalArgumentException("A benchmark needs at least one run: " + runs);
+        }
+        mName = name;
+        mWarmupRuns = warmupRuns;
+        mRuns = runs;
+    }
+
+    /**
+     * @return true if the benchmarks have been asked for, otherwise they are skipped so the
+     * regular unit tests stay quick
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(PROPERTY_ENABLED);
+    }
+
+    /**
+     * Run the operation, add its result to the report and return it.
+     */
+    public Result run(Operation operation) throws Exception {
+        for(int run = 0; run < mWarmupRuns; run++){
+            operation.setUp(run);
+            operation.run(run);
+        }
+        long[] times = new long[mRuns];
+        for(int run = 0; run < mRuns; run++){
+            operation.setUp(mWarmupRuns + run);
+            long start = System.nanoTime();
+            operation.run(mWarmupRuns + run);
+            times[run] = System.nanoTime() - start;
+        }
+        Result result = new Result(mName, times);
+        BenchmarkReport.getInstance().add(result);
+        return result;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.storeinventory.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prints the result of every benchmark as it finishes, next to its baseline, and writes the
+ * results in the format of the baseline file, so recording a new baseline is a copy of the file.
+ *
+ * The baseline file is checked in (app/benchmarks/baseline.tsv). It has one line per benchmark:
+ * the name, the operations per second and the 50th, 90th and 99th percentile in microseconds,
+ * separated by tabs. A benchmark whose median got slower than its baseline by more than the
+ * tolerance is marked as a regression, and fails if the build asked for it.
+ */
+public class BenchmarkReport {
+
+    /** Path of the baseline file */
+    public static final String PROPERTY_BASELINE = "benchmark.baseline";
+
+    /** Path of the file the results are written to */
+    public static final String PROPERTY_RESULTS = "benchmark.results";
+
+    /** How much slower in percent than the baseline a median may be before it is a regression */
+    public static final String PROPERTY_TOLERANCE = "benchmark.tolerance";
+
+    /** If true a regression fails the benchmark */
+    public static final String PROPERTY_FAIL_ON_REGRESSION = "benchmark.failOnRegression";
+
+    private static final double DEFAULT_TOLERANCE = 25;
+
+    /** The report of all the benchmarks of this run */
+    private static BenchmarkReport sInstance;
+
+    /** Median times in microseconds of the baseline, by benchmark name */
+    private final Map<String, Double> mBaselineMedians = new HashMap<String, Double>();
+
+    /** The results file, or null if the results are only printed */
+    private final File mResultsFile;
+
+    private final double mTolerance;
+
+    private final boolean mFailOnRegression;
+
+    public static synchronized BenchmarkReport getInstance() {
+        if(sInstance == null){
+            sInstance = new BenchmarkReport();
+        }
+        return sInstance;
+    }
+
+    private BenchmarkReport() {
+        String baselinePath = System.getProperty(PROPERTY_BASELINE);
+        if(baselinePath != null){
+            readBaseline(new File(baselinePath));
+        }
+        String resultsPath = System.getProperty(PROPERTY_RESULTS);
+        mResultsFile = resultsPath == null ? null : new File(resultsPath);
+        if(mResultsFile != null){
+            // Every run starts a new results file
+            File directory = mResultsFile.getParentFile();
+            if(directory != null && !directory.isDirectory() && !directory.mkdirs()){
+                throw new IllegalStateException("Cannot create " + directory);
+            }
+            if(mResultsFile.exists() && !mResultsFile.delete()){
+                throw new IllegalStateException("Cannot delete " + mResultsFile);
+            }
+            append("# name\tops_per_s\tp50_us\tp90_us\tp99_us\n");
+        }
+        String tolerance = System.getProperty(PROPERTY_TOLERANCE);
+        mTolerance = tolerance == null ? DEFAULT_TOLERANCE : Double.parseDouble(tolerance);
+        mFailOnRegression = Boolean.getBoolean(PROPERTY_FAIL_ON_REGRESSION);
+    }
+
+    /**
+     * Report the given result.
+     * @throws AssertionError - if the result is a regression and regressions fail the build
+     */
+    public synchronized void add(Benchmark.Result result) {
+        double median = result.getPercentile(50);
+        String line = String.format(Locale.US, "%s\t%.1f\t%.1f\t%.1f\t%.1f",
+                result.getName(), result.getOperationsPerSecond(), median,
+                result.getPercentile(90), result.getPercentile(99));
+        if(mResultsFile != null){
+            append(line + "\n");
+        }
+
+        String comparison;
+        boolean regression = false;
+        Double baselineMedian = mBaselineMedians.get(result.getName());
+        if(baselineMedian == null || baselineMedian <= 0){
+            comparison = "no baseline";
+        }
+        else {
+            double change = (median - baselineMedian) * 100 / baselineMedian;
+            regression = change > mTolerance;
+            comparison = String.format(Locale.US, "median %+.0f%% vs baseline%s",
+                    change, regression ? "  REGRESSION" : "");
+        }
+        System.out.println(String.format(Locale.US,
+                "%-44s %12.1f ops/s  p50 %10.1f us  p90 %10.1f us  p99 %10.1f us  %s",
+                result.getName(), result.getOperationsPerSecond(), median,
+                result.getPercentile(90), result.getPercentile(99), comparison));
+
+        if(regression && mFailOnRegression){
+            throw new AssertionError(result.getName() + " is slower than its baseline by more than "
+                    + mTolerance + "%");
+        }
+    }
+
+    private void readBaseline(File file) {
+        if(!file.exists()){
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if(fields.length < 3){
+                    throw new IllegalStateException("Broken line in " + file + ": " + line);
+                }
+                mBaselineMedians.put(fields[0], Double.parseDouble(fields[2]));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + file, e);
+        } finally {
+            if(reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Everything has been read already
+                }
+            }
+        }
+    }
+
+    private void append(String text) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mResultsFile, true), "UTF-8");
+            writer.write(text);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write " + mResultsFile, e);
+        } finally {
+            if(writer != null){
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write " + mResultsFile, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a checkout sells every line of a cart in one go, or nothing at all.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CheckoutTest {
+
+    /** Number of lines in the basket of the tests */
+    private static final int LINE_COUNT = 30;
+
+    private ProductsProvider mProvider;
+
+    private ShadowContentResolver mContentResolver;
+
+    private long[] mIds;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("checkout.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+        mContentResolver = Shadows.shadowOf(RuntimeEnvironment.application.getContentResolver());
+
+        mIds = new long[LINE_COUNT];
+        for(int i = 0; i < LINE_COUNT; i++){
+            mIds[i] = insertProduct("Product " + i, 5);
+        }
+    }
+
+    @Test
+    public void sellsEveryLineWithOneNotification() {
+        int[] units = new int[LINE_COUNT];
+        for(int i = 0; i < LINE_COUNT; i++){
+            units[i] = 1 + i % 5;
+        }
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        Bundle result = checkout(mIds, units);
+        assertEquals(ProductsEntry.CHECKOUT_OK, result.getInt(ProductsEntry.EXTRA_RESULT));
+        int[] lineResults = result.getIntArray(ProductsEntry.EXTRA_LINE_RESULTS);
+        int[] quantities = result.getIntArray(ProductsEntry.EXTRA_QUANTITIES);
+        for(int i = 0; i < LINE_COUNT; i++){
+            assertEquals(ProductsEntry.SELL_OK, lineResults[i]);
+            assertEquals(5 - units[i], quantities[i]);
+            assertEquals(5 - units[i], getQuantity(mIds[i]));
+        }
+        assertEquals(notifications + 1, mContentResolver.getNotifiedUris().size());
+    }
+
+    @Test
+    public void sellsNothingIfALineCannotBeSold() {
+        int[] units = new int[LINE_COUNT];
+        for(int i = 0; i < LINE_COUNT; i++){
+            units[i] = 1;
+        }
+        // One line asks for more than there is, another is for a product that is gone
+        units[7] = 6;
+        mProvider.delete(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, mIds[12]), null, null);
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        Bundle result = checkout(mIds, units);
+        assertEquals(ProductsEntry.CHECKOUT_REJECTED, result.getInt(ProductsEntry.EXTRA_RESULT));
+        int[] lineResults = result.getIntArray(ProductsEntry.EXTRA_LINE_RESULTS);
+        assertEquals(ProductsEntry.SELL_INSUFFICIENT_STOCK, lineResults[7]);
+        assertEquals(ProductsEntry.SELL_PRODUCT_NOT_FOUND, lineResults[12]);
+        assertEquals(ProductsEntry.SELL_OK, lineResults[0]);
+        assertEquals(-1, result.getIntArray(ProductsEntry.EXTRA_QUANTITIES)[12]);
+        for(int i = 0; i < LINE_COUNT; i++){
+            if(i != 12){
+                assertEquals(5, getQuantity(mIds[i]));
+            }
+        }
+        assertEquals(notifications, mContentResolver.getNotifiedUris().size());
+    }
+
+    @Test
+    public void refusesACartWithAProductTwice() {
+        try {
+            checkout(new long[] {mIds[0], mIds[1], mIds[0]}, new int[] {1, 1, 1});
+            fail("Expected the cart to be refused");
+        } catch (IllegalArgumentException expected) {
+            // One line per product
+        }
+        assertArrayEquals(new int[] {5, 5}, new int[] {getQuantity(mIds[0]), getQuantity(mIds[1])});
+    }
+
+    private Bundle checkout(long[] ids, int[] units) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductsEntry.EXTRA_PRODUCT_IDS, ids);
+        extras.putIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT, units);
+        return mProvider.call(ProductsEntry.METHOD_CHECKOUT, null, extras);
+    }
+
+    private long insertProduct(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        Uri uri = mProvider.insert(ProductsEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private int getQuantity(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
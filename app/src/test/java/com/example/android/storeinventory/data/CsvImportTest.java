@@ -0,0 +1,250 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.CsvImporter;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a file of the export is imported again by the {@link CsvImporter} into the same
+ * products, pictures included, without anything of the device it was exported from.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CsvImportTest {
+
+    /** Longest time in milliseconds the import is waited for */
+    private static final long TIMEOUT = 5000;
+
+    private ProductsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("csv-import.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+        // The importer writes through the content resolver
+        ShadowContentResolver.registerProviderInternal(InventoryContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    @Test
+    public void importsWhatWasExported() throws Exception {
+        insertProduct("Rye Bread", 350, 10, "4006381333931");
+        insertProduct("Sourdough, \"dark\"", 425, 0, null);
+        File file = export();
+
+        // Nothing of the products is left, the file has to bring back the pictures as well
+        mProvider.delete(ProductsEntry.CONTENT_URI, null, null);
+        File[] pictures = new File(RuntimeEnvironment.application.getFilesDir(), "csv-import.db-pictures").listFiles();
+        if(pictures != null){
+            for(File picture : pictures){
+                picture.delete();
+            }
+        }
+
+        // The content resolver of the tests only opens the streams it has been given
+        Uri fileUri = Uri.fromFile(file);
+        Shadows.shadowOf(RuntimeEnvironment.application.getContentResolver())
+                .registerInputStream(fileUri, new FileInputStream(file));
+        Recorder recorder = new Recorder();
+        new CsvImporter(RuntimeEnvironment.application, recorder).start(fileUri);
+        recorder.await();
+        assertNull(recorder.mError);
+        assertEquals(2, recorder.mRowsImported);
+        assertEquals(0, recorder.mRowsFailed);
+
+        Cursor cursor = mProvider.query(ProductsEntry.CONTENT_URI, new String[] {
+                ProductsEntry.COLUMN_PRODUCT_NAME,
+                ProductsEntry.COLUMN_PRODUCT_PRICE,
+                ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+                ProductsEntry.COLUMN_PRODUCT_SKU,
+                ProductsEntry._ID}, null, null, ProductsEntry.COLUMN_PRODUCT_NAME);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Rye Bread", cursor.getString(0));
+            assertEquals(350, cursor.getLong(1));
+            assertEquals(10, cursor.getInt(2));
+            assertEquals("4006381333931", cursor.getString(3));
+            assertPictureReadable(cursor.getLong(4));
+            cursor.moveToNext();
+            assertEquals("Sourdough, \"dark\"", cursor.getString(0));
+            assertEquals(425, cursor.getLong(1));
+            assertEquals(0, cursor.getInt(2));
+            assertTrue(cursor.isNull(3));
+            assertPictureReadable(cursor.getLong(4));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void reportsTheRowsWhoseSkuIsTaken() throws Exception {
+        insertProduct("Rye Bread", 350, 10, "4006381333931");
+        insertProduct("Sourdough", 425, 0, "96385074");
+        insertProduct("Spelt Bread", 390, 4, null);
+        File file = export();
+        // Only the Rye Bread is still there, and the file has the Sourdough twice
+        mProvider.delete(ProductsEntry.CONTENT_URI, ProductsEntry.COLUMN_PRODUCT_SKU + " IS NULL OR "
+                + ProductsEntry.COLUMN_PRODUCT_SKU + "<>?", new String[] {"4006381333931"});
+        List<String> lines = readLines(file);
+        for(String line : lines){
+            if(line.startsWith("Sourdough,")){
+                lines.add(line);
+                break;
+            }
+        }
+        writeLines(file, lines);
+
+        Uri fileUri = Uri.fromFile(file);
+        Shadows.shadowOf(RuntimeEnvironment.application.getContentResolver())
+                .registerInputStream(fileUri, new FileInputStream(file));
+        Recorder recorder = new Recorder();
+        new CsvImporter(RuntimeEnvironment.application, recorder).start(fileUri);
+        recorder.await();
+        assertNull(recorder.mError);
+        assertEquals(2, recorder.mRowsImported);
+        assertEquals(2, recorder.mRowsFailed);
+        assertEquals(2, recorder.mRowErrors.size());
+        for(String error : recorder.mRowErrors){
+            assertTrue(error, error.contains("SKU"));
+        }
+        assertEquals(3, mProvider.query(ProductsEntry.CONTENT_URI, null, null, null, null).getCount());
+    }
+
+    private void insertProduct(String name, long price, int quantity, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, price);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        if(sku != null){
+            values.put(ProductsEntry.COLUMN_PRODUCT_SKU, sku);
+        }
+        mProvider.insert(ProductsEntry.CONTENT_URI, values);
+    }
+
+    /**
+     * Export the products into a file. The JVM tests cannot open the pipe of
+     * {@link ProductsEntry#EXPORT_URI}, so the provider writes into the file directly.
+     */
+    private File export() throws IOException {
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "products.csv");
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            mProvider.exportProducts(outputStream);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null){
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static void writeLines(File file, List<String> lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for(String line : lines){
+                writer.write(line);
+                writer.write("\r\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void assertPictureReadable(long id) throws IOException {
+        InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(
+                mProvider.openFile(ProductsEntry.buildPictureUri(id), "r"));
+        try {
+            assertTrue(inputStream.read() != -1);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Remembers the end of an import.
+     */
+    private static class Recorder implements CsvImporter.Listener {
+        boolean mFinished;
+        int mRowsImported;
+        int mRowsFailed;
+        String mError;
+        final List<String> mRowErrors = new ArrayList<String>();
+
+        @Override
+        public void onProgress(int rowsRead, int rowsImported) {
+        }
+
+        @Override
+        public void onRowError(int lineNumber, String message) {
+            mRowErrors.add(lineNumber + ": " + message);
+        }
+
+        @Override
+        public void onFinished(int rowsImported, int rowsFailed, String error) {
+            mFinished = true;
+            mRowsImported = rowsImported;
+            mRowsFailed = rowsFailed;
+            mError = error;
+        }
+
+        /**
+         * Run the tasks of the main looper until the import has finished.
+         */
+        void await() throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while(!mFinished && System.currentTimeMillis() < end){
+                ShadowLooper.runUiThreadTasks();
+                Thread.sleep(1);
+            }
+            assertTrue("The import has not finished", mFinished);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.storeinventory.data;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that CSV records are read back the way they were written.
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void readsQuotedFieldsAndLineNumbers() throws Exception {
+        CsvReader reader = new CsvReader(new StringReader(
+                "\uFEFFname,price\r\n" +
+                "\"Rye, dark\",\"3.50\"\n" +
+                "\"Say \"\"cheese\"\"\nnow\",1\n" +
+                "Plain,2"));
+        assertArrayEquals(new String[] {"name", "price"}, reader.readRecord());
+        assertEquals(1, reader.getLineNumber());
+        assertArrayEquals(new String[] {"Rye, dark", "3.50"}, reader.readRecord());
+        assertEquals(2, reader.getLineNumber());
+        assertArrayEquals(new String[] {"Say \"cheese\"\nnow", "1"}, reader.readRecord());
+        assertEquals(3, reader.getLineNumber());
+        assertArrayEquals(new String[] {"Plain", "2"}, reader.readRecord());
+        assertEquals(5, reader.getLineNumber());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readsWhatTheWriterWrote() throws Exception {
+        String[] record = {"a,b", "\"quoted\"", "", "line\r\nbreak", "plain"};
+        StringWriter out = new StringWriter();
+        CsvWriter writer = new CsvWriter(out);
+        writer.writeRecord(record);
+        writer.writeRecord("x");
+        writer.flush();
+
+        CsvReader reader = new CsvReader(new StringReader(out.toString()));
+        assertArrayEquals(record, reader.readRecord());
+        assertArrayEquals(new String[] {"x"}, reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+}
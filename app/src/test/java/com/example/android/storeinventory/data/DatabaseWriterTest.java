@@ -0,0 +1,275 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.example.android.storeinventory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a failing task only takes itself down, even when it was committed in a group with
+ * others, that its after-commit actions go with it, and that a task started by another task
+ * runs in the transaction of that task.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DatabaseWriterTest {
+
+    private static final long TIMEOUT = 10;
+
+    private Helper mHelper;
+
+    private DatabaseWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mHelper = new Helper(RuntimeEnvironment.application);
+        mWriter = new DatabaseWriter(mHelper, "DatabaseWriterTest");
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    @Test
+    public void commitsTheRestOfAGroupWhenOneTaskFails() throws Exception {
+        // Keep the writer busy until all the tasks are waiting, so they are committed as a group
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread blocker = startTask(new DatabaseWriter.Task<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                started.countDown();
+                await(release);
+                return null;
+            }
+        }, null);
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+        final AtomicInteger runs = new AtomicInteger();
+        List<RuntimeException> errors = Collections.synchronizedList(new ArrayList<RuntimeException>());
+        // One after the other, so they are queued in this order
+        List<Thread> callers = new ArrayList<Thread>();
+        callers.add(startTask(insert("Rye Bread", runs), errors));
+        waitUntilWaiting(callers.get(0));
+        final IllegalStateException failure = new IllegalStateException("Out of flour");
+        callers.add(startTask(new DatabaseWriter.Task<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                db.execSQL("INSERT INTO items (name) VALUES ('Sourdough')");
+                throw failure;
+            }
+        }, errors));
+        waitUntilWaiting(callers.get(1));
+        callers.add(startTask(insert("Spelt Bread", runs), errors));
+        waitUntilWaiting(callers.get(2));
+        release.countDown();
+        blocker.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        for(Thread caller : callers){
+            caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        }
+
+        assertEquals(1, errors.size());
+        assertSame(failure, errors.get(0));
+        assertEquals(Arrays.asList("Rye Bread", "Spelt Bread"), readNames());
+        // The group stops at the failing task, then every task runs again on its own
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void dropsTheActionsOfAFailedTask() {
+        final AtomicInteger actions = new AtomicInteger();
+        try {
+            mWriter.execute(new DatabaseWriter.Task<Void>() {
+                @Override
+                public Void run(SQLiteDatabase db) {
+                    db.execSQL("INSERT INTO items (name) VALUES ('Rye Bread')");
+                    mWriter.runAfterCommit(new Counter(actions));
+                    throw new IllegalStateException("Out of flour");
+                }
+            });
+            fail("The failure of the task has not reached its caller");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, actions.get());
+        assertEquals(Collections.<String>emptyList(), readNames());
+
+        int beforeCommit = mWriter.execute(new DatabaseWriter.Task<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                db.execSQL("INSERT INTO items (name) VALUES ('Sourdough')");
+                mWriter.runAfterCommit(new Counter(actions));
+                return actions.get();
+            }
+        });
+        assertEquals(0, beforeCommit);
+        // The caller only wakes up once the actions have run
+        assertEquals(1, actions.get());
+    }
+
+    @Test
+    public void runsANestedTaskInTheTransactionOfItsParent() {
+        final AtomicInteger actions = new AtomicInteger();
+        // What the tasks saw, checked here since a failed assertion would stop the writer thread
+        final Thread[] threads = new Thread[2];
+        final boolean[] inTransaction = new boolean[1];
+        final int[] actionsBeforeCommit = {-1};
+        try {
+            mWriter.execute(new DatabaseWriter.Task<Void>() {
+                @Override
+                public Void run(SQLiteDatabase db) {
+                    threads[0] = Thread.currentThread();
+                    mWriter.execute(new DatabaseWriter.Task<Long>() {
+                        @Override
+                        public Long run(SQLiteDatabase db) {
+                            threads[1] = Thread.currentThread();
+                            inTransaction[0] = db.inTransaction();
+                            mWriter.runAfterCommit(new Counter(actions));
+                            return db.insertOrThrow("items", null, values("Rye Bread"));
+                        }
+                    });
+                    actionsBeforeCommit[0] = actions.get();
+                    throw new IllegalStateException("Out of flour");
+                }
+            });
+            fail("The failure of the task has not reached its caller");
+        } catch (IllegalStateException expected) {
+        }
+        assertSame(threads[0], threads[1]);
+        assertFalse(threads[0] == Thread.currentThread());
+        assertTrue(inTransaction[0]);
+        // The nested task is not committed on its own, and is rolled back with its parent
+        assertEquals(0, actionsBeforeCommit[0]);
+        assertEquals(0, actions.get());
+        assertEquals(Collections.<String>emptyList(), readNames());
+    }
+
+    /**
+     * Hand the given task to the writer from a new thread, as a caller of its own.
+     * @param errors - collects the exception the task fails with, or null if it must not fail
+     */
+    private Thread startTask(final DatabaseWriter.Task<Void> task, final List<RuntimeException> errors) {
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mWriter.execute(task);
+                } catch (RuntimeException e) {
+                    if(errors == null){
+                        throw e;
+                    }
+                    errors.add(e);
+                }
+            }
+        });
+        caller.start();
+        return caller;
+    }
+
+    /**
+     * Wait until the given caller has queued its task and waits for it to be committed.
+     */
+    private static void waitUntilWaiting(Thread caller) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while(caller.getState() != Thread.State.WAITING){
+            assertTrue("The task has not been queued", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if(!latch.await(TIMEOUT, TimeUnit.SECONDS)){
+                throw new IllegalStateException("Not released in time");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DatabaseWriter.Task<Void> insert(final String name, final AtomicInteger runs) {
+        return new DatabaseWriter.Task<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                runs.incrementAndGet();
+                db.insertOrThrow("items", null, values(name));
+                return null;
+            }
+        };
+    }
+
+    private static ContentValues values(String name) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        return values;
+    }
+
+    private List<String> readNames() {
+        List<String> names = new ArrayList<String>();
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery("SELECT name FROM items ORDER BY name", null);
+        try {
+            while(cursor.moveToNext()){
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private static class Counter implements Runnable {
+        private final AtomicInteger mCount;
+
+        Counter(AtomicInteger count) {
+            mCount = count;
+        }
+
+        @Override
+        public void run() {
+            mCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * A database with a single table, so the writer is tested apart from the products.
+     */
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, "database-writer.db", null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE items (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
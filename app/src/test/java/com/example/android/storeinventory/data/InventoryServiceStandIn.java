@@ -0,0 +1,253 @@
+package com.example.android.storeinventory.data;
+
+import android.util.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An inventory service in the test process that speaks the protocol of {@link SyncEngine}.
+ * It keeps the changes it got in memory and counts the requests and bytes, so the tests can
+ * check what a sync costs.
+ */
+class InventoryServiceStandIn {
+
+    private final HttpServer mServer;
+
+    /** All the changes in the order they came, the sequence number of each is its position + 1 */
+    private final List<JSONObject> mChanges = new ArrayList<JSONObject>();
+
+    /** Last sequence number of the log of each device that has been taken */
+    private final Map<String, Long> mLastSequences = new HashMap<String, Long>();
+
+    private int mPushCount;
+    private int mPullCount;
+    private int mPictureFetchCount;
+    private long mBytesReceived;
+
+    /** False to leave the bytes of the pictures out of the pulled changes */
+    private boolean mSendsPictures = true;
+
+    /** Run when the next page is asked for, before it is answered */
+    private Runnable mBeforeNextPull;
+
+    /** True to take the next batch of changes without the device hearing about it */
+    private boolean mLosesNextPushAnswer;
+
+    InventoryServiceStandIn() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/" + SyncEngine.PATH_CHANGES, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if("POST".equals(exchange.getRequestMethod())){
+                        push(exchange);
+                    }
+                    else {
+                        pull(exchange);
+                    }
+                } catch (JSONException e) {
+                    exchange.sendResponseHeaders(400, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.createContext("/" + SyncEngine.PATH_PICTURES + "/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    fetchPicture(exchange);
+                } catch (JSONException e) {
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * @return the base URL to sync with
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    synchronized int getChangeCount() {
+        return mChanges.size();
+    }
+
+    synchronized int getPushCount() {
+        return mPushCount;
+    }
+
+    synchronized int getPullCount() {
+        return mPullCount;
+    }
+
+    synchronized int getPictureFetchCount() {
+        return mPictureFetchCount;
+    }
+
+    /**
+     * Leave the bytes of the pictures out of the pulled changes, so the devices have to fetch them.
+     */
+    synchronized void setSendsPictures(boolean sendsPictures) {
+        mSendsPictures = sendsPictures;
+    }
+
+    /**
+     * Run the given action once, when the next page is asked for and before it is answered, e.g.
+     * to change a device while it syncs.
+     */
+    synchronized void runBeforeNextPull(Runnable action) {
+        mBeforeNextPull = action;
+    }
+
+    /**
+     * Take the changes of the next push, but answer it with an error, as if the answer got lost
+     * on its way back to the device.
+     */
+    synchronized void loseNextPushAnswer() {
+        mLosesNextPushAnswer = true;
+    }
+
+    /**
+     * @return the bytes of the bodies of the pushes, as they came over the wire
+     */
+    synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    private synchronized void push(HttpExchange exchange) throws IOException, JSONException {
+        mPushCount++;
+        byte[] body = readAll(exchange.getRequestBody());
+        mBytesReceived += body.length;
+        InputStream inputStream = new ByteArrayInputStream(body);
+        if("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))){
+            inputStream = new GZIPInputStream(inputStream);
+        }
+        JSONObject batch = new JSONObject(new String(readAll(inputStream), "UTF-8"));
+        String device = batch.getString("device");
+        JSONArray changes = batch.getJSONArray("changes");
+        for(int i = 0; i < changes.length(); i++){
+            JSONObject change = changes.getJSONObject(i);
+            // A batch that is sent again only adds the changes that are new
+            Long last = mLastSequences.get(device);
+            if(last != null && change.getLong("seq") <= last){
+                continue;
+            }
+            mLastSequences.put(device, change.getLong("seq"));
+            change.put("device", device);
+            change.put("seq", mChanges.size() + 1);
+            mChanges.add(change);
+        }
+        if(mLosesNextPushAnswer){
+            // What a proxy answers when the service took too long, after the service got the changes
+            mLosesNextPushAnswer = false;
+            exchange.sendResponseHeaders(504, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private synchronized void pull(HttpExchange exchange) throws IOException, JSONException {
+        mPullCount++;
+        if(mBeforeNextPull != null){
+            mBeforeNextPull.run();
+            mBeforeNextPull = null;
+        }
+        Map<String, String> parameters = new HashMap<String, String>();
+        String query = exchange.getRequestURI().getQuery();
+        for(String parameter : query.split("&")){
+            String[] parts = parameter.split("=", 2);
+            parameters.put(parts[0], parts[1]);
+        }
+        int since = Integer.parseInt(parameters.get("since"));
+        int limit = Integer.parseInt(parameters.get("limit"));
+        JSONArray changes = new JSONArray();
+        for(int i = since; i < mChanges.size() && i < since + limit; i++){
+            JSONObject change = mChanges.get(i);
+            if(!mSendsPictures && change.has("picture")){
+                change = new JSONObject(change.toString());
+                change.remove("picture");
+            }
+            changes.put(change);
+        }
+        JSONObject page = new JSONObject();
+        page.put("changes", changes);
+        page.put("hasMore", since + limit < mChanges.size());
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean compressed = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if(compressed){
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream outputStream = compressed
+                ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody();
+        try {
+            outputStream.write(page.toString().getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private synchronized void fetchPicture(HttpExchange exchange) throws IOException, JSONException {
+        mPictureFetchCount++;
+        String path = exchange.getRequestURI().getPath();
+        String hash = path.substring(path.lastIndexOf('/') + 1);
+        byte[] picture = null;
+        for(JSONObject change : mChanges){
+            if(hash.equals(change.optString("pictureHash")) && change.has("picture")){
+                picture = Base64.decode(change.getString("picture"), Base64.DEFAULT);
+            }
+        }
+        if(picture == null){
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, picture.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        try {
+            outputStream.write(picture);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while((length = inputStream.read(buffer)) != -1){
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+}
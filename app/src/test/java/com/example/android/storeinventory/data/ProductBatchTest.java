@@ -0,0 +1,245 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
+import android.database.Cursor;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a bulk insert and a batch of operations are written in one go, or not at all,
+ * and that the catalog hears about them once, when all of their rows can be read.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProductBatchTest {
+
+    /** Number of products in the catalog before each test */
+    private static final int PRODUCT_COUNT = 10;
+
+    /** Number of rows in the writes of the tests */
+    private static final int BATCH_SIZE = 25;
+
+    private ProductsProvider mProvider;
+
+    private ShadowContentResolver mContentResolver;
+
+    private Observer mObserver;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("product-batch.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+        mContentResolver = Shadows.shadowOf(RuntimeEnvironment.application.getContentResolver());
+
+        ContentValues[] products = new ContentValues[PRODUCT_COUNT];
+        for(int i = 0; i < products.length; i++){
+            products[i] = createProduct("Product " + i);
+        }
+        mProvider.bulkInsert(ProductsEntry.CONTENT_URI, products);
+
+        mObserver = new Observer();
+        RuntimeEnvironment.application.getContentResolver()
+                .registerContentObserver(ProductsEntry.CONTENT_URI, true, mObserver);
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment.application.getContentResolver().unregisterContentObserver(mObserver);
+    }
+
+    @Test
+    public void insertsEveryRowWithOneNotification() {
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        assertEquals(BATCH_SIZE, mProvider.bulkInsert(ProductsEntry.CONTENT_URI, createProducts("New")));
+        assertEquals(PRODUCT_COUNT + BATCH_SIZE, countProducts());
+        assertEquals(notifications + 1, mContentResolver.getNotifiedUris().size());
+        // Sent once the rows could be read, not in the middle of the write
+        assertEquals(1, mObserver.mCounts.size());
+        assertEquals(PRODUCT_COUNT + BATCH_SIZE, (int) mObserver.mCounts.get(0));
+    }
+
+    @Test
+    public void insertsNothingIfARowIsInvalid() {
+        ContentValues[] products = createProducts("New");
+        // The last row, so all the others have been checked already
+        products[BATCH_SIZE - 1].remove(ProductsEntry.COLUMN_PRODUCT_PRICE);
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        try {
+            mProvider.bulkInsert(ProductsEntry.CONTENT_URI, products);
+            fail("Expected the products to be refused");
+        } catch (IllegalArgumentException expected) {
+            // Product requires a valid price
+        }
+        assertEquals(PRODUCT_COUNT, countProducts());
+        assertEquals(notifications, mContentResolver.getNotifiedUris().size());
+        assertEquals(0, mObserver.mCounts.size());
+    }
+
+    @Test
+    public void appliesEveryOperationWithOneNotification() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for(ContentValues values : createProducts("New")){
+            operations.add(ContentProviderOperation.newInsert(ProductsEntry.CONTENT_URI)
+                    .withValues(values).build());
+        }
+        long id = getId("Product 3");
+        operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id))
+                .withValue(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 4)
+                .withExpectedCount(1)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI,
+                getId("Product 5"))).build());
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        ContentProviderResult[] results = mProvider.applyBatch(operations);
+        assertEquals(operations.size(), results.length);
+        assertEquals(PRODUCT_COUNT + BATCH_SIZE - 1, countProducts());
+        assertEquals(4, getQuantity(id));
+        assertEquals(notifications + 1, mContentResolver.getNotifiedUris().size());
+        assertEquals(1, mObserver.mCounts.size());
+        assertEquals(PRODUCT_COUNT + BATCH_SIZE - 1, (int) mObserver.mCounts.get(0));
+    }
+
+    @Test
+    public void appliesNothingIfAnOperationFails() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for(ContentValues values : createProducts("New")){
+            operations.add(ContentProviderOperation.newInsert(ProductsEntry.CONTENT_URI)
+                    .withValues(values).build());
+        }
+        long id = getId("Product 3");
+        operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id))
+                .withValue(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 4)
+                .build());
+        // A product that is not there, after the other operations have been applied
+        operations.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI,
+                id + 1000)).withExpectedCount(1).build());
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException expected) {
+            // Wrong number of rows
+        }
+        assertEquals(PRODUCT_COUNT, countProducts());
+        assertEquals(10, getQuantity(id));
+        assertEquals(notifications, mContentResolver.getNotifiedUris().size());
+        assertEquals(0, mObserver.mCounts.size());
+    }
+
+    @Test
+    public void appliesNothingIfAnInsertIsInvalid() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ContentValues[] products = createProducts("New");
+        products[BATCH_SIZE - 1].put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, -1);
+        for(ContentValues values : products){
+            operations.add(ContentProviderOperation.newInsert(ProductsEntry.CONTENT_URI)
+                    .withValues(values).build());
+        }
+        int notifications = mContentResolver.getNotifiedUris().size();
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("Expected the batch to be refused");
+        } catch (IllegalArgumentException expected) {
+            // Product requires a valid quantity
+        }
+        assertEquals(PRODUCT_COUNT, countProducts());
+        assertEquals(notifications, mContentResolver.getNotifiedUris().size());
+        assertEquals(0, mObserver.mCounts.size());
+    }
+
+    private int countProducts() {
+        Cursor cursor = mProvider.query(ProductsEntry.CONTENT_URI, new String[] {ProductsEntry._ID},
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getId(String name) {
+        Cursor cursor = mProvider.query(ProductsEntry.CONTENT_URI, new String[] {ProductsEntry._ID},
+                ProductsEntry.COLUMN_PRODUCT_NAME + "=?", new String[] {name}, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int getQuantity(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues[] createProducts(String prefix) {
+        ContentValues[] products = new ContentValues[BATCH_SIZE];
+        for(int i = 0; i < products.length; i++){
+            products[i] = createProduct(prefix + " " + i);
+        }
+        return products;
+    }
+
+    private static ContentValues createProduct(String name) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 10);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        return values;
+    }
+
+    /**
+     * Counts the products each time it hears about a change. The provider notifies on its writer
+     * thread before the write returns, so there is nothing to wait for.
+     */
+    private class Observer extends ContentObserver {
+        final List<Integer> mCounts = new ArrayList<Integer>();
+
+        Observer() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mCounts.add(countProducts());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the pages of the catalog hear about the changes that move products between them,
+ * and read the moved products in their new place, whichever page that is.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProductPagesTest {
+
+    /** Products per page, the same as the catalog */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] PROJECTION = {
+            ProductsEntry._ID,
+            ProductsEntry.COLUMN_PRODUCT_NAME,
+            ProductsEntry.COLUMN_PRODUCT_PRICE,
+            ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH
+    };
+
+    private ProductsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("product-pages.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+
+        // Three full pages of products with even numbers, so odd ones fall between them
+        ContentValues[] products = new ContentValues[3 * PAGE_SIZE];
+        for(int i = 0; i < products.length; i++){
+            products[i] = createProduct(name(2 * i));
+        }
+        mProvider.bulkInsert(ProductsEntry.CONTENT_URI, products);
+    }
+
+    @Test
+    public void showsANewProductInTheThirdPage() {
+        Uri thirdPage = getPageUri(2);
+        Cursor page = queryPage(thirdPage);
+        Observer observer = new Observer();
+        page.registerContentObserver(observer);
+        try {
+            mProvider.insert(ProductsEntry.CONTENT_URI, createProduct(name(251)));
+            assertTrue("The page has not heard about the new product", observer.mChanged);
+        } finally {
+            page.unregisterContentObserver(observer);
+            page.close();
+        }
+        assertTrue(readNames(thirdPage).contains(name(251)));
+    }
+
+    @Test
+    public void movesARenamedProductToItsNewPage() {
+        Uri thirdPage = getPageUri(2);
+        long id = getId(name(260));
+        Cursor page = queryPage(thirdPage);
+        Observer observer = new Observer();
+        page.registerContentObserver(observer);
+        try {
+            ContentValues values = new ContentValues();
+            values.put(ProductsEntry.COLUMN_PRODUCT_NAME, "Baguette");
+            assertEquals(1, mProvider.update(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                    values, null, null));
+            assertTrue("The page has not heard about the renamed product", observer.mChanged);
+        } finally {
+            page.unregisterContentObserver(observer);
+            page.close();
+        }
+        assertFalse(readNames(getPageUri(2)).contains(name(260)));
+        assertEquals("Baguette", readNames(getPageUri(0)).get(0));
+    }
+
+    @Test
+    public void leavesAChangedQuantityToTheList() {
+        long id = getId(name(260));
+        Cursor page = queryPage(getPageUri(2));
+        Observer observer = new Observer();
+        page.registerContentObserver(observer);
+        try {
+            // The list patches the row of the product by itself
+            ContentValues values = new ContentValues();
+            values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 3);
+            assertEquals(1, mProvider.update(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                    values, null, null));
+            assertFalse(observer.mChanged);
+        } finally {
+            page.unregisterContentObserver(observer);
+            page.close();
+        }
+    }
+
+    /**
+     * Return the URI of the page with the given number, which starts after the last product of
+     * the page before it, the way the catalog asks for it.
+     */
+    private Uri getPageUri(int number) {
+        Uri uri = ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME, null, 0, PAGE_SIZE);
+        for(int i = 0; i < number; i++){
+            Cursor page = queryPage(uri);
+            try {
+                assertTrue(page.moveToLast());
+                uri = ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                        page.getString(page.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_NAME)),
+                        page.getLong(page.getColumnIndex(ProductsEntry._ID)), PAGE_SIZE);
+            } finally {
+                page.close();
+            }
+        }
+        return uri;
+    }
+
+    private Cursor queryPage(Uri uri) {
+        return mProvider.query(uri, PROJECTION, null, null, null);
+    }
+
+    private List<String> readNames(Uri pageUri) {
+        List<String> names = new ArrayList<String>();
+        Cursor page = queryPage(pageUri);
+        try {
+            while(page.moveToNext()){
+                names.add(page.getString(page.getColumnIndex(ProductsEntry.COLUMN_PRODUCT_NAME)));
+            }
+        } finally {
+            page.close();
+        }
+        return names;
+    }
+
+    private long getId(String name) {
+        Cursor cursor = mProvider.query(ProductsEntry.CONTENT_URI, new String[] {ProductsEntry._ID},
+                ProductsEntry.COLUMN_PRODUCT_NAME + "=?", new String[] {name}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String name(int number) {
+        return String.format(Locale.US, "Product %03d", number);
+    }
+
+    private static ContentValues createProduct(String name) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 10);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        return values;
+    }
+
+    /**
+     * Remembers whether the page it observes has changed. The provider notifies on its writer
+     * thread before the write returns, so there is nothing to wait for.
+     */
+    private static class Observer extends ContentObserver {
+        volatile boolean mChanged;
+
+        Observer() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mChanged = true;
+        }
+    }
+}
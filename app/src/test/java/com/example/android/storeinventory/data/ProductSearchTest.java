@@ -0,0 +1,113 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the search finds the products with a word starting with each word of the text,
+ * that the text is taken as it is typed, and that the names starting with it come first.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProductSearchTest {
+
+    private ProductsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("product-search.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+    }
+
+    @Test
+    public void matchesTheStartOfWords() {
+        insertProducts("Sourdough", "Rye Sourdough", "Sour Cherry Danish", "Doughnut", "Whole Wheat");
+
+        assertEquals(Arrays.asList("Sourdough", "Sour Cherry Danish", "Rye Sourdough"), search("sour"));
+        // Not the middle of a word
+        assertEquals(Arrays.asList("Doughnut"), search("dough"));
+        // Every word has to match, in any order
+        assertEquals(Arrays.asList("Sour Cherry Danish"), search("dan SOUR"));
+        assertEquals(Collections.<String>emptyList(), search("sour wheat"));
+    }
+
+    @Test
+    public void findsNothingWithoutWords() {
+        insertProducts("Sourdough", "Doughnut");
+
+        assertEquals(Collections.<String>emptyList(), search(""));
+        assertEquals(Collections.<String>emptyList(), search(" -* \"OR\" "));
+    }
+
+    @Test
+    public void takesPercentSignsLiterally() {
+        // Both start with "100", only one with "100%"
+        insertProducts("1000 Rolls", "100% Rye Loaf");
+
+        assertEquals(Arrays.asList("100% Rye Loaf", "1000 Rolls"), search("100%"));
+    }
+
+    @Test
+    public void takesUnderscoresLiterally() {
+        // As a wildcard the underscore would match the space of the shorter name
+        insertProducts("Rye Bun", "Rye_Bread Roll");
+
+        assertEquals(Arrays.asList("Rye_Bread Roll", "Rye Bun"), search("rye_b"));
+    }
+
+    @Test
+    public void putsTheNamesStartingWithTheTextFirst() {
+        insertProducts("Spelt Bread", "Breadsticks", "Rye Bread", "Bread Roll", "Banana Bread Loaf");
+
+        // Then the shorter names before the longer ones, then by name
+        assertEquals(Arrays.asList("Bread Roll", "Breadsticks", "Rye Bread", "Spelt Bread", "Banana Bread Loaf"),
+                search("bread"));
+    }
+
+    private List<String> search(String text) {
+        List<String> names = new ArrayList<String>();
+        Cursor cursor = mProvider.query(ProductsEntry.buildSearchUri(text, 100),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_NAME}, null, null, null);
+        try {
+            while(cursor.moveToNext()){
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private void insertProducts(String... names) {
+        ContentValues[] products = new ContentValues[names.length];
+        for(int i = 0; i < names.length; i++){
+            ContentValues values = new ContentValues();
+            values.put(ProductsEntry.COLUMN_PRODUCT_NAME, names[i]);
+            values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+            values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, 10);
+            values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, names[i].getBytes());
+            products[i] = values;
+        }
+        mProvider.bulkInsert(ProductsEntry.CONTENT_URI, products);
+    }
+}
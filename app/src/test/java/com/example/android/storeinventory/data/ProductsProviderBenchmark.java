@@ -0,0 +1,471 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.benchmark.Benchmark;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+import com.example.android.storeinventory.data.InventoryContract.SummaryEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Times the write and read paths of the real {@link ProductsProvider}, on catalogs of several
+ * sizes. It runs on the JVM with the SQLite of Robolectric, so the numbers are only meant to be
+ * compared with each other and with the baseline taken on the same machine, not with a device.
+ *
+ * Skipped unless the benchmarks are asked for, run them with ./gradlew :app:benchmark
+ * The catalog sizes can be changed with -Dbenchmark.sizes=100,1000
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProductsProviderBenchmark {
+
+    /** Number of lines of the basket sold by the checkout benchmark */
+    private static final int CHECKOUT_LINES = 30;
+
+    /** Catalog sizes used unless other ones are given */
+    private static final String DEFAULT_CATALOG_SIZES = "100,1000,10000";
+
+    /** Products per bulk insert, the same as the CSV import */
+    private static final int BATCH_SIZE = 500;
+
+    /** Products per page, the same as the catalog */
+    private static final int PAGE_SIZE = 50;
+
+    /** Products per sale batch, about what a burst of taps collects */
+    private static final int SALE_BATCH_SIZE = 20;
+
+    /** Quantity of every product, high enough that selling never runs out of stock */
+    private static final int QUANTITY = 1000000;
+
+    /** Columns read for each product of the list, the same as the catalog */
+    private static final String[] LIST_PROJECTION = {
+            ProductsEntry._ID,
+            ProductsEntry.COLUMN_PRODUCT_NAME,
+            ProductsEntry.COLUMN_PRODUCT_PRICE,
+            ProductsEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH
+    };
+
+    /** Supplier catalogs use a few pictures for many products, so a few are shared by all */
+    private static final byte[][] PICTURES = new byte[8][];
+
+    static {
+        Random random = new Random(1);
+        for(int i = 0; i < PICTURES.length; i++){
+            PICTURES[i] = new byte[4 * 1024];
+            random.nextBytes(PICTURES[i]);
+        }
+    }
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0} products")
+    public static List<Object[]> catalogSizes() {
+        List<Object[]> sizes = new ArrayList<Object[]>();
+        for(String size : System.getProperty("benchmark.sizes", DEFAULT_CATALOG_SIZES).split(",")){
+            sizes.add(new Object[] {Integer.parseInt(size.trim())});
+        }
+        return sizes;
+    }
+
+    private final int mCatalogSize;
+
+    private final Random mRandom = new Random(42);
+
+    private ProductsProvider mProvider;
+
+    /** IDs of the products of the catalog, sorted by name */
+    private long[] mIds;
+
+    /** Number of products inserted so far, to give every product a different name */
+    private int mProductCount;
+
+    public ProductsProviderBenchmark(int catalogSize) {
+        mCatalogSize = catalogSize;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Benchmark.isEnabled());
+        // Every test gets a new application, and so an empty database
+        mProvider = Robolectric.setupContentProvider(ProductsProvider.class);
+        fillCatalog();
+    }
+
+    @Test
+    public void insertSingle() throws Exception {
+        new Benchmark(name("insert_single"), 20, 200).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                mProvider.insert(ProductsEntry.CONTENT_URI, newProduct());
+            }
+        });
+    }
+
+    @Test
+    public void bulkInsertVersusSingleInserts() throws Exception {
+        // One transaction for the whole batch
+        new Benchmark(name("bulk_insert_" + BATCH_SIZE), 2, 10).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                mProvider.bulkInsert(ProductsEntry.CONTENT_URI, newProducts(BATCH_SIZE));
+            }
+        });
+        // The same rows with one transaction each, the way they were inserted before bulkInsert
+        new Benchmark(name("insert_" + BATCH_SIZE + "_singly"), 1, 3).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                for(ContentValues values : newProducts(BATCH_SIZE)){
+                    mProvider.insert(ProductsEntry.CONTENT_URI, values);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void sell() throws Exception {
+        new Benchmark(name("sell"), 50, 500).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                Bundle extras = new Bundle();
+                extras.putInt(ProductsEntry.EXTRA_UNITS, 1);
+                Bundle result = mProvider.call(ProductsEntry.METHOD_SELL,
+                        String.valueOf(randomId()), extras);
+                assertEquals(ProductsEntry.SELL_OK, result.getInt(ProductsEntry.EXTRA_RESULT));
+            }
+        });
+    }
+
+    @Test
+    public void sellBySku() throws Exception {
+        // What a scan at the till costs: finding the product by its barcode and selling it
+        new Benchmark(name("sell_by_sku"), 50, 500).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                Bundle result = mProvider.call(ProductsEntry.METHOD_SELL_SKU,
+                        productSku(mRandom.nextInt(mIds.length)), null);
+                assertEquals(ProductsEntry.SELL_OK, result.getInt(ProductsEntry.EXTRA_RESULT));
+            }
+        });
+    }
+
+    @Test
+    public void sellBatch() throws Exception {
+        new Benchmark(name("sell_batch_" + SALE_BATCH_SIZE), 20, 200).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                long[] ids = new long[SALE_BATCH_SIZE];
+                int[] units = new int[SALE_BATCH_SIZE];
+                for(int i = 0; i < SALE_BATCH_SIZE; i++){
+                    // Consecutive products, so no product is twice in the batch
+                    ids[i] = mIds[(run * SALE_BATCH_SIZE + i) % mIds.length];
+                    units[i] = 1;
+                }
+                Bundle extras = new Bundle();
+                extras.putString(ProductsEntry.EXTRA_BATCH_TOKEN, UUID.randomUUID().toString());
+                extras.putLongArray(ProductsEntry.EXTRA_PRODUCT_IDS, ids);
+                extras.putIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT, units);
+                mProvider.call(ProductsEntry.METHOD_SELL_BATCH, null, extras);
+            }
+        });
+    }
+
+    @Test
+    public void checkoutVersusSingleSales() throws Exception {
+        assumeTrue(mCatalogSize >= CHECKOUT_LINES);
+        // The whole basket in one transaction
+        new Benchmark(name("checkout_" + CHECKOUT_LINES), 20, 200).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                int[] units = new int[CHECKOUT_LINES];
+                Arrays.fill(units, 1);
+                Bundle extras = new Bundle();
+                extras.putLongArray(ProductsEntry.EXTRA_PRODUCT_IDS, basket(run));
+                extras.putIntArray(ProductsEntry.EXTRA_UNITS_PER_PRODUCT, units);
+                Bundle result = mProvider.call(ProductsEntry.METHOD_CHECKOUT, null, extras);
+                assertEquals(ProductsEntry.CHECKOUT_OK, result.getInt(ProductsEntry.EXTRA_RESULT));
+            }
+        });
+        // The same basket with one sale per line
+        new Benchmark(name("sell_" + CHECKOUT_LINES + "_singly"), 5, 50).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                Bundle extras = new Bundle();
+                extras.putInt(ProductsEntry.EXTRA_UNITS, 1);
+                for(long id : basket(run)){
+                    mProvider.call(ProductsEntry.METHOD_SELL, String.valueOf(id), extras);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void updateById() throws Exception {
+        new Benchmark(name("update_price_by_id"), 50, 500).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                ContentValues values = new ContentValues();
+                values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 100 + run);
+                assertEquals(1, mProvider.update(productUri(randomId()), values, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryById() throws Exception {
+        new Benchmark(name("query_by_id"), 100, 1000).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                readAll(mProvider.query(productUri(randomId()), LIST_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryBySku() throws Exception {
+        new Benchmark(name("query_by_sku"), 100, 1000).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                readAll(mProvider.query(ProductsEntry.buildSkuUri(productSku(mRandom.nextInt(mIds.length))),
+                        LIST_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryList() throws Exception {
+        // The first page, what the catalog waits for before it shows anything
+        new Benchmark(name("query_first_page"), 20, 200).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                readAll(mProvider.query(ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                        null, 0, PAGE_SIZE), LIST_PROJECTION, null, null, null));
+            }
+        });
+        // A page from the middle of the catalog, found through the index without an OFFSET
+        new Benchmark(name("query_middle_page"), 20, 200).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                int position = mIds.length / 2;
+                readAll(mProvider.query(ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                        productName(position), mIds[position], PAGE_SIZE),
+                        LIST_PROJECTION, null, null, null));
+            }
+        });
+        // The whole catalog in one query, the way the list was loaded before it had pages
+        new Benchmark(name("query_whole_list"), 2, 20).run(new Benchmark.Operation() {
+            @Override
+            public void run(int run) throws Exception {
+                readAll(mProvider.query(ProductsEntry.CONTENT_URI, LIST_PROJECTION, null, null,
+                        ProductsEntry.COLUMN_PRODUCT_NAME));
+            }
+        });
+    }
+
+    @Test
+    public void deleteAll() throws Exception {
+        new Benchmark(name("delete_all"), 1, 5).run(new Benchmark.Operation() {
+            @Override
+            public void setUp(int run) throws Exception {
+                if(run > 0){
+                    // The run before emptied the catalog
+                    fillCatalog();
+                }
+            }
+
+            @Override
+            public void run(int run) throws Exception {
+                assertEquals(mCatalogSize, mProvider.delete(ProductsEntry.CONTENT_URI, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void readWhileWriting() throws Exception {
+        // Sell all the time on another thread. With the write-ahead log the reads
+        // should take about as long as they do without the writes.
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(7);
+                Bundle extras = new Bundle();
+                extras.putInt(ProductsEntry.EXTRA_UNITS, 1);
+                while(writing.get()){
+                    mProvider.call(ProductsEntry.METHOD_SELL,
+                            String.valueOf(mIds[random.nextInt(mIds.length)]), extras);
+                }
+            }
+        }, "BenchmarkWriter");
+        writer.start();
+        try {
+            new Benchmark(name("query_by_id_while_writing"), 100, 1000).run(new Benchmark.Operation() {
+                @Override
+                public void run(int run) throws Exception {
+                    readAll(mProvider.query(productUri(randomId()), LIST_PROJECTION, null, null, null));
+                }
+            });
+            new Benchmark(name("query_first_page_while_writing"), 20, 200).run(new Benchmark.Operation() {
+                @Override
+                public void run(int run) throws Exception {
+                    readAll(mProvider.query(ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                            null, 0, PAGE_SIZE), LIST_PROJECTION, null, null, null));
+                }
+            });
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void readWhileReplacingCatalog() throws Exception {
+        // Delete the whole catalog and insert it again with one bulk insert, over and over on
+        // another thread, like an import that replaces the catalog. Each of these writes is a
+        // single transaction over every product, the longest the writer ever holds one.
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(writing.get()){
+                    mProvider.delete(ProductsEntry.CONTENT_URI, null, null);
+                    mProvider.bulkInsert(ProductsEntry.CONTENT_URI, newProducts(mCatalogSize));
+                }
+            }
+        }, "BenchmarkWriter");
+        writer.start();
+        try {
+            new Benchmark(name("query_first_page_while_replacing"), 20, 200).run(new Benchmark.Operation() {
+                @Override
+                public void run(int run) throws Exception {
+                    readAll(mProvider.query(ProductsEntry.buildPageUri(ProductsEntry.COLUMN_PRODUCT_NAME,
+                            null, 0, PAGE_SIZE), LIST_PROJECTION, null, null, null));
+                }
+            });
+            new Benchmark(name("query_summary_while_replacing"), 20, 200).run(new Benchmark.Operation() {
+                @Override
+                public void run(int run) throws Exception {
+                    readAll(mProvider.query(SummaryEntry.CONTENT_URI, null, null, null, null));
+                }
+            });
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+    }
+
+    /**
+     * Insert the products of the catalog in batches and read back their IDs.
+     */
+    private void fillCatalog() {
+        mProductCount = 0;
+        for(int inserted = 0; inserted < mCatalogSize; inserted += BATCH_SIZE){
+            mProvider.bulkInsert(ProductsEntry.CONTENT_URI,
+                    newProducts(Math.min(BATCH_SIZE, mCatalogSize - inserted)));
+        }
+        Cursor cursor = mProvider.query(ProductsEntry.CONTENT_URI, new String[] {ProductsEntry._ID},
+                null, null, ProductsEntry.COLUMN_PRODUCT_NAME);
+        try {
+            mIds = new long[cursor.getCount()];
+            for(int i = 0; cursor.moveToNext(); i++){
+                mIds[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(mCatalogSize, mIds.length);
+    }
+
+    private ContentValues[] newProducts(int count) {
+        ContentValues[] products = new ContentValues[count];
+        for(int i = 0; i < count; i++){
+            products[i] = newProduct();
+        }
+        return products;
+    }
+
+    private ContentValues newProduct() {
+        int number = mProductCount++;
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, productName(number));
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 100 + number % 1000);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, QUANTITY);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, PICTURES[number % PICTURES.length]);
+        values.put(ProductsEntry.COLUMN_PRODUCT_SKU, productSku(number));
+        return values;
+    }
+
+    /**
+     * The names sort like the numbers, so the product at a position of the list is known.
+     */
+    private static String productName(int number) {
+        return String.format(Locale.US, "Product %08d", number);
+    }
+
+    /**
+     * A 13 digit code like the EAN-13 barcodes, the product at position i of the list has the
+     * SKU of number i.
+     */
+    private static String productSku(int number) {
+        return String.format(Locale.US, "4%012d", number);
+    }
+
+    /**
+     * @return the products of a basket, consecutive ones so no product is in two lines
+     */
+    private long[] basket(int run) {
+        long[] ids = new long[CHECKOUT_LINES];
+        for(int i = 0; i < CHECKOUT_LINES; i++){
+            ids[i] = mIds[(run * CHECKOUT_LINES + i) % mIds.length];
+        }
+        return ids;
+    }
+
+    private long randomId() {
+        return mIds[mRandom.nextInt(mIds.length)];
+    }
+
+    private static Uri productUri(long id) {
+        return ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id);
+    }
+
+    private String name(String operation) {
+        return operation + "/" + mCatalogSize;
+    }
+
+    /**
+     * Read every value of every row, like a list that shows them, and close the cursor.
+     */
+    private static void readAll(Cursor cursor) {
+        try {
+            int columns = cursor.getColumnCount();
+            while(cursor.moveToNext()){
+                for(int column = 0; column < columns; column++){
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
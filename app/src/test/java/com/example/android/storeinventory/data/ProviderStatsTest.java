@@ -0,0 +1,190 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the operations of the provider are timed per operation and URI pattern once
+ * timing has been started, and not before or after.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProviderStatsTest {
+
+    private ProductsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("provider-stats.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+    }
+
+    @Test
+    public void timesNothingUntilStarted() throws JSONException {
+        insertProduct("Rye Bread", 10);
+        queryAll().close();
+
+        JSONObject stats = getStats();
+        assertFalse(stats.getBoolean("enabled"));
+        assertEquals(0, stats.getJSONObject("operations").length());
+        assertEquals(0, stats.getJSONArray("slow").length());
+
+        // The same JSON is dumped
+        StringWriter dump = new StringWriter();
+        mProvider.dump(null, new PrintWriter(dump), new String[0]);
+        assertFalse(new JSONObject(dump.toString()).getBoolean("enabled"));
+    }
+
+    @Test
+    public void countsEachOperationByUriPattern() throws JSONException {
+        // Every operation is slow, so each one leaves a sample
+        setStatsEnabled(true, 0);
+        long rye = insertProduct("Rye Bread", 10);
+        insertProduct("Sourdough", 10);
+        insertProduct("Baguette", 10);
+        Cursor cursor = queryAll();
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+        queryById(rye).close();
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, "Dark Rye Bread");
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, rye),
+                values, null, null));
+        Bundle extras = new Bundle();
+        extras.putInt(ProductsEntry.EXTRA_UNITS, 1);
+        mProvider.call(ProductsEntry.METHOD_SELL, String.valueOf(rye), extras);
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, rye), null, null));
+
+        JSONObject stats = getStats();
+        assertTrue(stats.getBoolean("enabled"));
+        JSONObject operations = stats.getJSONObject("operations");
+        assertEquals(3, operations.getJSONObject("insert products").getInt("count"));
+        assertEquals(3, operations.getJSONObject("insert products").getLong("rows"));
+        JSONObject queryAll = operations.getJSONObject("query products");
+        assertEquals(1, queryAll.getInt("count"));
+        assertEquals(3, queryAll.getLong("rows"));
+        assertTrue(queryAll.getLong("bytes") > 0);
+        assertEquals(1, operations.getJSONObject("query products/#").getInt("count"));
+        assertEquals(1, operations.getJSONObject("update products/#").getLong("rows"));
+        assertEquals(1, operations.getJSONObject("delete products/#").getLong("rows"));
+        assertEquals(1, operations.getJSONObject("call sell").getInt("count"));
+
+        // Every call is in one bucket of its histogram
+        JSONArray histogram = queryAll.getJSONArray("histogram");
+        assertEquals(ProviderStats.BUCKET_BOUNDS_MS.length + 1, histogram.length());
+        int counted = 0;
+        for(int i = 0; i < histogram.length(); i++){
+            counted += histogram.getInt(i);
+        }
+        assertEquals(1, counted);
+
+        // The samples of the queries have their SQL, the ones of the writes their selection
+        JSONArray slow = stats.getJSONArray("slow");
+        assertEquals(8, slow.length());
+        JSONObject querySample = findSample(slow, "query products");
+        assertTrue(querySample.getString("sql").contains("FROM " + ProductsEntry.TABLE_NAME));
+        assertTrue(findSample(slow, "update products/#").getString("detail").contains(ProductsEntry._ID + "=?"));
+    }
+
+    @Test
+    public void countsFailedOperations() throws JSONException {
+        setStatsEnabled(true, ProviderStats.DEFAULT_SLOW_THRESHOLD_MS);
+        try {
+            mProvider.query(Uri.withAppendedPath(InventoryContract.BASE_CONTENT_URI, "unknown"),
+                    null, null, null, null);
+            fail("Expected the URI to be refused");
+        } catch (IllegalArgumentException expected) {
+            // Not a URI of the provider
+        }
+        JSONObject unknown = getStats().getJSONObject("operations").getJSONObject("query unknown");
+        assertEquals(1, unknown.getInt("count"));
+        assertEquals(1, unknown.getInt("failures"));
+        assertEquals(0, unknown.getLong("rows"));
+    }
+
+    @Test
+    public void stopsAndClears() throws JSONException {
+        setStatsEnabled(true, ProviderStats.DEFAULT_SLOW_THRESHOLD_MS);
+        queryAll().close();
+        setStatsEnabled(false, ProviderStats.DEFAULT_SLOW_THRESHOLD_MS);
+        queryAll().close();
+
+        // The numbers are kept once stopped, but no longer added to
+        JSONObject stats = getStats();
+        assertFalse(stats.getBoolean("enabled"));
+        assertEquals(1, stats.getJSONObject("operations").getJSONObject("query products").getInt("count"));
+
+        mProvider.call(ProductsEntry.METHOD_RESET_STATS, null, null);
+        assertEquals(0, getStats().getJSONObject("operations").length());
+    }
+
+    private void setStatsEnabled(boolean enabled, long slowThresholdMs) {
+        Bundle extras = new Bundle();
+        extras.putLong(ProductsEntry.EXTRA_SLOW_THRESHOLD_MS, slowThresholdMs);
+        mProvider.call(ProductsEntry.METHOD_SET_STATS_ENABLED, String.valueOf(enabled), extras);
+    }
+
+    private JSONObject getStats() throws JSONException {
+        Bundle result = mProvider.call(ProductsEntry.METHOD_GET_STATS, null, null);
+        return new JSONObject(result.getString(ProductsEntry.EXTRA_STATS_JSON));
+    }
+
+    /**
+     * @return the most recent slow sample of the given operation
+     */
+    private static JSONObject findSample(JSONArray slow, String operation) throws JSONException {
+        for(int i = slow.length() - 1; i >= 0; i--){
+            if(operation.equals(slow.getJSONObject(i).getString("operation"))){
+                return slow.getJSONObject(i);
+            }
+        }
+        throw new AssertionError("No slow sample of " + operation);
+    }
+
+    private long insertProduct(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        Uri uri = mProvider.insert(ProductsEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private Cursor queryAll() {
+        return mProvider.query(ProductsEntry.CONTENT_URI,
+                new String[] {ProductsEntry._ID, ProductsEntry.COLUMN_PRODUCT_NAME}, null, null, null);
+    }
+
+    private Cursor queryById(long id) {
+        return mProvider.query(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that products are read and sold by their SKU, and that the SKU index never sends a
+ * scan to the wrong product while SKUs are given, moved and taken away.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SkuLookupTest {
+
+    private ProductsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ProductsProvider("sku-lookup.db");
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(RuntimeEnvironment.application, info);
+    }
+
+    @Test
+    public void readsAndSellsAProductByItsSku() {
+        long id = insertProduct("Rye Bread", "4006381333931", 10);
+        insertProduct("Sourdough", null, 10);
+
+        assertEquals("Rye Bread", getNameBySku("4006381333931"));
+        Bundle result = sellBySku("4006381333931", null);
+        assertEquals(ProductsEntry.SELL_OK, result.getInt(ProductsEntry.EXTRA_RESULT));
+        assertEquals(id, result.getLong(ProductsEntry.EXTRA_PRODUCT_ID));
+        assertEquals(9, result.getInt(ProductsEntry.EXTRA_QUANTITY));
+
+        Bundle extras = new Bundle();
+        extras.putInt(ProductsEntry.EXTRA_UNITS, 9);
+        assertEquals(0, sellBySku("4006381333931", extras).getInt(ProductsEntry.EXTRA_QUANTITY));
+        assertEquals(ProductsEntry.SELL_INSUFFICIENT_STOCK,
+                sellBySku("4006381333931", null).getInt(ProductsEntry.EXTRA_RESULT));
+    }
+
+    @Test
+    public void doesNotFindUnknownSkus() {
+        insertProduct("Rye Bread", "4006381333931", 10);
+
+        assertNull(getNameBySku("96385074"));
+        assertEquals(ProductsEntry.SELL_PRODUCT_NOT_FOUND,
+                sellBySku("96385074", null).getInt(ProductsEntry.EXTRA_RESULT));
+    }
+
+    @Test
+    public void appliesTheSelectionAndSortOrder() {
+        insertProduct("Rye Bread", "4006381333931", 10);
+        // The product is in the index and the cache, but the selection still applies
+        assertEquals("Rye Bread", getNameBySku("4006381333931"));
+
+        String[] projection = {ProductsEntry.COLUMN_PRODUCT_NAME};
+        Cursor cursor = mProvider.query(ProductsEntry.buildSkuUri("4006381333931"), projection,
+                ProductsEntry.COLUMN_PRODUCT_QUANTITY + ">?", new String[] {"10"}, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        cursor = mProvider.query(ProductsEntry.buildSkuUri("4006381333931"), projection,
+                ProductsEntry.COLUMN_PRODUCT_QUANTITY + "<=?", new String[] {"10"},
+                ProductsEntry.COLUMN_PRODUCT_NAME);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void followsASkuThatMovesToAnotherProduct() {
+        long rye = insertProduct("Rye Bread", "4006381333931", 10);
+        long sourdough = insertProduct("Sourdough", null, 10);
+        assertEquals("Rye Bread", getNameBySku("4006381333931"));
+
+        setSku(rye, null);
+        assertNull(getNameBySku("4006381333931"));
+        setSku(sourdough, "4006381333931");
+        assertEquals("Sourdough", getNameBySku("4006381333931"));
+        assertEquals(sourdough, sellBySku("4006381333931", null).getLong(ProductsEntry.EXTRA_PRODUCT_ID));
+
+        mProvider.delete(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, sourdough), null, null);
+        assertEquals(ProductsEntry.SELL_PRODUCT_NOT_FOUND,
+                sellBySku("4006381333931", null).getInt(ProductsEntry.EXTRA_RESULT));
+        assertEquals(10, getQuantity(rye));
+    }
+
+    @Test
+    public void refusesASkuThatIsTaken() {
+        insertProduct("Rye Bread", "4006381333931", 10);
+        long sourdough = insertProduct("Sourdough", null, 10);
+
+        assertNull(mProvider.insert(ProductsEntry.CONTENT_URI, createProduct("Baguette", "4006381333931", 10)));
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_SKU, "4006381333931");
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, "Dark Sourdough");
+        assertEquals(0, mProvider.update(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, sourdough),
+                values, null, null));
+        assertEquals("Rye Bread", getNameBySku("4006381333931"));
+
+        // A SKU names a single product, so it cannot be given to a selection
+        values.remove(ProductsEntry.COLUMN_PRODUCT_NAME);
+        try {
+            mProvider.update(ProductsEntry.CONTENT_URI, values, null, null);
+            fail("Expected the SKU to be refused");
+        } catch (IllegalArgumentException expected) {
+            // The SKU of a single product only
+        }
+    }
+
+    @Test
+    public void refusesABatchWithATakenSku() {
+        insertProduct("Rye Bread", "4006381333931", 10);
+        int pictures = countPictures();
+
+        ContentValues[] taken = {
+                createProduct("Baguette", "96385074", 10),
+                createProduct("Dark Rye Bread", "4006381333931", 10)};
+        ContentValues[] twice = {
+                createProduct("Baguette", "96385074", 10),
+                createProduct("Spelt Bread", "96385074", 10)};
+        for(ContentValues[] values : new ContentValues[][] {taken, twice}){
+            try {
+                mProvider.bulkInsert(ProductsEntry.CONTENT_URI, values);
+                fail("Expected the batch to be refused");
+            } catch (IllegalArgumentException expected) {
+                // Nothing of the batch is inserted
+            }
+        }
+        assertNull(getNameBySku("96385074"));
+        Cursor cursor = mProvider.query(ProductsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        // The pictures of refused products are not kept either
+        assertNull(mProvider.insert(ProductsEntry.CONTENT_URI, createProduct("Baguette", "4006381333931", 10)));
+        assertEquals(pictures, countPictures());
+    }
+
+    @Test
+    public void indexKeepsItsEntriesThroughRemovalsAndGrowth() {
+        SkuIndex index = new SkuIndex();
+        // Enough entries to grow the table a few times
+        for(int i = 1; i <= 5000; i++){
+            index.put("sku-" + i, i);
+        }
+        for(int i = 1; i <= 5000; i += 2){
+            index.remove("sku-" + i);
+        }
+        assertEquals(2500, index.size());
+        for(int i = 1; i <= 5000; i++){
+            assertEquals(i % 2 == 0 ? i : -1, index.get("sku-" + i));
+        }
+        index.clear();
+        assertEquals(-1, index.get("sku-2"));
+        assertEquals(0, index.size());
+    }
+
+    private static ContentValues createProduct(String name, String sku, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        if(sku != null){
+            values.put(ProductsEntry.COLUMN_PRODUCT_SKU, sku);
+        }
+        return values;
+    }
+
+    private long insertProduct(String name, String sku, int quantity) {
+        Uri uri = mProvider.insert(ProductsEntry.CONTENT_URI, createProduct(name, sku, quantity));
+        return ContentUris.parseId(uri);
+    }
+
+    private static int countPictures() {
+        String[] files = new File(RuntimeEnvironment.application.getFilesDir(), "sku-lookup.db-pictures").list();
+        return files == null ? 0 : files.length;
+    }
+
+    private void setSku(long id, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_SKU, sku);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id), values, null, null));
+    }
+
+    private Bundle sellBySku(String sku, Bundle extras) {
+        return mProvider.call(ProductsEntry.METHOD_SELL_SKU, sku, extras);
+    }
+
+    /**
+     * @return the name of the product with the given SKU, or null if there is none
+     */
+    private String getNameBySku(String sku) {
+        Cursor cursor = mProvider.query(ProductsEntry.buildSkuUri(sku),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_NAME}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int getQuantity(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                new String[] {ProductsEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
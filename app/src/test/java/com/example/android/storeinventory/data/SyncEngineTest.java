@@ -0,0 +1,352 @@
+package com.example.android.storeinventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.storeinventory.BuildConfig;
+import com.example.android.storeinventory.data.InventoryContract.ProductsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that two devices that sync with the same inventory service end up with the same
+ * products, with the quantities changed on both devices added up.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SyncEngineTest {
+
+    private InventoryServiceStandIn mService;
+
+    private ProductsProvider mDeviceA;
+
+    private ProductsProvider mDeviceB;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new InventoryServiceStandIn();
+        mDeviceA = createDevice("device-a.db");
+        mDeviceB = createDevice("device-b.db");
+    }
+
+    @After
+    public void tearDown() {
+        mService.stop();
+    }
+
+    @Test
+    public void mergesQuantitiesAsSummedDeltas() throws Exception {
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        assertSynced(sync(mDeviceA));
+        assertSynced(sync(mDeviceB));
+        long idOnB = findProduct(mDeviceB, getUuid(mDeviceA, idOnA));
+        assertEquals(10, getQuantity(mDeviceB, idOnB));
+
+        // Both devices sell at the same time and one of them receives new units
+        sell(mDeviceA, idOnA, 2);
+        sell(mDeviceB, idOnB, 3);
+        receive(mDeviceB, idOnB, 20);
+        assertSynced(sync(mDeviceA));
+        assertSynced(sync(mDeviceB));
+        assertSynced(sync(mDeviceA));
+
+        assertEquals(25, getQuantity(mDeviceA, idOnA));
+        assertEquals(25, getQuantity(mDeviceB, idOnB));
+        // The ledger still accounts for every unit
+        assertEquals(25, sumOfMovements(mDeviceA, idOnA));
+        assertEquals(25, sumOfMovements(mDeviceB, idOnB));
+    }
+
+    @Test
+    public void sendsALostBatchAgainWithoutTheLaterChanges() throws Exception {
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        sync(mDeviceA);
+        sync(mDeviceB);
+        long idOnB = findProduct(mDeviceB, getUuid(mDeviceA, idOnA));
+
+        // The service gets three sales, but A never hears that it did
+        sell(mDeviceA, idOnA, 1);
+        sell(mDeviceA, idOnA, 1);
+        sell(mDeviceA, idOnA, 1);
+        mService.loseNextPushAnswer();
+        assertEquals(ProductsEntry.SYNC_FAILED, sync(mDeviceA).getInt(ProductsEntry.EXTRA_RESULT));
+
+        // One more sale before the next sync, which must not be sent along with the three
+        sell(mDeviceA, idOnA, 1);
+        assertSynced(sync(mDeviceA));
+        assertSynced(sync(mDeviceB));
+
+        assertEquals(6, getQuantity(mDeviceA, idOnA));
+        assertEquals(6, getQuantity(mDeviceB, idOnB));
+        assertEquals(0, sync(mDeviceA).getInt(ProductsEntry.EXTRA_CHANGES_SENT));
+    }
+
+    @Test
+    public void lastChangeOfANameWins() throws Exception {
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        sync(mDeviceA);
+        sync(mDeviceB);
+        long idOnB = findProduct(mDeviceB, getUuid(mDeviceA, idOnA));
+
+        rename(mDeviceA, idOnA, "Dark Rye Bread");
+        rename(mDeviceB, idOnB, "Sourdough Rye");
+        // The service gets the change of B last, so it wins on both devices
+        sync(mDeviceA);
+        sync(mDeviceB);
+        assertEquals("Sourdough Rye", getName(mDeviceB, idOnB));
+        sync(mDeviceA);
+
+        assertEquals("Sourdough Rye", getName(mDeviceA, idOnA));
+        assertEquals("Sourdough Rye", getName(mDeviceB, idOnB));
+    }
+
+    @Test
+    public void keepsOnlyTheValuesWithLocalChanges() throws Exception {
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        sync(mDeviceA);
+        sync(mDeviceB);
+        final long idOnB = findProduct(mDeviceB, getUuid(mDeviceA, idOnA));
+
+        rename(mDeviceA, idOnA, "Dark Rye Bread");
+        sync(mDeviceA);
+        // B sells after it has sent its changes and before it pulls the rename, so the sale is
+        // still to be sent while the rename is applied
+        mService.runBeforeNextPull(new Runnable() {
+            @Override
+            public void run() {
+                sell(mDeviceB, idOnB, 1);
+            }
+        });
+        assertSynced(sync(mDeviceB));
+        assertEquals("Dark Rye Bread", getName(mDeviceB, idOnB));
+        assertEquals(9, getQuantity(mDeviceB, idOnB));
+
+        sync(mDeviceB);
+        sync(mDeviceA);
+        assertEquals("Dark Rye Bread", getName(mDeviceA, idOnA));
+        assertEquals(9, getQuantity(mDeviceA, idOnA));
+    }
+
+    @Test
+    public void fetchesThePicturesThatDoNotComeWithTheChanges() throws Exception {
+        mService.setSendsPictures(false);
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        insertProduct(mDeviceA, "Sourdough", 10);
+        // Another product with the same picture, which is fetched once
+        insertProduct(mDeviceA, "Rye Bread", 5);
+        sync(mDeviceA);
+        assertEquals(3, sync(mDeviceB).getInt(ProductsEntry.EXTRA_CHANGES_RECEIVED));
+        assertEquals(2, mService.getPictureFetchCount());
+
+        long idOnB = findProduct(mDeviceB, getUuid(mDeviceA, idOnA));
+        assertEquals(getValue(mDeviceA, idOnA, ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH),
+                getValue(mDeviceB, idOnB, ProductsEntry.COLUMN_PRODUCT_PICTURE_HASH));
+        ParcelFileDescriptor picture = mDeviceB.openFile(ProductsEntry.buildPictureUri(idOnB), "r");
+        InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(picture);
+        try {
+            byte[] bytes = new byte["Rye Bread".length()];
+            assertEquals(bytes.length, inputStream.read(bytes));
+            assertEquals("Rye Bread", new String(bytes));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void deletesProductsOnTheOtherDevices() throws Exception {
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        sync(mDeviceA);
+        sync(mDeviceB);
+        String uuid = getUuid(mDeviceA, idOnA);
+        long idOnB = findProduct(mDeviceB, uuid);
+
+        // A sale on B that has not been sent yet does not bring the product back
+        sell(mDeviceB, idOnB, 1);
+        mDeviceA.delete(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, idOnA), null, null);
+        sync(mDeviceA);
+        assertSynced(sync(mDeviceB));
+        sync(mDeviceA);
+
+        assertEquals(-1, findProduct(mDeviceB, uuid));
+        assertEquals(0, countProducts(mDeviceA));
+        assertEquals(0, countProducts(mDeviceB));
+    }
+
+    @Test
+    public void syncCostsAsMuchAsTheChanges() throws Exception {
+        ContentValues[] products = new ContentValues[500];
+        for(int i = 0; i < products.length; i++){
+            products[i] = createProduct("Product " + i, 10);
+        }
+        mDeviceA.bulkInsert(ProductsEntry.CONTENT_URI, products);
+        Bundle result = sync(mDeviceA);
+        assertSynced(result);
+        assertEquals(500, result.getInt(ProductsEntry.EXTRA_CHANGES_SENT));
+        assertEquals(500, sync(mDeviceB).getInt(ProductsEntry.EXTRA_CHANGES_RECEIVED));
+        assertEquals(500, countProducts(mDeviceB));
+
+        // Nothing changed: nothing is sent and one empty page is pulled
+        int pushes = mService.getPushCount();
+        int pulls = mService.getPullCount();
+        result = sync(mDeviceA);
+        assertEquals(0, result.getInt(ProductsEntry.EXTRA_CHANGES_SENT));
+        assertEquals(0, result.getInt(ProductsEntry.EXTRA_CHANGES_RECEIVED));
+        assertEquals(pushes, mService.getPushCount());
+        assertEquals(pulls + 1, mService.getPullCount());
+
+        // One sale is one change, and the same product sold again is still one change
+        long id = 1;
+        sell(mDeviceA, id, 1);
+        sell(mDeviceA, id, 1);
+        result = sync(mDeviceA);
+        assertEquals(1, result.getInt(ProductsEntry.EXTRA_CHANGES_SENT));
+        assertEquals(pushes + 1, mService.getPushCount());
+        assertEquals(0, sync(mDeviceA).getInt(ProductsEntry.EXTRA_CHANGES_SENT));
+        assertEquals(1, sync(mDeviceB).getInt(ProductsEntry.EXTRA_CHANGES_RECEIVED));
+        assertEquals(8, getQuantity(mDeviceB, findProduct(mDeviceB, getUuid(mDeviceA, id))));
+    }
+
+    @Test
+    public void keepsTheChangesWhenTheServiceIsDown() throws Exception {
+        long idOnA = insertProduct(mDeviceA, "Rye Bread", 10);
+        String url = mService.getUrl();
+        mService.stop();
+        assertEquals(ProductsEntry.SYNC_FAILED, mDeviceA.call(ProductsEntry.METHOD_SYNC, url, null)
+                .getInt(ProductsEntry.EXTRA_RESULT));
+
+        mService = new InventoryServiceStandIn();
+        assertEquals(1, sync(mDeviceA).getInt(ProductsEntry.EXTRA_CHANGES_SENT));
+        sync(mDeviceB);
+        assertTrue(findProduct(mDeviceB, getUuid(mDeviceA, idOnA)) != -1);
+        assertFalse(mService.getBytesReceived() == 0);
+    }
+
+    /**
+     * Create a provider with a database and pictures of its own, which plays one device.
+     */
+    private static ProductsProvider createDevice(String databaseName) {
+        ProductsProvider provider = new ProductsProvider(databaseName);
+        ProviderInfo info = new ProviderInfo();
+        info.authority = InventoryContract.CONTENT_AUTHORITY;
+        provider.attachInfo(RuntimeEnvironment.application, info);
+        return provider;
+    }
+
+    private Bundle sync(ProductsProvider device) {
+        return device.call(ProductsEntry.METHOD_SYNC, mService.getUrl(), null);
+    }
+
+    private static void assertSynced(Bundle result) {
+        assertEquals(ProductsEntry.SYNC_OK, result.getInt(ProductsEntry.EXTRA_RESULT));
+    }
+
+    private static ContentValues createProduct(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PRICE, 350);
+        values.put(ProductsEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductsEntry.COLUMN_PRODUCT_PICTURE, name.getBytes());
+        return values;
+    }
+
+    private static long insertProduct(ProductsProvider device, String name, int quantity) {
+        Uri uri = device.insert(ProductsEntry.CONTENT_URI, createProduct(name, quantity));
+        return ContentUris.parseId(uri);
+    }
+
+    private static void sell(ProductsProvider device, long id, int units) {
+        Bundle extras = new Bundle();
+        extras.putInt(ProductsEntry.EXTRA_UNITS, units);
+        assertEquals(ProductsEntry.SELL_OK, device.call(ProductsEntry.METHOD_SELL, String.valueOf(id), extras)
+                .getInt(ProductsEntry.EXTRA_RESULT));
+    }
+
+    private static void receive(ProductsProvider device, long id, int units) {
+        Bundle extras = new Bundle();
+        extras.putInt(ProductsEntry.EXTRA_UNITS, units);
+        device.call(ProductsEntry.METHOD_RECEIVE, String.valueOf(id), extras);
+    }
+
+    private static void rename(ProductsProvider device, long id, String name) {
+        ContentValues values = new ContentValues();
+        values.put(ProductsEntry.COLUMN_PRODUCT_NAME, name);
+        assertEquals(1, device.update(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id), values, null, null));
+    }
+
+    private static String getUuid(ProductsProvider device, long id) {
+        return getValue(device, id, ProductsEntry.COLUMN_PRODUCT_UUID);
+    }
+
+    private static String getName(ProductsProvider device, long id) {
+        return getValue(device, id, ProductsEntry.COLUMN_PRODUCT_NAME);
+    }
+
+    private static int getQuantity(ProductsProvider device, long id) {
+        return Integer.parseInt(getValue(device, id, ProductsEntry.COLUMN_PRODUCT_QUANTITY));
+    }
+
+    private static String getValue(ProductsProvider device, long id, String column) {
+        Cursor cursor = device.query(ContentUris.withAppendedId(ProductsEntry.CONTENT_URI, id),
+                new String[] {column}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the local ID of the product with the given identifier, or -1
+     */
+    private static long findProduct(ProductsProvider device, String uuid) {
+        Cursor cursor = device.query(ProductsEntry.CONTENT_URI, new String[] {ProductsEntry._ID},
+                ProductsEntry.COLUMN_PRODUCT_UUID + "=?", new String[] {uuid}, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int countProducts(ProductsProvider device) {
+        Cursor cursor = device.query(ProductsEntry.CONTENT_URI, new String[] {ProductsEntry._ID},
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long sumOfMovements(ProductsProvider device, long id) {
+        Cursor cursor = device.query(InventoryContract.StockMovementsEntry.buildRangeUri(id, 0, Long.MAX_VALUE),
+                new String[] {InventoryContract.StockMovementsEntry.COLUMN_DELTA}, null, null, null);
+        try {
+            long sum = 0;
+            while(cursor.moveToNext()){
+                sum += cursor.getLong(0);
+            }
+            return sum;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.storeinventory.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Times reading and writing the products of a catalog in the CSV format of the import and the
+ * export, without the storage, so only the cost of the format is measured.
+ */
+@State(Scope.Benchmark)
+public class CsvBenchmark {
+
+    /** Number of products in the file */
+    @Param({"100", "10000"})
+    public int products;
+
+    /** The file, as the export writes it */
+    private String mFile;
+
+    /** The records of the file, without the header */
+    private String[][] mRecords;
+
+    @Setup
+    public void setUp() throws IOException {
+        mRecords = new String[products][];
+        for(int i = 0; i < products; i++){
+            // Some names need quotes, like real supplier files
+            String name = i % 10 == 0
+                    ? String.format(Locale.US, "Bread \"%d\", sliced", i)
+                    : String.format(Locale.US, "Bread %d", i);
+            mRecords[i] = new String[] {name, String.format(Locale.US, "%d.%02d", i / 100, i % 100),
+                    String.valueOf(i % 500), "pictures/bread" + (i % 8) + ".png"};
+        }
+        StringBuilder file = new StringBuilder();
+        CsvWriter writer = new CsvWriter(new StringBuilderWriter(file));
+        writer.writeRecord("name", "price", "quantity", "image");
+        for(String[] record : mRecords){
+            writer.writeRecord(record);
+        }
+        mFile = file.toString();
+    }
+
+    @Benchmark
+    public int read(Blackhole blackhole) throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(mFile));
+        int records = 0;
+        String[] record;
+        while((record = reader.readRecord()) != null){
+            blackhole.consume(record);
+            records++;
+        }
+        return records;
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        CountingWriter out = new CountingWriter();
+        CsvWriter writer = new CsvWriter(out);
+        writer.writeRecord("name", "price", "quantity", "image");
+        for(String[] record : mRecords){
+            writer.writeRecord(record);
+        }
+        writer.flush();
+        return out.mCount;
+    }
+
+    /**
+     * Collects the text in a StringBuilder, without the locking of a StringWriter.
+     */
+    private static class StringBuilderWriter extends Writer {
+
+        private final StringBuilder mBuilder;
+
+        StringBuilderWriter(StringBuilder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            mBuilder.append(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Only counts the characters, so the benchmark times the writer and not the storage.
+     */
+    private static class CountingWriter extends Writer {
+
+        int mCount;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            mCount += length;
+        }
+
+        @Override
+        public void write(String text) {
+            mCount += text.length();
+        }
+
+        @Override
+        public void write(int c) {
+            mCount++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}